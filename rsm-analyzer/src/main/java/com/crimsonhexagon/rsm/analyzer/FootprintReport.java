@@ -0,0 +1,234 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.analyzer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates the footprint of the sessions visited by {@link SessionAnalyzer} and prints the report
+ */
+class FootprintReport {
+    static final int NOT_CHECKED = -1;
+
+    private static final long NO_TTL = -1;
+    private static final long[] TTL_BOUNDS = {
+        TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(5), TimeUnit.MINUTES.toMillis(15),
+        TimeUnit.MINUTES.toMillis(30), TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(4), TimeUnit.DAYS.toMillis(1) };
+    private static final String[] TTL_LABELS = { "< 1m", "< 5m", "< 15m", "< 30m", "< 1h", "< 4h", "< 1d", ">= 1d" };
+
+    private final int top;
+    private final int maxSessionSize;
+    private final int maxAttributeSize;
+
+    private int[] sessionSizes = new int[1024];
+    private int sessionCount;
+    private long sessionBytes;
+    private long oversizedSessions;
+    private long oversizedAttributes;
+    private final Totals undecodable = new Totals();
+    private final Map<String, Long> undecodableReasons = new HashMap<>();
+    private final Map<String, Totals> byAttribute = new HashMap<>();
+    private final Map<String, Totals> byClass = new HashMap<>();
+    private long noTtl;
+    private final long[] ttlBuckets = new long[TTL_LABELS.length];
+    private final PriorityQueue<Offender> largestSessions = new PriorityQueue<>(Comparator.comparingInt(o -> o.size));
+    private final PriorityQueue<Offender> largestAttributes = new PriorityQueue<>(Comparator.comparingInt(o -> o.size));
+
+    /**
+     * @param top number of entries listed per table
+     * @param maxSessionSize size in bytes above which a session is counted as oversized; {@link #NOT_CHECKED} to disable
+     * @param maxAttributeSize size in bytes above which an attribute is counted as oversized; {@link #NOT_CHECKED} to disable
+     */
+    FootprintReport(int top, int maxSessionSize, int maxAttributeSize) {
+        this.top = top;
+        this.maxSessionSize = maxSessionSize;
+        this.maxAttributeSize = maxAttributeSize;
+    }
+
+    /**
+     * Record a decoded session
+     * 
+     * @param key
+     * @param size encoded size in bytes
+     * @param ttlMillis remaining time to live in milliseconds; negative if the key does not expire
+     */
+    void addSession(String key, int size, long ttlMillis) {
+        if (sessionCount == sessionSizes.length) {
+            sessionSizes = Arrays.copyOf(sessionSizes, sessionCount * 2);
+        }
+        sessionSizes[sessionCount++] = size;
+        sessionBytes += size;
+        if (maxSessionSize != NOT_CHECKED && size > maxSessionSize) {
+            oversizedSessions++;
+        }
+        offer(largestSessions, new Offender(key, null, size));
+        addTtl(ttlMillis);
+    }
+
+    /**
+     * Record an attribute of a session recorded with {@link #addSession(String, int, long)}
+     * 
+     * @param key
+     * @param name attribute name
+     * @param value attribute value
+     * @param size encoded size in bytes of the value on its own
+     */
+    void addAttribute(String key, String name, Object value, int size) {
+        final String className = value == null ? "null" : value.getClass().getName();
+        byAttribute.computeIfAbsent(name, n -> new Totals()).add(size);
+        byClass.computeIfAbsent(className, n -> new Totals()).add(size);
+        if (maxAttributeSize != NOT_CHECKED && size > maxAttributeSize) {
+            oversizedAttributes++;
+        }
+        offer(largestAttributes, new Offender(key, name + " (" + className + ")", size));
+    }
+
+    /**
+     * Record a value under the prefix which could not be decoded as a session
+     * 
+     * @param key
+     * @param size encoded size in bytes
+     * @param ttlMillis
+     * @param reason
+     */
+    void addUndecodable(String key, int size, long ttlMillis, String reason) {
+        undecodable.add(size);
+        undecodableReasons.merge(reason, 1L, Long::sum);
+        addTtl(ttlMillis);
+    }
+
+    int getSessionCount() {
+        return sessionCount;
+    }
+
+    private void addTtl(long ttlMillis) {
+        if (ttlMillis < 0) {
+            noTtl++;
+            return;
+        }
+        int bucket = 0;
+        while (bucket < TTL_BOUNDS.length && ttlMillis >= TTL_BOUNDS[bucket]) {
+            bucket++;
+        }
+        ttlBuckets[bucket]++;
+    }
+
+    private void offer(PriorityQueue<Offender> queue, Offender offender) {
+        if (queue.size() < top) {
+            queue.add(offender);
+        } else if (top > 0 && queue.peek().size < offender.size) {
+            queue.poll();
+            queue.add(offender);
+        }
+    }
+
+    void print(PrintStream out) {
+        final int[] sizes = Arrays.copyOf(sessionSizes, sessionCount);
+        Arrays.sort(sizes);
+        out.println();
+        out.println(String.format("Sessions: %d totaling %d bytes", sessionCount, sessionBytes));
+        if (sessionCount > 0) {
+            out.println(String.format("  size (bytes) min=%d p50=%d p90=%d p99=%d max=%d mean=%.0f",
+                sizes[0], percentile(sizes, 0.5), percentile(sizes, 0.9), percentile(sizes, 0.99), sizes[sizes.length - 1],
+                sessionBytes / (double) sessionCount));
+        }
+        if (maxSessionSize != NOT_CHECKED) {
+            out.println(String.format("  %d sessions exceed %d bytes", oversizedSessions, maxSessionSize));
+        }
+        if (undecodable.count > 0) {
+            out.println(String.format("Undecodable values: %d totaling %d bytes", undecodable.count, undecodable.bytes));
+            undecodableReasons.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top)
+                .forEach(e -> out.println(String.format("  %8d %s", e.getValue(), e.getKey())));
+        }
+
+        out.println();
+        out.println("TTL distribution:");
+        out.println(String.format("  %-8s %10d", "none", noTtl));
+        for (int i = 0; i < TTL_LABELS.length; i++) {
+            out.println(String.format("  %-8s %10d", TTL_LABELS[i], ttlBuckets[i]));
+        }
+
+        printTotals(out, "Attributes by name", byAttribute);
+        printTotals(out, "Attributes by value class", byClass);
+        if (maxAttributeSize != NOT_CHECKED) {
+            out.println(String.format("  %d attribute values exceed %d bytes", oversizedAttributes, maxAttributeSize));
+        }
+
+        printOffenders(out, "Largest sessions", largestSessions);
+        printOffenders(out, "Largest attribute values", largestAttributes);
+    }
+
+    private void printTotals(PrintStream out, String title, Map<String, Totals> totals) {
+        out.println();
+        out.println(title + " (top " + top + " by total bytes; sizes are of each value serialized on its own):");
+        out.println(String.format("  %14s %10s %10s %10s  %s", "bytes", "count", "mean", "max", "name"));
+        totals.entrySet().stream()
+            .sorted(Comparator.comparingLong((Map.Entry<String, Totals> e) -> e.getValue().bytes).reversed())
+            .limit(top)
+            .forEach(e -> out.println(String.format("  %14d %10d %10.0f %10d  %s",
+                e.getValue().bytes, e.getValue().count, e.getValue().bytes / (double) e.getValue().count, e.getValue().max, e.getKey())));
+    }
+
+    private void printOffenders(PrintStream out, String title, PriorityQueue<Offender> offenders) {
+        final List<Offender> sorted = new ArrayList<>(offenders);
+        sorted.sort(Comparator.comparingInt((Offender o) -> o.size).reversed());
+        out.println();
+        out.println(title + ":");
+        for (Offender o : sorted) {
+            out.println(String.format("  %10d  %s%s", o.size, o.key, o.detail == null ? "" : " " + o.detail));
+        }
+    }
+
+    private static int percentile(int[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static class Totals {
+        long count;
+        long bytes;
+        int max;
+
+        void add(int size) {
+            count++;
+            bytes += size;
+            max = Math.max(max, size);
+        }
+    }
+
+    private static class Offender {
+        final String key;
+        final String detail;
+        final int size;
+
+        Offender(String key, String detail, int size) {
+            this.key = key;
+            this.detail = detail;
+            this.size = size;
+        }
+    }
+}
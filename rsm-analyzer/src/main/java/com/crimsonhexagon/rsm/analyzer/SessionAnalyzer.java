@@ -0,0 +1,281 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.analyzer;
+
+import com.crimsonhexagon.rsm.RedisSession;
+import com.crimsonhexagon.rsm.RedisSessionManager;
+import com.crimsonhexagon.rsm.SessionEnvelope;
+
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import org.apache.catalina.util.CustomObjectInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reports where the redis memory of stored sessions goes.<br>
+ * Walks all keys under a <code>sessionKeyPrefix</code> with <code>SCAN</code>, reading each batch with pipelined
+ * <code>GET</code> and <code>PTTL</code> commands, deserializes every {@link RedisSession} with the classes of the
+ * webapp and reports the session count and size distribution, byte totals per attribute name and per value class, the
+ * TTL distribution and the largest sessions and attribute values.
+ * <p>
+ * Arguments are of the form <code>--name=value</code>:
+ * <ul>
+ * <li><code>uri</code>: redis URI; a replica is preferable. Defaults to {@value #DEFAULT_URI}</li>
+ * <li><code>sessionKeyPrefix</code>: as configured on the manager. Defaults to
+ * {@value com.crimsonhexagon.rsm.RedisSessionManager#DEFAULT_SESSION_KEY_PREFIX}</li>
+ * <li><code>webapp</code>: exploded webapp directory; its <code>WEB-INF/classes</code> and <code>WEB-INF/lib/*.jar</code>
+ * are used to deserialize sessions</li>
+ * <li><code>classpath</code>: additional classpath entries separated by the platform path separator; <code>dir/*</code>
+ * adds all jars in <code>dir</code></li>
+ * <li><code>batch</code>: keys per <code>SCAN</code> and pipeline. Defaults to {@value #DEFAULT_BATCH}</li>
+ * <li><code>limit</code>: stop after this many keys. Defaults to all</li>
+ * <li><code>top</code>: entries per table. Defaults to {@value #DEFAULT_TOP}</li>
+ * <li><code>maxSessionSize</code>, <code>maxSessionAttributeSize</code>: count sessions and attribute values exceeding
+ * these sizes in bytes, e.g. to evaluate a manager configuration before rolling it out</li>
+ * </ul>
+ * The session key space is only read; <code>SCAN</code> does not block redis but the tool still adds load, so run it
+ * against a replica where possible.
+ */
+public class SessionAnalyzer {
+    public static final String DEFAULT_URI = "redis://localhost:6379";
+    public static final int DEFAULT_BATCH = 500;
+    public static final int DEFAULT_TOP = 20;
+
+    private static final Duration BATCH_TIMEOUT = Duration.ofSeconds(60);
+    private static final RedisCodec<String, byte[]> CODEC = RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE);
+
+    private final Map<String, String> args;
+    private final String sessionKeyPrefix;
+    private final int batch;
+    private final long limit;
+
+    SessionAnalyzer(Map<String, String> args) {
+        this.args = args;
+        this.sessionKeyPrefix = args.getOrDefault("sessionKeyPrefix", RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX);
+        this.batch = Integer.parseInt(args.getOrDefault("batch", String.valueOf(DEFAULT_BATCH)));
+        this.limit = Long.parseLong(args.getOrDefault("limit", String.valueOf(Long.MAX_VALUE)));
+    }
+
+    public static void main(String[] argv) throws Exception {
+        new SessionAnalyzer(parseArgs(argv)).run(System.out);
+    }
+
+    void run(PrintStream out) throws IOException {
+        final FootprintReport report = new FootprintReport(
+            Integer.parseInt(args.getOrDefault("top", String.valueOf(DEFAULT_TOP))),
+            Integer.parseInt(args.getOrDefault("maxSessionSize", String.valueOf(FootprintReport.NOT_CHECKED))),
+            Integer.parseInt(args.getOrDefault("maxSessionAttributeSize", String.valueOf(FootprintReport.NOT_CHECKED))));
+        final RedisClient client = RedisClient.create(args.getOrDefault("uri", DEFAULT_URI));
+        try (URLClassLoader classLoader = webappClassLoader();
+            StatefulRedisConnection<String, byte[]> scanConnection = client.connect(CODEC);
+            StatefulRedisConnection<String, byte[]> readConnection = client.connect(CODEC)) {
+            readConnection.setAutoFlushCommands(false);
+            final RedisCommands<String, byte[]> scan = scanConnection.sync();
+            final RedisAsyncCommands<String, byte[]> read = readConnection.async();
+            final ScanArgs scanArgs = ScanArgs.Builder.matches(RedisSessionManager.escapeGlob(sessionKeyPrefix) + "*").limit(batch);
+
+            out.println("Scanning [" + sessionKeyPrefix + "*]");
+            long visited = 0;
+            KeyScanCursor<String> cursor = scan.scan(scanArgs);
+            while (true) {
+                final List<String> keys = cursor.getKeys();
+                // auxiliary data of the manager, e.g. active session counts
+                keys.removeIf(key -> key.startsWith(sessionKeyPrefix + ":"));
+                if (visited + keys.size() > limit) {
+                    keys.subList((int) (limit - visited), keys.size()).clear();
+                }
+                analyze(keys, read, readConnection, classLoader, report);
+                visited += keys.size();
+                if (cursor.isFinished() || visited >= limit) {
+                    break;
+                }
+                cursor = scan.scan(ScanCursor.of(cursor.getCursor()), scanArgs);
+            }
+            out.println("Visited " + visited + " keys");
+        } finally {
+            client.shutdown();
+        }
+        report.print(out);
+    }
+
+    /**
+     * Read the given keys with one pipeline and add them to the report
+     */
+    private void analyze(List<String> keys, RedisAsyncCommands<String, byte[]> read, StatefulRedisConnection<String, byte[]> connection,
+        ClassLoader classLoader, FootprintReport report) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<RedisFuture<byte[]>> values = new ArrayList<>(keys.size());
+        final List<RedisFuture<Long>> ttls = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            values.add(read.get(key));
+            ttls.add(read.pttl(key));
+        }
+        connection.flushCommands();
+        final List<RedisFuture<?>> all = new ArrayList<>(values);
+        all.addAll(ttls);
+        // awaitAll also returns early on the first failed command; each failure is handled below
+        LettuceFutures.awaitAll(BATCH_TIMEOUT, all.toArray(new RedisFuture<?>[0]));
+        for (int i = 0; i < keys.size(); i++) {
+            final String key = keys.get(i);
+            final byte[] value;
+            final Long ttl;
+            try {
+                value = values.get(i).get(BATCH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+                ttl = ttls.get(i).get(BATCH_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                // e.g. WRONGTYPE for a non-string key sharing the prefix
+                report.addUndecodable(key, 0, -1, "read failed: " + e.getCause().getMessage());
+                continue;
+            } catch (InterruptedException | TimeoutException e) {
+                throw new IllegalStateException("Failed reading [" + key + "]", e);
+            }
+            if (value == null) {
+                continue; // expired or deleted since the scan
+            }
+            analyze(key, value, ttl, classLoader, report);
+        }
+    }
+
+    void analyze(String key, byte[] value, Long ttl, ClassLoader classLoader, FootprintReport report) {
+        // PTTL is -1 without expiry and -2 if the key vanished after the GET
+        final long ttlMillis = ttl == null ? -1 : ttl;
+        final Object obj;
+        // sessions saved with versionedSaves are prefixed by their version
+        try (ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(SessionEnvelope.payload(value)), classLoader)) {
+            obj = ois.readObject();
+        } catch (ClassNotFoundException e) {
+            report.addUndecodable(key, value.length, ttlMillis, "class not found: " + e.getMessage());
+            return;
+        } catch (Exception e) {
+            report.addUndecodable(key, value.length, ttlMillis, e.getClass().getName());
+            return;
+        }
+        if (!(obj instanceof RedisSession)) {
+            report.addUndecodable(key, value.length, ttlMillis, "not a session: " + obj.getClass().getName());
+            return;
+        }
+        report.addSession(key, value.length, ttlMillis);
+        final RedisSession session = (RedisSession) obj;
+        final Enumeration<String> names;
+        try {
+            names = session.getAttributeNames();
+        } catch (IllegalStateException e) {
+            return; // invalidated session
+        }
+        while (names.hasMoreElements()) {
+            final String name = names.nextElement();
+            final Object attribute = session.getAttribute(name);
+            report.addAttribute(key, name, attribute, encodedSize(attribute));
+        }
+    }
+
+    private static int encodedSize(Object value) {
+        final CountingOutputStream count = new CountingOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(count)) {
+            oos.writeObject(value);
+        } catch (IOException e) {
+            return 0;
+        }
+        return count.count;
+    }
+
+    private URLClassLoader webappClassLoader() throws MalformedURLException {
+        final List<URL> urls = new ArrayList<>();
+        if (args.containsKey("webapp")) {
+            final File webInf = new File(args.get("webapp"), "WEB-INF");
+            urls.add(new File(webInf, "classes").toURI().toURL());
+            addJars(new File(webInf, "lib"), urls);
+        }
+        if (args.containsKey("classpath")) {
+            for (String entry : args.get("classpath").split(File.pathSeparator)) {
+                if (entry.endsWith("*")) {
+                    addJars(new File(entry.substring(0, entry.length() - 1)), urls);
+                } else if (!entry.isEmpty()) {
+                    urls.add(new File(entry).toURI().toURL());
+                }
+            }
+        }
+        return new URLClassLoader(urls.toArray(new URL[0]), getClass().getClassLoader());
+    }
+
+    private static void addJars(File dir, List<URL> urls) throws MalformedURLException {
+        final File[] jars = dir.listFiles((d, name) -> name.endsWith(".jar"));
+        if (jars != null) {
+            for (File jar : jars) {
+                urls.add(jar.toURI().toURL());
+            }
+        }
+    }
+
+    static Map<String, String> parseArgs(String[] argv) {
+        final Map<String, String> parsed = new LinkedHashMap<>();
+        for (String arg : argv) {
+            final int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 3) {
+                throw new IllegalArgumentException("Invalid argument [" + arg + "]; expected --name=value");
+            }
+            parsed.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return parsed;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        int count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.crimsonhexagon.rsm.analyzer;
+
+import com.crimsonhexagon.rsm.RedisSession;
+import com.crimsonhexagon.rsm.RedisSessionManager;
+import com.crimsonhexagon.rsm.SessionEnvelope;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class SessionAnalyzerTest {
+
+    @Test
+    public void testParseArgs() {
+        Map<String, String> args = SessionAnalyzer.parseArgs(new String[] { "--uri=redis://replica:6379/2", "--batch=100", "--classpath=" });
+        Assert.assertEquals(Arrays.asList("uri", "batch", "classpath"), Arrays.asList(args.keySet().toArray()));
+        Assert.assertEquals("redis://replica:6379/2", args.get("uri"));
+        Assert.assertEquals("100", args.get("batch"));
+        Assert.assertEquals("", args.get("classpath"));
+    }
+
+    @Test
+    public void testParseArgsValueWithEquals() {
+        Map<String, String> args = SessionAnalyzer.parseArgs(new String[] { "--uri=redis://:pw=1@localhost" });
+        Assert.assertEquals("redis://:pw=1@localhost", args.get("uri"));
+    }
+
+    @Test
+    public void testParseArgsLastWins() {
+        Map<String, String> args = SessionAnalyzer.parseArgs(new String[] { "--top=5", "--top=10" });
+        Assert.assertEquals("10", args.get("top"));
+    }
+
+    @Test
+    public void testParseArgsInvalid() {
+        for (String arg : new String[] { "uri=redis://localhost", "-uri=x", "--uri", "--=x", "" }) {
+            try {
+                SessionAnalyzer.parseArgs(new String[] { arg });
+                Assert.fail("accepted [" + arg + "]");
+            } catch (IllegalArgumentException expected) {
+                Assert.assertTrue(expected.getMessage().contains("--name=value"));
+            }
+        }
+    }
+
+    @Test
+    public void testEscapeGlob() {
+        Assert.assertEquals("_rsm_", RedisSessionManager.escapeGlob("_rsm_"));
+        Assert.assertEquals("app\\*\\?\\[1\\]\\\\", RedisSessionManager.escapeGlob("app*?[1]\\"));
+        Assert.assertEquals("", RedisSessionManager.escapeGlob(""));
+    }
+
+    @Test
+    public void testAnalyzeVersionedSession() throws Exception {
+        RedisSession session = new RedisSession(null);
+        session.setValid(true);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(session);
+        }
+        SessionAnalyzer analyzer = new SessionAnalyzer(Collections.emptyMap());
+        FootprintReport report = new FootprintReport(10, FootprintReport.NOT_CHECKED, FootprintReport.NOT_CHECKED);
+        ClassLoader classLoader = getClass().getClassLoader();
+        analyzer.analyze("plain", bytes.toByteArray(), -1L, classLoader, report);
+        analyzer.analyze("versioned", SessionEnvelope.wrap(3, bytes.toByteArray()), -1L, classLoader, report);
+        Assert.assertEquals(2, report.getSessionCount());
+    }
+}
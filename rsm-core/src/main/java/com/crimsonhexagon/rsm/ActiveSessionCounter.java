@@ -0,0 +1,98 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster-wide count of distinct sessions accessed within a time window, maintained incrementally in redis.<br>
+ * Each access adds the session ID to a HyperLogLog for the current time bucket; the count is the cardinality of the
+ * union of the buckets covering the window. Every node adds a session at most once per bucket.
+ */
+class ActiveSessionCounter {
+    private final String keyPrefix;
+    private final long bucketMillis;
+    private final int windowBuckets;
+    private volatile Bucket current = new Bucket(-1);
+
+    /**
+     * @param keyPrefix prefix of the redis key of each bucket
+     * @param bucketMillis length of a bucket
+     * @param windowMillis length of the counted window
+     */
+    ActiveSessionCounter(String keyPrefix, long bucketMillis, long windowMillis) {
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("bucket length must be positive");
+        }
+        this.keyPrefix = keyPrefix;
+        this.bucketMillis = bucketMillis;
+        // the current, partial bucket plus enough complete buckets to cover the window
+        this.windowBuckets = (int) ((Math.max(0, windowMillis) + bucketMillis - 1) / bucketMillis) + 1;
+    }
+
+    /**
+     * Record an access of the given session
+     * 
+     * @param client
+     * @param sessionId
+     * @param nowMillis
+     */
+    void track(RedisSessionClient client, String sessionId, long nowMillis) {
+        final long start = nowMillis - nowMillis % bucketMillis;
+        Bucket bucket = current;
+        if (bucket.start != start) {
+            // racing threads may each create a bucket; at worst an ID is added twice
+            bucket = new Bucket(start);
+            current = bucket;
+        }
+        if (bucket.seen.add(sessionId)) {
+            client.countUnique(key(start), sessionId, bucketMillis * windowBuckets, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param client
+     * @param nowMillis
+     * @return the estimated number of distinct sessions accessed within the window
+     */
+    long count(RedisSessionClient client, long nowMillis) {
+        final long start = nowMillis - nowMillis % bucketMillis;
+        final List<String> keys = new ArrayList<>(windowBuckets);
+        for (int i = 0; i < windowBuckets; i++) {
+            keys.add(key(start - i * bucketMillis));
+        }
+        return client.uniqueCount(keys);
+    }
+
+    private String key(long bucketStart) {
+        return keyPrefix + bucketStart;
+    }
+
+    private static class Bucket {
+        final long start;
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+        Bucket(long start) {
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded table of the session attributes contributing the most bytes, keyed by attribute name and value class.<br>
+ * Uses the (weighted) Space-Saving algorithm: once the table is full, a new key replaces the entry with the lowest
+ * weight and inherits that weight as its error bound. Keys with a true weight above the lowest weight in the table are
+ * therefore guaranteed to be present, and the weight of each entry overestimates its true weight by at most its error.
+ */
+class AttributeSizeProfiler {
+    private final int capacity;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long samples;
+
+    AttributeSizeProfiler(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Record a sampled attribute size
+     * 
+     * @param name attribute name
+     * @param value attribute value
+     * @param size encoded size in bytes
+     * @param write <code>true</code> if the attribute was written to redis with its session; <code>false</code> if it
+     *            was set on the session
+     */
+    synchronized void record(String name, Object value, int size, boolean write) {
+        samples++;
+        final String className = value == null ? "null" : value.getClass().getName();
+        final String key = name + '\u0000' + className;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            long inherited = 0;
+            if (entries.size() >= capacity) {
+                final Entry min = entries.values().stream().min(Comparator.comparingLong(e -> e.weight)).get();
+                entries.remove(min.key);
+                inherited = min.weight;
+            }
+            entry = new Entry(key, name, className, inherited);
+            entries.put(key, entry);
+        }
+        entry.add(size, write);
+    }
+
+    /**
+     * @param n
+     * @return copies of up to <code>n</code> entries with the highest weight, highest first
+     */
+    synchronized List<Entry> top(int n) {
+        final List<Entry> sorted = new ArrayList<>(entries.size());
+        for (Entry e : entries.values()) {
+            sorted.add(e.copy());
+        }
+        sorted.sort(Comparator.comparingLong((Entry e) -> e.weight).reversed());
+        return sorted.size() > n ? new ArrayList<>(sorted.subList(0, n)) : sorted;
+    }
+
+    synchronized long getSampleCount() {
+        return samples;
+    }
+
+    synchronized void reset() {
+        entries.clear();
+        samples = 0;
+    }
+
+    /**
+     * An attribute name and value class with its sampled sizes
+     */
+    static class Entry {
+        private static final int BUCKETS = 33;
+
+        final String key;
+        final String name;
+        final String className;
+        // sum of sampled sizes including the inherited error
+        long weight;
+        final long error;
+        long sets;
+        long writes;
+        int max;
+        // bucket i holds sizes in [2^(i-1), 2^i)
+        private final long[] histogram;
+
+        Entry(String key, String name, String className, long error) {
+            this(key, name, className, error, new long[BUCKETS]);
+            this.weight = error;
+        }
+
+        private Entry(String key, String name, String className, long error, long[] histogram) {
+            this.key = key;
+            this.name = name;
+            this.className = className;
+            this.error = error;
+            this.histogram = histogram;
+        }
+
+        void add(int size, boolean write) {
+            weight += size;
+            if (write) {
+                writes++;
+            } else {
+                sets++;
+            }
+            max = Math.max(max, size);
+            histogram[32 - Integer.numberOfLeadingZeros(Math.max(0, size))]++;
+        }
+
+        /**
+         * @param p percentile in (0, 1]
+         * @return upper bound of the size bucket containing the given percentile
+         */
+        int percentile(double p) {
+            final long count = sets + writes;
+            final long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram[i];
+                if (seen >= rank) {
+                    return Math.min(max, i == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, (1L << i) - 1));
+                }
+            }
+            return max;
+        }
+
+        Entry copy() {
+            final Entry copy = new Entry(key, name, className, error, histogram.clone());
+            copy.weight = weight;
+            copy.sets = sets;
+            copy.writes = writes;
+            copy.max = max;
+            return copy;
+        }
+    }
+}
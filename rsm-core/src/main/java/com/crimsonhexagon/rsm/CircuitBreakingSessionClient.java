@@ -0,0 +1,645 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * {@link RedisSessionClient} failing over to a bounded in-heap store while redis is slow or unavailable.<br>
+ * The circuit opens after a number of consecutive failed or slow operations. While it is open no operation waits for
+ * redis: sessions are saved to, created in and loaded from the local store, changes to sets (e.g. the principal index)
+ * are queued, and other writes of auxiliary data are skipped.
+ * Until the circuit opens, reads that fail are reported as failed, not as missing sessions.
+ * After a delay a single operation probes redis; if it succeeds the circuit closes and the sessions saved locally,
+ * with the queued changes, are written back to redis in the background. Until then sessions keep being served from
+ * the local store.<br>
+ * Sessions changed on other nodes while the circuit was open are overwritten by the local copy (last write wins);
+ * versioned sessions are written back with {@link SessionEnvelope#OVERWRITE} so that their version keeps growing.
+ */
+public class CircuitBreakingSessionClient extends DelegatingRedisSessionClient {
+    private static final Log log = LogFactory.getLog(CircuitBreakingSessionClient.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private enum Permit {
+        REJECTED, CALL, PROBE
+    }
+
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openMillis;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile boolean open;
+    private volatile long openedAt;
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    // sessions saved while redis was unavailable; read without locking, as with a closed circuit it is mostly empty
+    private final Map<String, Entry> local = new ConcurrentHashMap<>();
+    // orders local sessions by their last use
+    private final AtomicLong useCounter = new AtomicLong();
+    // keys deleted while redis was unavailable, eldest first; guarded by itself
+    private final Set<String> deleted = new LinkedHashSet<>();
+    // set members added or removed while redis was unavailable, by set and member, eldest first; guarded by itself
+    private final Map<String, SetChange> setChanges = new LinkedHashMap<>();
+    private final int localCapacity;
+    private volatile boolean unsynced;
+    private final AtomicBoolean resyncing = new AtomicBoolean();
+    private final ThreadPoolExecutor resyncExecutor;
+
+    private final LongAdder trips = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param delegate
+     * @param failureThreshold number of consecutive failed or slow operations opening the circuit
+     * @param slowCallMillis operations taking longer are counted as failed
+     * @param openMillis time the circuit stays open before redis is probed
+     * @param localCapacity maximum number of sessions held locally; the least recently used are dropped
+     */
+    public CircuitBreakingSessionClient(RedisSessionClient delegate, int failureThreshold, long slowCallMillis, long openMillis, int localCapacity) {
+        super(delegate);
+        if (failureThreshold < 1 || localCapacity < 1) {
+            throw new IllegalArgumentException("failureThreshold and localCapacity must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openMillis = openMillis;
+        this.localCapacity = localCapacity;
+        // a single thread, only kept while resyncing
+        this.resyncExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "rsm-resync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        resyncExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void save(String key, RedisSession session) {
+        guardedRun(() -> saveRemote(key, () -> delegate.save(key, session)), () -> saveLocal(key, encode(session)));
+    }
+
+    @Override
+    public void save(String key, RedisSession session, byte[] encoded) {
+        guardedRun(() -> saveRemote(key, () -> delegate.save(key, session, encoded)), () -> saveLocal(key, encoded));
+    }
+
+    private void saveRemote(String key, Runnable save) {
+        save.run();
+        if (!local.isEmpty()) {
+            local.remove(key); // redis is up to date
+        }
+    }
+
+    private void saveLocal(String key, byte[] encoded) {
+        local.compute(key, (k, existing) -> new Entry(encoded, isLive(existing) ? existing.expiresAt : Long.MAX_VALUE, useCounter.incrementAndGet()));
+        putLocal(key);
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        return guarded(() -> delegate.reserve(key, session, ttl, timeUnit), () -> reserveLocal(key, encode(session), ttl, timeUnit));
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        return guarded(() -> delegate.reserve(key, session, encoded, ttl, timeUnit), () -> reserveLocal(key, encoded, ttl, timeUnit));
+    }
+
+    private boolean reserveLocal(String key, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        final Entry reserved = new Entry(encoded, ttl > 0 ? System.currentTimeMillis() + timeUnit.toMillis(ttl) : Long.MAX_VALUE,
+            useCounter.incrementAndGet());
+        if (local.compute(key, (k, existing) -> isLive(existing) ? existing : reserved) != reserved) {
+            return false;
+        }
+        putLocal(key);
+        return true;
+    }
+
+    @Override
+    public RedisSession load(String key) {
+        final byte[] encoded = loadEncoded(key);
+        final Object obj = encoded == null ? null : decode(SessionEnvelope.payload(encoded));
+        return obj instanceof RedisSession ? (RedisSession) obj : null;
+    }
+
+    @Override
+    public byte[] loadEncoded(String key) {
+        final Entry entry = getLocal(key);
+        if (entry != null) {
+            return entry.value;
+        }
+        return guardedRead(() -> delegate.loadEncoded(key), () -> null);
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        final List<byte[]> values = new ArrayList<>(guardedRead(() -> delegate.loadEncoded(keys), () -> Collections.nCopies(keys.size(), (byte[]) null)));
+        for (int i = 0; i < keys.size(); i++) {
+            final Entry entry = getLocal(keys.get(i));
+            if (entry != null) {
+                values.set(i, entry.value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        final Entry entry = getLocal(key);
+        if (entry != null) {
+            return CompletableFuture.completedFuture(entry.value);
+        }
+        return guardedRead(() -> delegate.loadEncodedAsync(key, alternate), () -> CompletableFuture.completedFuture(null));
+    }
+
+    @Override
+    public Stream<List<String>> scanKeys(String pattern, int count) {
+        return guarded(() -> delegate.scanKeys(pattern, count), CircuitBreakingSessionClient::unavailable);
+    }
+
+    @Override
+    public void delete(String key) {
+        local.remove(key);
+        guardedRun(() -> delegate.delete(key), () -> addTombstone(key));
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        if (!local.isEmpty()) {
+            keys.forEach(local::remove);
+        }
+        guardedRun(() -> delegate.delete(keys), () -> keys.forEach(this::addTombstone));
+    }
+
+    @Override
+    public boolean rename(String oldKey, String newKey) {
+        final Entry entry = getLocal(oldKey);
+        boolean renamedLocally = false;
+        if (entry != null && getLocal(newKey) == null && local.remove(oldKey, entry)) {
+            renamedLocally = local.putIfAbsent(newKey, entry) == null;
+            if (renamedLocally) {
+                putLocal(newKey);
+            } else {
+                local.putIfAbsent(oldKey, entry); // taken meanwhile
+            }
+        }
+        if (!renamedLocally) {
+            return guarded(() -> delegate.rename(oldKey, newKey), () -> false);
+        }
+        // the local copy is newer than the one in redis
+        guardedRun(() -> delegate.delete(oldKey), () -> addTombstone(oldKey));
+        return true;
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        return guarded(() -> delegate.evalScript(script, keys, args), CircuitBreakingSessionClient::unavailable);
+    }
+
+    @Override
+    public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+        if (!local.isEmpty()) {
+            final long expiresAt = System.currentTimeMillis() + timeUnit.toMillis(expirationTime);
+            local.computeIfPresent(key, (k, entry) -> isLive(entry) ? new Entry(entry.value, expiresAt, useCounter.incrementAndGet()) : null);
+        }
+        guardedRun(() -> delegate.expire(key, expirationTime, timeUnit), () -> { });
+    }
+
+    @Override
+    public boolean exists(String key) {
+        if (getLocal(key) != null) {
+            return true;
+        }
+        return guardedRead(() -> delegate.exists(key), () -> false);
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        guardedRun(() -> delegate.countUnique(key, member, expirationTime, timeUnit), () -> { });
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        return guarded(() -> delegate.uniqueCount(keys), CircuitBreakingSessionClient::unavailable);
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        guardedRun(() -> delegate.addToSet(key, member, expirationTime, timeUnit),
+            () -> addSetChange(new SetChange(key, member, timeUnit.toMillis(expirationTime))));
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        guardedRun(() -> delegate.removeFromSet(key, members), () -> members.forEach(member -> addSetChange(new SetChange(key, member, -1))));
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        return guarded(() -> delegate.getSetMembers(key), CircuitBreakingSessionClient::unavailable);
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        guardedRun(() -> delegate.mark(key, ttl, timeUnit), () -> { });
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        guardedRun(() -> delegate.publish(channel, message), () -> { });
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        return guarded(() -> delegate.markIfAbsent(key, ttl, timeUnit), CircuitBreakingSessionClient::unavailable);
+    }
+
+    @Override
+    public List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        return guarded(() -> delegate.markIfAbsent(keys, ttl, timeUnit), CircuitBreakingSessionClient::unavailable);
+    }
+
+    /**
+     * Run the operation against redis unless the circuit is open; on failure, or if the circuit is open, run the
+     * fallback instead
+     * 
+     * @param call
+     * @param fallback
+     * @return
+     */
+    private <T> T guarded(Supplier<T> call, Supplier<T> fallback) {
+        return guarded(call, fallback, true);
+    }
+
+    /**
+     * Read from redis unless the circuit is open, in which case the fallback answers. Failures are rethrown rather
+     * than answered by the fallback: with the circuit closed a key not held locally may well exist in redis, and
+     * reporting it missing would replace the session of the user
+     * 
+     * @param call
+     * @param fallback
+     * @return
+     */
+    private <T> T guardedRead(Supplier<T> call, Supplier<T> fallback) {
+        return guarded(call, fallback, false);
+    }
+
+    private <T> T guarded(Supplier<T> call, Supplier<T> fallback, boolean fallbackOnFailure) {
+        final Permit permit = acquire();
+        if (permit == Permit.REJECTED) {
+            fallbacks.increment();
+            return fallback.get();
+        }
+        final long start = System.nanoTime();
+        final T result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            record(permit, false);
+            if (!fallbackOnFailure) {
+                throw e;
+            }
+            log.debug("Redis operation failed; falling back", e);
+            fallbacks.increment();
+            return fallback.get();
+        }
+        record(permit, System.nanoTime() - start <= slowCallNanos);
+        return result;
+    }
+
+    private void guardedRun(Runnable call, Runnable fallback) {
+        final Supplier<Void> callSupplier = () -> {
+            call.run();
+            return null;
+        };
+        final Supplier<Void> fallbackSupplier = () -> {
+            fallback.run();
+            return null;
+        };
+        guarded(callSupplier, fallbackSupplier);
+    }
+
+    private static <T> T unavailable() {
+        throw new IllegalStateException("Redis is unavailable");
+    }
+
+    private Permit acquire() {
+        if (!open) {
+            return Permit.CALL;
+        }
+        if (System.currentTimeMillis() - openedAt >= openMillis && probing.compareAndSet(false, true)) {
+            return Permit.PROBE;
+        }
+        return Permit.REJECTED;
+    }
+
+    private void record(Permit permit, boolean success) {
+        if (permit == Permit.PROBE) {
+            if (success) {
+                close();
+            } else {
+                openedAt = System.currentTimeMillis();
+                probing.set(false);
+            }
+        } else if (success) {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0); // not written on every call
+            }
+            resyncAsync(); // retries a failed resync
+        } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            trip();
+        }
+    }
+
+    private synchronized void trip() {
+        if (!open) {
+            openedAt = System.currentTimeMillis();
+            open = true;
+            trips.increment();
+            log.warn("Redis failed " + failureThreshold + " consecutive operations; serving sessions locally for at least " + openMillis + " ms");
+        }
+    }
+
+    private synchronized void close() {
+        consecutiveFailures.set(0);
+        open = false;
+        probing.set(false);
+        log.info("Redis recovered; resuming normal operation");
+        resyncAsync();
+    }
+
+    private void resyncAsync() {
+        if (unsynced && resyncing.compareAndSet(false, true)) {
+            resyncExecutor.execute(this::resync);
+        }
+    }
+
+    /**
+     * Write the sessions saved locally, and the deletions and set changes made locally, to redis
+     */
+    void resync() {
+        try {
+            unsynced = false; // changes made while resyncing set it again
+            final List<String> tombstones;
+            final List<Map.Entry<String, Entry>> entries;
+            synchronized (deleted) {
+                tombstones = new ArrayList<>(deleted);
+            }
+            entries = new ArrayList<>(local.entrySet());
+            if (!tombstones.isEmpty()) {
+                delegate.delete(tombstones);
+                synchronized (deleted) {
+                    deleted.removeAll(tombstones);
+                }
+            }
+            int synced = 0;
+            for (Map.Entry<String, Entry> e : entries) {
+                if (open) {
+                    unsynced = true;
+                    return;
+                }
+                final Entry entry = e.getValue();
+                final long ttl = entry.expiresAt - System.currentTimeMillis();
+                if (ttl > 0 && SessionEnvelope.isVersioned(entry.value)) {
+                    // saved by versioned saves: the version must keep growing past those saved on other nodes
+                    final long ttlMillis = entry.expiresAt == Long.MAX_VALUE ? 0 : ttl;
+                    final byte[] ttlArg = Long.toString(ttlMillis).getBytes(StandardCharsets.US_ASCII);
+                    delegate.evalScript(SessionEnvelope.OVERWRITE, Collections.singletonList(e.getKey()),
+                        Arrays.asList(SessionEnvelope.payload(entry.value), ttlArg));
+                    synced++;
+                    local.remove(e.getKey(), entry);
+                    continue;
+                }
+                final Object obj = ttl > 0 ? delegate.decode(entry.value) : null;
+                if (obj instanceof RedisSession) {
+                    delegate.save(e.getKey(), (RedisSession) obj);
+                    if (entry.expiresAt != Long.MAX_VALUE) {
+                        delegate.expire(e.getKey(), ttl, TimeUnit.MILLISECONDS);
+                    }
+                    synced++;
+                }
+                local.remove(e.getKey(), entry); // unless changed meanwhile
+            }
+            final List<SetChange> changes;
+            synchronized (setChanges) {
+                changes = new ArrayList<>(setChanges.values());
+            }
+            for (SetChange change : changes) {
+                if (open) {
+                    unsynced = true;
+                    return;
+                }
+                if (change.expirationMillis < 0) {
+                    delegate.removeFromSet(change.key, Collections.singletonList(change.member));
+                } else {
+                    delegate.addToSet(change.key, change.member, change.expirationMillis, TimeUnit.MILLISECONDS);
+                }
+                synchronized (setChanges) {
+                    setChanges.remove(change.id(), change); // unless changed meanwhile
+                }
+            }
+            log.info("Wrote " + synced + " local sessions, " + tombstones.size() + " deletions and " + changes.size() + " set changes back to redis");
+        } catch (RuntimeException e) {
+            unsynced = true;
+            log.warn("Failed to write local sessions back to redis; will retry", e);
+        } finally {
+            resyncing.set(false);
+        }
+    }
+
+    private Entry getLocal(String key) {
+        if (local.isEmpty()) {
+            return null;
+        }
+        final Entry entry = local.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!isLive(entry)) {
+            local.remove(key, entry);
+            return null;
+        }
+        entry.lastUse = useCounter.incrementAndGet();
+        return entry;
+    }
+
+    private static boolean isLive(Entry entry) {
+        return entry != null && entry.expiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Account for a session stored locally under the given key, dropping the least recently used sessions beyond the
+     * capacity
+     * 
+     * @param key
+     */
+    private void putLocal(String key) {
+        synchronized (deleted) {
+            deleted.remove(key);
+        }
+        unsynced = true;
+        while (local.size() > localCapacity) {
+            Map.Entry<String, Entry> eldest = null;
+            for (Map.Entry<String, Entry> e : local.entrySet()) {
+                if (eldest == null || e.getValue().lastUse < eldest.getValue().lastUse) {
+                    eldest = e;
+                }
+            }
+            if (eldest != null && local.remove(eldest.getKey(), eldest.getValue())) {
+                evictions.increment();
+                log.warn("Dropping local session [" + eldest.getKey() + "]; more than " + localCapacity + " held");
+            }
+        }
+    }
+
+    private void addTombstone(String key) {
+        synchronized (deleted) {
+            if (deleted.size() >= localCapacity) {
+                final Iterator<String> eldest = deleted.iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            deleted.add(key);
+        }
+        unsynced = true;
+    }
+
+    private void addSetChange(SetChange change) {
+        synchronized (setChanges) {
+            // the latest change of a member is kept, as the youngest
+            setChanges.remove(change.id());
+            if (setChanges.size() >= localCapacity) {
+                final Iterator<SetChange> eldest = setChanges.values().iterator();
+                log.warn("Dropping the local change of [" + eldest.next().member + "]; more than " + localCapacity + " held");
+                eldest.remove();
+            }
+            setChanges.put(change.id(), change);
+        }
+        unsynced = true;
+    }
+
+    public State getState() {
+        if (!open) {
+            return State.CLOSED;
+        }
+        return probing.get() ? State.HALF_OPEN : State.OPEN;
+    }
+
+    /**
+     * Number of times the circuit opened
+     * 
+     * @return
+     */
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    /**
+     * Number of operations not performed against redis
+     * 
+     * @return
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * Number of local sessions dropped as more than the capacity were held
+     * 
+     * @return
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Number of sessions held locally, not yet written back to redis
+     * 
+     * @return
+     */
+    public int getLocalSessionCount() {
+        return local.size();
+    }
+
+    @Override
+    public void shutdown() {
+        resyncExecutor.shutdownNow();
+        super.shutdown();
+    }
+
+    /**
+     * A member added to or removed from a set
+     */
+    private static class SetChange {
+        final String key;
+        final String member;
+        // time to live of the set on addition; negative for a removal
+        final long expirationMillis;
+
+        SetChange(String key, String member, long expirationMillis) {
+            this.key = key;
+            this.member = member;
+            this.expirationMillis = expirationMillis;
+        }
+
+        String id() {
+            return key + '\n' + member;
+        }
+    }
+
+    private static class Entry {
+        final byte[] value;
+        final long expiresAt;
+        volatile long lastUse;
+
+        Entry(byte[] value, long expiresAt, long lastUse) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.lastUse = lastUse;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * {@link RedisSessionClient} bounding the number of redis operations in flight by a limit adapting to the latency
+ * of redis, so that threads are turned away rather than queueing for connections when redis slows down.<br>
+ * The limit grows by one per round of operations using at least half of it, and shrinks by
+ * {@value #BACKOFF_RATIO} whenever an operation fails or takes more than {@value #LATENCY_TOLERANCE} times the
+ * baseline latency of its kind (the lowest latency of the previous {@value #BASELINE_WINDOW} operations of that kind,
+ * once there were {@value #BASELINE_MIN_SAMPLES}): batches and scripts are not held to the latency of single
+ * reads.<br>
+ * Operations beyond the limit are shed by priority: TTL touches and active session counts may only use half of the
+ * limit and saves of anonymous sessions three quarters; both are dropped when shed. Other operations, such as loads
+ * and writes of the principal index or of expiry markers, use the whole limit and fail when shed.
+ */
+public class ConcurrencyLimitingSessionClient extends DelegatingRedisSessionClient {
+    private static final Log log = LogFactory.getLog(ConcurrencyLimitingSessionClient.class);
+
+    static final double BACKOFF_RATIO = 0.9;
+    static final double LATENCY_TOLERANCE = 2.0;
+    static final int BASELINE_WINDOW = 1000;
+    static final int BASELINE_MIN_SAMPLES = 10;
+
+    /**
+     * Kinds of operations with latencies of their own
+     */
+    enum Operation {
+        READ, WRITE, BATCH, SCRIPT
+    }
+
+    enum Priority {
+        TOUCH(0.5), ANONYMOUS_SAVE(0.75), NORMAL(1.0);
+
+        private final double share;
+
+        Priority(double share) {
+            this.share = share;
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    // guarded by this
+    private final Map<Operation, Baseline> baselines = new EnumMap<>(Operation.class);
+
+    private final LongAdder shed = new LongAdder();
+
+    /**
+     * @param delegate
+     * @param minLimit lowest limit of operations in flight
+     * @param maxLimit highest limit of operations in flight, e.g. the size of the connection pool
+     */
+    public ConcurrencyLimitingSessionClient(RedisSessionClient delegate, int minLimit, int maxLimit) {
+        this(delegate, minLimit, maxLimit, Math.max(minLimit, Math.min(maxLimit, 20)));
+    }
+
+    ConcurrencyLimitingSessionClient(RedisSessionClient delegate, int minLimit, int maxLimit, int initialLimit) {
+        super(delegate);
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Limits must be positive and minLimit at most maxLimit");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        for (Operation operation : Operation.values()) {
+            baselines.put(operation, new Baseline());
+        }
+    }
+
+    @Override
+    public void save(String key, RedisSession session) {
+        final Priority priority = session.getPrincipal() == null ? Priority.ANONYMOUS_SAVE : Priority.NORMAL;
+        limitedRun(Operation.WRITE, priority, () -> delegate.save(key, session));
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        return limited(Operation.WRITE, Priority.NORMAL, () -> delegate.reserve(key, session, ttl, timeUnit));
+    }
+
+    @Override
+    public void save(String key, RedisSession session, byte[] encoded) {
+        final Priority priority = session.getPrincipal() == null ? Priority.ANONYMOUS_SAVE : Priority.NORMAL;
+        limitedRun(Operation.WRITE, priority, () -> delegate.save(key, session, encoded));
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        return limited(Operation.WRITE, Priority.NORMAL, () -> delegate.reserve(key, session, encoded, ttl, timeUnit));
+    }
+
+    @Override
+    public RedisSession load(String key) {
+        return limited(Operation.READ, Priority.NORMAL, () -> delegate.load(key));
+    }
+
+    @Override
+    public byte[] loadEncoded(String key) {
+        return limited(Operation.READ, Priority.NORMAL, () -> delegate.loadEncoded(key));
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        return limited(Operation.BATCH, Priority.NORMAL, () -> delegate.loadEncoded(keys));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        if (!tryAcquire(Priority.NORMAL)) {
+            return failedFuture(rejected());
+        }
+        final long start = System.nanoTime();
+        final CompletableFuture<byte[]> load;
+        try {
+            load = delegate.loadEncodedAsync(key, alternate);
+        } catch (RuntimeException e) {
+            release(Operation.READ, start, true);
+            throw e;
+        }
+        load.whenComplete((encoded, t) -> release(Operation.READ, start, t != null));
+        return load;
+    }
+
+    @Override
+    public void delete(String key) {
+        limitedRun(Operation.WRITE, Priority.NORMAL, () -> delegate.delete(key));
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        limitedRun(Operation.BATCH, Priority.NORMAL, () -> delegate.delete(keys));
+    }
+
+    @Override
+    public boolean rename(String oldKey, String newKey) {
+        return limited(Operation.WRITE, Priority.NORMAL, () -> delegate.rename(oldKey, newKey));
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        return limited(Operation.SCRIPT, Priority.NORMAL, () -> delegate.evalScript(script, keys, args));
+    }
+
+    @Override
+    public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+        limitedRun(Operation.WRITE, Priority.TOUCH, () -> delegate.expire(key, expirationTime, timeUnit));
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return limited(Operation.READ, Priority.NORMAL, () -> delegate.exists(key));
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        limitedRun(Operation.WRITE, Priority.TOUCH, () -> delegate.countUnique(key, member, expirationTime, timeUnit));
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        return limited(Operation.BATCH, Priority.NORMAL, () -> delegate.uniqueCount(keys));
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        limitedRun(Operation.WRITE, Priority.NORMAL, () -> delegate.addToSet(key, member, expirationTime, timeUnit));
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        limitedRun(Operation.WRITE, Priority.NORMAL, () -> delegate.removeFromSet(key, members));
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        return limited(Operation.READ, Priority.NORMAL, () -> delegate.getSetMembers(key));
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        limitedRun(Operation.WRITE, Priority.NORMAL, () -> delegate.mark(key, ttl, timeUnit));
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        return limited(Operation.WRITE, Priority.NORMAL, () -> delegate.markIfAbsent(key, ttl, timeUnit));
+    }
+
+    @Override
+    public List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        return limited(Operation.BATCH, Priority.NORMAL, () -> delegate.markIfAbsent(keys, ttl, timeUnit));
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        limitedRun(Operation.WRITE, Priority.NORMAL, () -> delegate.publish(channel, message));
+    }
+
+    /**
+     * Run the operation if the limit admits its priority
+     * 
+     * @param operation
+     * @param priority
+     * @param call
+     * @return
+     */
+    private <T> T limited(Operation operation, Priority priority, Supplier<T> call) {
+        if (!tryAcquire(priority)) {
+            throw rejected();
+        }
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result = call.get();
+            failed = false;
+            return result;
+        } finally {
+            release(operation, start, failed);
+        }
+    }
+
+    /**
+     * Run the operation if the limit admits its priority; operations of a lower than {@link Priority#NORMAL} priority
+     * are dropped when shed
+     * 
+     * @param operation
+     * @param priority
+     * @param call
+     */
+    private void limitedRun(Operation operation, Priority priority, Runnable call) {
+        if (!tryAcquire(priority)) {
+            if (priority == Priority.NORMAL) {
+                throw rejected();
+            }
+            log.debug("Dropped a redis operation of priority " + priority + "; " + inFlight.get() + " operations in flight");
+            return;
+        }
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            call.run();
+            failed = false;
+        } finally {
+            release(operation, start, failed);
+        }
+    }
+
+    private boolean tryAcquire(Priority priority) {
+        final int allowed = Math.max(1, (int) (limit * priority.share));
+        for (;;) {
+            final int current = inFlight.get();
+            if (current >= allowed) {
+                shed.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void release(Operation operation, long start, boolean failed) {
+        final int current = inFlight.getAndDecrement();
+        record(operation, System.nanoTime() - start, failed, current);
+    }
+
+    /**
+     * Adapt the limit to a completed operation
+     * 
+     * @param operation
+     * @param latencyNanos
+     * @param failed
+     * @param inFlight operations in flight, including the completed one
+     */
+    synchronized void record(Operation operation, long latencyNanos, boolean failed, int inFlight) {
+        final Baseline baseline = baselines.get(operation);
+        baseline.sample(latencyNanos);
+        if (failed || baseline.isExceeded(latencyNanos)) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        } else if (inFlight * 2 >= limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Lowest latency of recent operations of one kind
+     */
+    private static final class Baseline {
+        private long baselineNanos = Long.MAX_VALUE;
+        private long windowMinNanos = Long.MAX_VALUE;
+        private int windowSamples;
+        private int samples;
+
+        private void sample(long latencyNanos) {
+            windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+            if (++windowSamples >= BASELINE_WINDOW) {
+                // follows redis getting faster or slower for good
+                baselineNanos = windowMinNanos;
+                windowMinNanos = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            baselineNanos = Math.min(baselineNanos, latencyNanos);
+            if (samples < BASELINE_MIN_SAMPLES) {
+                samples++;
+            }
+        }
+
+        private boolean isExceeded(long latencyNanos) {
+            // the lowest of a few latencies is no baseline yet
+            return samples >= BASELINE_MIN_SAMPLES && latencyNanos > baselineNanos * LATENCY_TOLERANCE;
+        }
+    }
+
+    private IllegalStateException rejected() {
+        return new IllegalStateException("Redis concurrency limit of " + getLimit() + " operations reached");
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable t) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    /**
+     * Current limit of operations in flight
+     * 
+     * @return
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Number of operations shed: dropped or failed
+     * 
+     * @return
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+}
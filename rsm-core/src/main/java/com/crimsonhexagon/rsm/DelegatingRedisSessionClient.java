@@ -0,0 +1,210 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * {@link RedisSessionClient} forwarding every operation to another client; a base class for clients adding behavior
+ * around a client that talks to redis.
+ */
+public class DelegatingRedisSessionClient implements RedisSessionClient {
+    protected final RedisSessionClient delegate;
+
+    public DelegatingRedisSessionClient(RedisSessionClient delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate must not be null");
+        }
+        this.delegate = delegate;
+    }
+
+    public RedisSessionClient getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void save(String key, RedisSession session) {
+        delegate.save(key, session);
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        return delegate.reserve(key, session, ttl, timeUnit);
+    }
+
+    @Override
+    public void save(String key, RedisSession session, byte[] encoded) {
+        delegate.save(key, session, encoded);
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        return delegate.reserve(key, session, encoded, ttl, timeUnit);
+    }
+
+    @Override
+    public RedisSession load(String key) {
+        return delegate.load(key);
+    }
+
+    @Override
+    public byte[] loadEncoded(String key) {
+        return delegate.loadEncoded(key);
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        return delegate.loadEncoded(keys);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        return delegate.loadEncodedAsync(key, alternate);
+    }
+
+    @Override
+    public byte[] encode(Object obj) {
+        return delegate.encode(obj);
+    }
+
+    @Override
+    public Object decode(byte[] encoded) {
+        return delegate.decode(encoded);
+    }
+
+    @Override
+    public Stream<List<String>> scanKeys(String pattern, int count) {
+        return delegate.scanKeys(pattern, count);
+    }
+
+    @Override
+    public void delete(String key) {
+        delegate.delete(key);
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        delegate.delete(keys);
+    }
+
+    @Override
+    public boolean rename(String oldKey, String newKey) {
+        return delegate.rename(oldKey, newKey);
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        return delegate.evalScript(script, keys, args);
+    }
+
+    @Override
+    public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+        delegate.expire(key, expirationTime, timeUnit);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return delegate.exists(key);
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        delegate.countUnique(key, member, expirationTime, timeUnit);
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        return delegate.uniqueCount(keys);
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        delegate.addToSet(key, member, expirationTime, timeUnit);
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        delegate.removeFromSet(key, members);
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        return delegate.getSetMembers(key);
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        delegate.mark(key, ttl, timeUnit);
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        return delegate.markIfAbsent(key, ttl, timeUnit);
+    }
+
+    @Override
+    public List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        return delegate.markIfAbsent(keys, ttl, timeUnit);
+    }
+
+    @Override
+    public void subscribeExpirations(Consumer<String> listener) {
+        delegate.subscribeExpirations(listener);
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        delegate.publish(channel, message);
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        delegate.subscribe(channel, listener);
+    }
+
+    @Override
+    public int getEncodedSize(Object obj) {
+        return delegate.getEncodedSize(obj);
+    }
+
+    @Override
+    public boolean supports(Capability capability) {
+        return delegate.supports(capability);
+    }
+
+    @Override
+    public void ping() {
+        delegate.ping();
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return delegate.getTimeoutMillis();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+}
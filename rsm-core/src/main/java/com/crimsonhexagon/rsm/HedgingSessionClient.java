@@ -0,0 +1,210 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link RedisSessionClient} hedging session loads: if a load has not completed within the hedge delay a second,
+ * alternate read is issued (see {@link RedisSessionClient#loadEncodedAsync(String, boolean)}) and the first answer
+ * wins; the other read is cancelled.<br>
+ * The hedge delay is either fixed or the given percentile of the latencies of recent loads, but at least
+ * {@value #MIN_ADAPTIVE_DELAY_MICROS} microseconds. An adaptive delay is used once {@value #MIN_SAMPLES} loads have been
+ * observed; until then loads are not hedged. Only loads that completed successfully are sampled.<br>
+ * Loads wait no longer than the timeout of the delegate ({@link RedisSessionClient#getTimeoutMillis()}), bounded by
+ * the {@link RedisDeadline} of the current thread.
+ */
+public class HedgingSessionClient extends DelegatingRedisSessionClient {
+    static final int MIN_SAMPLES = 100;
+    static final long MIN_ADAPTIVE_DELAY_MICROS = 500;
+    private static final int WINDOW = 1024; // recent latencies considered; a power of 2
+    private static final int RECOMPUTE_INTERVAL = 128;
+
+    private final long fixedDelayNanos;
+    private final int percentile;
+
+    private final AtomicLongArray latencies = new AtomicLongArray(WINDOW);
+    private final AtomicLong samples = new AtomicLong();
+    private volatile long adaptiveDelayNanos = -1;
+
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+
+    /**
+     * @param delegate
+     * @param fixedDelayMillis if positive, the fixed hedge delay; otherwise the delay adapts to the observed latencies
+     * @param percentile percentile (1-99) of the observed latencies used as adaptive hedge delay
+     */
+    public HedgingSessionClient(RedisSessionClient delegate, int fixedDelayMillis, int percentile) {
+        super(delegate);
+        if (percentile < 1 || percentile > 99) {
+            throw new IllegalArgumentException("percentile must be between 1 and 99");
+        }
+        this.fixedDelayNanos = fixedDelayMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(fixedDelayMillis) : -1;
+        this.percentile = percentile;
+    }
+
+    @Override
+    public RedisSession load(String key) {
+        final byte[] encoded = loadEncoded(key);
+        final Object obj = encoded == null ? null : decode(encoded);
+        return obj instanceof RedisSession ? (RedisSession) obj : null;
+    }
+
+    @Override
+    public byte[] loadEncoded(String key) {
+        final long delay = getHedgeDelayNanos();
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(RedisDeadline.timeoutMillis(delegate.getTimeoutMillis()));
+        final CompletableFuture<byte[]> primary = sampled(delegate.loadEncodedAsync(key, false), start);
+        if (delay < 0 || start + delay - deadline >= 0) {
+            return await(key, primary, deadline);
+        }
+        try {
+            return primary.get(delay, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return hedge(key, primary, deadline);
+        } catch (InterruptedException e) {
+            primary.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted loading [" + key + "]", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load [" + key + "]", e.getCause());
+        }
+    }
+
+    /**
+     * Record the latency of the given load once it completes successfully; failed and cancelled loads are not sampled
+     * as the time they took says nothing about the latency of an answer
+     */
+    private CompletableFuture<byte[]> sampled(CompletableFuture<byte[]> load, long start) {
+        load.whenComplete((v, t) -> {
+            if (t == null) {
+                recordLatency(System.nanoTime() - start);
+            }
+        });
+        return load;
+    }
+
+    private byte[] hedge(String key, CompletableFuture<byte[]> primary, long deadline) {
+        hedges.increment();
+        final CompletableFuture<byte[]> alternate = sampled(delegate.loadEncodedAsync(key, true), System.nanoTime());
+        final CompletableFuture<byte[]> first = new CompletableFuture<>();
+        final AtomicInteger failures = new AtomicInteger();
+        primary.whenComplete((v, t) -> {
+            if (t == null) {
+                first.complete(v);
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(t);
+            }
+        });
+        alternate.whenComplete((v, t) -> {
+            if (t == null) {
+                if (first.complete(v)) {
+                    hedgesWon.increment();
+                }
+            } else if (failures.incrementAndGet() == 2) {
+                first.completeExceptionally(t);
+            }
+        });
+        try {
+            return await(key, first, deadline);
+        } finally {
+            primary.cancel(true);
+            alternate.cancel(true);
+        }
+    }
+
+    /**
+     * Wait for the given load until the given deadline
+     * 
+     * @param key
+     * @param future
+     * @param deadline in terms of {@link System#nanoTime()}
+     * @return the loaded value
+     * @throws IllegalStateException if the load failed, was cancelled or did not complete in time; a load that timed
+     *         out is cancelled
+     */
+    private static byte[] await(String key, CompletableFuture<byte[]> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IllegalStateException("Timed out loading [" + key + "]", e);
+        } catch (CancellationException e) {
+            throw new IllegalStateException("Load of [" + key + "] cancelled", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted loading [" + key + "]", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to load [" + key + "]", e.getCause());
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        final long n = samples.getAndIncrement();
+        latencies.set((int) (n & (WINDOW - 1)), nanos);
+        if (fixedDelayNanos < 0 && n + 1 >= MIN_SAMPLES && ((n + 1) % RECOMPUTE_INTERVAL == 0 || n + 1 == MIN_SAMPLES)) {
+            final int size = (int) Math.min(n + 1, WINDOW);
+            final long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            final long value = sorted[Math.min(size - 1, (int) Math.ceil(size * percentile / 100.0) - 1)];
+            adaptiveDelayNanos = Math.max(value, TimeUnit.MICROSECONDS.toNanos(MIN_ADAPTIVE_DELAY_MICROS));
+        }
+    }
+
+    /**
+     * Current hedge delay
+     * 
+     * @return in nanoseconds; negative if loads are not hedged yet
+     */
+    public long getHedgeDelayNanos() {
+        return fixedDelayNanos > 0 ? fixedDelayNanos : adaptiveDelayNanos;
+    }
+
+    /**
+     * Number of hedged loads
+     * 
+     * @return
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Number of hedged loads answered first by the alternate read
+     * 
+     * @return
+     */
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+}
@@ -0,0 +1,101 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point in time by which the redis operations of a request must have completed. The deadline of the request being
+ * handled is bound to the current thread by {@link RedisSessionManager}; {@link RedisSessionClient} implementations
+ * bound the time they wait for a response by {@link #timeoutMillis(long)} and the manager drops optional operations
+ * once the deadline has passed.
+ */
+public final class RedisDeadline {
+    private static final ThreadLocal<RedisDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAt;
+
+    private RedisDeadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Create a deadline expiring after the given budget
+     * 
+     * @param budget
+     * @param unit
+     * @return
+     */
+    public static RedisDeadline after(long budget, TimeUnit unit) {
+        return new RedisDeadline(System.nanoTime() + unit.toNanos(budget));
+    }
+
+    /**
+     * Get the deadline bound to the current thread
+     * 
+     * @return the deadline; <code>null</code> if redis operations of the current thread are not bounded
+     */
+    public static RedisDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Bind the given deadline to the current thread
+     * 
+     * @param deadline the deadline; <code>null</code> to unbind
+     */
+    static void bind(RedisDeadline deadline) {
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+    }
+
+    /**
+     * Time to wait for a response to a redis operation started now on the current thread
+     * 
+     * @param timeoutMillis the timeout of the operation in absence of a deadline
+     * @return the lesser of the timeout and the time remaining until the deadline of the current thread; at least
+     *         <code>1</code> so that operations still fail by timing out
+     */
+    public static long timeoutMillis(long timeoutMillis) {
+        final RedisDeadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return timeoutMillis;
+        }
+        return Math.max(1, Math.min(timeoutMillis, deadline.remaining(TimeUnit.MILLISECONDS)));
+    }
+
+    /**
+     * @param unit
+     * @return time remaining until the deadline; <code>0</code> if it has passed
+     */
+    public long remaining(TimeUnit unit) {
+        return unit.convert(Math.max(0, expiresAt - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isExpired() {
+        return expiresAt - System.nanoTime() <= 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RedisDeadline[remaining=" + remaining(TimeUnit.MILLISECONDS) + "ms]";
+    }
+}
@@ -0,0 +1,77 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Lua script run by {@link RedisSessionClient#evalScript(RedisScript, java.util.List, java.util.List)}. Clients send
+ * the SHA1 digest of the script (<code>EVALSHA</code>) and load the script only when the server does not know it yet,
+ * e.g. after a restart or failover.
+ */
+public final class RedisScript {
+    private final String source;
+    private final String sha1;
+
+    public RedisScript(String source) {
+        this.source = source;
+        this.sha1 = sha1(source);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the lowercase hex SHA1 digest of the script, as returned by <code>SCRIPT LOAD</code>
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    private static String sha1(String source) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof RedisScript && sha1.equals(((RedisScript) obj).sha1);
+    }
+
+    @Override
+    public int hashCode() {
+        return sha1.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "RedisScript[" + sha1 + "]";
+    }
+}
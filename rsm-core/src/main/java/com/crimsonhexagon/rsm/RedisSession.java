@@ -22,7 +22,11 @@ import org.apache.juli.logging.LogFactory;
 
 import java.security.Principal;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
 /**
  * Extension of {@link StandardSession} to
@@ -49,6 +53,15 @@ public class RedisSession extends StandardSession {
     public static final String SAVE_IMMEDIATELY_ATTR = "_rsmSaveImmediately_";
 
     private transient boolean dirty;
+    // version in redis when loaded or last saved; see RedisSessionManager#setVersionedSaves
+    private transient long version;
+    // attributes set or removed since last saved
+    private transient Set<String> changedAttributes;
+    // whether the principal was set since last saved
+    private transient boolean principalChanged;
+    // name of the principal when last saved, under which the session is listed in the principal index; stored as the
+    // principal itself is not
+    private String indexedPrincipal;
 
     /**
      * Constructs a new {@link RedisSession} with no manager. Intended for deserialization usage.
@@ -76,6 +89,56 @@ public class RedisSession extends StandardSession {
      */
     public void clearDirty() {
         dirty = false;
+        changedAttributes = null;
+        principalChanged = false;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
+    String getIndexedPrincipal() {
+        return indexedPrincipal;
+    }
+
+    void setIndexedPrincipal(String indexedPrincipal) {
+        this.indexedPrincipal = indexedPrincipal;
+    }
+
+    private void attributeChanged(String name) {
+        Set<String> changed = changedAttributes;
+        if (changed == null) {
+            changed = ConcurrentHashMap.newKeySet();
+            changedAttributes = changed;
+        }
+        changed.add(name);
+    }
+
+    /**
+     * Merge this session with a more recent version saved by another request: the attributes set or removed since this
+     * session was last saved are applied to the given session, and the other attributes of this session are replaced
+     * by those of the given session. Unless set since this session was last saved, the principal is taken from the
+     * given session as well, provided it was saved under another principal name; as principals are not stored this
+     * may leave this session without a principal. No listeners are notified.
+     * 
+     * @param stored the session as currently stored in redis
+     */
+    void rebase(RedisSession stored) {
+        final Set<String> changed = changedAttributes == null ? Collections.emptySet() : changedAttributes;
+        attributes.keySet().removeIf(name -> !changed.contains(name) && !stored.attributes.containsKey(name));
+        stored.attributes.forEach((name, value) -> {
+            if (!changed.contains(name)) {
+                attributes.put(name, value);
+            }
+        });
+        if (!principalChanged && !Objects.equals(indexedPrincipal, stored.indexedPrincipal)) {
+            principal = stored.principal;
+            indexedPrincipal = stored.indexedPrincipal;
+        }
     }
 
     @Override
@@ -100,8 +163,9 @@ public class RedisSession extends StandardSession {
             return;
         }
         RedisSessionManager rsm = getManager();
+        int size = -1;
         if (rsm.getMaxSessionAttributeSize() != RedisSessionManager.DO_NOT_CHECK) {
-            int size = rsm.getEncodedSize(value);
+            size = rsm.getEncodedSize(value);
             if (size > rsm.getMaxSessionAttributeSize()) {
                 if (!rsm.isAllowOversizedSessions()) {
                     log.error("Attribute [" + key + "] with size [" + size + "] exceeds max attr size [" + rsm.getMaxSessionAttributeSize() + "]; not storing in session");
@@ -114,9 +178,13 @@ public class RedisSession extends StandardSession {
 
         Object oldValue = getAttribute(key); // must be retrieved before invoking super()
         super.setAttribute(key, value);
+        if (value != null && rsm.sampleAttributeSize()) {
+            rsm.profileAttribute(key, value, size >= 0 ? size : rsm.getEncodedSize(value), false);
+        }
         if (rsm.isDirtyOnMutation()
             || (value != null && (oldValue == null || !value.equals(oldValue)))
             || (oldValue != null && (value == null || !oldValue.equals(value)))) {
+            attributeChanged(key);
             if (!saveOnChange()) {
                 this.dirty = true;
                 if (log.isTraceEnabled()) {
@@ -136,6 +204,7 @@ public class RedisSession extends StandardSession {
     @Override
     public void removeAttribute(String name) {
         super.removeAttribute(name);
+        attributeChanged(name);
         if (!saveOnChange()) {
             this.dirty = true;
             if (log.isTraceEnabled()) {
@@ -146,10 +215,61 @@ public class RedisSession extends StandardSession {
         }
     }
 
+    /**
+     * Marks the session as dirty; the principal index is updated when the session is saved. {@inheritDoc}
+     */
     @Override
     public void setPrincipal(Principal principal) {
         this.dirty = true;
-        super.setPrincipal(principal);
+        this.principalChanged = true;
+        if (support == null) {
+            // deserialized sessions lack the transient property change support, and have no listeners anyway
+            this.principal = principal;
+        } else {
+            super.setPrincipal(principal);
+        }
+    }
+
+    /**
+     * Does the session hold the given attribute; unlike {@link #getAttribute(String)} valid for invalidated sessions
+     * 
+     * @param name
+     * @return
+     */
+    boolean hasAttribute(String name) {
+        return attributes.containsKey(name);
+    }
+
+    /**
+     * Perform the given action for each attribute; unlike {@link #getAttributeNames()} valid for invalidated sessions
+     * 
+     * @param action
+     */
+    void forEachAttribute(BiConsumer<String, Object> action) {
+        attributes.forEach(action);
+    }
+
+    /**
+     * Is the session valid and was it accessed within the given time; unlike {@link #isValid()} neither expires the
+     * session nor notifies listeners
+     * 
+     * @param ttlMillis time to live since the last access; <code>0</code> or less for no limit
+     * @return
+     */
+    boolean isLive(long ttlMillis) {
+        if (!isValidInternal() || expiring) {
+            return false;
+        }
+        return ttlMillis <= 0 || System.currentTimeMillis() - getThisAccessedTimeInternal() < ttlMillis;
+    }
+
+    /**
+     * Does the session hold neither attributes nor a principal
+     * 
+     * @return
+     */
+    boolean isEmpty() {
+        return attributes.isEmpty() && getPrincipal() == null;
     }
 
     /**
@@ -170,7 +290,7 @@ public class RedisSession extends StandardSession {
      */
     private boolean saveOnChange(boolean force) {
         RedisSessionManager rsm = getManager();
-        if (force || rsm.isSaveOnChange()) {
+        if (force || (rsm.isSaveOnChange() && rsm.isSaveAllowed(this))) {
             rsm.save(this, true);
             return true;
         }
@@ -0,0 +1,88 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import com.crimsonhexagon.rsm.RedisSessionManager.RedisSessionState;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * {@link AsyncListener} deferring the post-request session handling of an async request until the request completes,
+ * times out or fails. Carries the {@link RedisSessionState} of the request while it is not bound to any thread.
+ */
+class RedisSessionAsyncListener implements AsyncListener {
+    private final RedisSessionManager manager;
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile RedisSessionState state;
+
+    RedisSessionAsyncListener(RedisSessionManager manager, RedisSessionState state) {
+        this.manager = manager;
+        this.state = state;
+    }
+
+    RedisSessionState getState() {
+        return state;
+    }
+
+    void setState(RedisSessionState state) {
+        this.state = state;
+    }
+
+    boolean isCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * Mark the request as completed
+     * 
+     * @return <code>true</code> if the request was not already completed
+     */
+    boolean markCompleted() {
+        return completed.compareAndSet(false, true);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        complete();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // listeners are cleared when async is restarted; remain registered until the request is complete
+        event.getAsyncContext().addListener(this);
+    }
+
+    private void complete() {
+        if (markCompleted()) {
+            manager.completeRequest(state);
+        }
+    }
+}
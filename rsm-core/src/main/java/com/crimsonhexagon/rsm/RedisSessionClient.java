@@ -16,7 +16,21 @@
 
 package com.crimsonhexagon.rsm;
 
+import org.apache.catalina.util.CustomObjectInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Defines the API for interation with the redis server/cluster/etc
@@ -24,6 +38,53 @@ import java.util.concurrent.TimeUnit;
  * @author Steve Ungerer
  */
 public interface RedisSessionClient {
+    long DEFAULT_TIMEOUT_MILLIS = 60_000;
+
+    /**
+     * Optional operations of a client, not supported by default
+     */
+    enum Capability {
+        /**
+         * {@link RedisSessionClient#evalScript(RedisScript, List, List)}
+         */
+        SCRIPTS,
+        /**
+         * {@link RedisSessionClient#scanKeys(String, int)}
+         */
+        KEY_SCANS,
+        /**
+         * {@link RedisSessionClient#countUnique(String, String, long, TimeUnit)} and
+         * {@link RedisSessionClient#uniqueCount(Collection)}
+         */
+        UNIQUE_COUNTS,
+        /**
+         * {@link RedisSessionClient#addToSet(String, String, long, TimeUnit)},
+         * {@link RedisSessionClient#removeFromSet(String, Collection)} and {@link RedisSessionClient#getSetMembers(String)}
+         */
+        SETS,
+        /**
+         * {@link RedisSessionClient#mark(String, long, TimeUnit)} and
+         * {@link RedisSessionClient#markIfAbsent(String, long, TimeUnit)}
+         */
+        MARKERS,
+        /**
+         * {@link RedisSessionClient#subscribeExpirations(Consumer)}, {@link RedisSessionClient#publish(String, String)}
+         * and {@link RedisSessionClient#subscribe(String, Consumer)}
+         */
+        PUB_SUB
+    }
+
+    /**
+     * Check whether the optional operations of the given capability are supported, so that features needing them can
+     * be refused on start rather than fail on use.
+     * The default implementation supports none.
+     * 
+     * @param capability
+     * @return
+     */
+    default boolean supports(Capability capability) {
+        return false;
+    }
 
     /**
      * Save the session to the given key.
@@ -33,6 +94,56 @@ public interface RedisSessionClient {
      */
     void save(String key, RedisSession session);
 
+    /**
+     * Atomically save the session to the given key with the given time to live, only if the key does not exist yet
+     * (<code>SET key session NX PX ttl</code>).
+     * The default implementation is not atomic: it checks for the key before saving the session.
+     * 
+     * @param key
+     * @param session
+     * @param ttl time to live; a non-positive value reserves the key without expiration
+     * @param timeUnit
+     * @return <code>true</code> if the key was claimed; <code>false</code> if it already existed
+     */
+    default boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        if (exists(key)) {
+            return false;
+        }
+        save(key, session);
+        if (ttl > 0) {
+            expire(key, ttl, timeUnit);
+        }
+        return true;
+    }
+
+    /**
+     * Save the session to the given key as already encoded by {@link #encode(Object)}, without encoding it again.
+     * The default implementation ignores the encoded form and saves the session.
+     * 
+     * @param key
+     * @param session
+     * @param encoded
+     */
+    default void save(String key, RedisSession session, byte[] encoded) {
+        save(key, session);
+    }
+
+    /**
+     * Like {@link #reserve(String, RedisSession, long, TimeUnit)} with the session already encoded by
+     * {@link #encode(Object)}, without encoding it again.
+     * The default implementation ignores the encoded form and reserves the key with the session.
+     * 
+     * @param key
+     * @param session
+     * @param encoded
+     * @param ttl time to live; a non-positive value reserves the key without expiration
+     * @param timeUnit
+     * @return <code>true</code> if the key was claimed; <code>false</code> if it already existed
+     */
+    default boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        return reserve(key, session, ttl, timeUnit);
+    }
+
     /**
      * Load the session defined by the given key.
      * 
@@ -41,6 +152,98 @@ public interface RedisSessionClient {
      */
     RedisSession load(String key);
 
+    /**
+     * Load the encoded form of the session defined by the given key without decoding it.
+     * The default implementation loads the session and encodes it again with {@link #encode(Object)}.
+     * 
+     * @param key
+     * @return the encoded session or <code>null</code> if no such key exists
+     */
+    default byte[] loadEncoded(String key) {
+        final RedisSession session = load(key);
+        return session == null ? null : encode(session);
+    }
+
+    /**
+     * Load the encoded form of the sessions defined by the given keys in a single round trip (<code>MGET</code>).
+     * The default implementation loads the keys one at a time.
+     * 
+     * @param keys
+     * @return the encoded sessions in the order of the given keys; <code>null</code> elements for missing keys
+     */
+    default List<byte[]> loadEncoded(List<String> keys) {
+        final List<byte[]> values = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            values.add(loadEncoded(key));
+        }
+        return values;
+    }
+
+    /**
+     * Load the encoded form of the session defined by the given key asynchronously.
+     * The default implementation loads synchronously, ignoring <code>alternate</code>.
+     * 
+     * @param key
+     * @param alternate if <code>true</code> read from another node serving the key (e.g. a replica) where possible,
+     *        otherwise over another connection
+     * @return the future encoded session or <code>null</code> if no such key exists; cancelling it abandons the read
+     */
+    default CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            future.complete(loadEncoded(key));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Encode the given object as it would be stored.
+     * The default implementation uses java serialization.
+     * 
+     * @param obj
+     * @return
+     */
+    default byte[] encode(Object obj) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to encode " + obj.getClass(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a value obtained from {@link #loadEncoded(String)}. The given bytes are not modified.
+     * The default implementation uses java serialization, resolving classes with the context classloader.
+     * 
+     * @param encoded
+     * @return the decoded object or <code>null</code> if it could not be decoded
+     */
+    default Object decode(byte[] encoded) {
+        try (ObjectInputStream in = new CustomObjectInputStream(new ByteArrayInputStream(encoded), Thread.currentThread().getContextClassLoader())) {
+            return in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Incrementally iterate the keys matching the given glob-style pattern (<code>SCAN</code>). The returned stream is
+     * lazy: each element is a batch of keys and the server is only queried as batches are consumed. Keys created or
+     * deleted during iteration may or may not be returned and a key may be returned more than once.
+     * Not supported by default; see {@link Capability#KEY_SCANS}.
+     * 
+     * @param pattern
+     * @param count hint for the number of keys to fetch per round trip
+     * @return a lazy stream of key batches; should be closed when not fully consumed
+     */
+    default Stream<List<String>> scanKeys(String pattern, int count) {
+        throw new UnsupportedOperationException("scanKeys is not supported by " + getClass().getName());
+    }
+
     /**
      * Delete the session defined by the given key.
      * 
@@ -48,6 +251,45 @@ public interface RedisSessionClient {
      */
     void delete(String key);
 
+    /**
+     * Delete the given keys in a single operation.
+     * The default implementation deletes the keys one at a time.
+     * 
+     * @param keys
+     */
+    default void delete(Collection<String> keys) {
+        for (String key : keys) {
+            delete(key);
+        }
+    }
+
+    /**
+     * Atomically move the value stored under a key to another key, retaining its time to live, without transferring it
+     * to the client (<code>RENAMENX</code>).
+     * The default implementation does not move anything, so callers fall back to writing the value under the new key.
+     * 
+     * @param oldKey
+     * @param newKey
+     * @return <code>true</code> if moved; <code>false</code> if <code>oldKey</code> does not exist or
+     *         <code>newKey</code> does
+     */
+    default boolean rename(String oldKey, String newKey) {
+        return false;
+    }
+
+    /**
+     * Run a Lua script by its digest (<code>EVALSHA</code>), loading it first if the server does not know it.
+     * Not supported by default; see {@link Capability#SCRIPTS}.
+     * 
+     * @param script
+     * @param keys
+     * @param args passed as is
+     * @return the integer reply of the script
+     */
+    default long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        throw new UnsupportedOperationException("evalScript is not supported by " + getClass().getName());
+    }
+
     /**
      * Update the expiration time for the session defined by the given key.
      * 
@@ -65,6 +307,144 @@ public interface RedisSessionClient {
      */
     boolean exists(String key);
 
+    /**
+     * Add the member to the HyperLogLog at the given key (<code>PFADD</code>) and set the expiration of the key. May be
+     * performed asynchronously.
+     * Not supported by default; see {@link Capability#UNIQUE_COUNTS}.
+     * 
+     * @param key
+     * @param member
+     * @param expirationTime
+     * @param timeUnit
+     */
+    default void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("countUnique is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Estimate the number of distinct members of the union of the HyperLogLogs at the given keys (<code>PFCOUNT</code>).
+     * Missing keys count as empty.
+     * Not supported by default; see {@link Capability#UNIQUE_COUNTS}.
+     * 
+     * @param keys
+     * @return the estimated cardinality
+     */
+    default long uniqueCount(Collection<String> keys) {
+        throw new UnsupportedOperationException("uniqueCount is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Add the member to the set at the given key (<code>SADD</code>) and set the expiration of the key.
+     * Not supported by default; see {@link Capability#SETS}.
+     * 
+     * @param key
+     * @param member
+     * @param expirationTime a non-positive value leaves the expiration of the key unchanged
+     * @param timeUnit
+     */
+    default void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("addToSet is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Remove the members from the set at the given key (<code>SREM</code>).
+     * Not supported by default; see {@link Capability#SETS}.
+     * 
+     * @param key
+     * @param members
+     */
+    default void removeFromSet(String key, Collection<String> members) {
+        throw new UnsupportedOperationException("removeFromSet is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Get the members of the set at the given key (<code>SMEMBERS</code>).
+     * Not supported by default; see {@link Capability#SETS}.
+     * 
+     * @param key
+     * @return the members; empty if no such key exists
+     */
+    default Set<String> getSetMembers(String key) {
+        throw new UnsupportedOperationException("getSetMembers is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Set a marker with the given time to live at the given key (<code>SET key marker PX ttl</code>), replacing any
+     * existing value. May be performed asynchronously.
+     * Not supported by default; see {@link Capability#MARKERS}.
+     * 
+     * @param key
+     * @param ttl
+     * @param timeUnit
+     */
+    default void mark(String key, long ttl, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("mark is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Set a marker with the given time to live at the given key only if the key does not exist yet
+     * (<code>SET key marker NX PX ttl</code>).
+     * Not supported by default; see {@link Capability#MARKERS}.
+     * 
+     * @param key
+     * @param ttl
+     * @param timeUnit
+     * @return <code>true</code> if the key was claimed; <code>false</code> if it already existed
+     */
+    default boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        throw new UnsupportedOperationException("markIfAbsent is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Claim each of the given keys as {@link #markIfAbsent(String, long, TimeUnit)} does, in a single round trip where
+     * supported. Falls back to one {@link #markIfAbsent(String, long, TimeUnit)} per key.
+     * 
+     * @param keys
+     * @param ttl
+     * @param timeUnit
+     * @return for each key, in order, <code>true</code> if it was claimed
+     */
+    default List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        final List<Boolean> claimed = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            claimed.add(markIfAbsent(key, ttl, timeUnit));
+        }
+        return claimed;
+    }
+
+    /**
+     * Subscribe to the expiration of keys (<code>PSUBSCRIBE __keyevent@*__:expired</code>). The server must publish
+     * expired events (<code>notify-keyspace-events Ex</code>). The subscription ends on {@link #shutdown()}.
+     * Not supported by default; see {@link Capability#PUB_SUB}.
+     * 
+     * @param listener invoked with each expired key on a thread of the client; must not block
+     */
+    default void subscribeExpirations(Consumer<String> listener) {
+        throw new UnsupportedOperationException("subscribeExpirations is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Publish a message to all subscribers of a channel; does not wait for the reply.
+     * Not supported by default; see {@link Capability#PUB_SUB}.
+     * 
+     * @param channel
+     * @param message
+     */
+    default void publish(String channel, String message) {
+        throw new UnsupportedOperationException("publish is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Subscribe to a channel. The subscription ends on {@link #shutdown()}.
+     * Not supported by default; see {@link Capability#PUB_SUB}.
+     * 
+     * @param channel
+     * @param listener invoked with each message on a thread of the client; must not block
+     */
+    default void subscribe(String channel, Consumer<String> listener) {
+        throw new UnsupportedOperationException("subscribe is not supported by " + getClass().getName());
+    }
+
     /**
      * Get the encoded size of the given object
      * 
@@ -73,6 +453,27 @@ public interface RedisSessionClient {
      */
     int getEncodedSize(Object obj);
 
+    /**
+     * Check that redis answers, e.g. for a readiness probe.
+     * The default implementation checks for a key that does not exist, which fails rather than reporting an absent
+     * key if redis does not answer.
+     * 
+     * @throws RuntimeException if redis does not answer
+     */
+    default void ping() {
+        exists("rsm:ping");
+    }
+
+    /**
+     * Time to wait for the response to a single operation, in absence of a {@link RedisDeadline}.
+     * The default implementation returns {@value #DEFAULT_TIMEOUT_MILLIS}, the default timeout of the redis clients.
+     * 
+     * @return in milliseconds
+     */
+    default long getTimeoutMillis() {
+        return DEFAULT_TIMEOUT_MILLIS;
+    }
+
     /**
      * Perform any tasks necessary when shutting down
      */
@@ -20,14 +20,35 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleState;
 import org.apache.catalina.Session;
 import org.apache.catalina.connector.Request;
+import org.apache.catalina.core.ApplicationSessionCookieConfig;
 import org.apache.catalina.session.ManagerBase;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.servlet.SessionTrackingMode;
 
 /**
  * Manages {@link RedisSession}s
@@ -43,19 +64,85 @@ public abstract class RedisSessionManager extends ManagerBase {
     public static final String DEFAULT_SESSION_KEY_PREFIX = "_rsm_";
 
     static final int DO_NOT_CHECK = -1;
+    // time granted to expiry batches in progress on stop
+    private static final long EXPIRY_SHUTDOWN_MILLIS = 5000;
 
     private int sessionExpirationTime; // in minutes
     private RedisSessionClient _client; // access should be done via #getClient()
     private String sessionKeyPrefix = DEFAULT_SESSION_KEY_PREFIX;
-    private String ignorePattern = RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN;
+    private String sessionPolicyRules;
+    private String ignorePattern;
     private boolean saveOnChange;
     private boolean forceSaveAfterRequest;
     private boolean dirtyOnMutation;
     private int maxSessionAttributeSize = DO_NOT_CHECK;
     private int maxSessionSize = DO_NOT_CHECK;
     private boolean allowOversizedSessions;
+    private boolean coalesceLoads;
+    private boolean lazySessionPersistence;
+    private int anonymousSessionTimeout = -1; // in minutes
+    private String[] promotionAttributes = new String[0];
+    private String extendedSessionAttribute;
+    private int extendedSessionTimeout = -1; // in minutes
+    private int attributeProfileSampleInterval;
+    private int attributeProfileTop = 20;
+    private volatile AttributeSizeProfiler attributeProfiler = new AttributeSizeProfiler(100);
+    private boolean activeSessionCounting;
+    private int activeSessionBucketMinutes = 5;
+    private ActiveSessionCounter activeSessionCounter;
+    private volatile int clusterActiveSessions;
+    private int sessionEnumerationBatchSize = 100;
+    private int maxEnumeratedSessions = 1000;
+    private boolean principalIndexing;
+    private boolean expiryEvents;
+    private int expiryGracePeriod = 60; // in seconds
+    private int expiryThreads = 1;
+    private int expiryBatchSize = 100;
+    private int expiryQueueCapacity = 10000;
+    private volatile SessionExpiryDispatcher expiryDispatcher;
+    private boolean circuitBreaking;
+    private int circuitBreakerFailureThreshold = 5;
+    private int circuitBreakerSlowCallMillis = 1000;
+    private int circuitBreakerOpenMillis = 5000;
+    private int localSessionCapacity = 10000;
+    private volatile CircuitBreakingSessionClient circuitBreaker;
+    private boolean hedgedReads;
+    private int hedgeDelayMillis;
+    private int hedgePercentile = 95;
+    private volatile HedgingSessionClient hedgingClient;
+    private int redisTimeBudgetMillis;
+    private final LongAdder skippedOperationCount = new LongAdder();
+    private final LongAdder sessionRenameCount = new LongAdder();
+    private boolean versionedSaves;
+    private SaveConflictPolicy saveConflictPolicy = SaveConflictPolicy.MERGE;
+    private int saveConflictRetries = 3;
+    private final LongAdder saveConflictCount = new LongAdder();
+    private boolean sessionOwnership;
+    private int ownedSessionCapacity = 10000;
+    private volatile SessionOwnership ownership;
+    private boolean backgroundWarmup;
+    private boolean sharedClient;
+    private int shardVirtualNodes = 160;
+    private boolean shardHints;
+    private int previousShardCount;
+    private volatile ShardedSessionClient shardedClient;
+    private boolean concurrencyLimiting;
+    private int minConcurrency = 4;
+    private int maxConcurrency = 128;
+    private volatile ConcurrencyLimitingSessionClient concurrencyLimiter;
+    private boolean requestMetrics;
+    private volatile boolean ready;
+    private volatile Thread warmupThread;
+
+    private final SingleFlight<String, byte[]> sessionLoads = new SingleFlight<>();
+    private final LongAdder sessionLoadCount = new LongAdder();
 
-    private ThreadLocal<RedisSessionState> currentSessionState = InheritableThreadLocal.withInitial(RedisSessionState::new);
+    // the state of the request being handled by the current thread, for the Manager methods not given the request
+    private ThreadLocal<RedisSessionState> currentSessionState = new ThreadLocal<>();
+    // state reused by the synchronous requests handled by a thread, so that none is allocated per request
+    private final ThreadLocal<RedisSessionState> threadSessionState = new ThreadLocal<>();
+    // states of requests in async mode, one per request as concurrent requests may share a session; not bound to any thread
+    private final Set<RedisSessionState> asyncSessionStates = ConcurrentHashMap.newKeySet();
 
     private RedisSessionRequestValve requestValve;
 
@@ -73,6 +160,14 @@ public abstract class RedisSessionManager extends ManagerBase {
      */
     protected abstract RedisSessionClient buildClient() throws ClassNotFoundException, InstantiationException, IllegalAccessException;
 
+    /**
+     * Close or release the resources backing the client built by {@link #buildClient()} that its
+     * {@link RedisSessionClient#shutdown()} leaves open, e.g. a client shared with other managers (see
+     * {@link #setSharedClient(boolean)}); called when the manager stops, after the client is shut down
+     */
+    protected void releaseClient() {
+    }
+
     /**
      * Get the encoded size of the object
      * 
@@ -133,14 +228,17 @@ public abstract class RedisSessionManager extends ManagerBase {
     protected synchronized void startInternal() throws LifecycleException {
         super.startInternal();
 
+        final RedisSessionClient client;
         try {
-            this._client = buildClient();
+            client = buildClient();
+            this._client = decorateClient(client);
         } catch (Throwable t) {
             log.fatal("Unable to load serializer", t);
             throw new LifecycleException(t);
         }
+        checkCapabilities(client);
 
-        this.requestValve = new RedisSessionRequestValve(this, ignorePattern);
+        this.requestValve = new RedisSessionRequestValve(this, buildSessionPolicyRules());
         getContext().getParent().getPipeline().addValve(requestValve);
         this.sessionExpirationTime = getContext().getSessionTimeout();
         if (this.sessionExpirationTime < 0) {
@@ -148,59 +246,520 @@ public abstract class RedisSessionManager extends ManagerBase {
             this.sessionExpirationTime = 0;
         }
         log.info("Will expire sessions after " + sessionExpirationTime + " minutes");
+        if (anonymousSessionTimeout > 0) {
+            log.info("Will expire anonymous sessions after " + anonymousSessionTimeout + " minutes");
+        }
+        if (extendedSessionAttribute != null && extendedSessionTimeout > 0) {
+            log.info("Will expire sessions with attribute [" + extendedSessionAttribute + "] after " + extendedSessionTimeout + " minutes");
+        }
+        initActiveSessionCounting();
+        initExpiryEvents();
+        initSessionOwnership();
+        startWarmup(client);
         setState(LifecycleState.STARTING);
     }
 
+    /**
+     * Check that the client supports the operations needed by the features enabled
+     * 
+     * @param client
+     * @throws LifecycleException naming the features the client cannot serve
+     */
+    void checkCapabilities(RedisSessionClient client) throws LifecycleException {
+        final Map<String, EnumSet<RedisSessionClient.Capability>> required = new LinkedHashMap<>();
+        if (activeSessionCounting) {
+            required.put("activeSessionCounting", EnumSet.of(RedisSessionClient.Capability.UNIQUE_COUNTS));
+        }
+        if (principalIndexing) {
+            required.put("principalIndexing", EnumSet.of(RedisSessionClient.Capability.SETS));
+        }
+        if (expiryEvents) {
+            required.put("expiryEvents", EnumSet.of(RedisSessionClient.Capability.MARKERS, RedisSessionClient.Capability.PUB_SUB));
+        }
+        if (versionedSaves) {
+            required.put("versionedSaves", EnumSet.of(RedisSessionClient.Capability.SCRIPTS));
+        }
+        if (sessionOwnership) {
+            required.put("sessionOwnership", EnumSet.of(RedisSessionClient.Capability.SCRIPTS, RedisSessionClient.Capability.PUB_SUB));
+        }
+        final List<String> unsupported = new ArrayList<>();
+        required.forEach((feature, capabilities) -> {
+            capabilities.removeIf(client::supports);
+            if (!capabilities.isEmpty()) {
+                unsupported.add(feature + " (needs " + capabilities + ")");
+            }
+        });
+        if (!unsupported.isEmpty()) {
+            final String message = "The redis client " + client.getClass().getName() + " does not support "
+                + String.join(", ", unsupported) + "; disable these features or use a client supporting them";
+            log.fatal(message);
+            throw new LifecycleException(message);
+        }
+    }
+
+    /**
+     * Wrap the client built by {@link #buildClient()} as configured
+     * 
+     * @param client
+     * @return
+     */
+    RedisSessionClient decorateClient(RedisSessionClient client) {
+        if (concurrencyLimiting) {
+            this.concurrencyLimiter = new ConcurrencyLimitingSessionClient(client, minConcurrency, maxConcurrency);
+            client = concurrencyLimiter;
+            log.info("Limiting redis operations in flight to between " + minConcurrency + " and " + maxConcurrency + " depending on redis latency");
+        }
+        if (hedgedReads) {
+            this.hedgingClient = new HedgingSessionClient(client, hedgeDelayMillis, hedgePercentile);
+            client = hedgingClient;
+            log.info("Hedging session loads after " + (hedgeDelayMillis > 0 ? hedgeDelayMillis + " ms" : "the p" + hedgePercentile + " load latency"));
+        }
+        if (circuitBreaking) {
+            this.circuitBreaker = new CircuitBreakingSessionClient(client, circuitBreakerFailureThreshold, circuitBreakerSlowCallMillis,
+                circuitBreakerOpenMillis, localSessionCapacity);
+            client = circuitBreaker;
+            log.info("Serving sessions locally after " + circuitBreakerFailureThreshold + " consecutive redis operations failing or taking more than "
+                + circuitBreakerSlowCallMillis + " ms");
+        }
+        if (requestMetrics) {
+            client = new RequestMetricsSessionClient(client, this::currentMetrics);
+            log.info("Recording the redis work of each request as request attributes");
+        }
+        return client;
+    }
+
+    void initActiveSessionCounting() {
+        if (activeSessionCounting) {
+            this.activeSessionCounter = new ActiveSessionCounter(generateRedisAuxKey("active", ""),
+                TimeUnit.MINUTES.toMillis(activeSessionBucketMinutes), TimeUnit.MINUTES.toMillis(sessionExpirationTime));
+            log.info("Counting active sessions in buckets of " + activeSessionBucketMinutes + " minutes");
+        }
+    }
+
+    void initExpiryEvents() {
+        if (expiryEvents) {
+            final String shadowKeyPrefix = generateRedisShadowKey("");
+            this.expiryDispatcher = new SessionExpiryDispatcher("rsm-expiry-" + getContext().getName(), expiryThreads, expiryQueueCapacity, expiryBatchSize, this::expireSessions);
+            getClient().subscribeExpirations(key -> {
+                if (key.startsWith(shadowKeyPrefix) && !expiryDispatcher.offer(key.substring(shadowKeyPrefix.length()))) {
+                    log.warn("Dropped the expiry of session [" + key.substring(shadowKeyPrefix.length()) + "] as the expiry queue is full");
+                }
+            });
+            log.info("Notifying listeners of expired sessions; sessions are kept for " + expiryGracePeriod + " seconds after expiry");
+        }
+    }
+
+    void initSessionOwnership() {
+        if (sessionOwnership) {
+            final String ownerId = (getJvmRoute() == null ? "" : getJvmRoute() + "-") + UUID.randomUUID();
+            final SessionOwnership owned = new SessionOwnership(ownerId, generateRedisAuxKey("owner", ""), ownedSessionCapacity);
+            owned.subscribe(getClient());
+            this.ownership = owned;
+            log.info("Keeping up to " + ownedSessionCapacity + " owned sessions in memory as " + ownerId);
+        }
+    }
+
+    /**
+     * Become ready right away, or with {@link #setBackgroundWarmup(boolean)} once redis answers the pings of the warm-up
+     * thread
+     * 
+     * @param client the undecorated client, which reports redis failures rather than serving locally
+     */
+    void startWarmup(RedisSessionClient client) {
+        if (!backgroundWarmup) {
+            ready = true;
+            return;
+        }
+        final Thread warmup = new Thread(() -> warmUp(client), "rsm-warmup-" + getContext().getName());
+        warmup.setDaemon(true);
+        this.warmupThread = warmup;
+        warmup.start();
+    }
+
+    /**
+     * Wait for redis to answer, then warm the codec and the connections while requests are already being served
+     * 
+     * @param client
+     */
+    void warmUp(RedisSessionClient client) {
+        final long start = System.nanoTime();
+        long backoffMillis = 100;
+        while (!ready) {
+            try {
+                client.ping();
+                ready = true;
+            } catch (UnsupportedOperationException e) {
+                // no way to tell; serving requests is the best way to find out
+                log.warn("The redis client cannot be probed; assuming redis is reachable", e);
+                ready = true;
+            } catch (RuntimeException e) {
+                log.warn("Redis is not reachable yet; retrying in " + backoffMillis + " ms", e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, 5000);
+            }
+        }
+        log.info("Ready after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms; warming up in the background");
+        try {
+            final RedisSession session = createEmptySession();
+            session.setCreationTime(System.currentTimeMillis());
+            session.setMaxInactiveInterval(sessionExpirationTime * 60);
+            client.decode(client.encode(session));
+            warmConnections();
+            log.info("Warmed up after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (Exception e) {
+            log.warn("Failed to warm up", e);
+        }
+    }
+
+    /**
+     * Open the connections the client is configured to keep, ahead of the first requests needing them; called by the
+     * warm-up thread of {@link #setBackgroundWarmup(boolean)} once redis has answered
+     */
+    protected void warmConnections() {
+    }
+
+    /**
+     * Build the {@link SessionPolicyRules} from {@link #setSessionPolicyRules(String)} and the legacy {@link #setIgnorePattern(String)}
+     * 
+     * @return
+     */
+    SessionPolicyRules buildSessionPolicyRules() {
+        String definition = sessionPolicyRules;
+        if (definition == null && ignorePattern == null) {
+            definition = SessionPolicyRules.DEFAULT_RULES;
+        }
+        SessionPolicyRules rules = SessionPolicyRules.parse(definition);
+        if (ignorePattern != null && ignorePattern.trim().length() > 0) {
+            rules = rules.withPattern(ignorePattern, SessionPolicy.NO_SESSION_WORK);
+        }
+        log.info("Session policy rules: [" + rules + "]");
+        return rules;
+    }
+
     @Override
     protected synchronized void stopInternal() throws LifecycleException {
         setState(LifecycleState.STOPPING);
         log.info("Stopping");
         getContext().getParent().getPipeline().removeValve(requestValve);
+        ready = false;
+        final Thread warmup = warmupThread;
+        if (warmup != null) {
+            warmup.interrupt();
+            warmupThread = null;
+        }
+        if (expiryDispatcher != null) {
+            // stopped first: its threads must not use the client once shut down
+            expiryDispatcher.shutdown(EXPIRY_SHUTDOWN_MILLIS);
+            expiryDispatcher = null;
+        }
         getClient().shutdown();
+        try {
+            releaseClient();
+        } catch (RuntimeException e) {
+            log.error("Failed to release the redis client", e);
+        }
+        ownership = null;
         super.stopInternal();
     }
 
     @Override
     public Session createSession(String requestedSessionId) {
+        sessionCounter++;
         RedisSession session = createEmptySession();
         session.setNew(true);
         session.setValid(true);
         session.setCreationTime(System.currentTimeMillis());
         session.setMaxInactiveInterval(sessionExpirationTime * 60);
-        session.setId(requestedSessionId == null ? generateSessionId() : requestedSessionId);
-        session.tellNew();
-        currentSessionState.set(new RedisSessionState(session, false)); // persisted will be set to true in save()
-        save(session, true);
+        final RedisSessionState state = currentSessionState.get();
+        if (state != null && !state.policy.isSave()) {
+            // in memory only; neither saved nor touched after the request
+            session.setId(requestedSessionId == null ? newSessionId() : requestedSessionId);
+            state.setSession(session, false);
+            state.memoryOnly = true;
+            session.tellNew();
+        } else if (requestedSessionId == null && lazySessionPersistence && state != null) {
+            // reserved in redis once the session holds state; see persistNewSession
+            session.setId(newSessionId());
+            state.setSession(session, false);
+            state.reservationPending = true;
+            session.tellNew();
+        } else if (requestedSessionId == null) {
+            reserveSession(session, state);
+            session.tellNew();
+            if (session.isDirty()) {
+                // listeners modified the session
+                save(session, false);
+            }
+        } else {
+            session.setId(requestedSessionId);
+            session.tellNew();
+            if (state != null) {
+                state.setSession(session, false); // persisted will be set to true in save()
+            }
+            save(session, true);
+        }
         return session;
     }
 
+    /**
+     * Assign a new ID to the given new session and write it to redis in a single atomic operation; on the unlikely
+     * collision with an existing session another ID is tried.
+     * 
+     * @param session
+     * @param state state of the current request; may be <code>null</code>
+     * @return <code>true</code> if the session was written to redis
+     */
+    private boolean reserveSession(RedisSession session, RedisSessionState state) {
+        final int ttl = getSessionTtl(session);
+        while (true) {
+            final String sessionId = newSessionId();
+            session.setId(sessionId);
+            if (state != null) {
+                state.setSession(session, false);
+            }
+            final boolean reserved;
+            try {
+                reserved = getClient().reserve(generateRedisSessionKey(sessionId), session, getStorageTtl(ttl), TimeUnit.SECONDS);
+            } catch (Throwable t) {
+                log.error("Failed to save session [" + sessionId + "]", t);
+                return false;
+            }
+            if (reserved) {
+                log.debug("Generated new sessionId: " + sessionId);
+                if (state != null) {
+                    state.markPersisted();
+                }
+                own(session);
+                trackActive(session);
+                markExpiry(sessionId, ttl);
+                return true;
+            }
+            log.debug("Rejecting duplicate sessionId: " + sessionId);
+        }
+    }
+
+    /**
+     * Change the ID of the session to a generated one, e.g. on authentication. The new ID is claimed atomically by the
+     * rename of the session in redis or, if the session is not stored yet, by reserving it; on the unlikely collision
+     * with an existing session another ID is tried.
+     */
+    @Override
+    public String rotateSessionId(Session session) {
+        changeSessionId(session, newSessionId(), true, true, true);
+        return session.getIdInternal();
+    }
+
     @Override
     protected void changeSessionId(Session session, String newId, boolean notifySessionListeners, boolean notifyContainerListeners) {
-        final String oldId = session.getId();
-        super.changeSessionId(session, newId, notifySessionListeners, notifyContainerListeners);
+        changeSessionId(session, newId, notifySessionListeners, notifyContainerListeners, false);
+    }
+
+    /**
+     * Change the ID of the session, moving it in redis
+     * 
+     * @param session
+     * @param newId
+     * @param notifySessionListeners
+     * @param notifyContainerListeners
+     * @param generated if <code>true</code> another ID is generated should <code>newId</code> be taken; otherwise a
+     *        session stored under <code>newId</code> is replaced
+     */
+    private void changeSessionId(Session session, String newId, boolean notifySessionListeners, boolean notifyContainerListeners,
+        boolean generated) {
+        final String oldId = session.getIdInternal();
         if (RedisSession.class.isAssignableFrom(session.getClass())) {
             final RedisSession rSession = RedisSession.class.cast(session);
-            currentSessionState.set(new RedisSessionState(rSession, false));
-            getClient().delete(generateRedisSessionKey(oldId));
-            save(rSession, true);
+            final RedisSessionState state = currentSessionState.get();
+            revokeOwnership(oldId);
+            final String indexedPrincipal = rSession.getIndexedPrincipal();
+            if (state != null && state.reservationPending && state.session == rSession) {
+                // not in redis yet; the new ID is reserved once the session holds state, see persistNewSession
+                rSession.setId(newId);
+                state.setSession(rSession, false);
+                state.reservationPending = true;
+            } else {
+                newId = moveSession(rSession, oldId, newId, generated, state);
+            }
+            if (principalIndexing && indexedPrincipal != null) {
+                try {
+                    getClient().removeFromSet(generateRedisPrincipalKey(indexedPrincipal), Collections.singleton(oldId));
+                    // the session may have been saved under a new principal while being moved
+                    if (rSession.getIndexedPrincipal() != null) {
+                        getClient().addToSet(generateRedisPrincipalKey(rSession.getIndexedPrincipal()), newId, getPrincipalIndexTtl(), TimeUnit.MINUTES);
+                    }
+                } catch (Throwable t) {
+                    log.warn("Failed to update the principal index of session [" + newId + "]", t);
+                }
+            }
+            session.tellChangedSessionId(newId, oldId, notifySessionListeners, notifyContainerListeners);
         } else {
             throw new UnsupportedOperationException("Could not change a session ID with class " + session.getClass());
         }
     }
 
+    /**
+     * Store the session under the new ID, renaming it in redis where stored already
+     * 
+     * @param rSession
+     * @param oldId
+     * @param newId
+     * @param generated if <code>true</code> another ID is generated should <code>newId</code> be taken
+     * @param state state of the current request; may be <code>null</code>
+     * @return the ID the session is stored under
+     */
+    private String moveSession(RedisSession redisSession, String oldId, String newId, boolean generated, RedisSessionState state) {
+        while (true) {
+            // not via super: StandardSession#setId(String, boolean) would remove the session and save it again
+            redisSession.setId(newId);
+            if (renameSession(oldId, newId)) {
+                if (state != null) {
+                    state.setSession(redisSession, true);
+                }
+                own(redisSession);
+                return newId;
+            }
+            if (!generated) {
+                break;
+            }
+            // either the session is not in redis (e.g. not persisted yet) or the new ID is taken
+            final int ttl = getSessionTtl(redisSession);
+            final String indexedPrincipal = swapIndexedPrincipal(redisSession);
+            final boolean reserved;
+            try {
+                reserved = getClient().reserve(generateRedisSessionKey(newId), redisSession, getStorageTtl(ttl), TimeUnit.SECONDS);
+            } catch (Throwable t) {
+                log.warn("Failed to reserve session ID [" + newId + "]; saving the session instead", t);
+                redisSession.setIndexedPrincipal(indexedPrincipal);
+                break;
+            }
+            if (reserved) {
+                deleteSessionKeys(oldId);
+                if (state != null) {
+                    state.setSession(redisSession, true);
+                }
+                redisSession.clearDirty();
+                own(redisSession);
+                trackActive(redisSession);
+                markExpiry(newId, ttl);
+                updatePrincipalIndex(redisSession, indexedPrincipal);
+                return newId;
+            }
+            redisSession.setIndexedPrincipal(indexedPrincipal);
+            log.debug("Rejecting duplicate sessionId: " + newId);
+            newId = newSessionId();
+        }
+        if (state != null) {
+            state.setSession(redisSession, false);
+        }
+        deleteSessionKeys(oldId);
+        save(redisSession, true);
+        return newId;
+    }
+
+    private void deleteSessionKeys(String sessionId) {
+        getClient().delete(generateRedisSessionKey(sessionId));
+        if (expiryEvents) {
+            getClient().delete(generateRedisShadowKey(sessionId));
+        }
+    }
+
+    /**
+     * Move a session to a new ID in redis in a single round trip, retaining its expiration. The stored session still
+     * holds the old ID, which is replaced by the ID it is loaded by. Changes not yet saved are saved after the request.
+     * 
+     * @param oldId
+     * @param newId
+     * @return <code>true</code> if moved; <code>false</code> if the session was not found in redis (e.g. not yet
+     *         persisted) or the rename failed
+     */
+    private boolean renameSession(String oldId, String newId) {
+        try {
+            if (!getClient().rename(generateRedisSessionKey(oldId), generateRedisSessionKey(newId))) {
+                return false;
+            }
+        } catch (Throwable t) {
+            log.warn("Failed to rename session [" + oldId + "]; saving it instead", t);
+            return false;
+        }
+        sessionRenameCount.increment();
+        if (expiryEvents) {
+            try {
+                getClient().rename(generateRedisShadowKey(oldId), generateRedisShadowKey(newId));
+            } catch (Throwable t) {
+                log.warn("Failed to rename the expiry of session [" + oldId + "]", t);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generate a session ID without checking redis: the ID is claimed atomically when the session is stored, see
+     * {@link #createSession(String)} and {@link #rotateSessionId(Session)}
+     */
     @Override
     protected String generateSessionId() {
-        String sessionId = null;
-        while (sessionId == null) {
-            sessionId = prefixJvmRoute(super.generateSessionId());
-            if (getClient().exists(generateRedisSessionKey(sessionId))) {
-                log.debug("Rejecting duplicate sessionId: " + sessionId);
-                sessionId = null;
-            } else {
-                log.debug("Generated new sessionId: " + sessionId);
+        return newSessionId();
+    }
+
+    /**
+     * Generate a session ID, with the hint of its shard (see {@link #setShardHints(boolean)}) and the JVM route
+     * 
+     * @return
+     */
+    private String newSessionId() {
+        final ShardedSessionClient sharded = shardedClient;
+        final String sessionId = super.generateSessionId();
+        return prefixJvmRoute(sharded == null ? sessionId : sharded.hint(sessionId));
+    }
+
+    /**
+     * Combine the clients of independent redis primaries into a single client spreading sessions across them; for use
+     * in {@link #buildClient()}
+     * 
+     * @param shards
+     * @return
+     */
+    protected RedisSessionClient shard(List<RedisSessionClient> shards) {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        final ShardedSessionClient sharded = new ShardedSessionClient(shards, shardVirtualNodes, this::shardingToken, shardHints, previousShardCount);
+        this.shardedClient = sharded;
+        log.info("Spreading sessions across " + shards.size() + " shards" + (shardHints ? " with shard hints" : "")
+            + (previousShardCount > 0 ? "; reading sessions not found from the ring of the first " + previousShardCount + " shards" : ""));
+        return sharded;
+    }
+
+    /**
+     * The token a key is routed to a shard by: the session ID for the keys of a session, so they are stored together
+     * 
+     * @param key
+     * @return
+     */
+    String shardingToken(String key) {
+        final String auxKeyPrefix = sessionKeyPrefix + ":"; // see generateRedisAuxKey
+        if (key.startsWith(auxKeyPrefix)) {
+            final int kindEnd = key.indexOf(':', auxKeyPrefix.length());
+            if (kindEnd < 0) {
+                return key;
+            }
+            switch (key.substring(auxKeyPrefix.length(), kindEnd)) {
+                case "expiry":
+                case "expired":
+                case "owner":
+                case "principal":
+                    // the session ID, or the principal name for the index of its sessions
+                    return key.substring(kindEnd + 1);
+                default:
+                    // e.g. the buckets of active session counting, which are counted together
+                    return key.substring(0, kindEnd);
             }
         }
-        return sessionId;
+        return key.startsWith(sessionKeyPrefix) ? key.substring(sessionKeyPrefix.length()) : key;
     }
 
     /**
@@ -220,6 +779,37 @@ public abstract class RedisSessionManager extends ManagerBase {
         return sessionKey;
     }
 
+    /**
+     * Generate the storage key for auxiliary data, distinct from any session key
+     * 
+     * @param kind
+     * @param suffix
+     * @return
+     */
+    String generateRedisAuxKey(String kind, String suffix) {
+        return sessionKeyPrefix + ":" + kind + ":" + suffix;
+    }
+
+    /**
+     * Generate the storage key of the shadow of the given session, which expires when the session expires
+     * 
+     * @param sessionId
+     * @return
+     */
+    private String generateRedisShadowKey(String sessionId) {
+        return generateRedisAuxKey("expiry", sessionId);
+    }
+
+    /**
+     * Generate the storage key of the index of the sessions of the given principal
+     * 
+     * @param principalName
+     * @return
+     */
+    private String generateRedisPrincipalKey(String principalName) {
+        return generateRedisAuxKey("principal", principalName);
+    }
+
     /**
      * Prefix the given sessionId with the JVM Route
      * 
@@ -254,15 +844,29 @@ public abstract class RedisSessionManager extends ManagerBase {
     public Session findSession(String id) throws IOException {
         RedisSession session = null;
         log.debug("Finding session " + id);
+        RedisSessionState state = currentSessionState.get();
+        if (state == null && id != null) {
+            // a thread of an async request
+            state = asyncStateOf(id);
+        }
         if (id == null) {
-            currentSessionState.remove();
-        } else if (id.equals(currentSessionState.get().sessionId)) {
+            if (state != null) {
+                state.clearSession();
+            }
+        } else if (state != null && id.equals(state.sessionId)) {
             log.debug("CurrentSession found for " + id);
-            session = currentSessionState.get().session;
+            session = state.session;
+        } else if (state != null && !state.policy.isLoad()) {
+            log.debug("Not loading session " + id + " under policy " + state.policy);
+        } else if ((session = findOwnedSession(id)) != null) {
+            log.debug("Owned session found for " + id);
+            if (state != null) {
+                state.setSession(session, true);
+            }
         } else {
             log.debug("Loading from redis");
             try {
-                session = getClient().load(generateRedisSessionKey(id));
+                session = loadSession(id);
             } catch (Throwable t) {
                 log.error("Failed to load session [" + id + "] from redis", t);
             }
@@ -270,16 +874,158 @@ public abstract class RedisSessionManager extends ManagerBase {
                 log.debug("Found session " + id + " in redis");
                 session.postDeserialization(this);
                 session.setNew(false); // Fix issue #12
-                currentSessionState.set(new RedisSessionState(session, true));
+                claimOwnership(session);
+                if (state != null) {
+                    state.setSession(session, true);
+                } else {
+                    log.debug("Session " + id + " loaded outside of a request; it will not be saved after the request");
+                }
             } else {
                 log.debug("Session " + id + " not found in redis");
-                currentSessionState.remove();
+                if (state != null) {
+                    state.clearSession();
+                }
+            }
+        }
+
+        return session;
+    }
+
+    /**
+     * Load and decode the session from redis. Concurrent loads of the same session share a single read from redis if
+     * {@link #isCoalesceLoads()}; each caller decodes its own copy.
+     * 
+     * @param id
+     * @return the session or <code>null</code> if not found
+     */
+    private RedisSession loadSession(String id) {
+        final RequestMetrics metrics = currentMetrics();
+        final long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            return loadSession(id, generateRedisSessionKey(id));
+        } finally {
+            if (metrics != null) {
+                metrics.addLoad(System.nanoTime() - start);
             }
         }
+    }
+
+    private RedisSession loadSession(String id, String sessionKey) {
+        final byte[] encoded;
+        if (coalesceLoads) {
+            encoded = sessionLoads.execute(sessionKey, () -> loadEncoded(sessionKey));
+        } else {
+            encoded = loadEncoded(sessionKey);
+        }
+        if (encoded == null) {
+            return null;
+        }
+        final Object obj = getClient().decode(SessionEnvelope.payload(encoded));
+        if (obj == null) {
+            return null;
+        }
+        if (RedisSession.class.isAssignableFrom(obj.getClass())) {
+            final RedisSession session = (RedisSession) obj;
+            // renamed by changeSessionId
+            session.setId(id);
+            session.setVersion(SessionEnvelope.version(encoded));
+            return session;
+        }
+        log.warn("Incompatible session class found in redis for session [" + sessionKey + "]: " + obj.getClass());
+        getClient().delete(sessionKey);
+        return null;
+    }
 
+    /**
+     * With {@link #setSessionOwnership(boolean)} get the session if held in memory as owned by this node. A session
+     * held longer than its time to live in redis (see {@link #getSessionTtl(RedisSession)}) is dropped, as are
+     * invalidated sessions; the session itself is left as is so that a load from redis decides whether it still exists.
+     * 
+     * @param id
+     * @return the session; <code>null</code> if not owned or no longer valid
+     */
+    private RedisSession findOwnedSession(String id) {
+        final SessionOwnership owned = ownership;
+        if (owned == null) {
+            return null;
+        }
+        final RedisSession session = owned.get(id);
+        if (session != null && !session.isLive(TimeUnit.MINUTES.toMillis(getSessionTtl(session)))) {
+            owned.remove(id);
+            return null;
+        }
         return session;
     }
 
+    /**
+     * With {@link #setSessionOwnership(boolean)} take over the lease of a session loaded from redis
+     * 
+     * @param session
+     */
+    private void claimOwnership(RedisSession session) {
+        final SessionOwnership owned = ownership;
+        if (owned != null) {
+            try {
+                owned.claim(getClient(), generateRedisAuxKey("owner", session.getId()), session,
+                    TimeUnit.SECONDS.toMillis(getStorageTtl(getSessionTtl(session))));
+            } catch (Throwable t) {
+                log.warn("Failed to take over session [" + session.getId() + "]", t);
+            }
+        }
+    }
+
+    /**
+     * With {@link #setSessionOwnership(boolean)} hold a session written to redis by this node
+     * 
+     * @param session
+     */
+    private void own(RedisSession session) {
+        final SessionOwnership owned = ownership;
+        if (owned != null) {
+            owned.put(session);
+        }
+    }
+
+    /**
+     * With {@link #setSessionOwnership(boolean)} save a session provided this node holds its lease or the lease has no
+     * holder, and hold it. A node that lost the lease but missed the revocation would otherwise overwrite the session
+     * with an outdated copy; instead the copy is dropped and the changes of the request are discarded. With
+     * {@link #setVersionedSaves(boolean)} the version check covers this.
+     * 
+     * @param owned
+     * @param sessionKey
+     * @param redisSession
+     */
+    private void saveOwned(SessionOwnership owned, String sessionKey, RedisSession redisSession) {
+        final long ttlMillis = TimeUnit.SECONDS.toMillis(getStorageTtl(getSessionTtl(redisSession)));
+        if (!owned.write(getClient(), generateRedisAuxKey("owner", redisSession.getId()), sessionKey, redisSession, ttlMillis)) {
+            saveConflictCount.increment();
+            log.info("Session " + redisSession.getId() + " was taken over by another node; discarding the changes of this request");
+        }
+    }
+
+    /**
+     * With {@link #setSessionOwnership(boolean)} drop a session removed or renamed by this node, also from other nodes
+     * 
+     * @param sessionId
+     */
+    private void revokeOwnership(String sessionId) {
+        final SessionOwnership owned = ownership;
+        if (owned != null) {
+            try {
+                owned.revoke(getClient(), sessionId);
+                getClient().delete(generateRedisAuxKey("owner", sessionId));
+            } catch (Throwable t) {
+                log.warn("Failed to revoke the ownership of session [" + sessionId + "]", t);
+            }
+        }
+    }
+
+    private byte[] loadEncoded(String sessionKey) {
+        sessionLoadCount.increment();
+        return getClient().loadEncoded(sessionKey);
+    }
+
     public void save(RedisSession redisSession, boolean forceSave) {
         log.debug("Checking if session " + redisSession.getId() + " needs to be saved in redis");
 
@@ -292,191 +1038,1950 @@ public abstract class RedisSessionManager extends ManagerBase {
             }
         }
 
-        if (currentSessionState.get().session == null) {
-            currentSessionState.set(new RedisSessionState(redisSession, false));
+        final RedisSessionState state = stateOf(redisSession);
+        if (state.reservationPending) {
+            persistNewSession(redisSession, state);
+            return;
         }
-
-        final boolean currentSessionPersisted = currentSessionState.get().persisted;
+        final boolean currentSessionPersisted = state.persisted;
         final String sessionKey = generateRedisSessionKey(redisSession.getId());
         if (forceSave
             || redisSession.isDirty()
             || !currentSessionPersisted) {
-            if (getMaxSessionSize() != DO_NOT_CHECK) {
-                final int size = getEncodedSize(redisSession);
-                if (size > getMaxSessionSize()) {
-                    if (!isAllowOversizedSessions()) {
-                        log.error("Not saving [" + redisSession.getId() + "] to redis. Size of [" + size + "] exceeds max of [" + getMaxSessionSize() + "]");
-                        return;
-                    } else {
-                        log.error("Session [" + redisSession.getId() + "] size of [" + size + "] exceeds max of [" + getMaxSessionSize() + "]; still saving");
-                    }
-                }
+            if (!isSaveableSize(redisSession)) {
+                return;
             }
             log.debug("Saving " + redisSession.getId() + " to redis");
+            if (sampleAttributeSize()) {
+                redisSession.forEachAttribute((name, value) -> profileAttribute(name, value, getEncodedSize(value), true));
+            }
+            final RequestMetrics metrics = currentMetrics();
+            final long start = metrics == null ? 0 : System.nanoTime();
+            final String indexedPrincipal = swapIndexedPrincipal(redisSession);
             try {
-                getClient().save(sessionKey, redisSession);
+                final SessionOwnership owned = ownership;
+                if (versionedSaves) {
+                    saveVersioned(sessionKey, redisSession);
+                    own(redisSession);
+                } else if (owned == null) {
+                    getClient().save(sessionKey, redisSession);
+                } else {
+                    saveOwned(owned, sessionKey, redisSession);
+                }
+                updatePrincipalIndex(redisSession, indexedPrincipal);
             } catch (Throwable t) {
                 log.error("Failed to save session [" + redisSession.getId() + "]", t);
             }
+            if (metrics != null) {
+                metrics.addSave(System.nanoTime() - start);
+                metrics.setSaveSkipped(false);
+            }
             redisSession.clearDirty();
-            currentSessionState.get().markPersisted();
+            state.markPersisted();
         } else {
             log.debug("Not saving " + redisSession.getId() + " to redis");
+            final RequestMetrics metrics = currentMetrics();
+            if (metrics != null) {
+                metrics.setSaveSkipped(true);
+            }
         }
 
-        log.trace("Setting expire on " + redisSession.getId() + " to " + sessionExpirationTime);
-        getClient().expire(sessionKey, sessionExpirationTime, TimeUnit.MINUTES);
+        touch(redisSession);
     }
 
-    @Override
-    public void remove(Session session, boolean update) {
-        log.debug("Removing session ID : " + session.getId());
+    /**
+     * Save the session provided it was not saved by another request since it was loaded, resolving conflicts according
+     * to {@link #getSaveConflictPolicy()}
+     * 
+     * @param sessionKey
+     * @param redisSession
+     */
+    private void saveVersioned(String sessionKey, RedisSession redisSession) {
+        final long ttlMillis = TimeUnit.SECONDS.toMillis(getStorageTtl(getSessionTtl(redisSession)));
+        long expected = redisSession.getVersion();
+        for (int attempt = 0;; attempt++) {
+            final byte[] payload = getClient().encode(redisSession);
+            final byte[] value = SessionEnvelope.wrap(expected + 1, payload);
+            final long result;
+            try {
+                result = getClient().evalScript(SessionEnvelope.COMPARE_AND_SET, Collections.singletonList(sessionKey),
+                    Arrays.asList(ascii(expected), value, ascii(ttlMillis)));
+            } catch (RuntimeException e) {
+                log.warn("Versioned save of session [" + redisSession.getId() + "] failed; saving it unconditionally", e);
+                saveUnconditionally(sessionKey, redisSession, payload, ttlMillis);
+                return;
+            }
+            if (result > 0) {
+                redisSession.setVersion(expected + 1);
+                return;
+            }
+            if (result < 0) {
+                log.debug("Not saving session " + redisSession.getId() + "; removed from redis by another request");
+                return;
+            }
+            saveConflictCount.increment();
+            if (saveConflictPolicy == SaveConflictPolicy.OVERWRITE) {
+                log.debug("Session " + redisSession.getId() + " was saved by another request; overwriting it");
+                overwrite(sessionKey, redisSession, payload, ttlMillis);
+                return;
+            }
+            if (saveConflictPolicy == SaveConflictPolicy.DISCARD || attempt >= saveConflictRetries) {
+                log.info("Session " + redisSession.getId() + " was saved by another request; discarding the changes of this request");
+                return;
+            }
+            final byte[] stored = getClient().loadEncoded(sessionKey);
+            final Object obj = stored == null ? null : getClient().decode(SessionEnvelope.payload(stored));
+            if (!(obj instanceof RedisSession)) {
+                log.debug("Not saving session " + redisSession.getId() + "; removed from redis by another request");
+                return;
+            }
+            log.debug("Session " + redisSession.getId() + " was saved by another request; merging");
+            redisSession.rebase((RedisSession) obj);
+            expected = SessionEnvelope.version(stored);
+        }
+    }
+
+    /**
+     * Save the session whatever version is stored, with the version following it. Other requests that loaded the
+     * stored or an earlier version thus still find the session changed.
+     * 
+     * @param sessionKey
+     * @param redisSession
+     * @param payload the encoded session
+     * @param ttlMillis
+     */
+    private void overwrite(String sessionKey, RedisSession redisSession, byte[] payload, long ttlMillis) {
+        final long version = getClient().evalScript(SessionEnvelope.OVERWRITE, Collections.singletonList(sessionKey),
+            Arrays.asList(payload, ascii(ttlMillis)));
+        redisSession.setVersion(version);
+    }
+
+    /**
+     * Save the session after its versioned save failed: by the {@link SessionEnvelope#OVERWRITE} script, or if redis
+     * does not run scripts either (e.g. while the {@link CircuitBreakingSessionClient} serves sessions locally) by a
+     * plain save of the session wrapped with the version following the one it was loaded with. The circuit breaker
+     * writes such sessions back with {@link SessionEnvelope#OVERWRITE} once redis recovers.
+     * 
+     * @param sessionKey
+     * @param redisSession
+     * @param payload the encoded session
+     * @param ttlMillis
+     */
+    private void saveUnconditionally(String sessionKey, RedisSession redisSession, byte[] payload, long ttlMillis) {
+        try {
+            overwrite(sessionKey, redisSession, payload, ttlMillis);
+        } catch (RuntimeException e) {
+            log.debug("Overwriting session [" + redisSession.getId() + "] failed; saving it", e);
+            final long version = redisSession.getVersion() + 1;
+            getClient().save(sessionKey, redisSession, SessionEnvelope.wrap(version, payload));
+            redisSession.setVersion(version);
+        }
+    }
+
+    private static byte[] ascii(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Persist a session created with {@link #isLazySessionPersistence()} for the first time, provided it holds state.
+     * The session ID issued to the client is claimed atomically; in the unlikely case it was taken in the meantime the
+     * session is assigned a new ID and the session cookie is reissued if the response is not yet committed.
+     * 
+     * @param redisSession
+     * @param state
+     */
+    private void persistNewSession(RedisSession redisSession, RedisSessionState state) {
+        if (redisSession.isEmpty()) {
+            log.debug("Not persisting empty new session " + redisSession.getId());
+            return;
+        }
+        if (!isSaveableSize(redisSession)) {
+            return;
+        }
+        final String sessionId = redisSession.getId();
+        final int ttl = getSessionTtl(redisSession);
+        final String indexedPrincipal = swapIndexedPrincipal(redisSession);
+        final boolean reserved;
+        try {
+            reserved = getClient().reserve(generateRedisSessionKey(sessionId), redisSession, getStorageTtl(ttl), TimeUnit.SECONDS);
+        } catch (Throwable t) {
+            log.error("Failed to save session [" + sessionId + "]", t);
+            redisSession.setIndexedPrincipal(indexedPrincipal);
+            return;
+        }
+        state.reservationPending = false;
+        if (reserved) {
+            state.markPersisted();
+            own(redisSession);
+            trackActive(redisSession);
+            markExpiry(sessionId, ttl);
+        } else {
+            log.warn("Session ID [" + sessionId + "] was taken before the new session was persisted; assigning a new ID");
+            if (!reserveSession(redisSession, state)) {
+                redisSession.setIndexedPrincipal(indexedPrincipal);
+                return;
+            }
+            reissueSessionCookie(redisSession, state);
+        }
+        updatePrincipalIndex(redisSession, indexedPrincipal);
+        redisSession.clearDirty();
+    }
+
+    /**
+     * Send the session cookie for the new ID of the session, as {@link Request#changeSessionId(String)} would
+     * 
+     * @param redisSession
+     * @param state
+     */
+    private void reissueSessionCookie(RedisSession redisSession, RedisSessionState state) {
+        final Request request = state.request;
+        if (request == null || request.getResponse() == null || request.getResponse().isCommitted()) {
+            log.warn("Unable to send the new ID of session [" + redisSession.getId() + "] as the response is committed");
+            return;
+        }
+        if (getContext().getServletContext().getEffectiveSessionTrackingModes().contains(SessionTrackingMode.COOKIE)) {
+            request.getResponse().addSessionCookieInternal(
+                ApplicationSessionCookieConfig.createSessionCookie(getContext(), redisSession.getId(), request.isSecure()));
+        }
+    }
+
+    /**
+     * Check the encoded size of the session against {@link #getMaxSessionSize()}
+     * 
+     * @param redisSession
+     * @return <code>false</code> if the session must not be saved
+     */
+    private boolean isSaveableSize(RedisSession redisSession) {
+        if (getMaxSessionSize() != DO_NOT_CHECK) {
+            final int size = getEncodedSize(redisSession);
+            if (size > getMaxSessionSize()) {
+                if (!isAllowOversizedSessions()) {
+                    log.error("Not saving [" + redisSession.getId() + "] to redis. Size of [" + size + "] exceeds max of [" + getMaxSessionSize() + "]");
+                    return false;
+                } else {
+                    log.error("Session [" + redisSession.getId() + "] size of [" + size + "] exceeds max of [" + getMaxSessionSize() + "]; still saving");
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Extend the expiration of the session in redis without saving it
+     * 
+     * @param redisSession
+     */
+    void touch(RedisSession redisSession) {
+        if (isTimeBudgetExhausted("touch", redisSession)) {
+            return;
+        }
+        final int ttl = getSessionTtl(redisSession);
+        log.trace("Setting expire on " + redisSession.getId() + " to " + ttl);
+        getClient().expire(generateRedisSessionKey(redisSession.getId()), getStorageTtl(ttl), TimeUnit.SECONDS);
+        trackActive(redisSession);
+        markExpiry(redisSession.getId(), ttl);
+        final String indexedPrincipal = redisSession.getIndexedPrincipal();
+        final int indexTtl = getPrincipalIndexTtl();
+        if (principalIndexing && indexedPrincipal != null && indexTtl > 0) {
+            // the index must outlive every session it lists
+            getClient().expire(generateRedisPrincipalKey(indexedPrincipal), indexTtl, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Time to live in redis of a session expiring after the given time. With {@link #setExpiryEvents(boolean)} the
+     * session outlives its expiration by {@link #getExpiryGracePeriod()} so that it can still be read by the node
+     * handling the expiry.
+     * 
+     * @param ttl in minutes
+     * @return time to live in seconds
+     */
+    private long getStorageTtl(int ttl) {
+        final long seconds = TimeUnit.MINUTES.toSeconds(ttl);
+        return expiryEvents && ttl > 0 ? seconds + expiryGracePeriod : seconds;
+    }
+
+    /**
+     * With {@link #setExpiryEvents(boolean)} (re)set the shadow key whose expiration signals that of the session
+     * 
+     * @param sessionId
+     * @param ttl in minutes
+     */
+    private void markExpiry(String sessionId, int ttl) {
+        if (expiryEvents && ttl > 0) {
+            try {
+                getClient().mark(generateRedisShadowKey(sessionId), ttl, TimeUnit.MINUTES);
+            } catch (Throwable t) {
+                log.warn("Failed to set the expiry of session [" + sessionId + "]", t);
+            }
+        }
+    }
+
+    /**
+     * Notify the listeners of the given expired sessions and remove them. Each expiry is claimed in redis first, so
+     * that it is handled by a single node although every node receives the notification. Sessions are loaded in a
+     * single round trip; sessions already removed are skipped.
+     * 
+     * @param sessionIds
+     */
+    void expireSessions(List<String> sessionIds) {
+        final List<String> claimKeys = sessionIds.stream().map(id -> generateRedisAuxKey("expired", id)).collect(Collectors.toList());
+        final List<Boolean> claimed = getClient().markIfAbsent(claimKeys, expiryGracePeriod, TimeUnit.SECONDS);
+        final List<String> keys = new ArrayList<>(sessionIds.size());
+        for (int i = 0; i < sessionIds.size(); i++) {
+            if (claimed.get(i)) {
+                keys.add(generateRedisSessionKey(sessionIds.get(i)));
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<byte[]> values = getClient().loadEncoded(keys);
+        for (int i = 0; i < values.size(); i++) {
+            final RedisSession session = decodeEnumerated(keys.get(i), values.get(i));
+            if (session == null) {
+                continue;
+            }
+            log.debug("Expiring session " + session.getId());
+            try {
+                // notifies listeners and removes the session via remove(Session, boolean)
+                session.expire();
+            } catch (Throwable t) {
+                log.error("Failed to expire session [" + session.getId() + "]", t);
+            }
+        }
+    }
+
+    /**
+     * Record the name of the current principal in the session about to be written, so that it is stored along with
+     * the session. {@link RedisSession#setPrincipal(Principal)} itself does not issue any command; the index follows
+     * with {@link #updatePrincipalIndex(RedisSession, String)} once the session is written.
+     * 
+     * @param redisSession
+     * @return the name of the principal the session was listed under before
+     */
+    private String swapIndexedPrincipal(RedisSession redisSession) {
+        final String oldName = redisSession.getIndexedPrincipal();
+        // recorded without principalIndexing as well: versioned saves rebase the principal by its name
+        redisSession.setIndexedPrincipal(redisSession.getPrincipal() == null ? null : redisSession.getPrincipal().getName());
+        return oldName;
+    }
+
+    /**
+     * Move the given written session to the principal index of the principal recorded by
+     * {@link #swapIndexedPrincipal(RedisSession)}
+     * 
+     * @param redisSession
+     * @param oldName the name of the principal the session was listed under before
+     */
+    private void updatePrincipalIndex(RedisSession redisSession, String oldName) {
+        final String newName = redisSession.getIndexedPrincipal();
+        if (!principalIndexing || Objects.equals(oldName, newName)) {
+            return;
+        }
+        try {
+            if (oldName != null) {
+                getClient().removeFromSet(generateRedisPrincipalKey(oldName), Collections.singleton(redisSession.getId()));
+            }
+            if (newName != null) {
+                getClient().addToSet(generateRedisPrincipalKey(newName), redisSession.getId(), getPrincipalIndexTtl(), TimeUnit.MINUTES);
+            }
+        } catch (Throwable t) {
+            log.warn("Failed to update the principal index of session [" + redisSession.getId() + "]", t);
+        }
+    }
+
+    /**
+     * Time to live of a principal index, in minutes: the longest time to live a session of a principal may have
+     * 
+     * @return
+     */
+    private int getPrincipalIndexTtl() {
+        return extendedSessionAttribute != null && extendedSessionTimeout > 0 ? Math.max(sessionExpirationTime, extendedSessionTimeout) : sessionExpirationTime;
+    }
+
+    /**
+     * Record an access of the session for {@link #getActiveSessions()}
+     * 
+     * @param redisSession
+     */
+    private void trackActive(RedisSession redisSession) {
+        final ActiveSessionCounter counter = activeSessionCounter;
+        if (counter != null && !isTimeBudgetExhausted("count", redisSession)) {
+            try {
+                counter.track(getClient(), redisSession.getId(), System.currentTimeMillis());
+            } catch (Throwable t) {
+                log.warn("Failed to count session [" + redisSession.getId() + "] as active", t);
+            }
+        }
+    }
+
+    /**
+     * Determine whether the redis time budget of the current request is exhausted, in which case optional operations
+     * are dropped
+     * 
+     * @param operation name of the operation; used only for logging
+     * @param redisSession
+     * @return
+     */
+    private boolean isTimeBudgetExhausted(String operation, RedisSession redisSession) {
+        final RedisDeadline deadline = RedisDeadline.current();
+        if (deadline != null && deadline.isExpired()) {
+            skippedOperationCount.increment();
+            if (log.isDebugEnabled()) {
+                log.debug("Redis time budget exhausted; skipping " + operation + " of session " + redisSession.getId());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Bind a new {@link RedisDeadline} to the current thread if {@link #setRedisTimeBudgetMillis(int)} is set
+     */
+    private void startTimeBudget() {
+        RedisDeadline.bind(redisTimeBudgetMillis > 0 ? RedisDeadline.after(redisTimeBudgetMillis, TimeUnit.MILLISECONDS) : null);
+    }
+
+    /**
+     * Determine the time to live in redis of the given session from its contents:
+     * <ol>
+     * <li>{@link #setExtendedSessionTimeout(int)} if it holds {@link #setExtendedSessionAttribute(String)}</li>
+     * <li>{@link #setAnonymousSessionTimeout(int)} if it has neither a principal nor any of
+     * {@link #setPromotionAttributes(String)}</li>
+     * <li>the session timeout of the context otherwise</li>
+     * </ol>
+     * As the time to live is set on every save or touch a session moves to its new tier at the end of the request
+     * changing it.
+     * 
+     * @param redisSession
+     * @return time to live in minutes
+     */
+    int getSessionTtl(RedisSession redisSession) {
+        if (extendedSessionTimeout > 0 && extendedSessionAttribute != null && redisSession.hasAttribute(extendedSessionAttribute)) {
+            return extendedSessionTimeout;
+        }
+        if (anonymousSessionTimeout > 0 && redisSession.getPrincipal() == null) {
+            for (String attribute : promotionAttributes) {
+                if (redisSession.hasAttribute(attribute)) {
+                    return sessionExpirationTime;
+                }
+            }
+            return anonymousSessionTimeout;
+        }
+        return sessionExpirationTime;
+    }
+
+    @Override
+    public void remove(Session session, boolean update) {
+        log.debug("Removing session ID : " + session.getId());
+        final RedisSessionState state = currentSessionState.get();
+        if (state != null && state.session == session && state.memoryOnly) {
+            // created in memory only
+            state.clearSession();
+            return;
+        }
         try {
             getClient().delete(generateRedisSessionKey(session.getId()));
+            if (expiryEvents) {
+                getClient().delete(generateRedisShadowKey(session.getId()));
+            }
+            if (principalIndexing && session instanceof RedisSession && ((RedisSession) session).getIndexedPrincipal() != null) {
+                getClient().removeFromSet(generateRedisPrincipalKey(((RedisSession) session).getIndexedPrincipal()), Collections.singleton(session.getId()));
+            }
         } catch (Throwable t) {
             log.error("Failed to remove session [" + session.getId() + "]", t);
         }
+        revokeOwnership(session.getId());
+        if (state != null) {
+            state.clearSession();
+        }
+        for (RedisSessionState asyncState : asyncSessionStates) {
+            if (asyncState.session == session) {
+                asyncState.clearSession();
+            }
+        }
+    }
+
+    /**
+     * Get the {@link RedisSessionState} tracking the given session. When invoked on a thread without a request (e.g.
+     * a thread of an async request) a detached state is returned.
+     * 
+     * @param redisSession
+     * @return
+     */
+    private RedisSessionState stateOf(RedisSession redisSession) {
+        RedisSessionState state = currentSessionState.get();
+        if (state != null) {
+            if (state.session == null) {
+                state.setSession(redisSession, false);
+            }
+            return state;
+        }
+        for (RedisSessionState asyncState : asyncSessionStates) {
+            if (asyncState.session == redisSession) {
+                return asyncState;
+            }
+        }
+        state = new RedisSessionState();
+        state.setSession(redisSession, false);
+        return state;
+    }
+
+    /**
+     * Handle pre-request actions.
+     * 
+     * @param policy the {@link SessionPolicy} applying to the request
+     */
+    public void beforeRequest(SessionPolicy policy) {
+        beforeRequest(policy, null);
+    }
+
+    /**
+     * Handle pre-request actions. Invoked from {@link RedisSessionRequestValve}
+     * 
+     * @param policy the {@link SessionPolicy} applying to the request
+     * @param request the request; may be <code>null</code>
+     */
+    public void beforeRequest(SessionPolicy policy, Request request) {
+        final RedisSessionState state = requestState();
+        state.policy = policy;
+        state.request = request;
+        currentSessionState.set(state);
+        startTimeBudget();
+    }
+
+    /**
+     * Get the state to track the session of a request started on the current thread: the state of the thread, unless
+     * still bound to another request, e.g. one started by the same thread and not yet completed
+     * 
+     * @return
+     */
+    private RedisSessionState requestState() {
+        RedisSessionState state = threadSessionState.get();
+        if (state == null) {
+            state = new RedisSessionState();
+            threadSessionState.set(state);
+        } else if (state == currentSessionState.get()) {
+            return new RedisSessionState();
+        }
+        return state;
+    }
+
+    /**
+     * Detach the state of the current request from the current thread as the request has entered async mode. Until
+     * {@link #resumeRequest(RedisSessionState)} or {@link #completeRequest(RedisSessionState)} the session of the request
+     * is available to any thread. Invoked from {@link RedisSessionRequestValve}
+     * 
+     * @param requestedSessionId the session ID requested by the client; may be <code>null</code>
+     * @return the detached state
+     */
+    public RedisSessionState suspendRequest(String requestedSessionId) {
+        RedisSessionState state = currentSessionState.get();
         currentSessionState.remove();
+        RedisDeadline.bind(null);
+        if (state == null) {
+            state = new RedisSessionState();
+        } else if (threadSessionState.get() == state) {
+            // held by the async listener from now on; the thread may handle other requests meanwhile
+            threadSessionState.remove();
+        }
+        state.requestedSessionId = requestedSessionId;
+        if (requestedSessionId != null || state.sessionId != null) {
+            asyncSessionStates.add(state);
+        }
+        log.trace("Suspended request: " + state);
+        return state;
+    }
+
+    /**
+     * Bind a state detached by {@link #suspendRequest(String)} to the current thread as the async request has been
+     * dispatched back to the container. Invoked from {@link RedisSessionRequestValve}
+     * 
+     * @param state
+     */
+    public void resumeRequest(RedisSessionState state) {
+        unregisterAsync(state);
+        currentSessionState.set(state);
+        startTimeBudget();
+    }
+
+    /**
+     * Perform post-request actions for a state detached by {@link #suspendRequest(String)} as the async request has
+     * completed. Invoked from {@link RedisSessionRequestValve}
+     * 
+     * @param state
+     */
+    public void completeRequest(RedisSessionState state) {
+        unregisterAsync(state);
+        final RedisSessionState previous = currentSessionState.get();
+        final RedisDeadline previousDeadline = RedisDeadline.current();
+        currentSessionState.set(state);
+        startTimeBudget();
+        try {
+            afterRequest(state.policy);
+        } finally {
+            if (previous != null) {
+                currentSessionState.set(previous);
+            }
+            RedisDeadline.bind(previousDeadline);
+        }
+    }
+
+    /**
+     * With {@link #setRequestMetrics(boolean)} the metrics of the request handled by the current thread
+     * 
+     * @return <code>null</code> if not recorded
+     */
+    RequestMetrics currentMetrics() {
+        if (!requestMetrics) {
+            return null;
+        }
+        final RedisSessionState state = currentSessionState.get();
+        return state == null ? null : state.metrics();
+    }
+
+    private void unregisterAsync(RedisSessionState state) {
+        asyncSessionStates.remove(state);
+    }
+
+    /**
+     * Get the state of a request in async mode for a lookup of the given session by a thread without a request. The
+     * lookup does not tell which request it is made for: a state already holding the session is preferred over one of
+     * a request for the session that has not loaded it yet.
+     * 
+     * @param sessionId
+     * @return <code>null</code> if no request in async mode uses the session
+     */
+    private RedisSessionState asyncStateOf(String sessionId) {
+        RedisSessionState requesting = null;
+        for (RedisSessionState state : asyncSessionStates) {
+            if (sessionId.equals(state.sessionId)) {
+                return state;
+            }
+            if (requesting == null && state.session == null && sessionId.equals(state.requestedSessionId)) {
+                requesting = state;
+            }
+        }
+        return requesting;
+    }
+
+    /**
+     * Handle post-request actions for the request handled by the current thread
+     * 
+     * @param policy the {@link SessionPolicy} applying to the request
+     */
+    public void afterRequest(SessionPolicy policy) {
+        afterRequest(policy, null);
+    }
+
+    /**
+     * Handle post-request actions. Invoked from {@link RedisSessionRequestValve}
+     * 
+     * @param policy the {@link SessionPolicy} applying to the request
+     * @param request the request handled by the current thread, receiving its {@link RequestMetrics}; may be
+     *        <code>null</code> for the one given to {@link #beforeRequest(SessionPolicy, Request)}
+     */
+    public void afterRequest(SessionPolicy policy, Request request) {
+        final RedisSessionState state = currentSessionState.get();
+        try {
+            RedisSession session = state == null ? null : state.session;
+            if (log.isTraceEnabled()) {
+                log.trace("afterRequest for " + (session == null ? "null" : session.getId()) + "; policy: " + policy);
+            }
+            if (session != null) {
+                if (session.isValid()) {
+                    if (policy.isSave()) {
+                        log.trace("Request with session completed, saving session " + session.getId());
+                        save(session, isForceSaveAfterRequest());
+                    } else if (policy.isTouch()) {
+                        if (session.isDirty()) {
+                            log.debug("Discarding changes to session " + session.getId() + " under policy " + policy);
+                        }
+                        if (!state.reservationPending && !state.memoryOnly) {
+                            touch(session);
+                        }
+                    } else {
+                        log.trace("Not saving or touching session " + session.getId() + " under policy " + policy);
+                    }
+                } else {
+                    log.debug("HTTP Session has been invalidated, removing :" + session.getId());
+                    remove(session);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error storing/removing session", e);
+        } finally {
+            if (state != null) {
+                final Request metricsRequest = request == null ? state.request : request;
+                if (requestMetrics && state.metrics != null && metricsRequest != null) {
+                    state.metrics.publish(metricsRequest);
+                }
+                // reused by the next request of the thread; must not retain the session
+                state.reset();
+            }
+            currentSessionState.remove();
+            RedisDeadline.bind(null);
+        }
+    }
+
+    @Override
+    public void processExpires() {
+        // Redis will handle expiration
+    }
+
+    @Override
+    public void backgroundProcess() {
+        super.backgroundProcess();
+        refreshActiveSessions();
+    }
+
+    /**
+     * Refresh the cluster-wide count returned by {@link #getActiveSessions()}
+     */
+    void refreshActiveSessions() {
+        final ActiveSessionCounter counter = activeSessionCounter;
+        if (counter == null) {
+            return;
+        }
+        try {
+            final int count = (int) Math.min(Integer.MAX_VALUE, counter.count(getClient(), System.currentTimeMillis()));
+            clusterActiveSessions = count;
+            if (count > maxActive) {
+                maxActive = count;
+            }
+        } catch (Throwable t) {
+            log.warn("Failed to count active sessions", t);
+        }
+    }
+
+    /**
+     * With {@link #setActiveSessionCounting(boolean)} the estimated number of distinct sessions accessed across the
+     * cluster within the session timeout, as of the last background process run; otherwise <code>0</code> as sessions
+     * are not held locally.
+     */
+    @Override
+    public int getActiveSessions() {
+        return activeSessionCounter == null ? super.getActiveSessions() : clusterActiveSessions;
+    }
+
+    /**
+     * Sessions stored in redis, up to {@link #getMaxEnumeratedSessions()}. Sessions are loaded in batches of
+     * {@link #getSessionEnumerationBatchSize()} as they are found by <code>SCAN</code>; the result is a snapshot and the
+     * sessions are not bound to any request, so changes to them are not saved.
+     */
+    @Override
+    public Session[] findSessions() {
+        try (Stream<RedisSession> sessions = streamSessions()) {
+            final List<Session> found = sessions.limit(maxEnumeratedSessions + 1L).collect(Collectors.toList());
+            if (found.size() > maxEnumeratedSessions) {
+                log.warn("More than " + maxEnumeratedSessions + " sessions in redis; only the first " + maxEnumeratedSessions + " are returned");
+                found.remove(maxEnumeratedSessions);
+            }
+            return found.toArray(new Session[0]);
+        }
+    }
+
+    /**
+     * IDs of the sessions stored in redis, up to {@link #getMaxEnumeratedSessions()}, separated by spaces. Only keys
+     * are scanned; no session is loaded.
+     */
+    @Override
+    public String listSessionIds() {
+        try (Stream<String> keys = scanSessionKeys().flatMap(List::stream)) {
+            return keys.limit(maxEnumeratedSessions).map(k -> k.substring(sessionKeyPrefix.length())).collect(Collectors.joining(" "));
+        }
+    }
+
+    /**
+     * Lazily enumerate the sessions stored in redis. Keys are found incrementally with <code>SCAN</code> and each batch
+     * is loaded in a single round trip, so neither redis nor the heap has to hold every session at once. Sessions
+     * deleted while enumerating and values that cannot be decoded are skipped. The stream should be closed if it is
+     * not fully consumed.
+     * 
+     * @return a lazy stream of sessions; not bound to any request
+     */
+    public Stream<RedisSession> streamSessions() {
+        return scanSessionKeys().flatMap(keys -> {
+            final List<byte[]> values = getClient().loadEncoded(keys);
+            final List<RedisSession> sessions = new ArrayList<>(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                final RedisSession session = decodeEnumerated(keys.get(i), values.get(i));
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+            return sessions.stream();
+        });
+    }
+
+    /**
+     * Batches of session keys, excluding auxiliary keys
+     * 
+     * @return
+     */
+    private Stream<List<String>> scanSessionKeys() {
+        final String auxKeyPrefix = sessionKeyPrefix + ":"; // see generateRedisAuxKey
+        return getClient().scanKeys(escapeGlob(sessionKeyPrefix) + "*", sessionEnumerationBatchSize)
+            .map(keys -> keys.stream().filter(k -> !k.startsWith(auxKeyPrefix)).collect(Collectors.toList()))
+            .filter(keys -> !keys.isEmpty());
+    }
+
+    private RedisSession decodeEnumerated(String sessionKey, byte[] encoded) {
+        if (encoded == null) {
+            return null; // deleted or expired since the scan
+        }
+        final Object obj;
+        try {
+            obj = getClient().decode(SessionEnvelope.payload(encoded));
+        } catch (RuntimeException e) {
+            log.debug("Failed to decode [" + sessionKey + "] while enumerating sessions", e);
+            return null;
+        }
+        if (!(obj instanceof RedisSession)) {
+            log.debug("Skipping [" + sessionKey + "] while enumerating sessions: " + (obj == null ? null : obj.getClass()));
+            return null;
+        }
+        final RedisSession session = (RedisSession) obj;
+        session.setVersion(SessionEnvelope.version(encoded));
+        if (sessionKey.startsWith(sessionKeyPrefix)) {
+            session.setId(sessionKey.substring(sessionKeyPrefix.length()));
+        }
+        session.postDeserialization(this);
+        session.setNew(false);
+        return session;
+    }
+
+    /**
+     * Escape the redis glob-style special characters of the given literal, e.g. to match all keys under a prefix
+     * with <code>SCAN</code>
+     * 
+     * @param literal
+     * @return
+     */
+    public static String escapeGlob(String literal) {
+        final StringBuilder escaped = new StringBuilder(literal.length());
+        for (char c : literal.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Sessions of the given principal, found via the principal index in a single round trip plus one to load them.
+     * Index entries of sessions that have since expired are removed. Requires {@link #setPrincipalIndexing(boolean)}.
+     * 
+     * @param principalName
+     * @return the sessions; not bound to any request
+     */
+    public List<RedisSession> findSessionsByPrincipal(String principalName) {
+        final String indexKey = generateRedisPrincipalKey(requirePrincipalIndexing(principalName));
+        final List<String> keys = getClient().getSetMembers(indexKey).stream().map(this::generateRedisSessionKey).collect(Collectors.toList());
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<byte[]> values = getClient().loadEncoded(keys);
+        final List<RedisSession> sessions = new ArrayList<>(values.size());
+        final List<String> expired = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) == null) {
+                expired.add(keys.get(i).substring(sessionKeyPrefix.length()));
+                continue;
+            }
+            final RedisSession session = decodeEnumerated(keys.get(i), values.get(i));
+            if (session != null) {
+                sessions.add(session);
+            }
+        }
+        if (!expired.isEmpty()) {
+            getClient().removeFromSet(indexKey, expired);
+        }
+        return sessions;
+    }
+
+    /**
+     * IDs of the sessions of the given principal, separated by spaces. Requires {@link #setPrincipalIndexing(boolean)}.
+     * 
+     * @param principalName
+     * @return
+     */
+    public String listSessionIdsByPrincipal(String principalName) {
+        return findSessionsByPrincipal(principalName).stream().map(Session::getId).collect(Collectors.joining(" "));
+    }
+
+    /**
+     * Delete all sessions of the given principal, e.g. to force a logout, with a single multi-key <code>DEL</code>. The
+     * sessions are removed from redis without being loaded, so session listeners are not notified. Requires
+     * {@link #setPrincipalIndexing(boolean)}.
+     * 
+     * @param principalName
+     * @return the number of indexed sessions deleted
+     */
+    public int invalidateSessionsByPrincipal(String principalName) {
+        final String indexKey = generateRedisPrincipalKey(requirePrincipalIndexing(principalName));
+        final Set<String> ids = getClient().getSetMembers(indexKey);
+        final List<String> keys = new ArrayList<>(2 * ids.size() + 1);
+        for (String id : ids) {
+            keys.add(generateRedisSessionKey(id));
+            if (expiryEvents) {
+                // would otherwise still expire and notify the listeners of a session that is gone
+                keys.add(generateRedisShadowKey(id));
+            }
+        }
+        keys.add(indexKey);
+        getClient().delete(keys);
+        ids.forEach(this::revokeOwnership);
+        final RedisSessionState state = currentSessionState.get();
+        if (state != null && state.sessionId != null && ids.contains(state.sessionId)) {
+            // must not be saved again at the end of the current request
+            state.clearSession();
+        }
+        log.info("Invalidated " + ids.size() + " sessions of principal [" + principalName + "]");
+        return ids.size();
+    }
+
+    private String requirePrincipalIndexing(String principalName) {
+        if (!principalIndexing) {
+            throw new IllegalStateException("principalIndexing is not enabled");
+        }
+        if (principalName == null) {
+            throw new IllegalArgumentException("principalName must not be null");
+        }
+        return principalName;
+    }
+
+    /**
+     * Define the prefix for all redis keys.<br>
+     * Defaults to {@value #DEFAULT_SESSION_KEY_PREFIX}
+     * 
+     * @param sessionKeyPrefix
+     */
+    public void setSessionKeyPrefix(String sessionKeyPrefix) {
+        this.sessionKeyPrefix = sessionKeyPrefix;
+    }
+
+    /**
+     * If <code>true</code> the session will be persisted to redis immediately when any attribute is modified.<br>
+     * Default is <code>false</code> which persists a modified session when the request is complete.
+     * 
+     * @param saveOnChange
+     */
+    public void setSaveOnChange(boolean saveOnChange) {
+        this.saveOnChange = saveOnChange;
+    }
+
+    /**
+     * If <code>true</code> the session will always be persisted to redis after a request completes regardless of {@link RedisSession#isDirty()}.<br>
+     * Default is <code>false</code> which persists a session after a request only if {@link RedisSession#isDirty()} is <code>true</code>
+     * 
+     * @param forceSaveAfterRequest
+     */
+    public void setForceSaveAfterRequest(boolean forceSaveAfterRequest) {
+        this.forceSaveAfterRequest = forceSaveAfterRequest;
+    }
+
+    /**
+     * If <code>true</true> the session will be marked as dirty on any mutation. When <code>false</code> the attribute is
+     * checked for equality against the old value and the session is marked as dirty only if they differ.<br>
+     * When <code>false</code> the following code would <em>not</em> mark the session as dirty:
+     * <br>
+     * 
+     * <pre>
+     * List<String> stringList = (List<String>) session.getAttribute("myList");
+     * stringList.add("another value");
+     * session.setAttribute("myList", stringList);
+     * </pre>
+     * 
+     * <br>
+     * Because the list is mutated, the 'old' value is identical to the 'new' value when equality is checked. It is a better
+     * design to ensure session objects are immutable, but setting <code>dirtyOnMutation</code> to <code>true</code> will
+     * workaround this with minimal overhead.
+     * 
+     * @param dirtyOnMutation
+     */
+    public void setDirtyOnMutation(boolean dirtyOnMutation) {
+        this.dirtyOnMutation = dirtyOnMutation;
+    }
+
+    /**
+     * Set a pattern (must adhere to {@link Pattern} specs) for requests to ignore.
+     * This pattern is matched <em>case-insensitive</em> against {@link Request#getRequestURI()}; matching requests are
+     * given {@link SessionPolicy#NO_SESSION_WORK}. Unless {@link #setSessionPolicyRules(String)} is also specified, setting
+     * this replaces the default rules.
+     * 
+     * @param ignorePattern
+     * @deprecated use {@link #setSessionPolicyRules(String)} which avoids evaluating a regular expression for each request
+     */
+    @Deprecated
+    public void setIgnorePattern(String ignorePattern) {
+        this.ignorePattern = ignorePattern;
+    }
+
+    /**
+     * Define the rules determining the {@link SessionPolicy} of each request. See {@link SessionPolicyRules} for the syntax.<br>
+     * Defaults to {@value SessionPolicyRules#DEFAULT_RULES}
+     * 
+     * @param sessionPolicyRules
+     */
+    public void setSessionPolicyRules(String sessionPolicyRules) {
+        this.sessionPolicyRules = sessionPolicyRules;
+    }
+
+    /**
+     * May the session be saved during its current request according to the {@link SessionPolicy}
+     * 
+     * @param redisSession
+     * @return
+     */
+    boolean isSaveAllowed(RedisSession redisSession) {
+        return stateOf(redisSession).policy.isSave();
+    }
+
+    /**
+     * Set a maximum size, in bytes, of each attribute within a session. If an attribute exceeds this size
+     * it will not be stored in the session.<br>
+     * Performance note: values will be encoded twice, once for size checking and once for actual storage.
+     * 
+     * @param maxSessionAttributeSize
+     */
+    public void setMaxSessionAttributeSize(int maxSessionAttributeSize) {
+        this.maxSessionAttributeSize = maxSessionAttributeSize;
+    }
+
+    int getMaxSessionAttributeSize() {
+        return maxSessionAttributeSize;
+    }
+
+    /**
+     * Set a maximum size, in bytes, of the entire serialized session in redis. If the session exceeds this size
+     * it will not be saved to redis.<br>
+     * Performance note: sessions will be encoded twice, once for size checking and once for actual storage.
+     * 
+     * @param maxSessionSize
+     */
+    public void setMaxSessionSize(int maxSessionSize) {
+        this.maxSessionSize = maxSessionSize;
+    }
+
+    int getMaxSessionSize() {
+        return maxSessionSize;
+    }
+
+    /**
+     * When {@link #setMaxSessionAttributeSize(int)} or {@link #setMaxSessionSize(int)} is used, the default
+     * behavior is to prevent sessions with attributes or total size exceeding the configured value.
+     * If {@link #allowOversizedSessions} is <code>true</code> then these exceptional attrs/sessions will
+     * only be logged and will still be saved to redis.
+     * 
+     * @param allowAndLogSessionSizeErrors
+     */
+    public void setAllowOversizedSessions(boolean allowAndLogSessionSizeErrors) {
+        this.allowOversizedSessions = allowAndLogSessionSizeErrors;
+    }
+
+    boolean isAllowOversizedSessions() {
+        return allowOversizedSessions;
+    }
+
+    /**
+     * If <code>true</code> concurrent loads of the same session (e.g. parallel XHR requests of a single page) share
+     * one read from redis. Each request still receives its own deserialized copy of the session, but may miss a save
+     * completed while the shared read was in flight.<br>
+     * Defaults to <code>false</code>
+     * 
+     * @param coalesceLoads
+     */
+    public void setCoalesceLoads(boolean coalesceLoads) {
+        this.coalesceLoads = coalesceLoads;
+    }
+
+    public boolean isCoalesceLoads() {
+        return coalesceLoads;
+    }
+
+    /**
+     * Number of session reads issued to redis
+     * 
+     * @return
+     */
+    public long getSessionLoadCount() {
+        return sessionLoadCount.sum();
+    }
+
+    /**
+     * Number of session loads satisfied by sharing a concurrent read for the same session
+     * 
+     * @return
+     */
+    public long getCoalescedSessionLoadCount() {
+        return sessionLoads.getCoalescedCount();
+    }
+
+    /**
+     * If <code>true</code> new sessions are not written to redis when created but at the end of the request, and only
+     * if they hold attributes or a principal by then. Avoids storing the empty sessions created by crawlers, health
+     * checks etc.<br>
+     * Defaults to <code>false</code>
+     * 
+     * @param lazySessionPersistence
+     */
+    public void setLazySessionPersistence(boolean lazySessionPersistence) {
+        this.lazySessionPersistence = lazySessionPersistence;
+    }
+
+    public boolean isLazySessionPersistence() {
+        return lazySessionPersistence;
+    }
+
+    /**
+     * Time to live, in minutes, of sessions without a principal and without any of the
+     * {@link #setPromotionAttributes(String) promotion attributes}. Such sessions get the session timeout of the
+     * context once they are authenticated or one of the attributes is set.<br>
+     * Defaults to <code>-1</code>; <code>0</code> or less applies the session timeout of the context to all sessions
+     * 
+     * @param anonymousSessionTimeout
+     */
+    public void setAnonymousSessionTimeout(int anonymousSessionTimeout) {
+        this.anonymousSessionTimeout = anonymousSessionTimeout;
+    }
+
+    public int getAnonymousSessionTimeout() {
+        return anonymousSessionTimeout;
+    }
+
+    /**
+     * Comma-separated names of attributes promoting a session from {@link #setAnonymousSessionTimeout(int)} to the
+     * session timeout of the context, e.g. a shopping cart
+     * 
+     * @param promotionAttributes
+     */
+    public void setPromotionAttributes(String promotionAttributes) {
+        if (promotionAttributes == null || promotionAttributes.trim().isEmpty()) {
+            this.promotionAttributes = new String[0];
+        } else {
+            this.promotionAttributes = promotionAttributes.trim().split("\\s*,\\s*");
+        }
+    }
+
+    public String getPromotionAttributes() {
+        return String.join(",", promotionAttributes);
+    }
+
+    /**
+     * Name of the attribute placing a session in the extended tier, e.g. for "remember me" logins
+     * 
+     * @param extendedSessionAttribute
+     * @see #setExtendedSessionTimeout(int)
+     */
+    public void setExtendedSessionAttribute(String extendedSessionAttribute) {
+        this.extendedSessionAttribute = extendedSessionAttribute;
+    }
+
+    public String getExtendedSessionAttribute() {
+        return extendedSessionAttribute;
+    }
+
+    /**
+     * Time to live, in minutes, of sessions holding {@link #setExtendedSessionAttribute(String)}.<br>
+     * Defaults to <code>-1</code>; <code>0</code> or less disables the extended tier
+     * 
+     * @param extendedSessionTimeout
+     */
+    public void setExtendedSessionTimeout(int extendedSessionTimeout) {
+        this.extendedSessionTimeout = extendedSessionTimeout;
+    }
+
+    public int getExtendedSessionTimeout() {
+        return extendedSessionTimeout;
+    }
+
+    /**
+     * Profile the encoded size of one in every <code>attributeProfileSampleInterval</code> attribute writes, i.e. of
+     * attributes set on a session and of the attributes of sessions saved to redis. The attributes contributing the
+     * most bytes are available from {@link #getAttributeProfile()}.<br>
+     * Each sample encodes the attribute once more. Defaults to <code>0</code>, which disables profiling
+     * 
+     * @param attributeProfileSampleInterval
+     */
+    public void setAttributeProfileSampleInterval(int attributeProfileSampleInterval) {
+        this.attributeProfileSampleInterval = attributeProfileSampleInterval;
+    }
+
+    public int getAttributeProfileSampleInterval() {
+        return attributeProfileSampleInterval;
+    }
+
+    /**
+     * Number of distinct attribute name and value class pairs tracked by the profiler. Pairs contributing fewer bytes
+     * than the smallest tracked pair are not reported. Defaults to <code>100</code>
+     * 
+     * @param attributeProfileCapacity
+     */
+    public void setAttributeProfileCapacity(int attributeProfileCapacity) {
+        this.attributeProfiler = new AttributeSizeProfiler(attributeProfileCapacity);
+    }
+
+    /**
+     * Number of entries reported by {@link #getAttributeProfile()}. Defaults to <code>20</code>
+     * 
+     * @param attributeProfileTop
+     */
+    public void setAttributeProfileTop(int attributeProfileTop) {
+        this.attributeProfileTop = attributeProfileTop;
+    }
+
+    public int getAttributeProfileTop() {
+        return attributeProfileTop;
+    }
+
+    /**
+     * The sampled attributes contributing the most bytes, one line per attribute name and value class:
+     * estimated bytes, error bound of the estimate, sampled sets and writes, approximate p50/p99 and max size in bytes
+     * 
+     * @return
+     */
+    public String[] getAttributeProfile() {
+        final AttributeSizeProfiler profiler = attributeProfiler;
+        final List<AttributeSizeProfiler.Entry> top = profiler.top(attributeProfileTop);
+        final long interval = Math.max(1, attributeProfileSampleInterval);
+        final String[] lines = new String[top.size() + 1];
+        lines[0] = "estBytes errBytes sets writes p50 p99 max name class (" + profiler.getSampleCount() + " samples; 1 in " + interval + ")";
+        for (int i = 0; i < top.size(); i++) {
+            final AttributeSizeProfiler.Entry e = top.get(i);
+            lines[i + 1] = (e.weight * interval) + " " + (e.error * interval) + " " + e.sets + " " + e.writes + " "
+                + e.percentile(0.5) + " " + e.percentile(0.99) + " " + e.max + " " + e.name + " " + e.className;
+        }
+        return lines;
+    }
+
+    /**
+     * Discard all samples of the attribute profiler
+     */
+    public void resetAttributeProfile() {
+        attributeProfiler.reset();
+    }
+
+    /**
+     * Should the size of the attribute about to be set or written be profiled
+     * 
+     * @return
+     */
+    boolean sampleAttributeSize() {
+        final int interval = attributeProfileSampleInterval;
+        return interval == 1 || (interval > 1 && ThreadLocalRandom.current().nextInt(interval) == 0);
+    }
+
+    void profileAttribute(String name, Object value, int size, boolean write) {
+        attributeProfiler.record(name, value, size, write);
+    }
+
+    /**
+     * If <code>true</code> every node adds each session it accesses to a redis HyperLogLog per time bucket, once per
+     * bucket, and {@link #getActiveSessions()} reports the estimated number of distinct sessions accessed across the
+     * cluster within the session timeout. The count is refreshed by the background process of the container; the
+     * estimate has a standard error of 0.81% and still includes sessions invalidated within the window.<br>
+     * Defaults to <code>false</code>
+     * 
+     * @param activeSessionCounting
+     */
+    public void setActiveSessionCounting(boolean activeSessionCounting) {
+        this.activeSessionCounting = activeSessionCounting;
+    }
+
+    public boolean isActiveSessionCounting() {
+        return activeSessionCounting;
+    }
+
+    /**
+     * Length in minutes of the time buckets used by {@link #setActiveSessionCounting(boolean)}. Shorter buckets track
+     * the session timeout more closely at the cost of more redis writes. Defaults to <code>5</code>
+     * 
+     * @param activeSessionBucketMinutes
+     */
+    public void setActiveSessionBucketMinutes(int activeSessionBucketMinutes) {
+        this.activeSessionBucketMinutes = activeSessionBucketMinutes;
+    }
+
+    public int getActiveSessionBucketMinutes() {
+        return activeSessionBucketMinutes;
+    }
+
+    /**
+     * Number of keys requested per <code>SCAN</code> round trip, and loaded per batch, when enumerating sessions for
+     * {@link #findSessions()} and {@link #listSessionIds()}. Defaults to <code>100</code>
+     * 
+     * @param sessionEnumerationBatchSize
+     */
+    public void setSessionEnumerationBatchSize(int sessionEnumerationBatchSize) {
+        if (sessionEnumerationBatchSize < 1) {
+            throw new IllegalArgumentException("sessionEnumerationBatchSize must be positive");
+        }
+        this.sessionEnumerationBatchSize = sessionEnumerationBatchSize;
+    }
+
+    public int getSessionEnumerationBatchSize() {
+        return sessionEnumerationBatchSize;
+    }
+
+    /**
+     * Maximum number of sessions returned by {@link #findSessions()} and {@link #listSessionIds()}, bounding the heap
+     * and time used when enumerating a large store. Defaults to <code>1000</code>
+     * 
+     * @param maxEnumeratedSessions
+     */
+    public void setMaxEnumeratedSessions(int maxEnumeratedSessions) {
+        this.maxEnumeratedSessions = maxEnumeratedSessions;
+    }
+
+    public int getMaxEnumeratedSessions() {
+        return maxEnumeratedSessions;
+    }
+
+    /**
+     * If <code>true</code> redis holds an index from each principal name to the IDs of its sessions, enabling
+     * {@link #findSessionsByPrincipal(String)}, {@link #listSessionIdsByPrincipal(String)} and
+     * {@link #invalidateSessionsByPrincipal(String)} without scanning the keyspace. The index is updated when a session
+     * is saved with a new principal, when the session ID changes and when the session is removed; its expiration is
+     * extended along with that of the sessions. Entries of sessions that expired are dropped when the index is read.
+     * Defaults to <code>false</code>
+     * 
+     * @param principalIndexing
+     */
+    public void setPrincipalIndexing(boolean principalIndexing) {
+        this.principalIndexing = principalIndexing;
+    }
+
+    public boolean isPrincipalIndexing() {
+        return principalIndexing;
+    }
+
+    /**
+     * If <code>true</code> listeners are notified of sessions expiring in redis (<code>sessionDestroyed</code> of
+     * <code>HttpSessionListener</code>s, <code>valueUnbound</code> of <code>HttpSessionBindingListener</code>
+     * attributes). A shadow key expires along with each session while the session itself is kept for
+     * {@link #getExpiryGracePeriod()} longer. Every node subscribes to expired events; the first node to claim an expiry
+     * loads the session, notifies the listeners and removes the session. Requires the redis server to publish expired
+     * events (<code>notify-keyspace-events Ex</code>) and costs one more write per request. Defaults to
+     * <code>false</code>
+     * 
+     * @param expiryEvents
+     */
+    public void setExpiryEvents(boolean expiryEvents) {
+        this.expiryEvents = expiryEvents;
+    }
+
+    public boolean isExpiryEvents() {
+        return expiryEvents;
+    }
+
+    /**
+     * Time in seconds an expired session is kept in redis for its expiry to be handled with
+     * {@link #setExpiryEvents(boolean)}. Defaults to <code>60</code>
+     * 
+     * @param expiryGracePeriod
+     */
+    public void setExpiryGracePeriod(int expiryGracePeriod) {
+        this.expiryGracePeriod = expiryGracePeriod;
+    }
+
+    public int getExpiryGracePeriod() {
+        return expiryGracePeriod;
+    }
+
+    /**
+     * Number of threads notifying listeners of expired sessions. Defaults to <code>1</code>
+     * 
+     * @param expiryThreads
+     */
+    public void setExpiryThreads(int expiryThreads) {
+        this.expiryThreads = expiryThreads;
+    }
+
+    public int getExpiryThreads() {
+        return expiryThreads;
+    }
+
+    /**
+     * Maximum number of expired sessions loaded in one round trip. Defaults to <code>100</code>
+     * 
+     * @param expiryBatchSize
+     */
+    public void setExpiryBatchSize(int expiryBatchSize) {
+        this.expiryBatchSize = expiryBatchSize;
+    }
+
+    public int getExpiryBatchSize() {
+        return expiryBatchSize;
+    }
+
+    /**
+     * Maximum number of expired sessions waiting to be handled; further expiries are dropped by this node (and left to
+     * the other nodes). Defaults to <code>10000</code>
+     * 
+     * @param expiryQueueCapacity
+     */
+    public void setExpiryQueueCapacity(int expiryQueueCapacity) {
+        this.expiryQueueCapacity = expiryQueueCapacity;
+    }
+
+    public int getExpiryQueueCapacity() {
+        return expiryQueueCapacity;
+    }
+
+    /**
+     * Number of expiry notifications handled by this node, including those claimed by other nodes
+     * 
+     * @return
+     */
+    public long getExpiryNotificationCount() {
+        final SessionExpiryDispatcher dispatcher = expiryDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getDispatched();
+    }
+
+    /**
+     * Number of expiry notifications dropped by this node as its queue was full
+     * 
+     * @return
+     */
+    public long getDroppedExpiryNotificationCount() {
+        final SessionExpiryDispatcher dispatcher = expiryDispatcher;
+        return dispatcher == null ? 0 : dispatcher.getDropped();
+    }
+
+    /**
+     * If <code>true</code> the manager stops waiting for redis after {@link #getCircuitBreakerFailureThreshold()}
+     * consecutive redis operations failed or took longer than {@link #getCircuitBreakerSlowCallMillis()}. Sessions are
+     * then saved to, created in and loaded from a bounded store in heap; every {@link #getCircuitBreakerOpenMillis()} a
+     * single operation probes redis, and once redis responds again the sessions saved locally are written back to it.
+     * Sessions only in redis are not available while it is down, and local copies overwrite changes made on other
+     * nodes in the meantime. Defaults to <code>false</code>
+     * 
+     * @param circuitBreaking
+     */
+    public void setCircuitBreaking(boolean circuitBreaking) {
+        this.circuitBreaking = circuitBreaking;
+    }
+
+    public boolean isCircuitBreaking() {
+        return circuitBreaking;
+    }
+
+    /**
+     * Number of consecutive failed or slow redis operations after which sessions are served locally. Defaults to
+     * <code>5</code>
+     * 
+     * @param circuitBreakerFailureThreshold
+     */
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Redis operations taking longer than this many milliseconds count as failed. Defaults to <code>1000</code>
+     * 
+     * @param circuitBreakerSlowCallMillis
+     */
+    public void setCircuitBreakerSlowCallMillis(int circuitBreakerSlowCallMillis) {
+        this.circuitBreakerSlowCallMillis = circuitBreakerSlowCallMillis;
+    }
+
+    public int getCircuitBreakerSlowCallMillis() {
+        return circuitBreakerSlowCallMillis;
+    }
+
+    /**
+     * Milliseconds between probes of redis while sessions are served locally. Defaults to <code>5000</code>
+     * 
+     * @param circuitBreakerOpenMillis
+     */
+    public void setCircuitBreakerOpenMillis(int circuitBreakerOpenMillis) {
+        this.circuitBreakerOpenMillis = circuitBreakerOpenMillis;
+    }
+
+    public int getCircuitBreakerOpenMillis() {
+        return circuitBreakerOpenMillis;
+    }
+
+    /**
+     * Maximum number of sessions held in heap while redis is unavailable; the least recently used are dropped.
+     * Defaults to <code>10000</code>
+     * 
+     * @param localSessionCapacity
+     */
+    public void setLocalSessionCapacity(int localSessionCapacity) {
+        this.localSessionCapacity = localSessionCapacity;
+    }
+
+    public int getLocalSessionCapacity() {
+        return localSessionCapacity;
+    }
+
+    /**
+     * State of the circuit breaker: <code>CLOSED</code> (using redis), <code>OPEN</code> (serving sessions locally),
+     * <code>HALF_OPEN</code> (probing redis) or <code>DISABLED</code>
+     * 
+     * @return
+     */
+    public String getCircuitBreakerState() {
+        final CircuitBreakingSessionClient breaker = circuitBreaker;
+        return breaker == null ? "DISABLED" : breaker.getState().name();
+    }
+
+    /**
+     * Number of times sessions started to be served locally
+     * 
+     * @return
+     */
+    public long getCircuitBreakerTrips() {
+        final CircuitBreakingSessionClient breaker = circuitBreaker;
+        return breaker == null ? 0 : breaker.getTrips();
+    }
+
+    /**
+     * Number of sessions held locally that are yet to be written back to redis
+     * 
+     * @return
+     */
+    public int getLocalSessionCount() {
+        final CircuitBreakingSessionClient breaker = circuitBreaker;
+        return breaker == null ? 0 : breaker.getLocalSessionCount();
+    }
+
+    /**
+     * If <code>true</code> a session load that has not completed within the hedge delay is raced by a second read,
+     * from a replica where the client is configured with several nodes, otherwise over another connection. The first
+     * answer is used and the other read cancelled. This trims the latency tail caused by a single slow node (e.g.
+     * while it forks for persistence) at the cost of some additional reads. Defaults to <code>false</code>
+     * 
+     * @param hedgedReads
+     */
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    public boolean isHedgedReads() {
+        return hedgedReads;
     }
 
     /**
-     * Handle post-request actions. Invoked from {@link RedisSessionRequestValve}
+     * Fixed delay in milliseconds after which a session load is hedged. Defaults to <code>0</code>, which hedges loads
+     * taking longer than {@link #getHedgePercentile()} of recent loads
+     * 
+     * @param hedgeDelayMillis
      */
-    public void afterRequest(boolean requestProcessed) {
-        try {
-            RedisSession session = currentSessionState.get().session;
-            if (log.isTraceEnabled()) {
-                log.trace("afterRequest for " + (session == null ? "null" : session.getId()) + "; processed: " + requestProcessed);
-            }
-            if (session != null) {
-                if (session.isValid()) {
-                    log.trace("Request with session completed, saving session " + session.getId());
-                    save(session, isForceSaveAfterRequest());
-                } else {
-                    log.debug("HTTP Session has been invalidated, removing :" + session.getId());
-                    remove(session);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error storing/removing session", e);
-        } finally {
-            currentSessionState.remove();
-        }
+    public void setHedgeDelayMillis(int hedgeDelayMillis) {
+        this.hedgeDelayMillis = hedgeDelayMillis;
     }
 
-    @Override
-    public void processExpires() {
-        // Redis will handle expiration
+    public int getHedgeDelayMillis() {
+        return hedgeDelayMillis;
     }
 
     /**
-     * Define the prefix for all redis keys.<br>
-     * Defaults to {@value #DEFAULT_SESSION_KEY_PREFIX}
+     * Percentile of the latency of recent session loads used as hedge delay unless {@link #getHedgeDelayMillis()} is
+     * set; roughly <code>100 - hedgePercentile</code> percent of loads are hedged. Defaults to <code>95</code>
      * 
-     * @param sessionKeyPrefix
+     * @param hedgePercentile
      */
-    public void setSessionKeyPrefix(String sessionKeyPrefix) {
-        this.sessionKeyPrefix = sessionKeyPrefix;
+    public void setHedgePercentile(int hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile;
     }
 
     /**
-     * If <code>true</code> the session will be persisted to redis immediately when any attribute is modified.<br>
-     * Default is <code>false</code> which persists a modified session when the request is complete.
+     * Number of session loads hedged by a second read
      * 
-     * @param saveOnChange
+     * @return
      */
-    public void setSaveOnChange(boolean saveOnChange) {
-        this.saveOnChange = saveOnChange;
+    public long getHedgedReadCount() {
+        final HedgingSessionClient hedging = hedgingClient;
+        return hedging == null ? 0 : hedging.getHedges();
     }
 
     /**
-     * If <code>true</code> the session will always be persisted to redis after a request completes regardless of {@link RedisSession#isDirty()}.<br>
-     * Default is <code>false</code> which persists a session after a request only if {@link RedisSession#isDirty()} is <code>true</code>
+     * Number of hedged session loads answered first by the second read
      * 
-     * @param forceSaveAfterRequest
+     * @return
      */
-    public void setForceSaveAfterRequest(boolean forceSaveAfterRequest) {
-        this.forceSaveAfterRequest = forceSaveAfterRequest;
+    public long getHedgedReadWinCount() {
+        final HedgingSessionClient hedging = hedgingClient;
+        return hedging == null ? 0 : hedging.getHedgesWon();
     }
 
     /**
-     * If <code>true</true> the session will be marked as dirty on any mutation. When <code>false</code> the attribute is
-     * checked for equality against the old value and the session is marked as dirty only if they differ.<br>
-     * When <code>false</code> the following code would <em>not</em> mark the session as dirty:
-     * <br>
+     * Current hedge delay in microseconds; <code>-1</code> if loads are not hedged (yet)
      * 
-     * <pre>
-     * List<String> stringList = (List<String>) session.getAttribute("myList");
-     * stringList.add("another value");
-     * session.setAttribute("myList", stringList);
-     * </pre>
+     * @return
+     */
+    public long getCurrentHedgeDelayMicros() {
+        final HedgingSessionClient hedging = hedgingClient;
+        final long delay = hedging == null ? -1 : hedging.getHedgeDelayNanos();
+        return delay < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(delay);
+    }
+
+    /**
+     * Total time in milliseconds the redis operations of a request may take. Each operation waits for a response no
+     * longer than the remaining budget, and optional operations (extending the expiration of an unchanged session,
+     * counting it as active) are dropped once the budget is exhausted. This bounds the time session handling adds to a
+     * request when redis is slow, where each operation would otherwise wait for the full client timeout. Defaults to
+     * <code>0</code> (unbounded)
      * 
-     * <br>
-     * Because the list is mutated, the 'old' value is identical to the 'new' value when equality is checked. It is a better
-     * design to ensure session objects are immutable, but setting <code>dirtyOnMutation</code> to <code>true</code> will
-     * workaround this with minimal overhead.
+     * @param redisTimeBudgetMillis
+     */
+    public void setRedisTimeBudgetMillis(int redisTimeBudgetMillis) {
+        this.redisTimeBudgetMillis = redisTimeBudgetMillis;
+    }
+
+    public int getRedisTimeBudgetMillis() {
+        return redisTimeBudgetMillis;
+    }
+
+    /**
+     * Number of optional redis operations dropped as the time budget of the request was exhausted
      * 
-     * @param dirtyOnMutation
+     * @return
      */
-    public void setDirtyOnMutation(boolean dirtyOnMutation) {
-        this.dirtyOnMutation = dirtyOnMutation;
+    public long getSkippedOperationCount() {
+        return skippedOperationCount.sum();
     }
 
     /**
-     * Set a pattern (must adhere to {@link Pattern} specs) for requests to ignore.
-     * This pattern is matched <em>case-insensitive</em> against {@link Request#getRequestURI()}.<br>
-     * Defaults to {@value #DEFAULT_IGNORE_PATTERN}
+     * Number of session ID changes performed by renaming the session in redis
      * 
-     * @param ignorePattern
+     * @return
      */
-    public void setIgnorePattern(String ignorePattern) {
-        this.ignorePattern = ignorePattern;
+    public long getSessionRenameCount() {
+        return sessionRenameCount.sum();
     }
 
     /**
-     * Set a maximum size, in bytes, of each attribute within a session. If an attribute exceeds this size
-     * it will not be stored in the session.<br>
-     * Performance note: values will be encoded twice, once for size checking and once for actual storage.
+     * If <code>true</code> sessions are saved with a version and a save only succeeds if the session was not saved by
+     * another request since it was loaded, e.g. by a concurrent request handled by another node; conflicts are resolved
+     * according to {@link #setSaveConflictPolicy(String)}. The comparison is performed by a Lua script in a single round
+     * trip. Versioned sessions cannot be read by releases without this option. Defaults to <code>false</code> (the last
+     * save wins)
      * 
-     * @param maxSessionAttributeSize
+     * @param versionedSaves
      */
-    public void setMaxSessionAttributeSize(int maxSessionAttributeSize) {
-        this.maxSessionAttributeSize = maxSessionAttributeSize;
+    public void setVersionedSaves(boolean versionedSaves) {
+        this.versionedSaves = versionedSaves;
     }
 
-    int getMaxSessionAttributeSize() {
-        return maxSessionAttributeSize;
+    public boolean isVersionedSaves() {
+        return versionedSaves;
     }
 
     /**
-     * Set a maximum size, in bytes, of the entire serialized session in redis. If the session exceeds this size
-     * it will not be saved to redis.<br>
-     * Performance note: sessions will be encoded twice, once for size checking and once for actual storage.
+     * Name of the {@link SaveConflictPolicy} applied when a versioned save finds the session saved by another request.
+     * Defaults to <code>MERGE</code>
      * 
-     * @param maxSessionSize
+     * @param saveConflictPolicy
      */
-    public void setMaxSessionSize(int maxSessionSize) {
-        this.maxSessionSize = maxSessionSize;
+    public void setSaveConflictPolicy(String saveConflictPolicy) {
+        this.saveConflictPolicy = SaveConflictPolicy.valueOf(saveConflictPolicy.trim().toUpperCase(Locale.ROOT));
     }
 
-    int getMaxSessionSize() {
-        return maxSessionSize;
+    public String getSaveConflictPolicy() {
+        return saveConflictPolicy.name();
     }
 
     /**
-     * When {@link #setMaxSessionAttributeSize(int)} or {@link #setMaxSessionSize(int)} is used, the default
-     * behavior is to prevent sessions with attributes or total size exceeding the configured value.
-     * If {@link #allowOversizedSessions} is <code>true</code> then these exceptional attrs/sessions will
-     * only be logged and will still be saved to redis.
+     * Number of times a save is merged and retried under {@link SaveConflictPolicy#MERGE} before the changes of the
+     * request are discarded. Defaults to <code>3</code>
      * 
-     * @param allowAndLogSessionSizeErrors
+     * @param saveConflictRetries
      */
-    public void setAllowOversizedSessions(boolean allowAndLogSessionSizeErrors) {
-        this.allowOversizedSessions = allowAndLogSessionSizeErrors;
+    public void setSaveConflictRetries(int saveConflictRetries) {
+        this.saveConflictRetries = saveConflictRetries;
     }
 
-    boolean isAllowOversizedSessions() {
-        return allowOversizedSessions;
+    public int getSaveConflictRetries() {
+        return saveConflictRetries;
+    }
+
+    /**
+     * Number of versioned saves that found the session saved by another request
+     * 
+     * @return
+     */
+    public long getSaveConflictCount() {
+        return saveConflictCount.sum();
+    }
+
+    /**
+     * If <code>true</code> sessions are kept in memory by the node that last loaded or wrote them, which serves them
+     * without reading redis; changes are still written to redis. A node loading a session from redis takes over its
+     * lease and revokes the copy held by the previous owner via pub/sub. With sticky sessions (routed by the
+     * <code>jvmRoute</code> suffix of the session ID) this removes almost all session reads. A request reaching another node before the
+     * revocation has been received by the previous owner may be served from its outdated copy; combine with
+     * {@link #setVersionedSaves(boolean)} to detect the resulting lost updates. Defaults to <code>false</code>
+     * 
+     * @param sessionOwnership
+     */
+    public void setSessionOwnership(boolean sessionOwnership) {
+        this.sessionOwnership = sessionOwnership;
+    }
+
+    public boolean isSessionOwnership() {
+        return sessionOwnership;
+    }
+
+    /**
+     * Maximum number of owned sessions kept in memory; the least recently used are dropped and reloaded from redis when
+     * requested again. Defaults to <code>10000</code>
+     * 
+     * @param ownedSessionCapacity
+     */
+    public void setOwnedSessionCapacity(int ownedSessionCapacity) {
+        this.ownedSessionCapacity = ownedSessionCapacity;
+    }
+
+    public int getOwnedSessionCapacity() {
+        return ownedSessionCapacity;
+    }
+
+    /**
+     * Number of owned sessions currently kept in memory
+     * 
+     * @return
+     */
+    public int getOwnedSessionCount() {
+        final SessionOwnership owned = ownership;
+        return owned == null ? 0 : owned.size();
+    }
+
+    /**
+     * Number of session lookups served from memory
+     * 
+     * @return
+     */
+    public long getOwnedSessionHitCount() {
+        final SessionOwnership owned = ownership;
+        return owned == null ? 0 : owned.getHits();
+    }
+
+    /**
+     * Number of owned sessions dropped as another node took them over
+     * 
+     * @return
+     */
+    public long getOwnershipRevocationCount() {
+        final SessionOwnership owned = ownership;
+        return owned == null ? 0 : owned.getRevocations();
+    }
+
+    /**
+     * If <code>true</code> the manager starts without waiting for redis: it is ready once redis answers
+     * {@link RedisSessionClient#ping()}, after which the codec and the remaining pooled connections are warmed on a
+     * background thread. Use {@link #isReady()} to hold traffic back until then. Defaults to <code>false</code>
+     * 
+     * @param backgroundWarmup
+     */
+    public void setBackgroundWarmup(boolean backgroundWarmup) {
+        this.backgroundWarmup = backgroundWarmup;
+    }
+
+    public boolean isBackgroundWarmup() {
+        return backgroundWarmup;
+    }
+
+    /**
+     * If <code>true</code> the managers of all contexts with the same redis configuration share one client: its
+     * threads and its connection pool. Each manager keeps its own key prefix and decodes sessions with the classloader
+     * of its own context. The client is closed when the last manager using it stops. Requires the session manager to
+     * be installed in Tomcat's <code>lib</code> directory rather than in the webapps. Defaults to <code>false</code>
+     * 
+     * @param sharedClient
+     */
+    public void setSharedClient(boolean sharedClient) {
+        this.sharedClient = sharedClient;
+    }
+
+    public boolean isSharedClient() {
+        return sharedClient;
+    }
+
+    /**
+     * Number of points of each shard on the consistent hash ring when sessions are spread across several redis
+     * primaries. Defaults to <code>160</code>
+     * 
+     * @param shardVirtualNodes
+     */
+    public void setShardVirtualNodes(int shardVirtualNodes) {
+        this.shardVirtualNodes = shardVirtualNodes;
+    }
+
+    public int getShardVirtualNodes() {
+        return shardVirtualNodes;
+    }
+
+    /**
+     * If <code>true</code> generated session IDs are prefixed with the index of the shard storing the session, which
+     * routes the session without hashing and keeps it on its shard when shards are appended. Defaults to
+     * <code>false</code>
+     * 
+     * @param shardHints
+     */
+    public void setShardHints(boolean shardHints) {
+        this.shardHints = shardHints;
+    }
+
+    public boolean isShardHints() {
+        return shardHints;
+    }
+
+    /**
+     * Number of shards before shards were appended: sessions not found on their shard are then read from the shard they
+     * were stored on before, until sessions saved before the change have expired. Defaults to <code>0</code> (not
+     * migrating)
+     * 
+     * @param previousShardCount
+     */
+    public void setPreviousShardCount(int previousShardCount) {
+        this.previousShardCount = previousShardCount;
+    }
+
+    public int getPreviousShardCount() {
+        return previousShardCount;
+    }
+
+    /**
+     * Number of redis primaries sessions are spread across
+     * 
+     * @return
+     */
+    public int getShardCount() {
+        final ShardedSessionClient sharded = shardedClient;
+        return sharded == null ? 1 : sharded.getShardCount();
+    }
+
+    /**
+     * Number of sessions read from the shard they were stored on before shards were appended
+     * 
+     * @return
+     */
+    public long getShardMigrationReadCount() {
+        final ShardedSessionClient sharded = shardedClient;
+        return sharded == null ? 0 : sharded.getMigrationReads();
+    }
+
+    /**
+     * Number of keys moved from the shard they were stored on before shards were appended, ahead of a versioned save
+     * or a session ownership check
+     * 
+     * @return
+     */
+    public long getShardMigratedKeyCount() {
+        final ShardedSessionClient sharded = shardedClient;
+        return sharded == null ? 0 : sharded.getMigratedKeys();
+    }
+
+    /**
+     * If <code>true</code> the number of redis operations in flight is limited by a limit adapting to the latency of
+     * redis: it shrinks as operations slow down or fail and grows while they are fast. Operations beyond the limit are
+     * shed rather than queued: TTL touches first, then saves of anonymous sessions (both dropped), then all others, such
+     * as loads (failed). Defaults to <code>false</code>
+     * 
+     * @param concurrencyLimiting
+     */
+    public void setConcurrencyLimiting(boolean concurrencyLimiting) {
+        this.concurrencyLimiting = concurrencyLimiting;
+    }
+
+    public boolean isConcurrencyLimiting() {
+        return concurrencyLimiting;
+    }
+
+    /**
+     * Lowest limit of redis operations in flight. Defaults to <code>4</code>
+     * 
+     * @param minConcurrency
+     */
+    public void setMinConcurrency(int minConcurrency) {
+        this.minConcurrency = minConcurrency;
+    }
+
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    /**
+     * Highest limit of redis operations in flight; should not exceed the connection pool size. Defaults to
+     * <code>128</code>
+     * 
+     * @param maxConcurrency
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Current limit of redis operations in flight
+     * 
+     * @return
+     */
+    public int getConcurrencyLimit() {
+        final ConcurrencyLimitingSessionClient limiter = concurrencyLimiter;
+        return limiter == null ? 0 : limiter.getLimit();
+    }
+
+    /**
+     * Number of redis operations in flight
+     * 
+     * @return
+     */
+    public int getRedisOperationsInFlight() {
+        final ConcurrencyLimitingSessionClient limiter = concurrencyLimiter;
+        return limiter == null ? 0 : limiter.getInFlight();
+    }
+
+    /**
+     * Number of redis operations shed by the concurrency limit
+     * 
+     * @return
+     */
+    public long getShedOperationCount() {
+        final ConcurrencyLimitingSessionClient limiter = concurrencyLimiter;
+        return limiter == null ? 0 : limiter.getShed();
+    }
+
+    /**
+     * If <code>true</code> the redis work done for the session of each request is set as request attributes at the end
+     * of the request, to be logged by the <code>AccessLogValve</code> (e.g. <code>%{rsm.loadMillis}r</code>): see
+     * {@link RequestMetrics} for the attributes. Sessions are encoded once and written in that form, so the bytes
+     * written are measured without encoding them again. Defaults to <code>false</code>
+     * 
+     * @param requestMetrics
+     */
+    public void setRequestMetrics(boolean requestMetrics) {
+        this.requestMetrics = requestMetrics;
+    }
+
+    public boolean isRequestMetrics() {
+        return requestMetrics;
+    }
+
+    /**
+     * Whether redis has been reached since the manager started; for health checks
+     * 
+     * @return
+     */
+    public boolean isReady() {
+        return ready;
     }
 
     /**
@@ -498,12 +3003,21 @@ public abstract class RedisSessionManager extends ManagerBase {
     }
 
     /**
-     * Encapsulates metadata about a {@link RedisSession}
+     * Encapsulates metadata about a {@link RedisSession} and the request using it
      */
-    class RedisSessionState {
-        final String sessionId;
-        final RedisSession session;
+    public class RedisSessionState {
+        String requestedSessionId;
+        String sessionId;
+        RedisSession session;
         boolean persisted;
+        // new session whose ID has not been reserved in redis yet
+        boolean reservationPending;
+        // new session created under a policy that does not save; never written to redis
+        boolean memoryOnly;
+        SessionPolicy policy = SessionPolicy.FULL;
+        Request request;
+        // allocated on first use, with request metrics enabled
+        RequestMetrics metrics;
 
         RedisSessionState() {
             this.sessionId = null;
@@ -511,10 +3025,37 @@ public abstract class RedisSessionManager extends ManagerBase {
             this.persisted = false;
         }
 
-        RedisSessionState(RedisSession session, boolean persisted) {
+        void setSession(RedisSession session, boolean persisted) {
             this.sessionId = session.getId();
             this.session = session;
             this.persisted = persisted;
+            this.reservationPending = false;
+            this.memoryOnly = false;
+        }
+
+        void clearSession() {
+            this.sessionId = null;
+            this.session = null;
+            this.persisted = false;
+            this.reservationPending = false;
+            this.memoryOnly = false;
+        }
+
+        void reset() {
+            clearSession();
+            this.requestedSessionId = null;
+            this.policy = SessionPolicy.FULL;
+            this.request = null;
+            if (this.metrics != null) {
+                this.metrics.reset();
+            }
+        }
+
+        RequestMetrics metrics() {
+            if (this.metrics == null) {
+                this.metrics = new RequestMetrics();
+            }
+            return this.metrics;
         }
 
         void markPersisted() {
@@ -527,7 +3068,7 @@ public abstract class RedisSessionManager extends ManagerBase {
 
         @Override
         public String toString() {
-            return "sessionId: [" + sessionId + "]; persisted = [" + persisted + "]";
+            return "sessionId: [" + sessionId + "]; persisted = [" + persisted + "]; policy = [" + policy + "]";
         }
     }
 }
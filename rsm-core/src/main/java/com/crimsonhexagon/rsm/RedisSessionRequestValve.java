@@ -25,7 +25,6 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import java.io.IOException;
-import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -39,25 +38,26 @@ import javax.servlet.http.HttpServletResponse;
 public class RedisSessionRequestValve extends ValveBase {
     private static final Log log = LogFactory.getLog(RedisSessionRequestValve.class);
     private final RedisSessionManager manager;
-    private final Pattern ignorePattern;
+    private final SessionPolicyRules policyRules;
 
     /**
      * Default pattern for request URIs to ignore:
      * Ignore ico|png|gif|jpg|jpeg|swf|css|js that appear in the requestURI (query strings not presented for matching)
+     *
+     * @deprecated superseded by {@link SessionPolicyRules#DEFAULT_RULES}
      */
+    @Deprecated
     public static final String DEFAULT_IGNORE_PATTERN = ".*\\.(ico|png|gif|jpg|jpeg|swf|css|js)$";
 
     private static final String POST_METHOD = "post";
     // note key to store the query string
     protected static final String REQUEST_QUERY = "com.crimsonhexagon.rsm.QUERY_STRING";
+    // note key to store the RedisSessionAsyncListener of an async request
+    protected static final String ASYNC_LISTENER = "com.crimsonhexagon.rsm.ASYNC_LISTENER";
 
-    public RedisSessionRequestValve(RedisSessionManager manager, String ignorePattern) {
+    public RedisSessionRequestValve(RedisSessionManager manager, SessionPolicyRules policyRules) {
         this.manager = manager;
-        if (ignorePattern != null && ignorePattern.trim().length() > 0) {
-            this.ignorePattern = Pattern.compile(ignorePattern, Pattern.CASE_INSENSITIVE);
-        } else {
-            this.ignorePattern = null;
-        }
+        this.policyRules = policyRules == null ? SessionPolicyRules.none() : policyRules;
     }
 
     @Override
@@ -69,21 +69,48 @@ public class RedisSessionRequestValve extends ValveBase {
         }
         Thread.currentThread().setContextClassLoader(context.getLoader().getClassLoader());
 
-        boolean processed = false;
+        final RedisSessionAsyncListener asyncListener = (RedisSessionAsyncListener) request.getNote(ASYNC_LISTENER);
+        final SessionPolicy policy;
+        if (asyncListener != null && !asyncListener.isCompleted()) {
+            // async request dispatched back to the container; retains the policy of the original request
+            policy = asyncListener.getState().policy;
+            manager.resumeRequest(asyncListener.getState());
+        } else {
+            policy = policyRules.policyFor(request.getMethod(), request.getRequestURI());
+            manager.beforeRequest(policy, request);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Session policy " + policy + " for [" + getQueryString(request) + "]");
+        }
         try {
-            if (ignorePattern == null || !ignorePattern.matcher(request.getRequestURI()).matches()) {
-                processed = true;
-                if (log.isTraceEnabled()) {
-                    log.trace("Will save to redis after request for [" + getQueryString(request) + "]");
-                }
-            } else {
-                if (log.isTraceEnabled()) {
-                    log.trace("Ignoring [" + getQueryString(request) + "]");
-                }
-            }
             getNext().invoke(request, response);
         } finally {
-            manager.afterRequest(processed);
+            if (request.isAsyncStarted()) {
+                suspend(request, asyncListener);
+            } else if (asyncListener == null || asyncListener.markCompleted()) {
+                manager.afterRequest(policy, request);
+            }
+        }
+    }
+
+    /**
+     * Defer post-request handling of an async request to a {@link RedisSessionAsyncListener}
+     * 
+     * @param request
+     * @param asyncListener the listener registered by a previous invocation for this request; may be <code>null</code>
+     */
+    private void suspend(Request request, RedisSessionAsyncListener asyncListener) {
+        final RedisSessionManager.RedisSessionState state = manager.suspendRequest(request.getRequestedSessionId());
+        if (asyncListener != null) {
+            // still registered via onStartAsync
+            asyncListener.setState(state);
+        } else {
+            final RedisSessionAsyncListener listener = new RedisSessionAsyncListener(manager, state);
+            request.setNote(ASYNC_LISTENER, listener);
+            request.getAsyncContextInternal().addListener(listener);
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Deferring session handling of async request [" + getQueryString(request) + "]");
         }
     }
 
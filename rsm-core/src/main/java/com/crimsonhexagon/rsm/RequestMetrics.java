@@ -0,0 +1,123 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * Redis work done for the session of a single request, published as request attributes at the end of the request so
+ * that e.g. the <code>AccessLogValve</code> can log it with <code>%{rsm.loadMillis}r</code>
+ */
+public final class RequestMetrics {
+    /** Time spent loading and decoding the session, in milliseconds */
+    public static final String LOAD_MILLIS = "rsm.loadMillis";
+    /** Time spent saving the session, in milliseconds */
+    public static final String SAVE_MILLIS = "rsm.saveMillis";
+    /** Bytes of session data read from redis */
+    public static final String BYTES_READ = "rsm.bytesRead";
+    /** Bytes of session data written to redis */
+    public static final String BYTES_WRITTEN = "rsm.bytesWritten";
+    /** Number of redis commands issued */
+    public static final String ROUND_TRIPS = "rsm.roundTrips";
+    /** <code>true</code> if the session was left unsaved as it was not changed; absent without a session to save */
+    public static final String SAVE_SKIPPED = "rsm.saveSkipped";
+
+    private long loadNanos;
+    private long saveNanos;
+    private long bytesRead;
+    private long bytesWritten;
+    private int roundTrips;
+    private Boolean saveSkipped;
+
+    void addLoad(long nanos) {
+        loadNanos += nanos;
+    }
+
+    void addSave(long nanos) {
+        saveNanos += nanos;
+    }
+
+    void addBytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    void addRoundTrip() {
+        roundTrips++;
+    }
+
+    void setSaveSkipped(boolean saveSkipped) {
+        this.saveSkipped = saveSkipped;
+    }
+
+    /**
+     * Set the metrics as attributes of the request
+     * 
+     * @param request
+     */
+    void publish(ServletRequest request) {
+        request.setAttribute(LOAD_MILLIS, millis(loadNanos));
+        request.setAttribute(SAVE_MILLIS, millis(saveNanos));
+        request.setAttribute(BYTES_READ, bytesRead);
+        request.setAttribute(BYTES_WRITTEN, bytesWritten);
+        request.setAttribute(ROUND_TRIPS, roundTrips);
+        if (saveSkipped != null) {
+            request.setAttribute(SAVE_SKIPPED, saveSkipped);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    void reset() {
+        loadNanos = 0;
+        saveNanos = 0;
+        bytesRead = 0;
+        bytesWritten = 0;
+        roundTrips = 0;
+        saveSkipped = null;
+    }
+
+    public long getLoadNanos() {
+        return loadNanos;
+    }
+
+    public long getSaveNanos() {
+        return saveNanos;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getRoundTrips() {
+        return roundTrips;
+    }
+
+    public Boolean getSaveSkipped() {
+        return saveSkipped;
+    }
+}
@@ -0,0 +1,226 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * {@link RedisSessionClient} counting the redis operations and the session bytes read and written into the
+ * {@link RequestMetrics} of the request handled by the current thread; operations served without redis, e.g. while
+ * the circuit is open, are counted as well. Within a request, sessions passed to {@link #save(String, RedisSession)} or
+ * {@link #reserve(String, RedisSession, long, TimeUnit)} are encoded here and written in that form, so that the bytes
+ * counted are those written.<br>
+ * {@link #loadEncodedAsync(String, boolean)} counts as a round trip, but its bytes are only counted if it completed
+ * before returning: it may otherwise complete on another thread, after the request.
+ */
+class RequestMetricsSessionClient extends DelegatingRedisSessionClient {
+    private final Supplier<RequestMetrics> currentMetrics;
+
+    /**
+     * @param delegate
+     * @param currentMetrics metrics of the current request; returns <code>null</code> outside of a request
+     */
+    RequestMetricsSessionClient(RedisSessionClient delegate, Supplier<RequestMetrics> currentMetrics) {
+        super(delegate);
+        this.currentMetrics = currentMetrics;
+    }
+
+    /**
+     * Count a command
+     * 
+     * @return the metrics of the current request; <code>null</code> outside of a request
+     */
+    private RequestMetrics roundTrip() {
+        final RequestMetrics metrics = currentMetrics.get();
+        if (metrics != null) {
+            metrics.addRoundTrip();
+        }
+        return metrics;
+    }
+
+    private static byte[] read(RequestMetrics metrics, byte[] encoded) {
+        if (metrics != null && encoded != null) {
+            metrics.addBytesRead(encoded.length);
+        }
+        return encoded;
+    }
+
+    private static byte[] written(RequestMetrics metrics, byte[] encoded) {
+        if (metrics != null) {
+            metrics.addBytesWritten(encoded.length);
+        }
+        return encoded;
+    }
+
+    @Override
+    public void save(String key, RedisSession session) {
+        final RequestMetrics metrics = roundTrip();
+        if (metrics == null) {
+            delegate.save(key, session);
+        } else {
+            delegate.save(key, session, written(metrics, delegate.encode(session)));
+        }
+    }
+
+    @Override
+    public void save(String key, RedisSession session, byte[] encoded) {
+        delegate.save(key, session, written(roundTrip(), encoded));
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        final RequestMetrics metrics = roundTrip();
+        if (metrics == null) {
+            return delegate.reserve(key, session, ttl, timeUnit);
+        }
+        return delegate.reserve(key, session, written(metrics, delegate.encode(session)), ttl, timeUnit);
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        return delegate.reserve(key, session, written(roundTrip(), encoded), ttl, timeUnit);
+    }
+
+    @Override
+    public RedisSession load(String key) {
+        roundTrip();
+        return delegate.load(key);
+    }
+
+    @Override
+    public byte[] loadEncoded(String key) {
+        final RequestMetrics metrics = roundTrip();
+        return read(metrics, delegate.loadEncoded(key));
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        final RequestMetrics metrics = roundTrip();
+        final List<byte[]> values = delegate.loadEncoded(keys);
+        values.forEach(encoded -> read(metrics, encoded));
+        return values;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        final RequestMetrics metrics = roundTrip();
+        final CompletableFuture<byte[]> load = delegate.loadEncodedAsync(key, alternate);
+        if (load.isDone() && !load.isCompletedExceptionally()) {
+            read(metrics, load.getNow(null));
+        }
+        return load;
+    }
+
+    @Override
+    public void delete(String key) {
+        roundTrip();
+        delegate.delete(key);
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        roundTrip();
+        delegate.delete(keys);
+    }
+
+    @Override
+    public boolean rename(String oldKey, String newKey) {
+        roundTrip();
+        return delegate.rename(oldKey, newKey);
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        final RequestMetrics metrics = roundTrip();
+        if (metrics != null) {
+            args.forEach(arg -> metrics.addBytesWritten(arg.length));
+        }
+        return delegate.evalScript(script, keys, args);
+    }
+
+    @Override
+    public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+        roundTrip();
+        delegate.expire(key, expirationTime, timeUnit);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        roundTrip();
+        return delegate.exists(key);
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        roundTrip();
+        delegate.countUnique(key, member, expirationTime, timeUnit);
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        roundTrip();
+        return delegate.uniqueCount(keys);
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        roundTrip();
+        delegate.addToSet(key, member, expirationTime, timeUnit);
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        roundTrip();
+        delegate.removeFromSet(key, members);
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        roundTrip();
+        return delegate.getSetMembers(key);
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        roundTrip();
+        delegate.mark(key, ttl, timeUnit);
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        roundTrip();
+        return delegate.markIfAbsent(key, ttl, timeUnit);
+    }
+
+    @Override
+    public List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        roundTrip();
+        return delegate.markIfAbsent(keys, ttl, timeUnit);
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        roundTrip();
+        delegate.publish(channel, message);
+    }
+}
@@ -0,0 +1,39 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+/**
+ * How {@link RedisSessionManager} resolves a versioned save of a session that was saved by another request since it
+ * was loaded (see {@link RedisSessionManager#setVersionedSaves(boolean)})
+ */
+public enum SaveConflictPolicy {
+    /**
+     * Save the session anyway with the version following the stored one, discarding the changes of the other request; the
+     * behavior without versioned saves
+     */
+    OVERWRITE,
+    /**
+     * Keep the session saved by the other request, discarding the changes of this request
+     */
+    DISCARD,
+    /**
+     * Apply the attributes set or removed by this request to the session saved by the other request and save again.
+     * Changes of the other request to attributes also changed by this request are lost.
+     */
+    MERGE
+}
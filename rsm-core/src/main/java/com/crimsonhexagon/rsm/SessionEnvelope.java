@@ -0,0 +1,124 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Format of sessions saved with a version (see {@link RedisSessionManager#setVersionedSaves(boolean)}): the ASCII
+ * header <code>RSMV</code> followed by the version as 16 hex digits, then the session as encoded by the
+ * {@link RedisSessionClient}. Sessions saved without a version (by {@link RedisSessionClient#save(String, RedisSession)}
+ * or {@link RedisSessionClient#reserve(String, RedisSession, long, java.util.concurrent.TimeUnit)}) have version
+ * <code>0</code>.
+ */
+public final class SessionEnvelope {
+    public static final int HEADER_LENGTH = 20;
+    private static final byte[] MAGIC = { 'R', 'S', 'M', 'V' };
+
+    /**
+     * Save a session only if its version is unchanged.
+     * <ul>
+     * <li>KEYS[1]: the session key</li>
+     * <li>ARGV[1]: the expected version, in decimal</li>
+     * <li>ARGV[2]: the new value, wrapped with its version</li>
+     * <li>ARGV[3]: time to live in milliseconds; <code>0</code> for none</li>
+     * </ul>
+     * Returns <code>1</code> if saved, <code>0</code> if the version differs and <code>-1</code> if the session does
+     * not exist although a version other than <code>0</code> is expected. A session that does not exist has version
+     * <code>0</code>, so that new sessions can be saved.
+     */
+    public static final RedisScript COMPARE_AND_SET = new RedisScript(
+        "local header = redis.call('GETRANGE', KEYS[1], 0, 19)\n"
+        + "if header == '' and tonumber(ARGV[1]) ~= 0 then return -1 end\n"
+        + "local version = 0\n"
+        + "if string.sub(header, 1, 4) == 'RSMV' then version = tonumber(string.sub(header, 5), 16) end\n"
+        + "if version ~= tonumber(ARGV[1]) then return 0 end\n"
+        + "if tonumber(ARGV[3]) > 0 then redis.call('SET', KEYS[1], ARGV[2], 'PX', ARGV[3])\n"
+        + "else redis.call('SET', KEYS[1], ARGV[2]) end\n"
+        + "return 1\n");
+
+    /**
+     * Save a session with the version following the stored one, whatever it is.
+     * <ul>
+     * <li>KEYS[1]: the session key</li>
+     * <li>ARGV[1]: the encoded session, without version</li>
+     * <li>ARGV[2]: time to live in milliseconds; <code>0</code> for none</li>
+     * </ul>
+     * Returns the version saved: <code>1</code> if the session does not exist or was saved without a version.
+     */
+    public static final RedisScript OVERWRITE = new RedisScript(
+        "local header = redis.call('GETRANGE', KEYS[1], 0, 19)\n"
+        + "local version = 0\n"
+        + "if string.sub(header, 1, 4) == 'RSMV' then version = tonumber(string.sub(header, 5), 16) end\n"
+        + "local value = 'RSMV' .. string.format('%016x', version + 1) .. ARGV[1]\n"
+        + "if tonumber(ARGV[2]) > 0 then redis.call('SET', KEYS[1], value, 'PX', ARGV[2])\n"
+        + "else redis.call('SET', KEYS[1], value) end\n"
+        + "return version + 1\n");
+
+    private SessionEnvelope() {
+    }
+
+    /**
+     * @param version
+     * @param payload the encoded session
+     * @return the session wrapped with its version
+     */
+    public static byte[] wrap(long version, byte[] payload) {
+        final byte[] wrapped = new byte[HEADER_LENGTH + payload.length];
+        System.arraycopy(MAGIC, 0, wrapped, 0, MAGIC.length);
+        final String hex = Long.toHexString(version);
+        for (int i = MAGIC.length; i < HEADER_LENGTH - hex.length(); i++) {
+            wrapped[i] = '0';
+        }
+        System.arraycopy(hex.getBytes(StandardCharsets.US_ASCII), 0, wrapped, HEADER_LENGTH - hex.length(), hex.length());
+        System.arraycopy(payload, 0, wrapped, HEADER_LENGTH, payload.length);
+        return wrapped;
+    }
+
+    public static boolean isVersioned(byte[] encoded) {
+        if (encoded.length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (encoded[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param encoded
+     * @return the version of the stored session; <code>0</code> if it was saved without one
+     */
+    public static long version(byte[] encoded) {
+        if (!isVersioned(encoded)) {
+            return 0;
+        }
+        return Long.parseUnsignedLong(new String(encoded, MAGIC.length, HEADER_LENGTH - MAGIC.length, StandardCharsets.US_ASCII), 16);
+    }
+
+    /**
+     * @param encoded
+     * @return the encoded session without its version
+     */
+    public static byte[] payload(byte[] encoded) {
+        return isVersioned(encoded) ? Arrays.copyOfRange(encoded, HEADER_LENGTH, encoded.length) : encoded;
+    }
+}
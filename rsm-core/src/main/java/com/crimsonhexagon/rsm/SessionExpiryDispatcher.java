@@ -0,0 +1,146 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Hands session IDs received from redis notifications over to a fixed number of worker threads, which pass them to
+ * the handler in batches. The queue is bounded: when it is full IDs are dropped rather than blocking the notifying
+ * thread.
+ */
+class SessionExpiryDispatcher {
+    private static final Log log = LogFactory.getLog(SessionExpiryDispatcher.class);
+
+    private final BlockingQueue<String> queue;
+    private final int batchSize;
+    private final Consumer<List<String>> handler;
+    private final Thread[] workers;
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * @param name prefix of the names of the worker threads
+     * @param threads number of worker threads
+     * @param capacity maximum number of queued IDs
+     * @param batchSize maximum number of IDs passed to the handler at once
+     * @param handler
+     */
+    SessionExpiryDispatcher(String name, int threads, int capacity, int batchSize, Consumer<List<String>> handler) {
+        if (threads < 1 || capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("threads, capacity and batchSize must be positive");
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.handler = handler;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(this::work, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queue the given ID; never blocks
+     * 
+     * @param id
+     * @return <code>false</code> if the queue is full and the ID was dropped
+     */
+    boolean offer(String id) {
+        if (queue.offer(id)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    private void work() {
+        final List<String> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                final String first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                handler.accept(batch);
+                dispatched.add(batch.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Throwable t) {
+                log.error("Failed to handle " + batch.size() + " expired sessions", t);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Number of IDs passed to the handler
+     * 
+     * @return
+     */
+    long getDispatched() {
+        return dispatched.sum();
+    }
+
+    /**
+     * Number of IDs dropped as the queue was full
+     * 
+     * @return
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stop the worker threads, waiting up to the given time for batches being handled; queued IDs are discarded
+     * 
+     * @param timeoutMillis
+     */
+    void shutdown(long timeoutMillis) {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            for (Thread worker : workers) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0) {
+                    worker.join(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
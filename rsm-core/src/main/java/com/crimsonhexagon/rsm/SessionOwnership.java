@@ -0,0 +1,228 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions owned by this node (see {@link RedisSessionManager#setSessionOwnership(boolean)}). The owner of a session
+ * keeps it in memory and serves it without reading redis. A node loading a session from redis takes over the lease of
+ * the session; if it was held by another node a revocation is published in the same round trip, upon which the
+ * previous owner drops its copy. Sessions are only saved by the holder of the lease, so that a node that missed a
+ * revocation does not overwrite the session with its outdated copy.
+ */
+final class SessionOwnership {
+    private static final Log log = LogFactory.getLog(SessionOwnership.class);
+
+    /**
+     * Take over the lease of a session and notify the previous owner.
+     * <ul>
+     * <li>KEYS[1]: the lease key</li>
+     * <li>ARGV[1]: the new owner</li>
+     * <li>ARGV[2]: time to live of the lease in milliseconds; <code>0</code> for none</li>
+     * <li>ARGV[3]: the revocation channel</li>
+     * <li>ARGV[4]: the revocation message</li>
+     * </ul>
+     * Returns <code>1</code> if a revocation was published, <code>0</code> if the lease was already held by the owner.
+     */
+    static final RedisScript CLAIM = new RedisScript(
+        "local previous = redis.call('GET', KEYS[1])\n"
+        + "if tonumber(ARGV[2]) > 0 then redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])\n"
+        + "else redis.call('SET', KEYS[1], ARGV[1]) end\n"
+        + "if previous == ARGV[1] then return 0 end\n"
+        + "redis.call('PUBLISH', ARGV[3], ARGV[4])\n"
+        + "return 1\n");
+
+    /**
+     * Save a session provided the lease is held by the owner or by no one, renewing the lease.
+     * <ul>
+     * <li>KEYS[1]: the lease key</li>
+     * <li>KEYS[2]: the session key</li>
+     * <li>ARGV[1]: the owner</li>
+     * <li>ARGV[2]: the encoded session</li>
+     * <li>ARGV[3]: time to live of the lease and the session in milliseconds; <code>0</code> for none</li>
+     * </ul>
+     * Returns <code>1</code> if saved, <code>0</code> if the lease is held by another owner.
+     */
+    static final RedisScript WRITE = new RedisScript(
+        "local owner = redis.call('GET', KEYS[1])\n"
+        + "if owner and owner ~= ARGV[1] then return 0 end\n"
+        + "if tonumber(ARGV[3]) > 0 then\n"
+        + "  redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[3])\n"
+        + "  redis.call('SET', KEYS[2], ARGV[2], 'PX', ARGV[3])\n"
+        + "else\n"
+        + "  redis.call('SET', KEYS[1], ARGV[1])\n"
+        + "  redis.call('SET', KEYS[2], ARGV[2])\n"
+        + "end\n"
+        + "return 1\n");
+
+    private final String ownerId;
+    private final String channel;
+    private final int capacity;
+    private final Map<String, RedisSession> sessions;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder revocations = new LongAdder();
+
+    /**
+     * @param ownerId identifies this node
+     * @param channel the revocation channel
+     * @param capacity maximum number of sessions held; the least recently used are dropped
+     */
+    SessionOwnership(String ownerId, String channel, int capacity) {
+        this.ownerId = ownerId;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.sessions = new LinkedHashMap<String, RedisSession>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RedisSession> eldest) {
+                return size() > SessionOwnership.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Receive the revocations published by other nodes
+     * 
+     * @param client
+     */
+    void subscribe(RedisSessionClient client) {
+        client.subscribe(channel, this::revoked);
+    }
+
+    /**
+     * @param sessionId
+     * @return the session if owned by this node; otherwise <code>null</code>
+     */
+    RedisSession get(String sessionId) {
+        final RedisSession session;
+        synchronized (sessions) {
+            session = sessions.get(sessionId);
+        }
+        if (session != null) {
+            hits.increment();
+        }
+        return session;
+    }
+
+    void put(RedisSession session) {
+        synchronized (sessions) {
+            sessions.put(session.getId(), session);
+        }
+    }
+
+    void remove(String sessionId) {
+        synchronized (sessions) {
+            sessions.remove(sessionId);
+        }
+    }
+
+    /**
+     * Take over the lease of a session loaded from redis
+     * 
+     * @param client
+     * @param leaseKey
+     * @param session
+     * @param ttlMillis time to live of the lease
+     */
+    void claim(RedisSessionClient client, String leaseKey, RedisSession session, long ttlMillis) {
+        client.evalScript(CLAIM, Collections.singletonList(leaseKey),
+            Arrays.asList(bytes(ownerId), bytes(Long.toString(ttlMillis)), bytes(channel), bytes(message(session.getId()))));
+        put(session);
+    }
+
+    /**
+     * Save a session held by this node, unless another node took over its lease. Without the lease the session is no
+     * longer held, as another node may have changed it.
+     * 
+     * @param client
+     * @param leaseKey
+     * @param sessionKey
+     * @param session
+     * @param ttlMillis time to live of the lease and the session
+     * @return <code>true</code> if saved; <code>false</code> if the lease is held by another node
+     */
+    boolean write(RedisSessionClient client, String leaseKey, String sessionKey, RedisSession session, long ttlMillis) {
+        final long result = client.evalScript(WRITE, Arrays.asList(leaseKey, sessionKey),
+            Arrays.asList(bytes(ownerId), client.encode(session), bytes(Long.toString(ttlMillis))));
+        if (result > 0) {
+            put(session);
+            return true;
+        }
+        remove(session.getId());
+        return false;
+    }
+
+    /**
+     * Drop a session removed or renamed by this node and notify other nodes holding it
+     * 
+     * @param client
+     * @param sessionId
+     */
+    void revoke(RedisSessionClient client, String sessionId) {
+        remove(sessionId);
+        client.publish(channel, message(sessionId));
+    }
+
+    private String message(String sessionId) {
+        return ownerId + " " + sessionId;
+    }
+
+    private void revoked(String message) {
+        final int separator = message.indexOf(' ');
+        if (separator < 0 || message.substring(0, separator).equals(ownerId)) {
+            return;
+        }
+        final String sessionId = message.substring(separator + 1);
+        final RedisSession session;
+        synchronized (sessions) {
+            session = sessions.remove(sessionId);
+        }
+        if (session != null) {
+            revocations.increment();
+            log.debug("Session " + sessionId + " was taken over by another node");
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    int size() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getRevocations() {
+        return revocations.sum();
+    }
+}
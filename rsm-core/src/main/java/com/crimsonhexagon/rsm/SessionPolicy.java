@@ -0,0 +1,81 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+/**
+ * Amount of session work performed by the {@link RedisSessionManager} for a request.
+ * Assigned to each request by the {@link SessionPolicyRules} of the {@link RedisSessionRequestValve}.
+ */
+public enum SessionPolicy {
+    /**
+     * Redis is not accessed at all: the requested session is not loaded, and a session the application asks for is
+     * created in memory only and discarded after the request.
+     */
+    NO_SESSION_WORK(false, false, false),
+    /**
+     * The session is loaded on demand but never saved nor has its expiration extended. A session the application asks
+     * for is created in memory only and discarded after the request.
+     */
+    READ_ONLY(false, false, true),
+    /**
+     * The expiration of the session is extended after the request but changes are never saved. A session the
+     * application asks for is created in memory only and discarded after the request.
+     */
+    TOUCH_ONLY(false, true, true),
+    /**
+     * The session is saved (if necessary) and its expiration extended after the request.
+     */
+    FULL(true, true, true);
+
+    private final boolean save;
+    private final boolean touch;
+    private final boolean load;
+
+    SessionPolicy(boolean save, boolean touch, boolean load) {
+        this.save = save;
+        this.touch = touch;
+        this.load = load;
+    }
+
+    /**
+     * Can changes to the session, and new sessions, be persisted under this policy
+     * 
+     * @return
+     */
+    public boolean isSave() {
+        return save;
+    }
+
+    /**
+     * Should the expiration of the session be extended under this policy
+     * 
+     * @return
+     */
+    public boolean isTouch() {
+        return touch;
+    }
+
+    /**
+     * Can sessions be loaded from redis under this policy
+     * 
+     * @return
+     */
+    public boolean isLoad() {
+        return load;
+    }
+}
@@ -0,0 +1,247 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Ordered set of rules mapping requests to a {@link SessionPolicy}. The first matching rule wins; requests matching no
+ * rule receive {@link SessionPolicy#FULL}.<br>
+ * Rules are whitespace-separated entries of the form <code>type:value[,value...]=POLICY</code> where type is one of
+ * <ul>
+ * <li><code>prefix</code>: the request URI starts with the value (case-sensitive)</li>
+ * <li><code>suffix</code>: the request URI ends with the value (case-insensitive)</li>
+ * <li><code>method</code>: the HTTP method equals the value (case-insensitive)</li>
+ * </ul>
+ * e.g. <code>prefix:/health=NO_SESSION_WORK suffix:.css,.js=NO_SESSION_WORK method:HEAD,OPTIONS=NO_SESSION_WORK prefix:/api/poll=TOUCH_ONLY</code><br>
+ * Rules are parsed once; matching performs no allocation and no regular expression evaluation.
+ */
+public final class SessionPolicyRules {
+    /**
+     * Default rules: static resources (ico|png|gif|jpg|jpeg|swf|css|js) perform no session work
+     */
+    public static final String DEFAULT_RULES = "suffix:.ico,.png,.gif,.jpg,.jpeg,.swf,.css,.js=NO_SESSION_WORK";
+
+    private static final SessionPolicyRules NONE = new SessionPolicyRules(new Rule[0]);
+
+    private final Rule[] rules;
+
+    private SessionPolicyRules(Rule[] rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Rules that always yield {@link SessionPolicy#FULL}
+     * 
+     * @return
+     */
+    public static SessionPolicyRules none() {
+        return NONE;
+    }
+
+    /**
+     * Parse the given rule definition
+     * 
+     * @param definition
+     * @return the parsed rules
+     * @throws IllegalArgumentException if the definition is malformed
+     */
+    public static SessionPolicyRules parse(String definition) {
+        if (definition == null || definition.trim().isEmpty()) {
+            return NONE;
+        }
+        final List<Rule> parsed = new ArrayList<>();
+        for (String entry : definition.trim().split("\\s+")) {
+            parsed.add(parseRule(entry));
+        }
+        return new SessionPolicyRules(parsed.toArray(new Rule[parsed.size()]));
+    }
+
+    /**
+     * Create a new instance with a rule matching the given pattern <em>case-insensitive</em> against the request URI appended
+     * 
+     * @param pattern a {@link Pattern} string
+     * @param policy
+     * @return
+     */
+    public SessionPolicyRules withPattern(String pattern, SessionPolicy policy) {
+        final Rule[] appended = new Rule[rules.length + 1];
+        System.arraycopy(rules, 0, appended, 0, rules.length);
+        appended[rules.length] = new PatternRule(Pattern.compile(pattern, Pattern.CASE_INSENSITIVE), policy);
+        return new SessionPolicyRules(appended);
+    }
+
+    /**
+     * Determine the {@link SessionPolicy} for a request
+     * 
+     * @param method the HTTP method
+     * @param requestURI the request URI (without query string)
+     * @return
+     */
+    public SessionPolicy policyFor(String method, String requestURI) {
+        for (Rule rule : rules) {
+            if (rule.matches(method, requestURI)) {
+                return rule.policy;
+            }
+        }
+        return SessionPolicy.FULL;
+    }
+
+    private static Rule parseRule(String entry) {
+        final int colon = entry.indexOf(':');
+        final int eq = entry.lastIndexOf('=');
+        if (colon <= 0 || eq < colon + 2 || eq == entry.length() - 1) {
+            throw new IllegalArgumentException("Invalid session policy rule [" + entry + "]; expected type:value[,value...]=POLICY");
+        }
+        final String type = entry.substring(0, colon).toLowerCase(Locale.ENGLISH);
+        final String[] values = entry.substring(colon + 1, eq).split(",");
+        final SessionPolicy policy;
+        try {
+            policy = SessionPolicy.valueOf(entry.substring(eq + 1).toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown session policy in rule [" + entry + "]", e);
+        }
+        switch (type) {
+            case "prefix":
+                return new PrefixRule(values, policy);
+            case "suffix":
+                return new SuffixRule(values, policy);
+            case "method":
+                return new MethodRule(values, policy);
+            default:
+                throw new IllegalArgumentException("Unknown rule type [" + type + "] in session policy rule [" + entry + "]");
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Rule rule : rules) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(rule);
+        }
+        return sb.toString();
+    }
+
+    private abstract static class Rule {
+        final SessionPolicy policy;
+
+        Rule(SessionPolicy policy) {
+            this.policy = policy;
+        }
+
+        abstract boolean matches(String method, String requestURI);
+    }
+
+    private static final class PrefixRule extends Rule {
+        private final String[] prefixes;
+
+        PrefixRule(String[] prefixes, SessionPolicy policy) {
+            super(policy);
+            this.prefixes = prefixes;
+        }
+
+        @Override
+        boolean matches(String method, String requestURI) {
+            for (String prefix : prefixes) {
+                if (requestURI.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "prefix:" + String.join(",", prefixes) + "=" + policy;
+        }
+    }
+
+    private static final class SuffixRule extends Rule {
+        private final String[] suffixes;
+
+        SuffixRule(String[] suffixes, SessionPolicy policy) {
+            super(policy);
+            this.suffixes = suffixes;
+        }
+
+        @Override
+        boolean matches(String method, String requestURI) {
+            final int length = requestURI.length();
+            for (String suffix : suffixes) {
+                if (requestURI.regionMatches(true, length - suffix.length(), suffix, 0, suffix.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "suffix:" + String.join(",", suffixes) + "=" + policy;
+        }
+    }
+
+    private static final class MethodRule extends Rule {
+        private final String[] methods;
+
+        MethodRule(String[] methods, SessionPolicy policy) {
+            super(policy);
+            this.methods = methods;
+        }
+
+        @Override
+        boolean matches(String method, String requestURI) {
+            for (String m : methods) {
+                if (m.equalsIgnoreCase(method)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return "method:" + String.join(",", methods) + "=" + policy;
+        }
+    }
+
+    private static final class PatternRule extends Rule {
+        private final Pattern pattern;
+
+        PatternRule(Pattern pattern, SessionPolicy policy) {
+            super(policy);
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean matches(String method, String requestURI) {
+            return pattern.matcher(requestURI).matches();
+        }
+
+        @Override
+        public String toString() {
+            return "pattern:" + pattern.pattern() + "=" + policy;
+        }
+    }
+}
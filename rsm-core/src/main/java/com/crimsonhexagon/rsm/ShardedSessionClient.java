@@ -0,0 +1,545 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * {@link RedisSessionClient} spreading keys across independent redis primaries (shards) by consistent hashing with
+ * virtual nodes. Keys are routed by a token derived from the key by the manager, so the keys belonging to a session
+ * are stored on the same shard.<br>
+ * With shard hints, session IDs are generated with the index of their shard as a prefix (see {@link #hint(String)});
+ * hinted keys are routed by their hint and never move when shards are added.<br>
+ * Shards are added by appending them: while the ring of the first <code>previousShardCount</code> shards is given,
+ * keys that are not found on their shard are read from the shard they were routed to before (a dual-read migration
+ * window), and deletions and expirations are applied to both shards. Keys passed to scripts (versioned saves, session
+ * ownership) are first moved to their new shard, so scripts never act on a shard missing the key. Once sessions saved
+ * before the change have expired the window can be closed.
+ */
+public class ShardedSessionClient implements RedisSessionClient {
+    static final char HINT_SEPARATOR = '-';
+
+    /**
+     * Remaining time to live of a key in milliseconds: <code>-1</code> if it has none, <code>-2</code> if the key does
+     * not exist.
+     * <ul>
+     * <li>KEYS[1]: the key</li>
+     * </ul>
+     */
+    static final RedisScript TTL = new RedisScript("return redis.call('PTTL', KEYS[1])\n");
+
+    /**
+     * Store a value moved from another shard unless the key exists.
+     * <ul>
+     * <li>KEYS[1]: the key</li>
+     * <li>ARGV[1]: the value</li>
+     * <li>ARGV[2]: time to live in milliseconds; <code>0</code> for none</li>
+     * </ul>
+     * Returns <code>1</code> if the value was stored, <code>0</code> if the key exists.
+     */
+    static final RedisScript MIGRATE = new RedisScript(
+        "local stored\n"
+        + "if tonumber(ARGV[2]) > 0 then stored = redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2], 'NX')\n"
+        + "else stored = redis.call('SET', KEYS[1], ARGV[1], 'NX') end\n"
+        + "if stored then return 1 end\n"
+        + "return 0\n");
+
+    private final List<RedisSessionClient> shards;
+    private final TreeMap<Long, Integer> ring;
+    private final TreeMap<Long, Integer> previousRing;
+    private final Function<String, String> router;
+    private final boolean shardHints;
+    private final LongAdder migrationReads = new LongAdder();
+    private final LongAdder migratedKeys = new LongAdder();
+
+    /**
+     * @param shards clients of the shards, in a stable order: shards are identified by their index
+     * @param virtualNodes number of points of each shard on the hash ring
+     * @param router derives the routing token of a key; keys with equal tokens are stored on the same shard
+     * @param shardHints whether to route tokens starting with a shard index followed by {@value #HINT_SEPARATOR} to that
+     *        shard
+     * @param previousShardCount number of shards before shards were appended, to read keys not yet found on their new
+     *        shard from their previous one; <code>0</code> if not migrating
+     */
+    public ShardedSessionClient(List<RedisSessionClient> shards, int virtualNodes, Function<String, String> router, boolean shardHints,
+        int previousShardCount) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        if (previousShardCount >= shards.size()) {
+            throw new IllegalArgumentException("previousShardCount must be less than the number of shards: " + previousShardCount);
+        }
+        this.shards = new ArrayList<>(shards);
+        this.ring = ring(shards.size(), virtualNodes);
+        this.previousRing = previousShardCount > 0 ? ring(previousShardCount, virtualNodes) : null;
+        this.router = router;
+        this.shardHints = shardHints;
+    }
+
+    private static TreeMap<Long, Integer> ring(int shardCount, int virtualNodes) {
+        final TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int node = 0; node < virtualNodes; node++) {
+                // independent of the shard count: appending shards leaves the points of existing shards in place
+                ring.put(hash("shard-" + shard + "#" + node), shard);
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * 64-bit FNV-1a, finalized with the murmur3 mix for a better spread of similar strings
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb3ccc5c6a58dL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int locate(TreeMap<Long, Integer> ring, String token) {
+        final Map.Entry<Long, Integer> point = ring.ceilingEntry(hash(token));
+        return point == null ? ring.firstEntry().getValue() : point.getValue();
+    }
+
+    /**
+     * Index of the shard named by the hint of a token
+     * 
+     * @param token
+     * @return <code>-1</code> if the token has no valid hint
+     */
+    private int hinted(String token) {
+        if (!shardHints) {
+            return -1;
+        }
+        final int separator = token.indexOf(HINT_SEPARATOR);
+        if (separator <= 0 || separator > 4) {
+            return -1;
+        }
+        int shard = 0;
+        for (int i = 0; i < separator; i++) {
+            final char c = token.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            shard = shard * 10 + (c - '0');
+        }
+        return shard < shards.size() ? shard : -1;
+    }
+
+    /**
+     * Index of the shard storing a key
+     * 
+     * @param key
+     * @return
+     */
+    int shardOf(String key) {
+        final String token = router.apply(key);
+        final int hinted = hinted(token);
+        return hinted >= 0 ? hinted : locate(ring, token);
+    }
+
+    /**
+     * Index of the shard a key was stored on before shards were appended
+     * 
+     * @param key
+     * @return <code>-1</code> if not migrating or the key has not moved
+     */
+    int previousShardOf(String key) {
+        if (previousRing == null) {
+            return -1;
+        }
+        final String token = router.apply(key);
+        if (hinted(token) >= 0) {
+            return -1;
+        }
+        final int previous = locate(previousRing, token);
+        return previous == locate(ring, token) ? -1 : previous;
+    }
+
+    private RedisSessionClient shard(String key) {
+        return shards.get(shardOf(key));
+    }
+
+    private RedisSessionClient previousShard(String key) {
+        final int previous = previousShardOf(key);
+        return previous < 0 ? null : shards.get(previous);
+    }
+
+    /**
+     * Prefix a newly generated session ID with the index of the shard it hashes to; the session is then routed by the
+     * prefix without hashing, and stays on its shard when shards are appended
+     * 
+     * @param sessionId
+     * @return the ID unchanged without shard hints
+     */
+    public String hint(String sessionId) {
+        return shardHints ? String.valueOf(locate(ring, sessionId)) + HINT_SEPARATOR + sessionId : sessionId;
+    }
+
+    /**
+     * Group keys by the index of their shard, keeping their order within each shard
+     */
+    private Map<Integer, List<String>> byShard(Collection<String> keys) {
+        final Map<Integer, List<String>> grouped = new LinkedHashMap<>();
+        for (String key : keys) {
+            grouped.computeIfAbsent(shardOf(key), s -> new ArrayList<>()).add(key);
+        }
+        return grouped;
+    }
+
+    @Override
+    public void save(String key, RedisSession session) {
+        shard(key).save(key, session);
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        return shard(key).reserve(key, session, ttl, timeUnit);
+    }
+
+    @Override
+    public void save(String key, RedisSession session, byte[] encoded) {
+        shard(key).save(key, session, encoded);
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        return shard(key).reserve(key, session, encoded, ttl, timeUnit);
+    }
+
+    @Override
+    public RedisSession load(String key) {
+        final RedisSession session = shard(key).load(key);
+        final RedisSessionClient previous = previousShard(key);
+        if (session != null || previous == null) {
+            return session;
+        }
+        final RedisSession migrating = previous.load(key);
+        if (migrating != null) {
+            migrationReads.increment();
+        }
+        return migrating;
+    }
+
+    @Override
+    public byte[] loadEncoded(String key) {
+        final byte[] encoded = shard(key).loadEncoded(key);
+        final RedisSessionClient previous = previousShard(key);
+        if (encoded != null || previous == null) {
+            return encoded;
+        }
+        final byte[] migrating = previous.loadEncoded(key);
+        if (migrating != null) {
+            migrationReads.increment();
+        }
+        return migrating;
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        final Map<String, byte[]> values = new HashMap<>();
+        byShard(keys).forEach((shard, shardKeys) -> {
+            final List<byte[]> encoded = shards.get(shard).loadEncoded(shardKeys);
+            for (int i = 0; i < shardKeys.size(); i++) {
+                values.put(shardKeys.get(i), encoded.get(i));
+            }
+        });
+        final List<byte[]> result = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            byte[] encoded = values.get(key);
+            if (encoded == null && previousShard(key) != null) {
+                encoded = loadEncoded(key);
+            }
+            result.add(encoded);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        final CompletableFuture<byte[]> load = shard(key).loadEncodedAsync(key, alternate);
+        final RedisSessionClient previous = previousShard(key);
+        if (previous == null) {
+            return load;
+        }
+        return load.thenCompose(encoded -> encoded != null ? CompletableFuture.completedFuture(encoded) : loadMigrating(previous, key, alternate));
+    }
+
+    private CompletableFuture<byte[]> loadMigrating(RedisSessionClient previous, String key, boolean alternate) {
+        return previous.loadEncodedAsync(key, alternate).thenApply(encoded -> {
+            if (encoded != null) {
+                migrationReads.increment();
+            }
+            return encoded;
+        });
+    }
+
+    @Override
+    public byte[] encode(Object obj) {
+        return shards.get(0).encode(obj);
+    }
+
+    @Override
+    public Object decode(byte[] encoded) {
+        return shards.get(0).decode(encoded);
+    }
+
+    @Override
+    public Stream<List<String>> scanKeys(String pattern, int count) {
+        return shards.stream().flatMap(shard -> shard.scanKeys(pattern, count));
+    }
+
+    @Override
+    public void delete(String key) {
+        shard(key).delete(key);
+        final RedisSessionClient previous = previousShard(key);
+        if (previous != null) {
+            previous.delete(key);
+        }
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        byShard(keys).forEach((shard, shardKeys) -> shards.get(shard).delete(shardKeys));
+        if (previousRing != null) {
+            for (String key : keys) {
+                final RedisSessionClient previous = previousShard(key);
+                if (previous != null) {
+                    previous.delete(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean rename(String oldKey, String newKey) {
+        final int shard = shardOf(oldKey);
+        // RENAMENX cannot move a key between shards; the manager then saves under the new key instead
+        if (shard != shardOf(newKey) || previousShardOf(oldKey) >= 0) {
+            return false;
+        }
+        return shards.get(shard).rename(oldKey, newKey);
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        if (previousRing != null) {
+            // e.g. a compare-and-set must see the version of a session still stored on its previous shard
+            keys.forEach(this::migrate);
+        }
+        // scripts may only access keys of one shard; the first key determines it
+        return (keys.isEmpty() ? shards.get(0) : shard(keys.get(0))).evalScript(script, keys, args);
+    }
+
+    /**
+     * Move a key only stored on its previous shard to its new shard, keeping its time to live. A key written to its
+     * new shard in the meantime is kept.
+     */
+    private void migrate(String key) {
+        final RedisSessionClient previous = previousShard(key);
+        final RedisSessionClient current = shard(key);
+        if (previous == null || current.exists(key)) {
+            return;
+        }
+        final byte[] value = previous.loadEncoded(key);
+        final long ttlMillis = value == null ? -2 : previous.evalScript(TTL, Collections.singletonList(key), Collections.emptyList());
+        if (ttlMillis == -2) {
+            return;
+        }
+        final byte[] ttlArg = Long.toString(Math.max(ttlMillis, 0)).getBytes(StandardCharsets.US_ASCII);
+        if (current.evalScript(MIGRATE, Collections.singletonList(key), Arrays.asList(value, ttlArg)) > 0) {
+            migratedKeys.increment();
+        }
+        previous.delete(key);
+    }
+
+    @Override
+    public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+        shard(key).expire(key, expirationTime, timeUnit);
+        final RedisSessionClient previous = previousShard(key);
+        if (previous != null) {
+            // the session may only be stored on its previous shard until it is saved again
+            previous.expire(key, expirationTime, timeUnit);
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        if (shard(key).exists(key)) {
+            return true;
+        }
+        final RedisSessionClient previous = previousShard(key);
+        return previous != null && previous.exists(key);
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        shard(key).countUnique(key, member, expirationTime, timeUnit);
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        // keys to be counted together should share a routing token; counts of different shards can only be added
+        long count = 0;
+        for (Map.Entry<Integer, List<String>> shardKeys : byShard(keys).entrySet()) {
+            count += shards.get(shardKeys.getKey()).uniqueCount(shardKeys.getValue());
+        }
+        return count;
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        shard(key).addToSet(key, member, expirationTime, timeUnit);
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        shard(key).removeFromSet(key, members);
+        final RedisSessionClient previous = previousShard(key);
+        if (previous != null) {
+            previous.removeFromSet(key, members);
+        }
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        final Set<String> members = shard(key).getSetMembers(key);
+        final RedisSessionClient previous = previousShard(key);
+        if (previous == null) {
+            return members;
+        }
+        final Set<String> merged = new HashSet<>(members);
+        merged.addAll(previous.getSetMembers(key));
+        return merged;
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        shard(key).mark(key, ttl, timeUnit);
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        return shard(key).markIfAbsent(key, ttl, timeUnit);
+    }
+
+    @Override
+    public List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        final Map<String, Boolean> claimed = new HashMap<>();
+        byShard(keys).forEach((shard, shardKeys) -> {
+            final List<Boolean> marked = shards.get(shard).markIfAbsent(shardKeys, ttl, timeUnit);
+            for (int i = 0; i < shardKeys.size(); i++) {
+                claimed.put(shardKeys.get(i), marked.get(i));
+            }
+        });
+        final List<Boolean> result = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            result.add(claimed.get(key));
+        }
+        return result;
+    }
+
+    @Override
+    public void subscribeExpirations(Consumer<String> listener) {
+        shards.forEach(shard -> shard.subscribeExpirations(listener));
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        // subscribers listen on every shard
+        shard(channel).publish(channel, message);
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        // messages are also published by scripts, on the shard of the keys they access
+        shards.forEach(shard -> shard.subscribe(channel, listener));
+    }
+
+    @Override
+    public int getEncodedSize(Object obj) {
+        return shards.get(0).getEncodedSize(obj);
+    }
+
+    @Override
+    public boolean supports(Capability capability) {
+        return shards.stream().allMatch(shard -> shard.supports(capability));
+    }
+
+    @Override
+    public void ping() {
+        shards.forEach(RedisSessionClient::ping);
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return shards.get(0).getTimeoutMillis();
+    }
+
+    @Override
+    public void shutdown() {
+        shards.forEach(RedisSessionClient::shutdown);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Number of keys read from their previous shard
+     * 
+     * @return
+     */
+    public long getMigrationReads() {
+        return migrationReads.sum();
+    }
+
+    /**
+     * Number of keys moved from their previous shard before running a script on them
+     * 
+     * @return
+     */
+    public long getMigratedKeys() {
+        return migratedKeys.sum();
+    }
+}
@@ -0,0 +1,95 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Reference-counted resources shared by the managers of the contexts in one JVM, e.g. redis clients and their
+ * connection pools: a resource is created by the first manager acquiring its key and closed once the last one has
+ * released it. Registries should be held in static fields of classes loaded by the common classloader.
+ *
+ * @param <T> resource type
+ */
+public final class SharedResources<T> {
+    private final Map<String, Shared<T>> resources = new HashMap<>();
+    private final Consumer<T> closer;
+
+    /**
+     * @param closer closes a resource no longer used
+     */
+    public SharedResources(Consumer<T> closer) {
+        this.closer = closer;
+    }
+
+    /**
+     * Get the resource for the key, creating it if it is not in use
+     * 
+     * @param key identifies the configuration of the resource; managers acquiring equal keys share the resource
+     * @param factory creates the resource
+     * @return
+     */
+    public synchronized T acquire(String key, Supplier<T> factory) {
+        Shared<T> shared = resources.get(key);
+        if (shared == null) {
+            shared = new Shared<>(factory.get());
+            resources.put(key, shared);
+        }
+        shared.references++;
+        return shared.resource;
+    }
+
+    /**
+     * Release a resource obtained by {@link #acquire(String, Supplier)}, closing it if no longer used
+     * 
+     * @param key
+     */
+    public synchronized void release(String key) {
+        final Shared<T> shared = resources.get(key);
+        if (shared == null) {
+            throw new IllegalStateException("Resource not acquired: " + key);
+        }
+        if (--shared.references == 0) {
+            resources.remove(key);
+            closer.accept(shared.resource);
+        }
+    }
+
+    /**
+     * Number of managers holding the resource for the key
+     * 
+     * @param key
+     * @return
+     */
+    public synchronized int references(String key) {
+        final Shared<T> shared = resources.get(key);
+        return shared == null ? 0 : shared.references;
+    }
+
+    private static final class Shared<T> {
+        private final T resource;
+        private int references;
+
+        private Shared(T resource) {
+            this.resource = resource;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.concurrent.TimeUnit;
+
+public class ActiveSessionCounterTest {
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    public void testAddsOncePerBucket() {
+        MockRedisSessionClient client = spy(new MockRedisSessionClient());
+        ActiveSessionCounter counter = new ActiveSessionCounter("_rsm_:active:", 5 * MINUTE, 30 * MINUTE);
+        counter.track(client, "a", 0);
+        counter.track(client, "a", MINUTE);
+        counter.track(client, "b", MINUTE);
+        verify(client).countUnique(Mockito.eq("_rsm_:active:0"), Mockito.eq("a"), Mockito.eq(35 * MINUTE), Mockito.eq(TimeUnit.MILLISECONDS));
+        verify(client, times(2)).countUnique(Mockito.anyString(), Mockito.anyString(), Mockito.anyLong(), Mockito.any());
+
+        counter.track(client, "a", 5 * MINUTE);
+        verify(client).countUnique(Mockito.eq("_rsm_:active:" + 5 * MINUTE), Mockito.eq("a"), Mockito.anyLong(), Mockito.any());
+    }
+
+    @Test
+    public void testCountsUnionOfWindow() {
+        MockRedisSessionClient client = new MockRedisSessionClient();
+        ActiveSessionCounter counter = new ActiveSessionCounter("_rsm_:active:", 5 * MINUTE, 30 * MINUTE);
+        counter.track(client, "a", 0);
+        counter.track(client, "b", 0);
+        counter.track(client, "a", 10 * MINUTE);
+        counter.track(client, "c", 20 * MINUTE);
+        Assert.assertEquals(3, counter.count(client, 20 * MINUTE));
+        // bucket 0 falls out of the window
+        Assert.assertEquals(2, counter.count(client, 35 * MINUTE));
+        Assert.assertEquals(0, counter.count(client, 60 * MINUTE));
+    }
+}
@@ -0,0 +1,75 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class AttributeSizeProfilerTest {
+
+    @Test
+    public void testHeavyHitterSurvivesEviction() {
+        AttributeSizeProfiler profiler = new AttributeSizeProfiler(3);
+        for (int i = 0; i < 1000; i++) {
+            profiler.record("cart", new StringBuilder(), 1000, true);
+            profiler.record("attr" + i, "value", 10, false);
+        }
+        List<AttributeSizeProfiler.Entry> top = profiler.top(1);
+        Assert.assertEquals(1, top.size());
+        Assert.assertEquals("cart", top.get(0).name);
+        Assert.assertEquals(StringBuilder.class.getName(), top.get(0).className);
+        Assert.assertEquals(1000, top.get(0).writes);
+        Assert.assertEquals(2000, profiler.getSampleCount());
+        Assert.assertTrue(profiler.top(10).size() <= 3);
+    }
+
+    @Test
+    public void testKeyedByNameAndClass() {
+        AttributeSizeProfiler profiler = new AttributeSizeProfiler(10);
+        profiler.record("attr", "value", 10, false);
+        profiler.record("attr", 1L, 10, false);
+        Assert.assertEquals(2, profiler.top(10).size());
+    }
+
+    @Test
+    public void testPercentiles() {
+        AttributeSizeProfiler profiler = new AttributeSizeProfiler(10);
+        for (int i = 0; i < 99; i++) {
+            profiler.record("attr", "value", 100, false);
+        }
+        profiler.record("attr", "value", 5000, false);
+        AttributeSizeProfiler.Entry entry = profiler.top(1).get(0);
+        Assert.assertEquals(127, entry.percentile(0.5)); // upper bound of [64, 128)
+        Assert.assertEquals(127, entry.percentile(0.99));
+        Assert.assertEquals(5000, entry.percentile(1));
+        Assert.assertEquals(5000, entry.max);
+        Assert.assertEquals(99 * 100 + 5000, entry.weight);
+        Assert.assertEquals(0, entry.error);
+    }
+
+    @Test
+    public void testReset() {
+        AttributeSizeProfiler profiler = new AttributeSizeProfiler(10);
+        profiler.record("attr", "value", 10, false);
+        profiler.reset();
+        Assert.assertTrue(profiler.top(10).isEmpty());
+        Assert.assertEquals(0, profiler.getSampleCount());
+    }
+}
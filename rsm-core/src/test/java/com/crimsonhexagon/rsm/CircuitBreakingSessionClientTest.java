@@ -0,0 +1,282 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import org.apache.catalina.Context;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CircuitBreakingSessionClientTest {
+    private RedisSessionManager manager;
+    private FlakyClient redis;
+
+    @Before
+    public void setUp() {
+        manager = spy(RedisSessionManager.class);
+        when(manager.getContext()).thenReturn(mock(Context.class));
+        redis = new FlakyClient();
+    }
+
+    @Test
+    public void testServesLocallyWhileOpen() {
+        CircuitBreakingSessionClient client = new CircuitBreakingSessionClient(redis, 2, 1000, 60000, 100);
+        redis.down = true;
+        client.save("k1", session("1"));
+        Assert.assertEquals(CircuitBreakingSessionClient.State.CLOSED, client.getState());
+        Assert.assertTrue(client.reserve("k2", session("2"), 1, TimeUnit.MINUTES));
+        Assert.assertEquals(CircuitBreakingSessionClient.State.OPEN, client.getState());
+        Assert.assertEquals(1, client.getTrips());
+
+        // no further calls reach redis
+        int calls = redis.calls.get();
+        client.save("k3", session("3"));
+        Assert.assertFalse(client.reserve("k3", session("3"), 1, TimeUnit.MINUTES));
+        Assert.assertEquals("1", client.load("k1").getId());
+        Assert.assertEquals("3", ((RedisSession) client.decode(client.loadEncoded("k3"))).getId());
+        Assert.assertTrue(client.exists("k2"));
+        Assert.assertFalse(client.exists("k4"));
+        Assert.assertNull(client.loadEncoded("k4"));
+        client.delete("k1");
+        Assert.assertNull(client.load("k1"));
+        Assert.assertTrue(client.rename("k3", "k5"));
+        Assert.assertNull(client.loadEncoded("k3"));
+        Assert.assertNotNull(client.loadEncoded("k5"));
+        Assert.assertFalse(client.rename("k4", "k6"));
+        Assert.assertEquals(calls, redis.calls.get());
+        Assert.assertEquals(2, client.getLocalSessionCount());
+    }
+
+    @Test
+    public void testResyncsOnRecovery() throws Exception {
+        CircuitBreakingSessionClient client = new CircuitBreakingSessionClient(redis, 1, 1000, 0, 100);
+        redis.save("k0", session("0"));
+        redis.addToSet("index", "0", 1, TimeUnit.MINUTES);
+        redis.down = true;
+        client.save("k1", session("1"));
+        client.expire("k1", 1, TimeUnit.MINUTES);
+        client.delete("k0");
+        client.removeFromSet("index", Collections.singletonList("0"));
+        client.addToSet("index", "1", 1, TimeUnit.MINUTES);
+        Assert.assertEquals(Collections.singleton("0"), redis.getSetMembers("index"));
+        Assert.assertEquals(CircuitBreakingSessionClient.State.OPEN, client.getState());
+
+        redis.down = false;
+        Assert.assertFalse(client.exists("k2")); // probe
+        Assert.assertEquals(CircuitBreakingSessionClient.State.CLOSED, client.getState());
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((client.getLocalSessionCount() > 0 || !redis.getSetMembers("index").equals(Collections.singleton("1")))
+            && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(0, client.getLocalSessionCount());
+        Assert.assertEquals("1", redis.load("k1").getId());
+        Assert.assertFalse(redis.exists("k0"));
+        // set changes are written after sessions and deletions
+        Assert.assertEquals(Collections.singleton("1"), redis.getSetMembers("index"));
+    }
+
+    @Test
+    public void testVersionedSavesWhileOpen() throws Exception {
+        CircuitBreakingSessionClient client = new CircuitBreakingSessionClient(redis, 1, 1000, 0, 100);
+        final String key = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "s1";
+        when(manager.getClient()).thenReturn(client);
+        manager.setVersionedSaves(true);
+        manager.setAnonymousSessionTimeout(30);
+        manager.createSession("s1");
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession session = (RedisSession) manager.findSession("s1");
+        final long loaded = session.getVersion();
+        redis.down = true;
+        client.expire(key, 1, TimeUnit.MINUTES);
+        Assert.assertEquals(CircuitBreakingSessionClient.State.OPEN, client.getState());
+
+        // neither script runs while redis is down; the session is kept locally
+        session.setAttribute("a", "1");
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(loaded + 1, session.getVersion());
+        Assert.assertEquals(1, client.getLocalSessionCount());
+
+        redis.down = false;
+        client.exists("k2"); // probe
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getLocalSessionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(0, client.getLocalSessionCount());
+        final byte[] stored = redis.loadEncoded(key);
+        Assert.assertTrue(SessionEnvelope.version(stored) > loaded);
+        Assert.assertEquals("1", ((RedisSession) redis.decode(SessionEnvelope.payload(stored))).getAttribute("a"));
+    }
+
+    @Test
+    public void testFailedProbeKeepsCircuitOpen() {
+        CircuitBreakingSessionClient client = new CircuitBreakingSessionClient(redis, 1, 1000, 0, 100);
+        redis.down = true;
+        client.expire("k1", 1, TimeUnit.MINUTES);
+        Assert.assertEquals(CircuitBreakingSessionClient.State.OPEN, client.getState());
+        client.expire("k1", 1, TimeUnit.MINUTES); // probe fails
+        Assert.assertEquals(CircuitBreakingSessionClient.State.OPEN, client.getState());
+        Assert.assertEquals(1, client.getTrips());
+    }
+
+    @Test
+    public void testFailedReadsAreNotReportedMissing() {
+        CircuitBreakingSessionClient client = new CircuitBreakingSessionClient(redis, 2, 1000, 60000, 100);
+        redis.save("k1", session("1"));
+        redis.down = true;
+        // the session may well still be in redis: a failure must not read as a missing session
+        try {
+            client.loadEncoded("k1");
+            Assert.fail("Expected the failure to be rethrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            client.exists("k1");
+            Assert.fail("Expected the failure to be rethrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(CircuitBreakingSessionClient.State.OPEN, client.getState());
+        // once open, sessions not held locally are missing
+        Assert.assertNull(client.loadEncoded("k1"));
+        Assert.assertEquals(Arrays.asList(null, null), client.loadEncoded(Arrays.asList("k1", "k2")));
+        Assert.assertFalse(client.exists("k1"));
+    }
+
+    @Test
+    public void testSlowCallsOpenCircuit() {
+        CircuitBreakingSessionClient client = new CircuitBreakingSessionClient(redis, 2, 1, 60000, 100);
+        redis.delayMillis = 20;
+        client.exists("k1");
+        client.exists("k1");
+        Assert.assertEquals(CircuitBreakingSessionClient.State.OPEN, client.getState());
+    }
+
+    @Test
+    public void testLocalCapacity() {
+        CircuitBreakingSessionClient client = new CircuitBreakingSessionClient(redis, 1, 1000, 60000, 2);
+        redis.down = true;
+        client.save("k1", session("1"));
+        client.save("k2", session("2"));
+        client.load("k1");
+        client.save("k3", session("3"));
+        Assert.assertEquals(2, client.getLocalSessionCount());
+        Assert.assertEquals(1, client.getEvictions());
+        Assert.assertNull(client.loadEncoded("k2"));
+    }
+
+    private RedisSession session(String id) {
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId(id);
+        return session;
+    }
+
+    private static class FlakyClient extends MockRedisSessionClient {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean down;
+        volatile long delayMillis;
+
+        private void call() {
+            calls.incrementAndGet();
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (down) {
+                throw new IllegalStateException("down");
+            }
+        }
+
+        @Override
+        public void save(String key, RedisSession session) {
+            call();
+            super.save(key, session);
+        }
+
+        @Override
+        public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+            call();
+            return super.reserve(key, session, ttl, timeUnit);
+        }
+
+        @Override
+        public byte[] loadEncoded(String key) {
+            call();
+            return super.loadEncoded(key);
+        }
+
+        @Override
+        public boolean exists(String key) {
+            call();
+            return super.exists(key);
+        }
+
+        @Override
+        public void delete(String key) {
+            call();
+            super.delete(key);
+        }
+
+        @Override
+        public void delete(Collection<String> keys) {
+            call();
+            super.delete(keys);
+        }
+
+        @Override
+        public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+            call();
+            super.expire(key, expirationTime, timeUnit);
+        }
+
+        @Override
+        public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+            call();
+            return super.evalScript(script, keys, args);
+        }
+
+        @Override
+        public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+            call();
+            super.addToSet(key, member, expirationTime, timeUnit);
+        }
+
+        @Override
+        public void removeFromSet(String key, Collection<String> members) {
+            call();
+            super.removeFromSet(key, members);
+        }
+    }
+}
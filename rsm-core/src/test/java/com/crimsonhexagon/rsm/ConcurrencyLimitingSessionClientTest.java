@@ -0,0 +1,153 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.crimsonhexagon.rsm.ConcurrencyLimitingSessionClient.Operation;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.security.Principal;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrencyLimitingSessionClientTest {
+    private RedisSessionClient redis;
+
+    @Before
+    public void setUp() {
+        redis = mock(RedisSessionClient.class);
+    }
+
+    @Test
+    public void testShedsByPriority() {
+        ConcurrencyLimitingSessionClient client = new ConcurrencyLimitingSessionClient(redis, 1, 4, 4);
+        CompletableFuture<byte[]> pending = new CompletableFuture<>();
+        when(redis.loadEncodedAsync(Mockito.anyString(), Mockito.anyBoolean())).thenReturn(pending);
+        RedisSession anonymous = mock(RedisSession.class);
+        RedisSession authenticated = mock(RedisSession.class);
+        when(authenticated.getPrincipal()).thenReturn(mock(Principal.class));
+
+        // too few operations complete for their latency to shrink the limit, so the shares below do not depend on timing
+        client.loadEncodedAsync("k1", false);
+        client.loadEncodedAsync("k2", false);
+        Assert.assertEquals(2, client.getInFlight());
+        // touches may use half of the limit
+        client.expire("k1", 1, TimeUnit.MINUTES);
+        verify(redis, never()).expire("k1", 1, TimeUnit.MINUTES);
+        client.save("k1", anonymous);
+        verify(redis).save("k1", anonymous);
+
+        client.loadEncodedAsync("k3", false);
+        // anonymous saves three quarters
+        client.save("k2", anonymous);
+        verify(redis, never()).save("k2", anonymous);
+        client.save("k2", authenticated);
+        verify(redis).save("k2", authenticated);
+        Assert.assertNull(client.loadEncodedAsync("k4", false).getNow(null));
+
+        // loads fail once the whole limit is used
+        Assert.assertTrue(client.loadEncodedAsync("k5", false).isCompletedExceptionally());
+        try {
+            client.loadEncoded("k5");
+            Assert.fail("Expected the load to be shed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(4, client.getShed());
+        Assert.assertEquals(4, client.getLimit());
+
+        pending.complete(null);
+        Assert.assertEquals(0, client.getInFlight());
+    }
+
+    @Test
+    public void testIndexWritesFailWhenShed() {
+        ConcurrencyLimitingSessionClient client = new ConcurrencyLimitingSessionClient(redis, 1, 4, 4);
+        when(redis.loadEncodedAsync(Mockito.anyString(), Mockito.anyBoolean())).thenReturn(new CompletableFuture<>());
+        client.loadEncodedAsync("k1", false);
+        client.loadEncodedAsync("k2", false);
+        // beyond the share of touches, yet not dropped silently: the index is not written again on later saves
+        client.addToSet("principal", "k1", 1, TimeUnit.MINUTES);
+        verify(redis).addToSet("principal", "k1", 1, TimeUnit.MINUTES);
+        client.mark("expiry", 1, TimeUnit.MINUTES);
+        verify(redis).mark("expiry", 1, TimeUnit.MINUTES);
+        client.loadEncodedAsync("k3", false);
+        client.loadEncodedAsync("k4", false);
+        try {
+            client.addToSet("principal", "k2", 1, TimeUnit.MINUTES);
+            Assert.fail("Expected the index write to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLimitAdaptsToLatency() {
+        ConcurrencyLimitingSessionClient client = new ConcurrencyLimitingSessionClient(redis, 2, 10, 5);
+        double expected = 5;
+        for (int i = 0; i < 10; i++) {
+            client.record(Operation.READ, 1000, false, 5);
+            expected += 1 / expected;
+        }
+        Assert.assertEquals((int) expected, client.getLimit());
+        Assert.assertTrue(client.getLimit() > 5);
+        // unused limit does not grow
+        client.record(Operation.READ, 1000, false, 1);
+        Assert.assertEquals((int) expected, client.getLimit());
+
+        // within the tolerated latency
+        client.record(Operation.READ, 1900, false, 5);
+        expected += 1 / expected;
+        Assert.assertEquals((int) expected, client.getLimit());
+        client.record(Operation.READ, 2100, false, 5);
+        expected *= ConcurrencyLimitingSessionClient.BACKOFF_RATIO;
+        Assert.assertEquals((int) expected, client.getLimit());
+        client.record(Operation.READ, 1000, true, 5);
+        expected *= ConcurrencyLimitingSessionClient.BACKOFF_RATIO;
+        Assert.assertEquals((int) expected, client.getLimit());
+        for (int i = 0; i < 100; i++) {
+            client.record(Operation.READ, 1_000_000, false, 5);
+        }
+        Assert.assertEquals(2, client.getLimit());
+    }
+
+    @Test
+    public void testBaselinePerOperation() {
+        ConcurrencyLimitingSessionClient client = new ConcurrencyLimitingSessionClient(redis, 2, 10, 5);
+        for (int i = 0; i < ConcurrencyLimitingSessionClient.BASELINE_MIN_SAMPLES; i++) {
+            client.record(Operation.READ, 1000, false, 1);
+        }
+        // a slow first script is not measured against reads, nor against a baseline of too few scripts
+        for (int i = 0; i < ConcurrencyLimitingSessionClient.BASELINE_MIN_SAMPLES - 1; i++) {
+            client.record(Operation.SCRIPT, i == 0 ? 5000 : 20_000, false, 1);
+        }
+        Assert.assertEquals(5, client.getLimit());
+        client.record(Operation.SCRIPT, 20_000, false, 1);
+        Assert.assertEquals(4, client.getLimit());
+        client.record(Operation.READ, 2100, false, 1);
+        Assert.assertEquals(4, client.getLimit());
+    }
+}
@@ -0,0 +1,178 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class HedgingSessionClientTest {
+    private static final byte[] PRIMARY = { 1 };
+    private static final byte[] ALTERNATE = { 2 };
+
+    private RedisSessionClient redis;
+
+    @Before
+    public void setUp() {
+        redis = mock(RedisSessionClient.class);
+        when(redis.getTimeoutMillis()).thenReturn(1000L);
+    }
+
+    @Test
+    public void testFastLoadIsNotHedged() {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 1000, 95);
+        when(redis.loadEncodedAsync("key", false)).thenReturn(CompletableFuture.completedFuture(PRIMARY));
+        Assert.assertArrayEquals(PRIMARY, client.loadEncoded("key"));
+        Assert.assertEquals(0, client.getHedges());
+    }
+
+    @Test
+    public void testSlowLoadIsHedged() {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 1, 95);
+        CompletableFuture<byte[]> primary = new CompletableFuture<>();
+        when(redis.loadEncodedAsync("key", false)).thenReturn(primary);
+        when(redis.loadEncodedAsync("key", true)).thenReturn(CompletableFuture.completedFuture(ALTERNATE));
+        Assert.assertArrayEquals(ALTERNATE, client.loadEncoded("key"));
+        Assert.assertEquals(1, client.getHedges());
+        Assert.assertEquals(1, client.getHedgesWon());
+        Assert.assertTrue(primary.isCancelled());
+    }
+
+    @Test
+    public void testFailedHedgeFallsBackToPrimary() throws Exception {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 1, 95);
+        CompletableFuture<byte[]> primary = new CompletableFuture<>();
+        CompletableFuture<byte[]> alternate = new CompletableFuture<>();
+        alternate.completeExceptionally(new IllegalStateException("replica down"));
+        when(redis.loadEncodedAsync("key", false)).thenReturn(primary);
+        when(redis.loadEncodedAsync("key", true)).thenReturn(alternate);
+        new Thread(() -> {
+            sleep(20);
+            primary.complete(PRIMARY);
+        }).start();
+        Assert.assertArrayEquals(PRIMARY, client.loadEncoded("key"));
+        Assert.assertEquals(1, client.getHedges());
+        Assert.assertEquals(0, client.getHedgesWon());
+    }
+
+    @Test
+    public void testBothFailing() {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 1, 95);
+        CompletableFuture<byte[]> primary = new CompletableFuture<>();
+        CompletableFuture<byte[]> alternate = new CompletableFuture<>();
+        when(redis.loadEncodedAsync("key", false)).thenReturn(primary);
+        when(redis.loadEncodedAsync("key", true)).thenReturn(alternate);
+        new Thread(() -> {
+            sleep(20);
+            primary.completeExceptionally(new IllegalStateException("primary down"));
+            alternate.completeExceptionally(new IllegalStateException("replica down"));
+        }).start();
+        try {
+            client.loadEncoded("key");
+            Assert.fail("expected failure");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause().getMessage().endsWith("down"));
+        }
+    }
+
+    @Test
+    public void testAdaptiveDelay() {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 0, 95);
+        when(redis.loadEncodedAsync("key", false)).thenReturn(CompletableFuture.completedFuture(PRIMARY));
+        for (int i = 1; i < HedgingSessionClient.MIN_SAMPLES; i++) {
+            client.loadEncoded("key");
+        }
+        Assert.assertTrue(client.getHedgeDelayNanos() < 0);
+        client.loadEncoded("key");
+        // all loads were immediate
+        Assert.assertEquals(HedgingSessionClient.MIN_ADAPTIVE_DELAY_MICROS * 1000, client.getHedgeDelayNanos());
+
+        CompletableFuture<byte[]> primary = new CompletableFuture<>();
+        when(redis.loadEncodedAsync("slow", false)).thenReturn(primary);
+        when(redis.loadEncodedAsync("slow", true)).thenReturn(CompletableFuture.completedFuture(ALTERNATE));
+        Assert.assertArrayEquals(ALTERNATE, client.loadEncoded("slow"));
+        Assert.assertEquals(1, client.getHedgesWon());
+    }
+
+    @Test
+    public void testLoadTimesOut() {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 0, 95);
+        when(redis.getTimeoutMillis()).thenReturn(20L);
+        CompletableFuture<byte[]> primary = new CompletableFuture<>();
+        when(redis.loadEncodedAsync("key", false)).thenReturn(primary);
+        try {
+            client.loadEncoded("key");
+            Assert.fail("expected timeout");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Timed out"));
+        }
+        Assert.assertTrue(primary.isCancelled());
+    }
+
+    @Test
+    public void testHedgedLoadBoundedByDeadline() {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 1, 95);
+        CompletableFuture<byte[]> primary = new CompletableFuture<>();
+        CompletableFuture<byte[]> alternate = new CompletableFuture<>();
+        when(redis.loadEncodedAsync("key", false)).thenReturn(primary);
+        when(redis.loadEncodedAsync("key", true)).thenReturn(alternate);
+        RedisDeadline.bind(RedisDeadline.after(20, TimeUnit.MILLISECONDS));
+        try {
+            client.loadEncoded("key");
+            Assert.fail("expected timeout");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Timed out"));
+        } finally {
+            RedisDeadline.bind(null);
+        }
+        Assert.assertEquals(1, client.getHedges());
+        Assert.assertTrue(primary.isCancelled());
+        Assert.assertTrue(alternate.isCancelled());
+    }
+
+    @Test
+    public void testFailedLoadsAreNotSampled() {
+        HedgingSessionClient client = new HedgingSessionClient(redis, 0, 95);
+        CompletableFuture<byte[]> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("down"));
+        when(redis.loadEncodedAsync("key", false)).thenReturn(failed);
+        for (int i = 0; i < HedgingSessionClient.MIN_SAMPLES; i++) {
+            try {
+                client.loadEncoded("key");
+                Assert.fail("expected failure");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        Assert.assertTrue(client.getHedgeDelayNanos() < 0);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -16,19 +16,52 @@
 
 package com.crimsonhexagon.rsm;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class MockRedisSessionClient implements RedisSessionClient {
     private ConcurrentHashMap<String, RedisSession> store = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, Expiration> expirationTimes = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, String> leases = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Set<String>> hyperLogLogs = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Set<String>> sets = new ConcurrentHashMap<>();
+    private Set<String> markers = ConcurrentHashMap.newKeySet();
+    private List<Consumer<String>> expirationListeners = new CopyOnWriteArrayList<>();
+    private ConcurrentHashMap<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
 
     @Override
-    public void save(String key, RedisSession session) {
+    public synchronized void save(String key, RedisSession session) {
         store.put(key, session);
+        versions.remove(key);
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        if (store.putIfAbsent(key, session) != null) {
+            return false;
+        }
+        expirationTimes.put(key, new Expiration(ttl, timeUnit));
+        return true;
     }
 
     @Override
@@ -37,8 +70,156 @@ public class MockRedisSessionClient implements RedisSessionClient {
     }
 
     @Override
-    public void delete(String key) {
+    public synchronized byte[] loadEncoded(String key) {
+        RedisSession session = store.get(key);
+        if (session == null) {
+            return null;
+        }
+        final Long version = versions.get(key);
+        return version == null ? encode(session) : SessionEnvelope.wrap(version, encode(session));
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        return keys.stream().map(this::loadEncoded).collect(Collectors.toList());
+    }
+
+    @Override
+    public Object decode(byte[] encoded) {
+        try {
+            return new ObjectInputStream(new ByteArrayInputStream(encoded)).readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        return CompletableFuture.completedFuture(loadEncoded(key));
+    }
+
+    @Override
+    public Stream<List<String>> scanKeys(String pattern, int count) {
+        final Pattern regex = globToRegex(pattern);
+        final List<String> keys = new ArrayList<>();
+        store.keySet().stream().filter(k -> regex.matcher(k).matches()).forEach(keys::add);
+        hyperLogLogs.keySet().stream().filter(k -> regex.matcher(k).matches()).forEach(keys::add);
+        sets.keySet().stream().filter(k -> regex.matcher(k).matches()).forEach(keys::add);
+        return IntStream.iterate(0, i -> i + count).limit((keys.size() + count - 1) / count)
+            .mapToObj(i -> keys.subList(i, Math.min(i + count, keys.size())));
+    }
+
+    @Override
+    public synchronized void delete(String key) {
         store.remove(key);
+        versions.remove(key);
+        leases.remove(key);
+        markers.remove(key);
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        for (String key : keys) {
+            store.remove(key);
+            hyperLogLogs.remove(key);
+            sets.remove(key);
+            markers.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized boolean rename(String oldKey, String newKey) {
+        if (!store.containsKey(oldKey) || store.containsKey(newKey)) {
+            return false;
+        }
+        store.put(newKey, store.remove(oldKey));
+        final Long version = versions.remove(oldKey);
+        if (version != null) {
+            versions.put(newKey, version);
+        }
+        final Expiration expiration = expirationTimes.remove(oldKey);
+        if (expiration != null) {
+            expirationTimes.put(newKey, expiration);
+        }
+        return true;
+    }
+
+    /**
+     * Supports {@link SessionEnvelope#COMPARE_AND_SET}, {@link SessionEnvelope#OVERWRITE}, {@link SessionOwnership#CLAIM},
+     * {@link SessionOwnership#WRITE}, and {@link ShardedSessionClient#TTL} and {@link ShardedSessionClient#MIGRATE} of
+     * sessions only
+     */
+    @Override
+    public synchronized long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        if (SessionOwnership.CLAIM.equals(script)) {
+            final String owner = new String(args.get(0), StandardCharsets.UTF_8);
+            if (owner.equals(leases.put(keys.get(0), owner))) {
+                return 0;
+            }
+            publish(new String(args.get(2), StandardCharsets.UTF_8), new String(args.get(3), StandardCharsets.UTF_8));
+            return 1;
+        }
+        if (SessionOwnership.WRITE.equals(script)) {
+            final String owner = new String(args.get(0), StandardCharsets.UTF_8);
+            final String holder = leases.putIfAbsent(keys.get(0), owner);
+            if (holder != null && !holder.equals(owner)) {
+                return 0;
+            }
+            store.put(keys.get(1), (RedisSession) decode(args.get(1)));
+            versions.remove(keys.get(1));
+            return 1;
+        }
+        if (ShardedSessionClient.TTL.equals(script)) {
+            if (!store.containsKey(keys.get(0))) {
+                return -2;
+            }
+            final Expiration expiration = expirationTimes.get(keys.get(0));
+            return expiration == null ? -1 : expiration.timeUnit.toMillis(expiration.expirationTime);
+        }
+        if (ShardedSessionClient.MIGRATE.equals(script)) {
+            final String key = keys.get(0);
+            if (store.containsKey(key)) {
+                return 0;
+            }
+            store.put(key, (RedisSession) decode(SessionEnvelope.payload(args.get(0))));
+            if (SessionEnvelope.isVersioned(args.get(0))) {
+                versions.put(key, SessionEnvelope.version(args.get(0)));
+            }
+            final long ttlMillis = Long.parseLong(new String(args.get(1), StandardCharsets.US_ASCII));
+            if (ttlMillis > 0) {
+                expirationTimes.put(key, new Expiration(ttlMillis, TimeUnit.MILLISECONDS));
+            }
+            return 1;
+        }
+        if (SessionEnvelope.OVERWRITE.equals(script)) {
+            final String key = keys.get(0);
+            final long version = (store.containsKey(key) ? versions.getOrDefault(key, 0L) : 0) + 1;
+            store.put(key, (RedisSession) decode(args.get(0)));
+            versions.put(key, version);
+            final long ttlMillis = Long.parseLong(new String(args.get(1), StandardCharsets.US_ASCII));
+            if (ttlMillis > 0) {
+                expirationTimes.put(key, new Expiration(ttlMillis, TimeUnit.MILLISECONDS));
+            }
+            return version;
+        }
+        if (!SessionEnvelope.COMPARE_AND_SET.equals(script)) {
+            throw new UnsupportedOperationException("Unsupported script " + script);
+        }
+        final String key = keys.get(0);
+        final long expected = Long.parseLong(new String(args.get(0), StandardCharsets.US_ASCII));
+        if (!store.containsKey(key) && expected != 0) {
+            return -1;
+        }
+        if (versions.getOrDefault(key, 0L) != expected) {
+            return 0;
+        }
+        store.put(key, (RedisSession) decode(SessionEnvelope.payload(args.get(1))));
+        versions.put(key, SessionEnvelope.version(args.get(1)));
+        final long ttlMillis = Long.parseLong(new String(args.get(2), StandardCharsets.US_ASCII));
+        if (ttlMillis > 0) {
+            expirationTimes.put(key, new Expiration(ttlMillis, TimeUnit.MILLISECONDS));
+        }
+        return 1;
     }
 
     @Override
@@ -66,16 +247,120 @@ public class MockRedisSessionClient implements RedisSessionClient {
         // noop
     }
 
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        hyperLogLogs.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(member);
+        expirationTimes.put(key, new Expiration(expirationTime, timeUnit));
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        return keys.stream().filter(hyperLogLogs::containsKey).flatMap(k -> hyperLogLogs.get(k).stream()).distinct().count();
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        sets.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(member);
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        sets.computeIfPresent(key, (k, set) -> {
+            set.removeAll(members);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        final Set<String> set = sets.get(key);
+        return set == null ? Collections.emptySet() : new HashSet<>(set);
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        markers.add(key);
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        return markers.add(key);
+    }
+
+    @Override
+    public void subscribeExpirations(Consumer<String> listener) {
+        expirationListeners.add(listener);
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        subscribers.getOrDefault(channel, Collections.emptyList()).forEach(l -> l.accept(message));
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        subscribers.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Simulate the expiration of the given key
+     * 
+     * @param key
+     */
+    public void expireKey(String key) {
+        if (markers.remove(key) || store.remove(key) != null) {
+            expirationListeners.forEach(l -> l.accept(key));
+        }
+    }
+
+    public boolean isMarked(String key) {
+        return markers.contains(key);
+    }
+
+    @Override
+    public boolean supports(Capability capability) {
+        return true;
+    }
+
     @Override
     public int getEncodedSize(Object obj) {
+        return encode(obj).length;
+    }
+
+    @Override
+    public byte[] encode(Object obj) {
         try {
             ByteArrayOutputStream bytes = new ByteArrayOutputStream();
             ObjectOutputStream os = new ObjectOutputStream(bytes);
             os.writeObject(obj);
-            return bytes.size();
+            os.flush();
+            return bytes.toByteArray();
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    /**
+     * Translate a redis glob-style pattern (<code>*</code>, <code>?</code> and backslash escapes) to a regex
+     * 
+     * @param glob
+     * @return
+     */
+    private static Pattern globToRegex(String glob) {
+        final StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                if (c == '\\' && i + 1 < glob.length()) {
+                    c = glob.charAt(++i);
+                }
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
 }
@@ -0,0 +1,57 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class RedisDeadlineTest {
+
+    @After
+    public void tearDown() {
+        RedisDeadline.bind(null);
+    }
+
+    @Test
+    public void testUnbounded() {
+        Assert.assertNull(RedisDeadline.current());
+        Assert.assertEquals(5000, RedisDeadline.timeoutMillis(5000));
+    }
+
+    @Test
+    public void testBoundsTimeout() {
+        RedisDeadline.bind(RedisDeadline.after(200, TimeUnit.MILLISECONDS));
+        final long timeout = RedisDeadline.timeoutMillis(5000);
+        Assert.assertTrue(timeout > 0 && timeout <= 200);
+        Assert.assertEquals(10, RedisDeadline.timeoutMillis(10));
+        Assert.assertFalse(RedisDeadline.current().isExpired());
+    }
+
+    @Test
+    public void testExpired() {
+        final RedisDeadline deadline = RedisDeadline.after(0, TimeUnit.MILLISECONDS);
+        RedisDeadline.bind(deadline);
+        Assert.assertTrue(deadline.isExpired());
+        Assert.assertEquals(0, deadline.remaining(TimeUnit.NANOSECONDS));
+        // still a positive timeout so that operations fail by timing out
+        Assert.assertEquals(1, RedisDeadline.timeoutMillis(5000));
+    }
+}
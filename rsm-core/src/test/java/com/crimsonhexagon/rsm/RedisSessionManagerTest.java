@@ -0,0 +1,872 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.util.StandardSessionIdGenerator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.SessionCookieConfig;
+import javax.servlet.SessionTrackingMode;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+public class RedisSessionManagerTest {
+    private RedisSessionManager manager;
+    private RedisSessionClient client;
+
+    @Before
+    public void setUp() {
+        client = mock(RedisSessionClient.class);
+        manager = spy(RedisSessionManager.class);
+        manager.setSessionIdGenerator(new StandardSessionIdGenerator());
+        when(manager.getContext()).thenReturn(mock(Context.class));
+        when(manager.getClient()).thenReturn(client);
+    }
+
+    @Test
+    public void testCreateSessionReservesId() {
+        when(client.reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any())).thenReturn(true);
+        manager.beforeRequest(SessionPolicy.FULL);
+        Session session = manager.createSession(null);
+
+        ArgumentCaptor<String> key = ArgumentCaptor.forClass(String.class);
+        verify(client).reserve(key.capture(), Mockito.same((RedisSession) session), Mockito.anyLong(), Mockito.eq(TimeUnit.SECONDS));
+        Assert.assertEquals(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + session.getId(), key.getValue());
+        verify(client, never()).exists(Mockito.anyString());
+        verify(client, never()).save(Mockito.anyString(), Mockito.any());
+
+        // already persisted; nothing left to write at the end of the request
+        manager.afterRequest(SessionPolicy.FULL);
+        verify(client, never()).save(Mockito.anyString(), Mockito.any());
+    }
+
+    @Test
+    public void testCreateSessionRetriesOnCollision() {
+        when(client.reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any())).thenReturn(false, true);
+        Session session = manager.createSession(null);
+
+        ArgumentCaptor<String> key = ArgumentCaptor.forClass(String.class);
+        verify(client, times(2)).reserve(key.capture(), Mockito.any(), Mockito.anyLong(), Mockito.any());
+        Assert.assertNotEquals(key.getAllValues().get(0), key.getAllValues().get(1));
+        Assert.assertEquals(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + session.getId(), key.getAllValues().get(1));
+    }
+
+    @Test
+    public void testNoSessionWork() throws Exception {
+        manager.beforeRequest(SessionPolicy.NO_SESSION_WORK);
+        Assert.assertNull(manager.findSession("requested"));
+        Session session = manager.createSession(null);
+        Assert.assertNotNull(session.getId());
+        Assert.assertSame(session, manager.findSession(session.getId()));
+        session.getSession().setAttribute("foo", "bar");
+        manager.afterRequest(SessionPolicy.NO_SESSION_WORK);
+
+        manager.beforeRequest(SessionPolicy.NO_SESSION_WORK);
+        manager.createSession(null).getSession().invalidate();
+        manager.afterRequest(SessionPolicy.NO_SESSION_WORK);
+        Mockito.verifyZeroInteractions(client);
+    }
+
+    @Test
+    public void testNewSessionNotSavedUnderReadOnlyPolicies() throws Exception {
+        for (SessionPolicy policy : EnumSet.of(SessionPolicy.READ_ONLY, SessionPolicy.TOUCH_ONLY)) {
+            manager.beforeRequest(policy);
+            Session session = manager.createSession(null);
+            Assert.assertSame(session, manager.findSession(session.getId()));
+            session.getSession().setAttribute("foo", "bar");
+            manager.afterRequest(policy);
+
+            manager.beforeRequest(policy);
+            manager.createSession(null).getSession().invalidate();
+            manager.afterRequest(policy);
+        }
+        Mockito.verifyZeroInteractions(client);
+    }
+
+    @Test
+    public void testConcurrentAsyncRequestsForSession() throws Exception {
+        manager.beforeRequest(SessionPolicy.FULL);
+        Session first = manager.createSession("s1");
+        RedisSessionManager.RedisSessionState firstState = manager.suspendRequest("s1");
+        manager.beforeRequest(SessionPolicy.FULL);
+        Session second = manager.createSession("s1");
+        RedisSessionManager.RedisSessionState secondState = manager.suspendRequest("s1");
+        Assert.assertNotSame(first, second);
+
+        // completing one request leaves the state of the other registered
+        manager.completeRequest(secondState);
+        Assert.assertSame(first, manager.findSession("s1"));
+        manager.completeRequest(firstState);
+        verify(client, never()).loadEncoded(Mockito.anyString());
+    }
+
+    @Test
+    public void testClientWithoutOptionalOperations() throws Exception {
+        final Map<String, RedisSession> stored = new HashMap<>();
+        when(manager.getClient()).thenReturn(new RedisSessionClient() {
+            @Override
+            public void save(String key, RedisSession session) {
+                stored.put(key, session);
+            }
+
+            @Override
+            public RedisSession load(String key) {
+                return stored.get(key);
+            }
+
+            @Override
+            public void delete(String key) {
+                stored.remove(key);
+            }
+
+            @Override
+            public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+            }
+
+            @Override
+            public boolean exists(String key) {
+                return stored.containsKey(key);
+            }
+
+            @Override
+            public int getEncodedSize(Object obj) {
+                return 0;
+            }
+
+            @Override
+            public void shutdown() {
+            }
+        });
+        manager.beforeRequest(SessionPolicy.FULL);
+        Session session = manager.createSession(null);
+        session.getSession().setAttribute("foo", "bar");
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertTrue(stored.containsKey(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + session.getId()));
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        Session loaded = manager.findSession(session.getId());
+        Assert.assertNotSame(session, loaded);
+        Assert.assertEquals("bar", loaded.getSession().getAttribute("foo"));
+        manager.afterRequest(SessionPolicy.FULL);
+    }
+
+    @Test
+    public void testLazyPersistenceSkipsEmptySession() {
+        manager.setLazySessionPersistence(true);
+        manager.beforeRequest(SessionPolicy.FULL);
+        Session session = manager.createSession(null);
+        Assert.assertNotNull(session.getId());
+        manager.afterRequest(SessionPolicy.FULL);
+        verify(client, never()).reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any());
+        verify(client, never()).save(Mockito.anyString(), Mockito.any());
+        verify(client, never()).expire(Mockito.anyString(), Mockito.anyLong(), Mockito.any());
+    }
+
+    @Test
+    public void testLazyPersistenceReservesIssuedId() {
+        when(client.reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any())).thenReturn(true);
+        manager.setLazySessionPersistence(true);
+        manager.beforeRequest(SessionPolicy.FULL);
+        Session session = manager.createSession(null);
+        final String issuedId = session.getId();
+        verify(client, never()).reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any());
+
+        session.getSession().setAttribute("foo", "bar");
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(issuedId, session.getId());
+        verify(client).reserve(Mockito.eq(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + issuedId), Mockito.same((RedisSession) session), Mockito.anyLong(), Mockito.any());
+        verify(client, never()).save(Mockito.anyString(), Mockito.any());
+    }
+
+    @Test
+    public void testLazyPersistenceReissuesTakenId() {
+        when(client.reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any())).thenReturn(false, true);
+        ServletContext servletContext = mock(ServletContext.class);
+        when(servletContext.getEffectiveSessionTrackingModes()).thenReturn(EnumSet.of(SessionTrackingMode.COOKIE));
+        when(servletContext.getSessionCookieConfig()).thenReturn(mock(SessionCookieConfig.class));
+        when(manager.getContext().getServletContext()).thenReturn(servletContext);
+        when(manager.getContext().getEncodedPath()).thenReturn("");
+        Request request = mock(Request.class);
+        Response response = mock(Response.class);
+        when(request.getResponse()).thenReturn(response);
+
+        manager.setLazySessionPersistence(true);
+        manager.beforeRequest(SessionPolicy.FULL, request);
+        Session session = manager.createSession(null);
+        final String issuedId = session.getId();
+        session.getSession().setAttribute("foo", "bar");
+        manager.afterRequest(SessionPolicy.FULL);
+
+        Assert.assertNotEquals(issuedId, session.getId());
+        verify(client).reserve(Mockito.eq(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + session.getId()), Mockito.any(), Mockito.anyLong(), Mockito.any());
+        ArgumentCaptor<Cookie> cookie = ArgumentCaptor.forClass(Cookie.class);
+        verify(response).addSessionCookieInternal(cookie.capture());
+        Assert.assertEquals(session.getId(), cookie.getValue().getValue());
+    }
+
+    @Test
+    public void testSessionTtlTiers() {
+        manager.setAnonymousSessionTimeout(5);
+        manager.setPromotionAttributes("cart, preferences");
+        manager.setExtendedSessionAttribute("rememberMe");
+        manager.setExtendedSessionTimeout(60 * 24 * 30);
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId("sessionId");
+
+        Assert.assertEquals(5, manager.getSessionTtl(session));
+        session.setAttribute("unrelated", "value");
+        Assert.assertEquals(5, manager.getSessionTtl(session));
+        session.setAttribute("preferences", "value");
+        Assert.assertEquals(0, manager.getSessionTtl(session)); // context timeout; manager not started
+        session.removeAttribute("preferences");
+        session.setPrincipal(mock(Principal.class));
+        Assert.assertEquals(0, manager.getSessionTtl(session));
+        session.setAttribute("rememberMe", Boolean.TRUE);
+        Assert.assertEquals(60 * 24 * 30, manager.getSessionTtl(session));
+
+        manager.touch(session);
+        verify(client).expire(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "sessionId", 60 * 60 * 24 * 30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testTimeBudgetDropsTouch() throws Exception {
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId("sessionId", false);
+        Mockito.reset(client);
+        manager.setRedisTimeBudgetMillis(1);
+        manager.beforeRequest(SessionPolicy.FULL);
+        Assert.assertNotNull(RedisDeadline.current());
+        Thread.sleep(5);
+        Assert.assertEquals(1, RedisDeadline.timeoutMillis(1000));
+        manager.touch(session);
+        verify(client, never()).expire(Mockito.anyString(), Mockito.anyLong(), Mockito.any());
+        Assert.assertEquals(1, manager.getSkippedOperationCount());
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertNull(RedisDeadline.current());
+
+        // a new request starts with a fresh budget
+        manager.setRedisTimeBudgetMillis(60000);
+        manager.beforeRequest(SessionPolicy.FULL);
+        Assert.assertTrue(RedisDeadline.timeoutMillis(1000) > 1);
+        manager.touch(session);
+        verify(client).expire(Mockito.eq(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "sessionId"), Mockito.anyLong(), Mockito.any());
+        manager.afterRequest(SessionPolicy.FULL);
+    }
+
+    @Test
+    public void testChangeSessionIdRenames() throws Exception {
+        final String prefix = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX;
+        when(client.rename(prefix + "oldId", prefix + "newId")).thenReturn(true);
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId("oldId");
+        manager.beforeRequest(SessionPolicy.FULL);
+        manager.changeSessionId(session, "newId");
+        Assert.assertEquals("newId", session.getId());
+        verify(client).rename(prefix + "oldId", prefix + "newId");
+        verify(client, never()).save(Mockito.anyString(), Mockito.any());
+        verify(client, never()).delete(prefix + "oldId");
+        Assert.assertEquals(1, manager.getSessionRenameCount());
+
+        // the stored session still holds the old ID
+        RedisSession stored = manager.createEmptySession();
+        stored.setId("oldId");
+        byte[] encoded = new byte[] { 1 };
+        when(client.loadEncoded(prefix + "newId")).thenReturn(encoded);
+        when(client.decode(encoded)).thenReturn(stored);
+        manager.beforeRequest(SessionPolicy.FULL);
+        Assert.assertEquals("newId", manager.findSession("newId").getId());
+    }
+
+    @Test
+    public void testChangeSessionIdSavesUnpersistedSession() {
+        final String prefix = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX;
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId("oldId");
+        manager.beforeRequest(SessionPolicy.FULL);
+        manager.changeSessionId(session, "newId");
+        verify(client).delete(prefix + "oldId");
+        verify(client).save(prefix + "newId", session);
+        Assert.assertEquals(0, manager.getSessionRenameCount());
+    }
+
+    @Test
+    public void testRotateSessionIdClaimsNewId() {
+        final String prefix = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX;
+        // not stored yet, and the first generated ID is taken
+        when(client.reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any())).thenReturn(false, true);
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId("oldId");
+        manager.beforeRequest(SessionPolicy.FULL);
+        final String newId = manager.rotateSessionId(session);
+        Assert.assertEquals(newId, session.getId());
+
+        ArgumentCaptor<String> key = ArgumentCaptor.forClass(String.class);
+        verify(client, times(2)).rename(Mockito.eq(prefix + "oldId"), key.capture());
+        Assert.assertEquals(prefix + newId, key.getAllValues().get(1));
+        verify(client, times(2)).reserve(Mockito.anyString(), Mockito.same(session), Mockito.anyLong(), Mockito.any());
+        verify(client).delete(prefix + "oldId");
+        verify(client, never()).exists(Mockito.anyString());
+        verify(client, never()).save(Mockito.anyString(), Mockito.any());
+        manager.afterRequest(SessionPolicy.FULL);
+        verify(client, never()).save(Mockito.anyString(), Mockito.any());
+    }
+
+    @Test
+    public void testVersionedSavesMergeConflicts() throws Exception {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        manager.setVersionedSaves(true);
+        RedisSession created = (RedisSession) manager.createSession("s1");
+        Assert.assertEquals(1, created.getVersion());
+        created.setAttribute("shared", "initial");
+        manager.save(created, false);
+
+        // two concurrent requests for the same session
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession first = (RedisSession) manager.findSession("s1");
+        RedisSessionManager.RedisSessionState firstState = manager.getCurrentState();
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession second = (RedisSession) manager.findSession("s1");
+        RedisSessionManager.RedisSessionState secondState = manager.getCurrentState();
+
+        first.setAttribute("a", "1");
+        first.setAttribute("shared", "first");
+        manager.setCurrentState(firstState);
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(3, SessionEnvelope.version(store.loadEncoded(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "s1")));
+
+        second.setAttribute("b", "2");
+        second.removeAttribute("shared");
+        manager.setCurrentState(secondState);
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(1, manager.getSaveConflictCount());
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession merged = (RedisSession) manager.findSession("s1");
+        Assert.assertEquals(4, merged.getVersion());
+        Assert.assertEquals("1", merged.getAttribute("a"));
+        Assert.assertEquals("2", merged.getAttribute("b"));
+        Assert.assertNull(merged.getAttribute("shared"));
+        manager.afterRequest(SessionPolicy.FULL);
+    }
+
+    @Test
+    public void testVersionedSavesRebasePrincipal() throws Exception {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        manager.setVersionedSaves(true);
+        Principal alice = mock(Principal.class);
+        when(alice.getName()).thenReturn("alice");
+        manager.createSession("s1");
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession first = (RedisSession) manager.findSession("s1");
+        RedisSessionManager.RedisSessionState firstState = manager.getCurrentState();
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession second = (RedisSession) manager.findSession("s1");
+        RedisSessionManager.RedisSessionState secondState = manager.getCurrentState();
+
+        first.setPrincipal(alice);
+        manager.setCurrentState(firstState);
+        manager.afterRequest(SessionPolicy.FULL);
+
+        // the login of the first request survives the merge
+        second.setAttribute("b", "2");
+        manager.setCurrentState(secondState);
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(1, manager.getSaveConflictCount());
+        Assert.assertEquals("alice", second.getIndexedPrincipal());
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession merged = (RedisSession) manager.findSession("s1");
+        Assert.assertEquals("alice", merged.getIndexedPrincipal());
+        Assert.assertEquals("2", merged.getAttribute("b"));
+        manager.afterRequest(SessionPolicy.FULL);
+    }
+
+    @Test
+    public void testVersionedSavesOverwriteConflicts() throws Exception {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        manager.setVersionedSaves(true);
+        manager.setSaveConflictPolicy("overwrite");
+        manager.createSession("s1");
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession first = (RedisSession) manager.findSession("s1");
+        RedisSessionManager.RedisSessionState firstState = manager.getCurrentState();
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession second = (RedisSession) manager.findSession("s1");
+        first.setAttribute("a", "1");
+        second.setAttribute("b", "2");
+        manager.afterRequest(SessionPolicy.FULL);
+        manager.setCurrentState(firstState);
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(1, manager.getSaveConflictCount());
+        // the overwrite continues the versions, so requests that loaded an earlier one still conflict
+        Assert.assertEquals(3, first.getVersion());
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession stored = (RedisSession) manager.findSession("s1");
+        Assert.assertEquals(3, stored.getVersion());
+        Assert.assertEquals("1", stored.getAttribute("a"));
+        Assert.assertNull(stored.getAttribute("b"));
+        manager.afterRequest(SessionPolicy.FULL);
+    }
+
+    @Test
+    public void testVersionedSavesDiscardConflicts() throws Exception {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        manager.setVersionedSaves(true);
+        manager.setSaveConflictPolicy("discard");
+        manager.createSession("s1");
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession first = (RedisSession) manager.findSession("s1");
+        RedisSessionManager.RedisSessionState firstState = manager.getCurrentState();
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession second = (RedisSession) manager.findSession("s1");
+        first.setAttribute("a", "1");
+        second.setAttribute("b", "2");
+        manager.afterRequest(SessionPolicy.FULL);
+        manager.setCurrentState(firstState);
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(1, manager.getSaveConflictCount());
+
+        manager.beforeRequest(SessionPolicy.FULL);
+        RedisSession stored = (RedisSession) manager.findSession("s1");
+        Assert.assertNull(stored.getAttribute("a"));
+        Assert.assertEquals("2", stored.getAttribute("b"));
+        manager.afterRequest(SessionPolicy.FULL);
+    }
+
+    @Test
+    public void testSessionOwnership() throws Exception {
+        final String key = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "s1";
+        MockRedisSessionClient store = spy(new MockRedisSessionClient());
+        when(manager.getClient()).thenReturn(store);
+        manager.setSessionOwnership(true);
+        manager.initSessionOwnership();
+        RedisSessionManager other = spy(RedisSessionManager.class);
+        when(other.getContext()).thenReturn(mock(Context.class));
+        when(other.getClient()).thenReturn(store);
+        other.setSessionOwnership(true);
+        other.initSessionOwnership();
+
+        Session created = manager.createSession("s1");
+        Assert.assertEquals(1, manager.getOwnedSessionCount());
+        Assert.assertSame(created, manager.findSession("s1"));
+        verify(store, never()).loadEncoded(key);
+        Assert.assertEquals(1, manager.getOwnedSessionHitCount());
+
+        // taken over by another node
+        Session taken = other.findSession("s1");
+        Assert.assertNotSame(created, taken);
+        Assert.assertEquals(1, other.getOwnedSessionCount());
+        Assert.assertEquals(0, manager.getOwnedSessionCount());
+        Assert.assertEquals(1, manager.getOwnershipRevocationCount());
+        Assert.assertSame(taken, other.findSession("s1"));
+        verify(store, times(1)).loadEncoded(key);
+
+        // and back
+        Assert.assertNotSame(created, manager.findSession("s1"));
+        Assert.assertEquals(1, other.getOwnershipRevocationCount());
+
+        // removal drops it everywhere
+        other.findSession("s1");
+        manager.remove(taken);
+        Assert.assertEquals(0, manager.getOwnedSessionCount());
+        Assert.assertEquals(0, other.getOwnedSessionCount());
+        Assert.assertNull(manager.findSession("s1"));
+    }
+
+    @Test
+    public void testSessionOwnershipMissedRevocation() throws Exception {
+        MockRedisSessionClient store = spy(new MockRedisSessionClient());
+        when(manager.getClient()).thenReturn(store);
+        manager.setSessionOwnership(true);
+        manager.initSessionOwnership();
+        RedisSessionManager other = spy(RedisSessionManager.class);
+        when(other.getContext()).thenReturn(mock(Context.class));
+        when(other.getClient()).thenReturn(store);
+        other.setSessionOwnership(true);
+        other.initSessionOwnership();
+
+        RedisSession created = (RedisSession) manager.createSession("s1");
+        manager.beforeRequest(SessionPolicy.FULL);
+        ((RedisSession) manager.findSession("s1")).setAttribute("a", "1");
+        manager.afterRequest(SessionPolicy.FULL);
+
+        // taken over by another node, the revocation gets lost
+        Mockito.doNothing().when(store).publish(Mockito.anyString(), Mockito.anyString());
+        other.beforeRequest(SessionPolicy.FULL);
+        ((RedisSession) other.findSession("s1")).setAttribute("b", "2");
+        other.afterRequest(SessionPolicy.FULL);
+
+        // the outdated copy is not written
+        manager.beforeRequest(SessionPolicy.FULL);
+        Assert.assertSame(created, manager.findSession("s1"));
+        created.setAttribute("c", "3");
+        manager.afterRequest(SessionPolicy.FULL);
+        Assert.assertEquals(1, manager.getSaveConflictCount());
+        Assert.assertEquals(0, manager.getOwnedSessionCount());
+        RedisSession stored = store.load(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "s1");
+        Assert.assertEquals("2", stored.getAttribute("b"));
+        Assert.assertNull(stored.getAttribute("c"));
+    }
+
+    @Test
+    public void testOwnedSessionHeldForItsTtl() throws Exception {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        manager.setSessionOwnership(true);
+        manager.initSessionOwnership();
+        manager.setAnonymousSessionTimeout(1);
+
+        RedisSession created = (RedisSession) manager.createSession("s1");
+        Assert.assertSame(created, manager.findSession("s1"));
+        // idle longer than its redis key lives
+        created.setCreationTime(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(2));
+        Assert.assertNotSame(created, manager.findSession("s1"));
+        // dropped without being expired
+        Assert.assertTrue(created.isLive(0));
+    }
+
+    @Test
+    public void testRequestStateReusedByThread() throws Exception {
+        when(client.reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any())).thenReturn(true);
+        Request request = new Request();
+        manager.beforeRequest(SessionPolicy.FULL, request);
+        RedisSessionManager.RedisSessionState state = manager.getCurrentState();
+        Session session = manager.createSession(null);
+        Assert.assertSame(session, state.session);
+        // no metrics are recorded unless enabled
+        Assert.assertNull(manager.currentMetrics());
+        Assert.assertNull(state.metrics);
+
+        // not inherited by threads started during the request
+        RedisSessionManager.RedisSessionState[] inherited = new RedisSessionManager.RedisSessionState[] { state };
+        Thread thread = new Thread(() -> inherited[0] = manager.getCurrentState());
+        thread.start();
+        thread.join();
+        Assert.assertNull(inherited[0]);
+
+        manager.afterRequest(SessionPolicy.FULL, request);
+        verify(client).expire(Mockito.eq(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + session.getId()), Mockito.anyLong(), Mockito.any());
+        Assert.assertNull(manager.getCurrentState());
+        Assert.assertNull(state.session);
+        Assert.assertNull(state.request);
+
+        // the next request of the thread reuses the state
+        manager.beforeRequest(SessionPolicy.FULL, new Request());
+        Assert.assertSame(state, manager.getCurrentState());
+        // unless it went async: the state is held by the async request from then on
+        Assert.assertSame(state, manager.suspendRequest(null));
+        manager.beforeRequest(SessionPolicy.FULL, new Request());
+        Assert.assertNotSame(state, manager.getCurrentState());
+        manager.afterRequest(SessionPolicy.FULL);
+    }
+
+    @Test
+    public void testRequestMetrics() throws Exception {
+        MockRedisSessionClient store = Mockito.spy(new MockRedisSessionClient());
+        manager.setRequestMetrics(true);
+        RedisSessionClient recording = manager.decorateClient(store);
+        when(manager.getClient()).thenReturn(recording);
+        manager.createSession("s1");
+
+        Request request = mock(Request.class);
+        manager.beforeRequest(SessionPolicy.FULL, request);
+        RequestMetrics metrics = manager.currentMetrics();
+        Session session = manager.findSession("s1");
+        Assert.assertTrue(metrics.getLoadNanos() > 0);
+        Assert.assertTrue(metrics.getBytesRead() > 0);
+        Assert.assertEquals(1, metrics.getRoundTrips());
+        session.getSession().setAttribute("foo", "bar");
+        manager.afterRequest(SessionPolicy.FULL);
+        // the bytes counted are those saved; the session is not encoded again to measure it
+        verify(store).save(Mockito.anyString(), Mockito.any(RedisSession.class), Mockito.any(byte[].class));
+        verify(store, never()).getEncodedSize(Mockito.any());
+
+        ArgumentCaptor<Object> roundTrips = ArgumentCaptor.forClass(Object.class);
+        ArgumentCaptor<Object> bytesWritten = ArgumentCaptor.forClass(Object.class);
+        verify(request).setAttribute(Mockito.eq(RequestMetrics.ROUND_TRIPS), roundTrips.capture());
+        verify(request).setAttribute(Mockito.eq(RequestMetrics.BYTES_WRITTEN), bytesWritten.capture());
+        verify(request).setAttribute(Mockito.eq(RequestMetrics.LOAD_MILLIS), Mockito.any());
+        verify(request).setAttribute(RequestMetrics.SAVE_SKIPPED, Boolean.FALSE);
+        Assert.assertTrue((Integer) roundTrips.getValue() > 1);
+        Assert.assertEquals((long) store.getEncodedSize(session), bytesWritten.getValue());
+        Assert.assertEquals(0, metrics.getRoundTrips());
+
+        Mockito.reset(request);
+        manager.beforeRequest(SessionPolicy.FULL, request);
+        manager.findSession("s1");
+        manager.afterRequest(SessionPolicy.FULL);
+        verify(request).setAttribute(RequestMetrics.SAVE_SKIPPED, Boolean.TRUE);
+        verify(request).setAttribute(RequestMetrics.BYTES_WRITTEN, 0L);
+    }
+
+    @Test
+    public void testSessionTtlTiersDisabled() {
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setAttribute("rememberMe", Boolean.TRUE);
+        Assert.assertEquals(0, manager.getSessionTtl(session));
+
+        // 0 would delete the session on its first touch
+        manager.setAnonymousSessionTimeout(0);
+        manager.setExtendedSessionAttribute("rememberMe");
+        manager.setExtendedSessionTimeout(0);
+        Assert.assertEquals(0, manager.getSessionTtl(session));
+        manager.setAnonymousSessionTimeout(5);
+        Assert.assertEquals(5, manager.getSessionTtl(session));
+    }
+
+    @Test
+    public void testAttributeProfile() {
+        when(client.getEncodedSize(Mockito.any())).thenReturn(64);
+        manager.setAttributeProfileSampleInterval(1);
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId("sessionId");
+        session.setAttribute("foo", "bar");
+        manager.save(session, true);
+
+        String[] profile = manager.getAttributeProfile();
+        Assert.assertEquals(2, profile.length);
+        Assert.assertTrue(profile[0], profile[0].contains("2 samples"));
+        Assert.assertEquals("128 0 1 1 64 64 64 foo java.lang.String", profile[1]);
+
+        manager.resetAttributeProfile();
+        Assert.assertEquals(1, manager.getAttributeProfile().length);
+    }
+
+    @Test
+    public void testActiveSessions() {
+        when(manager.getClient()).thenReturn(new MockRedisSessionClient());
+        manager.setActiveSessionCounting(true);
+        manager.initActiveSessionCounting();
+        Assert.assertEquals(0, manager.getActiveSessions());
+        manager.createSession(null);
+        manager.createSession(null);
+        manager.refreshActiveSessions();
+        Assert.assertEquals(2, manager.getActiveSessions());
+        Assert.assertEquals(2, manager.getMaxActive());
+        Assert.assertEquals(2, manager.getSessionCounter());
+    }
+
+    @Test
+    public void testBackgroundWarmup() {
+        manager.startWarmup(client);
+        Assert.assertTrue(manager.isReady());
+
+        manager = spy(RedisSessionManager.class);
+        manager.setBackgroundWarmup(true);
+        Mockito.doThrow(new IllegalStateException("down")).doNothing().when(client).ping();
+        Assert.assertFalse(manager.isReady());
+        manager.warmUp(client);
+        Assert.assertTrue(manager.isReady());
+        verify(client, times(2)).ping();
+        verify(client).encode(Mockito.any(RedisSession.class));
+        verify(client).decode(Mockito.any());
+        verify(manager).warmConnections();
+    }
+
+    @Test
+    public void testBackgroundWarmupWithoutPing() {
+        manager = spy(RedisSessionManager.class);
+        manager.setBackgroundWarmup(true);
+        Mockito.doThrow(new UnsupportedOperationException()).when(client).ping();
+        manager.warmUp(client);
+        Assert.assertTrue(manager.isReady());
+        verify(client).ping();
+    }
+
+    @Test
+    public void testUnsupportedFeaturesFailStart() throws Exception {
+        manager.checkCapabilities(client);
+        manager.setPrincipalIndexing(true);
+        manager.setSessionOwnership(true);
+        when(client.supports(RedisSessionClient.Capability.PUB_SUB)).thenReturn(true);
+        try {
+            manager.checkCapabilities(client);
+            Assert.fail("Expected the features to be refused");
+        } catch (LifecycleException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("principalIndexing (needs [SETS]), sessionOwnership (needs [SCRIPTS])"));
+        }
+        manager.checkCapabilities(new MockRedisSessionClient());
+    }
+
+    @Test
+    public void testCreateSessionWithRequestedId() {
+        Session session = manager.createSession("requested");
+        Assert.assertEquals("requested", session.getId());
+        verify(client, never()).reserve(Mockito.anyString(), Mockito.any(), Mockito.anyLong(), Mockito.any());
+        verify(client).save(Mockito.eq(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "requested"), Mockito.same((RedisSession) session));
+    }
+
+    @Test
+    public void testFindSessionsScansRedis() {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        store.countUnique(manager.generateRedisAuxKey("active", "1"), "a", 1, TimeUnit.MINUTES); // same prefix
+        manager.setSessionEnumerationBatchSize(2);
+        for (String id : new String[] { "a", "b", "c" }) {
+            ((RedisSession) manager.createSession(id)).setAttribute("id", id);
+        }
+
+        Session[] sessions = manager.findSessions();
+        Assert.assertEquals(3, sessions.length);
+        for (Session session : sessions) {
+            Assert.assertEquals(session.getId(), ((RedisSession) session).getAttribute("id"));
+            Assert.assertFalse(((RedisSession) session).isNew());
+        }
+        Assert.assertEquals(3, manager.listSessionIds().split(" ").length);
+
+        manager.setMaxEnumeratedSessions(2);
+        Assert.assertEquals(2, manager.findSessions().length);
+        Assert.assertEquals(2, manager.listSessionIds().split(" ").length);
+    }
+
+    @Test
+    public void testPrincipalIndex() throws Exception {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        manager.setPrincipalIndexing(true);
+        manager.setExpiryEvents(true);
+        Principal alice = mock(Principal.class);
+        when(alice.getName()).thenReturn("alice");
+        Principal bob = mock(Principal.class);
+        when(bob.getName()).thenReturn("bob");
+        RedisSession a1 = (RedisSession) manager.createSession("a1");
+        a1.setPrincipal(alice);
+        String aliceIndex = manager.generateRedisAuxKey("principal", "alice");
+        // deferred to the save
+        Assert.assertTrue(store.getSetMembers(aliceIndex).isEmpty());
+        manager.save(a1, false);
+        for (String id : new String[] { "a2", "a3" }) {
+            RedisSession session = (RedisSession) manager.createSession(id);
+            session.setPrincipal(alice);
+            manager.save(session, false);
+        }
+        RedisSession b1 = (RedisSession) manager.createSession("b1");
+        b1.setPrincipal(bob);
+        manager.save(b1, false);
+
+        Assert.assertEquals(3, manager.findSessionsByPrincipal("alice").size());
+        Assert.assertEquals("b1", manager.listSessionIdsByPrincipal("bob"));
+
+        // logout and removal update the index; expired sessions are dropped when read
+        b1.setPrincipal(null);
+        manager.save(b1, false);
+        Assert.assertEquals("", manager.listSessionIdsByPrincipal("bob"));
+        manager.remove(a1);
+        store.delete(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "a2");
+        Assert.assertEquals("a3", manager.listSessionIdsByPrincipal("alice"));
+        Assert.assertEquals(Collections.singleton("a3"), store.getSetMembers(aliceIndex));
+
+        // a loaded session is listed under its stored principal
+        RedisSession a3 = (RedisSession) manager.findSession("a3");
+        Assert.assertEquals("alice", a3.getIndexedPrincipal());
+
+        store.mark(manager.generateRedisAuxKey("expiry", "a3"), 5, TimeUnit.MINUTES);
+        Assert.assertEquals(1, manager.invalidateSessionsByPrincipal("alice"));
+        Assert.assertFalse(store.exists(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "a3"));
+        Assert.assertFalse(store.isMarked(manager.generateRedisAuxKey("expiry", "a3")));
+        Assert.assertTrue(store.getSetMembers(aliceIndex).isEmpty());
+        Assert.assertTrue(store.exists(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "b1"));
+        Assert.assertEquals(0, manager.findSessionsByPrincipal("alice").size());
+    }
+
+    @Test
+    public void testExpiryEvents() throws Exception {
+        MockRedisSessionClient store = new MockRedisSessionClient();
+        when(manager.getClient()).thenReturn(store);
+        manager.setAnonymousSessionTimeout(5);
+        manager.setExpiryEvents(true);
+        manager.initExpiryEvents();
+        String shadowKey = manager.generateRedisAuxKey("expiry", "a");
+        String sessionKey = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "a";
+
+        RedisSession session = (RedisSession) manager.createSession("a");
+        ExpiryListener.unbound = new CountDownLatch(1);
+        session.setAttribute("listener", new ExpiryListener());
+        manager.save(session, true);
+        Assert.assertTrue(store.isMarked(shadowKey));
+
+        store.expireKey(shadowKey);
+        Assert.assertTrue(ExpiryListener.unbound.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(store.exists(sessionKey));
+
+        // the expiry was claimed; another notification of it is ignored
+        ExpiryListener.unbound = new CountDownLatch(1);
+        ((RedisSession) manager.createSession("a")).setAttribute("listener", new ExpiryListener());
+        manager.expireSessions(Collections.singletonList("a"));
+        Assert.assertTrue(store.exists(sessionKey));
+        Assert.assertEquals(1, ExpiryListener.unbound.getCount());
+    }
+
+    public static class ExpiryListener implements HttpSessionBindingListener, Serializable {
+        private static final long serialVersionUID = 1L;
+        static volatile CountDownLatch unbound;
+
+        @Override
+        public void valueBound(HttpSessionBindingEvent event) {
+            // not needed
+        }
+
+        @Override
+        public void valueUnbound(HttpSessionBindingEvent event) {
+            unbound.countDown();
+        }
+    }
+
+}
@@ -17,8 +17,11 @@
 package com.crimsonhexagon.rsm;
 
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
@@ -28,11 +31,15 @@ import org.apache.catalina.Host;
 import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.AsyncContextImpl;
 import org.apache.catalina.loader.WebappLoader;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import javax.servlet.AsyncListener;
+
 public class RedisSessionRequestValveTest {
 
     private Valve nextValve;
@@ -63,8 +70,12 @@ public class RedisSessionRequestValveTest {
         when(contextContainer.getLoader()).thenReturn(new WebappLoader(Thread.currentThread().getContextClassLoader()));
     }
 
-    protected RedisSessionRequestValve createValve(String ignorePattern) {
-        RedisSessionRequestValve requestValve = new RedisSessionRequestValve(mock(RedisSessionManager.class), ignorePattern);
+    protected RedisSessionRequestValve createValve(String rules) {
+        return createValve(SessionPolicyRules.parse(rules));
+    }
+
+    protected RedisSessionRequestValve createValve(SessionPolicyRules rules) {
+        RedisSessionRequestValve requestValve = new RedisSessionRequestValve(mock(RedisSessionManager.class), rules);
         nextValve = mock(Valve.class);
         requestValve.setNext(nextValve);
         requestValve.setContainer(hostContainer);
@@ -74,54 +85,137 @@ public class RedisSessionRequestValveTest {
     @Test
     public void testDefaultIgnore() throws Exception {
         // ico|png|gif|jpg|jpeg|swf|css|js
-        RedisSessionRequestValve requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        RedisSessionRequestValve requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.ico");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/Notignored.valid");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(true));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.FULL), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.PNG");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.Gif");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.jpg");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.JPEG");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.swf");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.css");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
         when(request.getRequestURI()).thenReturn("/ignored.js");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(false));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
+
+        requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
+        when(request.getRequestURI()).thenReturn("/Notignored.validjs");
+        requestValve.invoke(request, response);
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.FULL), Mockito.same(request));
+    }
+
+    @Test
+    public void testLegacyIgnorePattern() throws Exception {
+        RedisSessionRequestValve requestValve = createValve(SessionPolicyRules.none().withPattern(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN, SessionPolicy.NO_SESSION_WORK));
+        when(request.getRequestURI()).thenReturn("/ignored.PNG");
+        requestValve.invoke(request, response);
+        verify(requestValve.getManager()).beforeRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
 
-        requestValve = createValve(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN);
+        requestValve = createValve(SessionPolicyRules.none().withPattern(RedisSessionRequestValve.DEFAULT_IGNORE_PATTERN, SessionPolicy.NO_SESSION_WORK));
         when(request.getRequestURI()).thenReturn("/Notignored.validjs");
         requestValve.invoke(request, response);
-        verify(requestValve.getManager()).afterRequest(eq(true));
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.FULL), Mockito.same(request));
+    }
+
+    @Test
+    public void testPolicyRules() throws Exception {
+        final String rules = "prefix:/health=NO_SESSION_WORK method:HEAD=READ_ONLY prefix:/api/poll,/api/status=TOUCH_ONLY";
+        RedisSessionRequestValve requestValve = createValve(rules);
+        when(request.getRequestURI()).thenReturn("/health/check");
+        requestValve.invoke(request, response);
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.NO_SESSION_WORK), Mockito.same(request));
+
+        requestValve = createValve(rules);
+        when(request.getRequestURI()).thenReturn("/api/status");
+        requestValve.invoke(request, response);
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.TOUCH_ONLY), Mockito.same(request));
+
+        requestValve = createValve(rules);
+        when(request.getRequestURI()).thenReturn("/api/status");
+        when(request.getMethod()).thenReturn("HEAD");
+        requestValve.invoke(request, response);
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.READ_ONLY), Mockito.same(request));
+
+        requestValve = createValve(rules);
+        when(request.getRequestURI()).thenReturn("/api/data");
+        when(request.getMethod()).thenReturn("GET");
+        requestValve.invoke(request, response);
+        verify(requestValve.getManager()).afterRequest(eq(SessionPolicy.FULL), Mockito.same(request));
+    }
+
+    @Test
+    public void testAsyncRequest() throws Exception {
+        RedisSessionRequestValve requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
+        RedisSessionManager manager = requestValve.getManager();
+        RedisSessionManager.RedisSessionState state = manager.new RedisSessionState();
+        when(manager.suspendRequest(Mockito.anyString())).thenReturn(state);
+        AsyncContextImpl asyncContext = mock(AsyncContextImpl.class);
+        when(request.getAsyncContextInternal()).thenReturn(asyncContext);
+        when(request.isAsyncStarted()).thenReturn(true);
+
+        requestValve.invoke(request, response);
+        verify(manager, never()).afterRequest(Mockito.any(SessionPolicy.class), Mockito.any(Request.class));
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        listener.getValue().onTimeout(null);
+        listener.getValue().onComplete(null);
+        verify(manager, times(1)).completeRequest(same(state));
+    }
+
+    @Test
+    public void testAsyncDispatch() throws Exception {
+        RedisSessionRequestValve requestValve = createValve(SessionPolicyRules.DEFAULT_RULES);
+        RedisSessionManager manager = requestValve.getManager();
+        RedisSessionManager.RedisSessionState state = manager.new RedisSessionState();
+        when(manager.suspendRequest(Mockito.anyString())).thenReturn(state);
+        AsyncContextImpl asyncContext = mock(AsyncContextImpl.class);
+        when(request.getAsyncContextInternal()).thenReturn(asyncContext);
+        when(request.isAsyncStarted()).thenReturn(true);
+        requestValve.invoke(request, response);
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        // dispatched back to the container which completes the request
+        when(request.isAsyncStarted()).thenReturn(false);
+        requestValve.invoke(request, response);
+        verify(manager).resumeRequest(same(state));
+        verify(manager).afterRequest(eq(SessionPolicy.FULL), Mockito.same(request));
+
+        listener.getValue().onComplete(null);
+        verify(manager, never()).completeRequest(Mockito.any(RedisSessionManager.RedisSessionState.class));
     }
 }
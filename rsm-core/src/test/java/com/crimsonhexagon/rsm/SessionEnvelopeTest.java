@@ -0,0 +1,50 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class SessionEnvelopeTest {
+
+    @Test
+    public void testWrap() {
+        byte[] payload = { (byte) 0xac, (byte) 0xed, 0, 5 };
+        byte[] wrapped = SessionEnvelope.wrap(0x1f, payload);
+        Assert.assertEquals("RSMV000000000000001f", new String(wrapped, 0, SessionEnvelope.HEADER_LENGTH, StandardCharsets.US_ASCII));
+        Assert.assertTrue(SessionEnvelope.isVersioned(wrapped));
+        Assert.assertEquals(0x1f, SessionEnvelope.version(wrapped));
+        Assert.assertArrayEquals(payload, SessionEnvelope.payload(wrapped));
+    }
+
+    @Test
+    public void testUnversioned() {
+        byte[] payload = { (byte) 0xac, (byte) 0xed, 0, 5 };
+        Assert.assertFalse(SessionEnvelope.isVersioned(payload));
+        Assert.assertEquals(0, SessionEnvelope.version(payload));
+        Assert.assertSame(payload, SessionEnvelope.payload(payload));
+    }
+
+    @Test
+    public void testScriptDigest() {
+        Assert.assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", new RedisScript("").getSha1());
+        Assert.assertEquals(new RedisScript(SessionEnvelope.COMPARE_AND_SET.getSource()), SessionEnvelope.COMPARE_AND_SET);
+    }
+}
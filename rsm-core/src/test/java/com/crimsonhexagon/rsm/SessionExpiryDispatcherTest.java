@@ -0,0 +1,87 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SessionExpiryDispatcherTest {
+
+    @Test
+    public void testBatchesQueuedIds() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        final SessionExpiryDispatcher dispatcher = new SessionExpiryDispatcher("test", 1, 10, 3, batch -> {
+            started.countDown();
+            await(release);
+            batches.add(new ArrayList<>(batch));
+        });
+        try {
+            Assert.assertTrue(dispatcher.offer("0"));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            // queued while the worker is busy
+            for (int i = 1; i <= 5; i++) {
+                Assert.assertTrue(dispatcher.offer(String.valueOf(i)));
+            }
+            release.countDown();
+            while (dispatcher.getDispatched() < 6) {
+                Thread.sleep(1);
+            }
+            Assert.assertEquals(Arrays.asList(Arrays.asList("0"), Arrays.asList("1", "2", "3"), Arrays.asList("4", "5")), batches);
+        } finally {
+            dispatcher.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void testDropsWhenFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SessionExpiryDispatcher dispatcher = new SessionExpiryDispatcher("test", 1, 2, 10, batch -> {
+            started.countDown();
+            await(release);
+        });
+        try {
+            Assert.assertTrue(dispatcher.offer("0"));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(dispatcher.offer("1"));
+            Assert.assertTrue(dispatcher.offer("2"));
+            Assert.assertFalse(dispatcher.offer("3"));
+            Assert.assertEquals(1, dispatcher.getDropped());
+        } finally {
+            release.countDown();
+            dispatcher.shutdown(1000);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SessionPolicyRulesTest {
+
+    @Test
+    public void testFirstMatchWins() {
+        SessionPolicyRules rules = SessionPolicyRules.parse("prefix:/static/dynamic=FULL suffix:.js=NO_SESSION_WORK");
+        Assert.assertEquals(SessionPolicy.FULL, rules.policyFor("GET", "/static/dynamic/app.js"));
+        Assert.assertEquals(SessionPolicy.NO_SESSION_WORK, rules.policyFor("GET", "/static/app.JS"));
+        Assert.assertEquals(SessionPolicy.FULL, rules.policyFor("GET", "/static/app.json"));
+    }
+
+    @Test
+    public void testShortUri() {
+        SessionPolicyRules rules = SessionPolicyRules.parse(SessionPolicyRules.DEFAULT_RULES);
+        Assert.assertEquals(SessionPolicy.FULL, rules.policyFor("GET", ""));
+        Assert.assertEquals(SessionPolicy.FULL, rules.policyFor("GET", "/"));
+        Assert.assertEquals(SessionPolicy.NO_SESSION_WORK, rules.policyFor("GET", ".js"));
+    }
+
+    @Test
+    public void testEmptyDefinition() {
+        Assert.assertEquals(SessionPolicy.FULL, SessionPolicyRules.parse(null).policyFor("GET", "/x.css"));
+        Assert.assertEquals(SessionPolicy.FULL, SessionPolicyRules.parse("  ").policyFor("GET", "/x.css"));
+    }
+
+    @Test
+    public void testToStringRoundTrip() {
+        String definition = "prefix:/a,/b=READ_ONLY method:OPTIONS=NO_SESSION_WORK suffix:.css=TOUCH_ONLY";
+        Assert.assertEquals(definition, SessionPolicyRules.parse(definition).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPolicy() {
+        SessionPolicyRules.parse("prefix:/a=SOMETIMES");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownType() {
+        SessionPolicyRules.parse("regex:/a=FULL");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingPolicy() {
+        SessionPolicyRules.parse("prefix:/a");
+    }
+}
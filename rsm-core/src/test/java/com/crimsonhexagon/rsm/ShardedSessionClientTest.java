@@ -0,0 +1,193 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import org.apache.catalina.Context;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+public class ShardedSessionClientTest {
+    private RedisSessionManager manager;
+    private List<MockRedisSessionClient> redis;
+
+    @Before
+    public void setUp() {
+        manager = spy(RedisSessionManager.class);
+        when(manager.getContext()).thenReturn(mock(Context.class));
+        redis = Arrays.asList(new MockRedisSessionClient(), new MockRedisSessionClient(), new MockRedisSessionClient());
+    }
+
+    private ShardedSessionClient client(int shardCount, boolean shardHints, int previousShardCount) {
+        return new ShardedSessionClient(new ArrayList<>(redis.subList(0, shardCount)), 160, manager::shardingToken, shardHints, previousShardCount);
+    }
+
+    @Test
+    public void testSpreadsSessionsWithTheirKeys() {
+        final ShardedSessionClient client = client(3, false, 0);
+        final int[] counts = new int[3];
+        for (int i = 0; i < 3000; i++) {
+            final String id = UUID.randomUUID().toString();
+            final int shard = client.shardOf(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + id);
+            Assert.assertEquals(shard, client.shardOf(manager.generateRedisAuxKey("expiry", id)));
+            Assert.assertEquals(shard, client.shardOf(manager.generateRedisAuxKey("owner", id)));
+            counts[shard]++;
+        }
+        for (int count : counts) {
+            Assert.assertTrue(Arrays.toString(counts), count > 700);
+        }
+        // counted together
+        Assert.assertEquals(client.shardOf(manager.generateRedisAuxKey("active", "1")), client.shardOf(manager.generateRedisAuxKey("active", "2")));
+    }
+
+    @Test
+    public void testMarkIfAbsentAcrossShards() {
+        final ShardedSessionClient client = client(3, false, 0);
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(manager.generateRedisAuxKey("expired", UUID.randomUUID().toString()));
+        }
+        Assert.assertTrue(client.markIfAbsent(keys.get(7), 1, TimeUnit.MINUTES));
+
+        final List<Boolean> claimed = client.markIfAbsent(keys, 1, TimeUnit.MINUTES);
+        Assert.assertEquals(keys.size(), claimed.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Assert.assertEquals(keys.get(i), i != 7, claimed.get(i));
+            Assert.assertTrue(redis.get(client.shardOf(keys.get(i))).isMarked(keys.get(i)));
+        }
+    }
+
+    @Test
+    public void testAppendingShardOnlyMovesKeysToIt() {
+        final ShardedSessionClient two = client(2, false, 0);
+        final ShardedSessionClient three = client(3, false, 0);
+        int moved = 0;
+        for (int i = 0; i < 3000; i++) {
+            final String key = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + UUID.randomUUID();
+            final int shard = three.shardOf(key);
+            if (shard != two.shardOf(key)) {
+                Assert.assertEquals(2, shard);
+                moved++;
+            }
+        }
+        Assert.assertTrue(moved > 700 && moved < 1300);
+    }
+
+    @Test
+    public void testShardHints() {
+        final ShardedSessionClient client = client(3, true, 0);
+        final String id = client.hint("ABCDEF");
+        final int shard = Integer.parseInt(id.substring(0, id.indexOf(ShardedSessionClient.HINT_SEPARATOR)));
+        final String key = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + id;
+        Assert.assertEquals(shard, client.shardOf(key));
+        client.save(key, session(id));
+        Assert.assertTrue(redis.get(shard).exists(key));
+        // hinted keys do not move as shards are appended
+        final ShardedSessionClient two = client(2, true, 0);
+        final String earlierKey = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + two.hint("ABCDEF");
+        Assert.assertEquals(two.shardOf(earlierKey), client(3, true, 2).shardOf(earlierKey));
+        Assert.assertEquals(-1, client(3, true, 2).previousShardOf(earlierKey));
+        // hints beyond the shards are hashed
+        Assert.assertTrue(client.shardOf(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + "7-ABCDEF") < 3);
+    }
+
+    @Test
+    public void testDualReadsWhileMigrating() {
+        final ShardedSessionClient before = client(2, false, 0);
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final String key = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + i;
+            before.save(key, session(String.valueOf(i)));
+            keys.add(key);
+        }
+
+        final ShardedSessionClient migrating = client(3, false, 2);
+        final String movedKey = keys.stream().filter(k -> migrating.shardOf(k) == 2).findFirst().get();
+        Assert.assertFalse(redis.get(2).exists(movedKey));
+        Assert.assertTrue(migrating.exists(movedKey));
+        Assert.assertNotNull(migrating.loadEncoded(movedKey));
+        Assert.assertTrue(migrating.loadEncoded(keys).stream().allMatch(encoded -> encoded != null));
+        Assert.assertTrue(migrating.getMigrationReads() > 1);
+        Assert.assertFalse(migrating.rename(movedKey, movedKey + "x"));
+
+        migrating.save(movedKey, session("moved"));
+        Assert.assertTrue(redis.get(2).exists(movedKey));
+        migrating.delete(movedKey);
+        Assert.assertFalse(migrating.exists(movedKey));
+
+        // without the window moved sessions are lost
+        Assert.assertNull(client(3, false, 0).loadEncoded(keys.stream().filter(k -> migrating.shardOf(k) == 2 && !k.equals(movedKey)).findFirst().get()));
+    }
+
+    @Test
+    public void testScriptsMoveKeysWhileMigrating() {
+        final ShardedSessionClient before = client(2, false, 0);
+        final ShardedSessionClient migrating = client(3, false, 2);
+        final String key = RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX
+            + IntStream.range(0, 100).filter(i -> migrating.shardOf(RedisSessionManager.DEFAULT_SESSION_KEY_PREFIX + i) == 2).findFirst().getAsInt();
+        final int previous = migrating.previousShardOf(key);
+        Assert.assertEquals(1, before.evalScript(SessionEnvelope.COMPARE_AND_SET, Collections.singletonList(key),
+            Arrays.asList(ascii(0), SessionEnvelope.wrap(1, before.encode(session("a"))), ascii(60_000))));
+
+        // the version stored on the previous shard is compared, not a missing key
+        Assert.assertEquals(1, migrating.evalScript(SessionEnvelope.COMPARE_AND_SET, Collections.singletonList(key),
+            Arrays.asList(ascii(1), SessionEnvelope.wrap(2, migrating.encode(session("a"))), ascii(60_000))));
+        Assert.assertEquals(1, migrating.getMigratedKeys());
+        Assert.assertFalse(redis.get(previous).exists(key));
+        Assert.assertEquals(2, SessionEnvelope.version(redis.get(2).loadEncoded(key)));
+        Assert.assertEquals(0, migrating.evalScript(SessionEnvelope.COMPARE_AND_SET, Collections.singletonList(key),
+            Arrays.asList(ascii(1), SessionEnvelope.wrap(2, migrating.encode(session("a"))), ascii(60_000))));
+        Assert.assertEquals(1, migrating.getMigratedKeys());
+    }
+
+    @Test
+    public void testSubscribesOnEveryShard() {
+        final ShardedSessionClient client = client(3, false, 0);
+        final List<String> received = new ArrayList<>();
+        client.subscribe("channel", received::add);
+        redis.get(1).publish("channel", "a");
+        client.publish("channel", "b");
+        Assert.assertEquals(Arrays.asList("a", "b"), received);
+        client.mark("marker", 1, TimeUnit.MINUTES);
+        Assert.assertTrue(redis.get(client.shardOf("marker")).isMarked("marker"));
+    }
+
+    private RedisSession session(String id) {
+        RedisSession session = manager.createEmptySession();
+        session.setValid(true);
+        session.setId(id);
+        return session;
+    }
+
+    private static byte[] ascii(long value) {
+        return Long.toString(value).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,58 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedResourcesTest {
+
+    @Test
+    public void testSharedUntilLastRelease() {
+        final List<Object> closed = new ArrayList<>();
+        final SharedResources<Object> shared = new SharedResources<>(closed::add);
+        final AtomicInteger created = new AtomicInteger();
+
+        final Object first = shared.acquire("a", () -> created.incrementAndGet());
+        final Object second = shared.acquire("a", () -> created.incrementAndGet());
+        final Object other = shared.acquire("b", () -> created.incrementAndGet());
+        Assert.assertSame(first, second);
+        Assert.assertNotEquals(first, other);
+        Assert.assertEquals(2, created.get());
+        Assert.assertEquals(2, shared.references("a"));
+
+        shared.release("a");
+        Assert.assertTrue(closed.isEmpty());
+        shared.release("a");
+        Assert.assertEquals(1, closed.size());
+        Assert.assertSame(first, closed.get(0));
+        Assert.assertEquals(0, shared.references("a"));
+
+        // created anew once closed
+        Assert.assertNotEquals(first, shared.acquire("a", () -> created.incrementAndGet()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleaseUnknown() {
+        new SharedResources<>(r -> { }).release("a");
+    }
+}
@@ -0,0 +1,124 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testConcurrentCallsShareExecution() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int followers = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(followers + 1);
+        try {
+            final Future<String> leader = executor.submit(() -> flight.execute("key", () -> {
+                executions.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "value";
+            }));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < followers; i++) {
+                results.add(executor.submit(() -> flight.execute("key", () -> {
+                    executions.incrementAndGet();
+                    return "other";
+                })));
+            }
+            while (flight.getCoalescedCount() < followers) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            Assert.assertEquals("value", leader.get(5, TimeUnit.SECONDS));
+            for (Future<String> result : results) {
+                Assert.assertEquals("value", result.get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, executions.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSequentialCallsExecuteAgain() {
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final AtomicInteger executions = new AtomicInteger();
+        Assert.assertEquals(Integer.valueOf(1), flight.execute("key", executions::incrementAndGet));
+        Assert.assertEquals(Integer.valueOf(2), flight.execute("key", executions::incrementAndGet));
+        Assert.assertEquals(0, flight.getCoalescedCount());
+    }
+
+    @Test
+    public void testExceptionIsShared() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> leader = executor.submit(() -> flight.execute("key", () -> {
+                started.countDown();
+                await(release);
+                throw new IllegalStateException("boom");
+            }));
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            final Future<String> follower = executor.submit(() -> flight.execute("key", () -> "other"));
+            while (flight.getCoalescedCount() < 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            for (Future<String> result : new Future[] { leader, follower }) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    Assert.fail("Expected exception");
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+            // a failed execution is not cached
+            Assert.assertEquals("retry", flight.execute("key", () -> "retry"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
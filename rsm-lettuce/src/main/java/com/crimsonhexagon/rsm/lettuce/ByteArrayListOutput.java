@@ -0,0 +1,47 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.lettuce;
+
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.output.CommandOutput;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the elements of a multi-bulk reply (e.g. <code>MGET</code>) as raw bytes, bypassing the value codec.
+ * Nil elements are collected as <code>null</code>.
+ */
+class ByteArrayListOutput<K, V> extends CommandOutput<K, V, List<byte[]>> {
+
+    ByteArrayListOutput(RedisCodec<K, V> codec) {
+        super(codec, new ArrayList<>());
+    }
+
+    @Override
+    public void set(ByteBuffer bytes) {
+        if (bytes == null) {
+            output.add(null);
+        } else {
+            final byte[] value = new byte[bytes.remaining()];
+            bytes.get(value);
+            output.add(value);
+        }
+    }
+}
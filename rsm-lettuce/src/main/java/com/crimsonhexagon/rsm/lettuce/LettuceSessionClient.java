@@ -16,46 +16,151 @@
 
 package com.crimsonhexagon.rsm.lettuce;
 
+import com.crimsonhexagon.rsm.RedisDeadline;
+import com.crimsonhexagon.rsm.RedisScript;
 import com.crimsonhexagon.rsm.RedisSession;
 import com.crimsonhexagon.rsm.RedisSessionClient;
 
+import io.lettuce.core.KeyScanCursor;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanCursor;
+import io.lettuce.core.SetArgs;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.async.RedisAsyncCommands;
 import io.lettuce.core.api.sync.RedisCommands;
 import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.output.ByteArrayOutput;
+import io.lettuce.core.output.IntegerOutput;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandKeyword;
+import io.lettuce.core.protocol.CommandType;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class LettuceSessionClient implements RedisSessionClient {
+    private static final long MIN_ALTERNATE_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_ALTERNATE_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
     private final Log log = LogFactory.getLog(getClass());
     private final GenericObjectPool<StatefulRedisConnection<String, Object>> pool;
     private final RedisCodec<String, Object> codec;
+    private final RedisClient client;
+    private final List<RedisURI> uris;
+    private final List<StatefulRedisPubSubConnection<String, String>> subscriptions = new ArrayList<>();
+    private final Supplier<StatefulRedisConnection<String, Object>> alternateConnector;
+    // connected in the background so that no read waits for it; reads use pooled connections until then
+    private volatile StatefulRedisConnection<String, Object> alternateConnection;
+    private final AtomicBoolean alternateConnecting = new AtomicBoolean();
+    private volatile long alternateRetryAt;
+    private long alternateRetryMillis = MIN_ALTERNATE_RETRY_MILLIS; // guarded by alternateConnecting
+    private boolean shutdown; // guarded by this
+    private final long timeoutMillis;
 
     public LettuceSessionClient(GenericObjectPool<StatefulRedisConnection<String, Object>> pool, RedisCodec<String, Object> codec) {
+        this(pool, codec, null, Collections.emptyList(), null);
+    }
+
+    /**
+     * @param pool
+     * @param codec
+     * @param client client used for subscriptions
+     * @param uris nodes subscribed to; every node is subscribed as expired events are only published by the master
+     * @param alternateConnector creates the connection used for alternate reads, e.g. one reading from replicas; may
+     *        be <code>null</code> to read over another pooled connection. It is called in the background, right away
+     *        and after failures again with a growing delay; alternate reads use pooled connections meanwhile
+     */
+    public LettuceSessionClient(GenericObjectPool<StatefulRedisConnection<String, Object>> pool, RedisCodec<String, Object> codec,
+        RedisClient client, List<RedisURI> uris, Supplier<StatefulRedisConnection<String, Object>> alternateConnector) {
         this.pool = pool;
         this.codec = codec;
+        this.client = client;
+        this.uris = uris;
+        this.alternateConnector = alternateConnector;
+        this.timeoutMillis = (uris.isEmpty() ? RedisURI.DEFAULT_TIMEOUT_DURATION : uris.get(0).getTimeout()).toMillis();
+        if (alternateConnector != null) {
+            connectAlternate();
+        }
     }
 
+    /**
+     * Borrow a connection for synchronous commands, bounding its timeout by the {@link RedisDeadline} of the current
+     * thread
+     * 
+     * @return a pooled connection
+     * @throws Exception
+     */
+    private StatefulRedisConnection<String, Object> borrow() throws Exception {
+        final StatefulRedisConnection<String, Object> conn = pool.borrowObject();
+        final Duration timeout = Duration.ofMillis(RedisDeadline.timeoutMillis(timeoutMillis));
+        if (!timeout.equals(conn.getTimeout())) {
+            conn.setTimeout(timeout);
+        }
+        return conn;
+    }
+
+    /**
+     * Issue commands on a borrowed connection and wait for them. Failures are thrown rather than returned as
+     * <code>null</code>, so that they are not mistaken for missing keys
+     * 
+     * @param s
+     * @return the result of the commands
+     * @throws RuntimeException if no connection could be borrowed or a command failed
+     */
     <T> T sync(Function<RedisCommands<String, Object>, T> s) {
-        try (StatefulRedisConnection<String, Object> conn = pool.borrowObject()) {
+        try (StatefulRedisConnection<String, Object> conn = borrow()) {
             return s.apply(conn.sync());
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
-            log.error("Failed to borrow a connection", e);
-            return null;
+            throw new IllegalStateException("Failed to borrow a connection", e);
         }
     }
 
+    /**
+     * Issue commands on a borrowed connection without waiting for them
+     * 
+     * @param s
+     * @return the result of the commands, typically a future
+     * @throws RuntimeException if no connection could be borrowed
+     */
     <T> T async(Function<RedisAsyncCommands<String, Object>, T> s) {
         try (StatefulRedisConnection<String, Object> conn = pool.borrowObject()) {
             return s.apply(conn.async());
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
-            log.error("Failed to borrow a connection", e);
-            return null;
+            throw new IllegalStateException("Failed to borrow a connection", e);
         }
     }
 
@@ -64,9 +169,30 @@ public class LettuceSessionClient implements RedisSessionClient {
         sync(c -> c.set(key, session));
     }
 
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        final SetArgs args = ttl > 0 ? SetArgs.Builder.nx().px(timeUnit.toMillis(ttl)) : SetArgs.Builder.nx();
+        return "OK".equals(sync(c -> c.set(key, session, args)));
+    }
+
+    @Override
+    public void save(String key, RedisSession session, byte[] encoded) {
+        sync(c -> c.dispatch(CommandType.SET, new StatusOutput<>(codec), new CommandArgs<>(codec).addKey(key).add(encoded)));
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        final SetArgs args = ttl > 0 ? SetArgs.Builder.nx().px(timeUnit.toMillis(ttl)) : SetArgs.Builder.nx();
+        final CommandArgs<String, Object> commandArgs = new CommandArgs<>(codec).addKey(key).add(encoded);
+        args.build(commandArgs);
+        return "OK".equals(sync(c -> c.dispatch(CommandType.SET, new StatusOutput<>(codec), commandArgs)));
+    }
+
     @Override
     public RedisSession load(String key) {
-        Object obj = sync(c -> c.get(key));
+        // decoded here rather than by the connection, which may be shared with managers of other contexts
+        final byte[] encoded = loadEncoded(key);
+        final Object obj = encoded == null ? null : decode(encoded);
         if (obj != null) {
             if (RedisSession.class.isAssignableFrom(obj.getClass())) {
                 return RedisSession.class.cast(obj);
@@ -78,11 +204,162 @@ public class LettuceSessionClient implements RedisSessionClient {
         return null;
     }
 
+    @Override
+    public byte[] loadEncoded(String key) {
+        return sync(c -> c.dispatch(CommandType.GET, new ByteArrayOutput<>(codec), new CommandArgs<>(codec).addKey(key)));
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        return sync(c -> c.dispatch(CommandType.MGET, new ByteArrayListOutput<>(codec), new CommandArgs<>(codec).addKeys(keys)));
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        final StatefulRedisConnection<String, Object> conn = alternate ? alternateConnection() : null;
+        final RedisFuture<byte[]> future;
+        try {
+            if (conn != null) {
+                future = conn.async().dispatch(CommandType.GET, new ByteArrayOutput<>(codec), new CommandArgs<>(codec).addKey(key));
+            } else {
+                future = async(c -> c.dispatch(CommandType.GET, new ByteArrayOutput<>(codec), new CommandArgs<>(codec).addKey(key)));
+            }
+        } catch (RuntimeException e) {
+            final CompletableFuture<byte[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return future.toCompletableFuture();
+    }
+
+    /**
+     * @return the connection for alternate reads, or <code>null</code> while it is not connected
+     */
+    private StatefulRedisConnection<String, Object> alternateConnection() {
+        final StatefulRedisConnection<String, Object> conn = alternateConnection;
+        if (conn == null && alternateConnector != null && System.currentTimeMillis() >= alternateRetryAt) {
+            connectAlternate();
+        }
+        return conn;
+    }
+
+    /**
+     * Connect for alternate reads in the background unless already connecting
+     */
+    private void connectAlternate() {
+        if (!alternateConnecting.compareAndSet(false, true)) {
+            return;
+        }
+        final Thread connector = new Thread(() -> {
+            try {
+                final StatefulRedisConnection<String, Object> conn = alternateConnector.get();
+                alternateRetryMillis = MIN_ALTERNATE_RETRY_MILLIS;
+                synchronized (this) {
+                    if (!shutdown) {
+                        alternateConnection = conn;
+                        return;
+                    }
+                }
+                conn.close();
+            } catch (RuntimeException e) {
+                log.error("Failed to connect for alternate reads; retrying in " + alternateRetryMillis + " ms", e);
+                alternateRetryAt = System.currentTimeMillis() + alternateRetryMillis;
+                alternateRetryMillis = Math.min(alternateRetryMillis * 2, MAX_ALTERNATE_RETRY_MILLIS);
+            } finally {
+                alternateConnecting.set(false);
+            }
+        }, "rsm-alternate-connect");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    @Override
+    public byte[] encode(Object obj) {
+        final ByteBuffer bb = codec.encodeValue(obj);
+        final byte[] encoded = new byte[bb.remaining()];
+        bb.get(encoded);
+        return encoded;
+    }
+
+    @Override
+    public Object decode(byte[] encoded) {
+        return codec.decodeValue(ByteBuffer.wrap(encoded));
+    }
+
+    @Override
+    public Stream<List<String>> scanKeys(String pattern, int count) {
+        final ScanArgs args = ScanArgs.Builder.matches(pattern).limit(count);
+        final Iterator<List<String>> batches = new Iterator<List<String>>() {
+            private ScanCursor cursor = ScanCursor.INITIAL;
+
+            @Override
+            public boolean hasNext() {
+                return !cursor.isFinished();
+            }
+
+            @Override
+            public List<String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final ScanCursor current = cursor;
+                final KeyScanCursor<String> result = sync(c -> c.scan(current, args));
+                cursor = result;
+                return result.getKeys();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
     @Override
     public void delete(String key) {
         sync(c -> c.del(key));
     }
 
+    @Override
+    public void delete(Collection<String> keys) {
+        if (!keys.isEmpty()) {
+            sync(c -> c.del(keys.toArray(new String[0])));
+        }
+    }
+
+    @Override
+    public boolean rename(String oldKey, String newKey) {
+        try (StatefulRedisConnection<String, Object> conn = borrow()) {
+            return conn.sync().renamenx(oldKey, newKey);
+        } catch (RedisCommandExecutionException e) {
+            if (e.getMessage() != null && e.getMessage().contains("no such key")) {
+                return false;
+            }
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to rename key [" + oldKey + "]", e);
+        }
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        try (StatefulRedisConnection<String, Object> conn = borrow()) {
+            try {
+                return evalsha(conn, script, keys, args);
+            } catch (RedisNoScriptException e) {
+                log.debug("Loading " + script);
+                conn.sync().dispatch(CommandType.SCRIPT, new StatusOutput<>(codec), new CommandArgs<>(codec).add(CommandKeyword.LOAD).add(script.getSource()));
+                return evalsha(conn, script, keys, args);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to borrow a connection", e);
+        }
+    }
+
+    private long evalsha(StatefulRedisConnection<String, Object> conn, RedisScript script, List<String> keys, List<byte[]> args) {
+        final CommandArgs<String, Object> commandArgs = new CommandArgs<>(codec).add(script.getSha1()).add(keys.size()).addKeys(keys);
+        args.forEach(commandArgs::add);
+        return conn.sync().dispatch(CommandType.EVALSHA, new IntegerOutput<>(codec), commandArgs);
+    }
+
     @Override
     public void expire(String key, long expirationTime, TimeUnit timeUnit) {
         async(c -> c.pexpire(key, TimeUnit.MILLISECONDS.convert(expirationTime, timeUnit)));
@@ -90,8 +367,128 @@ public class LettuceSessionClient implements RedisSessionClient {
 
     @Override
     public boolean exists(String key) {
-        Long count = sync(c -> c.exists(key));
-        return count != null && count.longValue() == 1L;
+        return sync(c -> c.exists(key)) == 1L;
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        async(c -> {
+            c.pfadd(key, member);
+            return c.pexpire(key, TimeUnit.MILLISECONDS.convert(expirationTime, timeUnit));
+        });
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        return sync(c -> c.pfcount(keys.toArray(new String[0])));
+    }
+
+    // set members are plain strings rather than values of the session codec, hence dispatch()
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        sync(c -> {
+            c.dispatch(CommandType.SADD, new IntegerOutput<>(codec), new CommandArgs<>(codec).addKey(key).add(member));
+            return expirationTime > 0 ? c.pexpire(key, timeUnit.toMillis(expirationTime)) : null;
+        });
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        if (members.isEmpty()) {
+            return;
+        }
+        final CommandArgs<String, Object> args = new CommandArgs<>(codec).addKey(key);
+        for (String member : members) {
+            args.add(member);
+        }
+        sync(c -> c.dispatch(CommandType.SREM, new IntegerOutput<>(codec), args));
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        final List<byte[]> members = sync(c -> c.dispatch(CommandType.SMEMBERS, new ByteArrayListOutput<>(codec), new CommandArgs<>(codec).addKey(key)));
+        return members.stream().map(m -> new String(m, StandardCharsets.UTF_8)).collect(Collectors.toSet());
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        async(c -> c.set(key, "", SetArgs.Builder.px(timeUnit.toMillis(ttl))));
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        return "OK".equals(sync(c -> c.set(key, "", SetArgs.Builder.nx().px(timeUnit.toMillis(ttl)))));
+    }
+
+    @Override
+    public List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        final SetArgs args = SetArgs.Builder.nx().px(timeUnit.toMillis(ttl));
+        // pipelined on one connection, which is only returned once all replies are in
+        try (StatefulRedisConnection<String, Object> conn = borrow()) {
+            final List<RedisFuture<String>> replies = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                replies.add(conn.async().set(key, "", args));
+            }
+            final long timeout = conn.getTimeout().toMillis();
+            final List<Boolean> claimed = new ArrayList<>(keys.size());
+            for (RedisFuture<String> reply : replies) {
+                claimed.add("OK".equals(reply.get(timeout, TimeUnit.MILLISECONDS)));
+            }
+            return claimed;
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to claim " + keys.size() + " keys", e);
+        }
+    }
+
+    @Override
+    public synchronized void subscribeExpirations(Consumer<String> listener) {
+        if (client == null) {
+            throw new UnsupportedOperationException("No client to subscribe with");
+        }
+        for (RedisURI uri : uris) {
+            final StatefulRedisPubSubConnection<String, String> conn = client.connectPubSub(uri);
+            conn.addListener(new RedisPubSubAdapter<String, String>() {
+                @Override
+                public void message(String pattern, String channel, String message) {
+                    listener.accept(message);
+                }
+            });
+            // resubscribed by lettuce on reconnect
+            conn.sync().psubscribe("__keyevent@*__:expired");
+            subscriptions.add(conn);
+        }
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        async(c -> c.dispatch(CommandType.PUBLISH, new IntegerOutput<>(codec), new CommandArgs<>(codec).addKey(channel).add(message)));
+    }
+
+    @Override
+    public synchronized void subscribe(String channel, Consumer<String> listener) {
+        if (client == null || uris.isEmpty()) {
+            throw new UnsupportedOperationException("No client to subscribe with");
+        }
+        // messages are propagated to every node
+        final StatefulRedisPubSubConnection<String, String> conn = client.connectPubSub(uris.get(0));
+        conn.addListener(new RedisPubSubAdapter<String, String>() {
+            @Override
+            public void message(String ch, String message) {
+                listener.accept(message);
+            }
+        });
+        conn.sync().subscribe(channel);
+        subscriptions.add(conn);
+    }
+
+    @Override
+    public boolean supports(Capability capability) {
+        // subscriptions need the client and the nodes to connect to
+        return capability != Capability.PUB_SUB || (client != null && !uris.isEmpty());
     }
 
     @Override
@@ -101,8 +498,25 @@ public class LettuceSessionClient implements RedisSessionClient {
     }
 
     @Override
-    public void shutdown() {
+    public void ping() {
+        sync(c -> c.ping());
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    @Override
+    public synchronized void shutdown() {
         // pool will be closed by LettuceSessionManager
+        subscriptions.forEach(StatefulRedisPubSubConnection::close);
+        subscriptions.clear();
+        shutdown = true;
+        if (alternateConnection != null) {
+            alternateConnection.close();
+            alternateConnection = null;
+        }
     }
 
 }
@@ -18,6 +18,7 @@ package com.crimsonhexagon.rsm.lettuce;
 
 import com.crimsonhexagon.rsm.RedisSessionClient;
 import com.crimsonhexagon.rsm.RedisSessionManager;
+import com.crimsonhexagon.rsm.SharedResources;
 
 import io.lettuce.core.ReadFrom;
 import io.lettuce.core.RedisClient;
@@ -32,9 +33,10 @@ import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -43,26 +45,93 @@ public class LettuceSessionManager extends RedisSessionManager {
     public static final int DEFAULT_MAX_CONN_POOL_SIZE = 128;
     public static final int DEFAULT_MIN_CONN_POOL_SIZE = 4;
 
+    // clients and pools shared by the managers with equal configuration, see RedisSessionManager#setSharedClient
+    private static final SharedResources<Connections> SHARED_CONNECTIONS = new SharedResources<>(Connections::close);
+
+    // reads of the pooled connections to a primary and its replicas; loads may read replicas on the alternate connection
+    private static final ReadFrom POOL_READ_FROM = ReadFrom.MASTER_PREFERRED;
+
     protected final Log log = LogFactory.getLog(getClass());
 
-    private final RedisClient client = RedisClient.create();
-    private GenericObjectPool<StatefulRedisConnection<String, Object>> pool;
+    // the connections of each shard
+    private final List<Connections> connections = new CopyOnWriteArrayList<>();
+    private final List<String> sharedConnectionsKeys = new ArrayList<>();
     private String nodes = DEFAULT_URI;
+    private String shards;
     private int maxConnPoolSize = DEFAULT_MAX_CONN_POOL_SIZE;
     private int minConnPoolSize = DEFAULT_MIN_CONN_POOL_SIZE;
 
     @Override
     protected final RedisSessionClient buildClient() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+        RedisCodec<String, Object> codec = new ContextClassloaderJdkSerializationCodec(getContainerClassLoader());
+        if (shards != null && shards.trim().length() != 0) {
+            final List<RedisSessionClient> clients = new ArrayList<>();
+            for (String shardNodes : shards.trim().split("\\s*,\\s*")) {
+                clients.add(connect(Arrays.asList(shardNodes.split("\\s+")), codec));
+            }
+            return shard(clients);
+        }
         if (nodes == null || nodes.trim().length() == 0) {
             throw new IllegalStateException("Manager must specify node string. e.g., nodes=\"redis://node1.com:6379 redis://node2.com:6379\"");
         }
-        RedisCodec<String, Object> codec = new ContextClassloaderJdkSerializationCodec(getContainerClassLoader());
-        List<String> nodes = Arrays.asList(getNodes().trim().split("\\s+"));
-        this.pool = createPool(nodes, codec);
-        return new LettuceSessionClient(pool, codec);
+        return connect(Arrays.asList(getNodes().trim().split("\\s+")), codec);
+    }
+
+    /**
+     * Build the client of a primary and its replicas
+     */
+    private LettuceSessionClient connect(List<String> nodes, RedisCodec<String, Object> codec) {
+        final Connections conns;
+        if (isSharedClient()) {
+            final String key = sharedConnectionsKey(nodes);
+            // pooled connections only encode values, which needs no classloader; sessions are decoded by each manager
+            conns = SHARED_CONNECTIONS.acquire(key, () -> {
+                final RedisClient sharedClient = RedisClient.create();
+                return new Connections(sharedClient, createPool(sharedClient, nodes, new ContextClassloaderJdkSerializationCodec(null)));
+            });
+            sharedConnectionsKeys.add(key);
+            log.info("Sharing the redis client of " + nodes + " with " + (SHARED_CONNECTIONS.references(key) - 1) + " other managers");
+        } else {
+            final RedisClient client = RedisClient.create();
+            conns = new Connections(client, createPool(client, nodes, codec));
+        }
+        connections.add(conns);
+        return new LettuceSessionClient(conns.pool, codec, conns.client, nodes.stream().map(RedisURI::create).collect(Collectors.toList()),
+            () -> connectAlternate(conns.client, nodes, codec));
     }
 
-    private GenericObjectPool<StatefulRedisConnection<String, Object>> createPool(List<String> nodes, RedisCodec<String, Object> codec) {
+    /**
+     * Key of the shared connections to the nodes: everything the pooled connections are configured with, so that
+     * managers only share connections that behave alike: the nodes with their resolved command timeouts, where the
+     * pooled connections read from and the pool sizes
+     */
+    private String sharedConnectionsKey(List<String> nodes) {
+        final StringBuilder key = new StringBuilder();
+        for (String node : nodes) {
+            key.append(node).append(" timeout=").append(RedisURI.create(node).getTimeout().toMillis()).append(' ');
+        }
+        return key.append("readFrom=").append((nodes.size() == 1 ? ReadFrom.MASTER : POOL_READ_FROM).getClass().getSimpleName())
+            .append(" max=").append(getMaxConnPoolSize())
+            .append(" min=").append(getMinConnPoolSize())
+            .toString();
+    }
+
+    /**
+     * Connection for alternate reads (see {@link LettuceSessionClient#loadEncodedAsync(String, boolean)}): reading from
+     * replicas if there are any
+     */
+    private StatefulRedisConnection<String, Object> connectAlternate(RedisClient client, List<String> nodes, RedisCodec<String, Object> codec) {
+        if (nodes.size() == 1) {
+            return client.connect(codec, RedisURI.create(nodes.get(0)));
+        }
+        StatefulRedisMasterReplicaConnection<String, Object> connection =
+            MasterReplica.connect(client, codec, nodes.stream().map(RedisURI::create).collect(Collectors.toList()));
+        connection.setReadFrom(ReadFrom.REPLICA_PREFERRED);
+        return connection;
+    }
+
+    private GenericObjectPool<StatefulRedisConnection<String, Object>> createPool(RedisClient client, List<String> nodes,
+        RedisCodec<String, Object> codec) {
         GenericObjectPoolConfig<StatefulRedisConnection<String, Object>> cfg = new GenericObjectPoolConfig<>();
         cfg.setTestOnBorrow(true);
         cfg.setMinEvictableIdleTimeMillis(TimeUnit.MINUTES.toMillis(5));
@@ -82,7 +151,7 @@ public class LettuceSessionManager extends RedisSessionManager {
                 () -> {
                     StatefulRedisMasterReplicaConnection<String, Object> connection =
                         MasterReplica.connect(client, codec, uris);
-                    connection.setReadFrom(ReadFrom.MASTER_PREFERRED);
+                    connection.setReadFrom(POOL_READ_FROM);
                     return connection;
                 },
                 cfg
@@ -91,11 +160,26 @@ public class LettuceSessionManager extends RedisSessionManager {
     }
 
     @Override
-    public void unload() throws IOException {
-        if (pool != null) {
-            pool.close();
+    protected void warmConnections() {
+        for (Connections conns : connections) {
+            try {
+                conns.pool.preparePool();
+            } catch (Exception e) {
+                log.warn("Failed to open " + getMinConnPoolSize() + " pooled connections", e);
+            }
         }
-        client.shutdown();
+    }
+
+    @Override
+    protected void releaseClient() {
+        for (String key : sharedConnectionsKeys) {
+            SHARED_CONNECTIONS.release(key);
+        }
+        if (sharedConnectionsKeys.isEmpty()) {
+            connections.forEach(Connections::close);
+        }
+        sharedConnectionsKeys.clear();
+        connections.clear();
     }
 
     public String getNodes() {
@@ -106,6 +190,21 @@ public class LettuceSessionManager extends RedisSessionManager {
         this.nodes = nodes;
     }
 
+    public String getShards() {
+        return shards;
+    }
+
+    /**
+     * Spread sessions across independent redis primaries: a comma-separated list of shards, each given like
+     * {@link #setNodes(String)}; replaces <code>nodes</code>. Shards are identified by their position, so shards may
+     * only be appended (see {@link #setPreviousShardCount(int)})
+     * 
+     * @param shards
+     */
+    public void setShards(String shards) {
+        this.shards = shards;
+    }
+
     public int getMaxConnPoolSize() {
         return maxConnPoolSize;
     }
@@ -121,4 +220,19 @@ public class LettuceSessionManager extends RedisSessionManager {
     public void setMinConnPoolSize(int minConnPoolSize) {
         this.minConnPoolSize = minConnPoolSize;
     }
+
+    private static final class Connections {
+        private final RedisClient client;
+        private final GenericObjectPool<StatefulRedisConnection<String, Object>> pool;
+
+        private Connections(RedisClient client, GenericObjectPool<StatefulRedisConnection<String, Object>> pool) {
+            this.client = client;
+            this.pool = pool;
+        }
+
+        private void close() {
+            pool.close();
+            client.shutdown();
+        }
+    }
 }
@@ -0,0 +1,451 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.loadtest;
+
+import com.crimsonhexagon.rsm.RedisScript;
+import com.crimsonhexagon.rsm.RedisSession;
+import com.crimsonhexagon.rsm.RedisSessionClient;
+import com.crimsonhexagon.rsm.SessionEnvelope;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * In-heap stand-in for redis. Sessions are stored JDK-serialized with an expiration time so that encoding,
+ * decoding and TTL handling cost the same as they would against a real server. An optional latency is applied
+ * to every operation to simulate the network round trip.
+ */
+public class InMemorySessionClient implements RedisSessionClient {
+    private final ConcurrentHashMap<String, Entry> store = new ConcurrentHashMap<>();
+    private final ClassLoader containerClassLoader;
+    private final long latencyNanos;
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder saves = new LongAdder();
+    private final LongAdder reserves = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LongAdder expires = new LongAdder();
+    private final LongAdder existsChecks = new LongAdder();
+    // exact sets standing in for HyperLogLogs; expiry is not simulated as there are few such keys
+    private final ConcurrentHashMap<String, Set<String>> hyperLogLogs = new ConcurrentHashMap<>();
+    // expiry of sets is not simulated either
+    private final ConcurrentHashMap<String, Set<String>> sets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    public InMemorySessionClient(ClassLoader containerClassLoader, long latencyMicros) {
+        this.containerClassLoader = containerClassLoader;
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    @Override
+    public void save(String key, RedisSession session) {
+        roundTrip();
+        saves.increment();
+        byte[] encoded = encode(session);
+        bytesWritten.add(encoded.length);
+        // SET clears any existing TTL
+        store.put(key, new Entry(encoded, Long.MAX_VALUE));
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        roundTrip();
+        reserves.increment();
+        final byte[] encoded = encode(session);
+        final long expiresAt = ttl > 0 ? System.currentTimeMillis() + timeUnit.toMillis(ttl) : Long.MAX_VALUE;
+        final Entry entry = new Entry(encoded, expiresAt);
+        // an expired entry counts as absent, as in redis
+        final Entry winner = store.compute(key, (k, e) -> e == null || e.expiresAt <= System.currentTimeMillis() ? entry : e);
+        if (winner != entry) {
+            return false;
+        }
+        bytesWritten.add(encoded.length);
+        return true;
+    }
+
+    @Override
+    public RedisSession load(String key) {
+        byte[] encoded = loadEncoded(key);
+        return encoded == null ? null : RedisSession.class.cast(decode(encoded));
+    }
+
+    @Override
+    public byte[] loadEncoded(String key) {
+        roundTrip();
+        loads.increment();
+        Entry entry = live(key);
+        if (entry == null) {
+            return null;
+        }
+        bytesRead.add(entry.value.length);
+        return entry.value;
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        roundTrip();
+        return keys.stream().map(key -> {
+            loads.increment();
+            final Entry entry = live(key);
+            if (entry == null) {
+                return null;
+            }
+            bytesRead.add(entry.value.length);
+            return entry.value;
+        }).collect(Collectors.toList());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        return CompletableFuture.completedFuture(loadEncoded(key));
+    }
+
+    @Override
+    public Stream<List<String>> scanKeys(String pattern, int count) {
+        final Pattern regex = globToRegex(pattern);
+        final long now = System.currentTimeMillis();
+        final List<String> keys = new ArrayList<>();
+        store.forEach((k, e) -> {
+            if (e.expiresAt > now && regex.matcher(k).matches()) {
+                keys.add(k);
+            }
+        });
+        hyperLogLogs.keySet().stream().filter(k -> regex.matcher(k).matches()).forEach(keys::add);
+        sets.keySet().stream().filter(k -> regex.matcher(k).matches()).forEach(keys::add);
+        // one simulated round trip per page, charged as the page is consumed
+        return IntStream.iterate(0, i -> i + count).limit((keys.size() + count - 1) / count)
+            .mapToObj(i -> {
+                roundTrip();
+                return keys.subList(i, Math.min(i + count, keys.size()));
+            });
+    }
+
+    @Override
+    public void delete(String key) {
+        roundTrip();
+        deletes.increment();
+        store.remove(key);
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        roundTrip();
+        deletes.increment();
+        for (String key : keys) {
+            store.remove(key);
+            hyperLogLogs.remove(key);
+            sets.remove(key);
+        }
+    }
+
+    @Override
+    public synchronized boolean rename(String oldKey, String newKey) {
+        roundTrip();
+        final long now = System.currentTimeMillis();
+        final Entry entry = store.get(oldKey);
+        final Entry existing = store.get(newKey);
+        if (entry == null || entry.expiresAt <= now || (existing != null && existing.expiresAt > now)) {
+            return false;
+        }
+        store.put(newKey, entry);
+        store.remove(oldKey);
+        return true;
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        if (SessionEnvelope.OVERWRITE.equals(script)) {
+            return overwrite(keys.get(0), args.get(0), Long.parseLong(new String(args.get(1), StandardCharsets.US_ASCII)));
+        }
+        if (!SessionEnvelope.COMPARE_AND_SET.equals(script)) {
+            throw new UnsupportedOperationException("Unsupported script " + script);
+        }
+        roundTrip();
+        saves.increment();
+        final long expected = Long.parseLong(new String(args.get(0), StandardCharsets.US_ASCII));
+        final long ttlMillis = Long.parseLong(new String(args.get(2), StandardCharsets.US_ASCII));
+        final Entry entry = new Entry(args.get(1), ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE);
+        final long[] result = new long[1];
+        store.compute(keys.get(0), (k, e) -> {
+            final boolean absent = e == null || e.expiresAt <= System.currentTimeMillis();
+            if (absent && expected != 0) {
+                result[0] = -1;
+                return null;
+            }
+            if (!absent && SessionEnvelope.version(e.value) != expected) {
+                return e;
+            }
+            result[0] = 1;
+            return entry;
+        });
+        if (result[0] == 1) {
+            bytesWritten.add(entry.value.length);
+        }
+        return result[0];
+    }
+
+    private long overwrite(String key, byte[] payload, long ttlMillis) {
+        roundTrip();
+        saves.increment();
+        final long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        final Entry entry = store.compute(key, (k, e) -> {
+            final long version = e == null || e.expiresAt <= System.currentTimeMillis() ? 0 : SessionEnvelope.version(e.value);
+            return new Entry(SessionEnvelope.wrap(version + 1, payload), expiresAt);
+        });
+        bytesWritten.add(entry.value.length);
+        return SessionEnvelope.version(entry.value);
+    }
+
+    @Override
+    public void expire(String key, long expirationTime, TimeUnit timeUnit) {
+        roundTrip();
+        expires.increment();
+        final long expiresAt = System.currentTimeMillis() + timeUnit.toMillis(expirationTime);
+        store.computeIfPresent(key, (k, e) -> new Entry(e.value, expiresAt));
+    }
+
+    @Override
+    public boolean exists(String key) {
+        roundTrip();
+        existsChecks.increment();
+        return live(key) != null;
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        // asynchronous in the real clients; no simulated latency
+        hyperLogLogs.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(member);
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        roundTrip();
+        return keys.stream().filter(hyperLogLogs::containsKey).flatMap(k -> hyperLogLogs.get(k).stream()).distinct().count();
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        roundTrip();
+        sets.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(member);
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        roundTrip();
+        sets.computeIfPresent(key, (k, set) -> {
+            set.removeAll(members);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        roundTrip();
+        final Set<String> set = sets.get(key);
+        return set == null ? Collections.emptySet() : new HashSet<>(set);
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        roundTrip();
+        store.put(key, new Entry(new byte[0], System.currentTimeMillis() + timeUnit.toMillis(ttl)));
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        roundTrip();
+        final Entry entry = new Entry(new byte[0], System.currentTimeMillis() + timeUnit.toMillis(ttl));
+        return store.compute(key, (k, e) -> e == null || e.expiresAt <= System.currentTimeMillis() ? entry : e) == entry;
+    }
+
+    @Override
+    public void subscribeExpirations(Consumer<String> listener) {
+        throw new UnsupportedOperationException("Expiration events are not simulated");
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        roundTrip();
+        subscribers.getOrDefault(channel, Collections.emptyList()).forEach(l -> l.accept(message));
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        subscribers.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    @Override
+    public boolean supports(Capability capability) {
+        return true;
+    }
+
+    @Override
+    public int getEncodedSize(Object obj) {
+        return encode(obj).length;
+    }
+
+    @Override
+    public void shutdown() {
+        store.clear();
+    }
+
+    /**
+     * Number of live (unexpired) keys in the store
+     * 
+     * @return
+     */
+    public int size() {
+        long now = System.currentTimeMillis();
+        return (int) store.values().stream().filter(e -> e.expiresAt > now).count();
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getSaves() {
+        return saves.sum();
+    }
+
+    public long getReserves() {
+        return reserves.sum();
+    }
+
+    public long getDeletes() {
+        return deletes.sum();
+    }
+
+    public long getExpires() {
+        return expires.sum();
+    }
+
+    public long getExistsChecks() {
+        return existsChecks.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * Translate a redis glob-style pattern (<code>*</code>, <code>?</code> and backslash escapes) to a regex
+     * 
+     * @param glob
+     * @return
+     */
+    private static Pattern globToRegex(String glob) {
+        final StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else {
+                if (c == '\\' && i + 1 < glob.length()) {
+                    c = glob.charAt(++i);
+                }
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private Entry live(String key) {
+        Entry entry = store.get(key);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            store.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private void roundTrip() {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+    }
+
+    @Override
+    public byte[] encode(Object obj) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream os = new ObjectOutputStream(bytes);
+            os.writeObject(obj);
+            os.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+        try {
+            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+            final ObjectInputStream ois;
+            if (containerClassLoader != null) {
+                ois = new CustomObjectInputStream(bais, containerClassLoader);
+            } else {
+                ois = new ObjectInputStream(bais);
+            }
+            return ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        final byte[] value;
+        final long expiresAt;
+
+        Entry(byte[] value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.loadtest;
+
+import com.crimsonhexagon.rsm.RedisSessionClient;
+import com.crimsonhexagon.rsm.RedisSessionManager;
+
+/**
+ * Manager backed by an {@link InMemorySessionClient}; allows the full manager/valve code path to be exercised
+ * without a redis server.
+ */
+public class InMemorySessionManager extends RedisSessionManager {
+    public static final long DEFAULT_LATENCY_MICROS = 0;
+
+    private long latencyMicros = DEFAULT_LATENCY_MICROS;
+
+    @Override
+    protected RedisSessionClient buildClient() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+        return new InMemorySessionClient(getContainerClassLoader(), latencyMicros);
+    }
+
+    @Override
+    public InMemorySessionClient getClient() {
+        return InMemorySessionClient.class.cast(super.getClient());
+    }
+
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    /**
+     * Simulated round trip time applied to every operation.<br>
+     * Defaults to {@value #DEFAULT_LATENCY_MICROS}
+     * 
+     * @param latencyMicros
+     */
+    public void setLatencyMicros(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+}
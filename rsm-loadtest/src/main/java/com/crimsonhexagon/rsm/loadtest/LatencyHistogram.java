@@ -0,0 +1,95 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size, thread-safe log-linear histogram of latencies in microseconds. Values below {@value #LINEAR_BUCKETS}
+ * are recorded exactly; larger values keep their 6 most significant bits which bounds the relative error to ~1.6%.
+ */
+class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int MAX_EXPONENT = 40; // ~12.7 days in micros
+    private static final int BUCKETS = LINEAR_BUCKETS + (MAX_EXPONENT - 7 + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long micros) {
+        long v = Math.max(0, micros);
+        counts.incrementAndGet(index(v));
+        total.increment();
+        max.accumulate(v);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Get the value at the given percentile
+     * 
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket containing the percentile, in microseconds
+     */
+    long percentile(double percentile) {
+        final long n = count();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100d * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    static int index(long v) {
+        if (v < LINEAR_BUCKETS) {
+            return (int) v;
+        }
+        final int exponent = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_EXPONENT);
+        final int shift = exponent - (SUB_BUCKET_BITS);
+        final int mantissa = (int) Math.min(v >>> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (exponent - 7) * SUB_BUCKETS + mantissa;
+    }
+
+    static long upperBound(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        final int exponent = 7 + (index - LINEAR_BUCKETS) / SUB_BUCKETS;
+        final long mantissa = SUB_BUCKETS + (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,400 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.loadtest;
+
+import com.crimsonhexagon.rsm.RedisSessionManager;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Valve;
+import org.apache.catalina.authenticator.AuthenticatorBase;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.tomcat.util.IntrospectionUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+
+/**
+ * Load generator for validating {@link RedisSessionManager} configuration.<br>
+ * Starts an embedded tomcat with the configured manager (and therefore its {@link com.crimsonhexagon.rsm.RedisSessionRequestValve})
+ * and drives a mix of session creating, reading and mutating requests from concurrent clients. Latency percentiles
+ * are reported per {@link SessionPhase} as timed on the server, and throughput and client latency per {@link Phase}.
+ * <p>
+ * Arguments are of the form <code>--name=value</code>:
+ * <ul>
+ * <li><code>manager</code>: manager class name. Defaults to {@link InMemorySessionManager}</li>
+ * <li><code>manager.&lt;property&gt;</code>: any manager property as it would be set in context.xml,
+ * e.g. <code>--manager.saveOnChange=true</code> or <code>--manager.nodes=redis://localhost:6379</code></li>
+ * <li><code>connector.&lt;property&gt;</code>: any HTTP connector property, e.g. <code>--connector.maxThreads=400</code></li>
+ * <li><code>clients</code>: number of concurrent clients. Defaults to {@value #DEFAULT_CLIENTS}</li>
+ * <li><code>duration</code>: measured run time in seconds. Defaults to {@value #DEFAULT_DURATION}</li>
+ * <li><code>warmup</code>: unmeasured warmup time in seconds. Defaults to {@value #DEFAULT_WARMUP}</li>
+ * <li><code>mix</code>: relative weights of each phase. Defaults to {@value #DEFAULT_MIX}</li>
+ * <li><code>payload</code>: size in chars of the session attribute written by create/mutate. Defaults to {@value #DEFAULT_PAYLOAD}</li>
+ * <li><code>sessionTimeout</code>: context session timeout in minutes. Defaults to {@value #DEFAULT_SESSION_TIMEOUT}</li>
+ * <li><code>jvmRoute</code>: engine jvmRoute. Defaults to none</li>
+ * <li><code>port</code>: HTTP port. Defaults to an ephemeral port</li>
+ * </ul>
+ * Managers from rsm-lettuce or rsm-redisson are used by adding the corresponding <code>-with-dependencies</code> jar to the classpath.
+ */
+public class LoadTestHarness {
+    public static final int DEFAULT_CLIENTS = 64;
+    public static final int DEFAULT_DURATION = 30;
+    public static final int DEFAULT_WARMUP = 5;
+    public static final String DEFAULT_MIX = "create:10,read:70,mutate:20";
+    public static final int DEFAULT_PAYLOAD = 512;
+    public static final int DEFAULT_SESSION_TIMEOUT = 30;
+
+    private static final String MANAGER_PREFIX = "manager.";
+    private static final String CONNECTOR_PREFIX = "connector.";
+    private static final String SESSION_COOKIE = "JSESSIONID=";
+
+    private final Map<String, String> args;
+    private final Map<Phase, Integer> mix;
+    private final int clients;
+    private final int payload;
+
+    private volatile boolean running;
+    private volatile boolean measuring;
+    private final Map<Phase, PhaseStats> stats = new EnumMap<>(Phase.class);
+    private final Map<SessionPhase, LatencyHistogram> sessionPhases = new EnumMap<>(SessionPhase.class);
+
+    LoadTestHarness(Map<String, String> args) {
+        this.args = args;
+        this.mix = parseMix(args.getOrDefault("mix", DEFAULT_MIX));
+        this.clients = Integer.parseInt(args.getOrDefault("clients", String.valueOf(DEFAULT_CLIENTS)));
+        this.payload = Integer.parseInt(args.getOrDefault("payload", String.valueOf(DEFAULT_PAYLOAD)));
+        for (Phase p : Phase.values()) {
+            stats.put(p, new PhaseStats());
+        }
+        for (SessionPhase p : SessionPhase.values()) {
+            sessionPhases.put(p, new LatencyHistogram());
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        new LoadTestHarness(parseArgs(argv)).run(System.out);
+    }
+
+    void run(PrintStream out) throws Exception {
+        // the JDK only keeps 5 idle connections per destination by default; read once, so set before any connection
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+        final RedisSessionManager manager = createManager();
+        final Path baseDir = Files.createTempDirectory("rsm-loadtest");
+        final Tomcat tomcat = startTomcat(manager, baseDir);
+        try {
+            final int port = tomcat.getConnector().getLocalPort();
+            final String baseUrl = "http://localhost:" + port;
+
+            final long warmupMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args.getOrDefault("warmup", String.valueOf(DEFAULT_WARMUP))));
+            final long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(args.getOrDefault("duration", String.valueOf(DEFAULT_DURATION))));
+
+            out.println("Running " + clients + " clients against " + manager.getClass().getName() + " at " + baseUrl);
+            running = true;
+            List<Thread> threads = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                Thread t = new Thread(new Client(baseUrl), "rsm-loadtest-client-" + i);
+                t.setDaemon(true);
+                threads.add(t);
+                t.start();
+            }
+
+            Thread.sleep(warmupMillis);
+            measuring = true;
+            final long start = System.nanoTime();
+            Thread.sleep(durationMillis);
+            measuring = false;
+            final long elapsedNanos = System.nanoTime() - start;
+            running = false;
+            for (Thread t : threads) {
+                t.join(TimeUnit.SECONDS.toMillis(10));
+            }
+            report(out, manager, elapsedNanos);
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    private RedisSessionManager createManager() throws ReflectiveOperationException {
+        final String className = args.getOrDefault("manager", InMemorySessionManager.class.getName());
+        final RedisSessionManager manager = RedisSessionManager.class.cast(Class.forName(className).newInstance());
+        applyProperties(manager, MANAGER_PREFIX);
+        return manager;
+    }
+
+    private Tomcat startTomcat(RedisSessionManager manager, Path baseDir) throws LifecycleException, IOException {
+        final Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.toString());
+        tomcat.setPort(Integer.parseInt(args.getOrDefault("port", "0")));
+        tomcat.getHost().setAutoDeploy(false);
+        if (args.containsKey("jvmRoute")) {
+            tomcat.getEngine().setJvmRoute(args.get("jvmRoute"));
+        }
+
+        final Connector connector = tomcat.getConnector();
+        applyProperties(connector, CONNECTOR_PREFIX);
+        // outside of the valve of the manager, which is added to the host
+        tomcat.getEngine().getPipeline().addValve(new SaveTimingValve());
+
+        final Path docBase = Files.createDirectories(baseDir.resolve("webapp"));
+        final Context ctx = tomcat.addContext("", docBase.toString());
+        ctx.setSessionTimeout(Integer.parseInt(args.getOrDefault("sessionTimeout", String.valueOf(DEFAULT_SESSION_TIMEOUT))));
+        ctx.setManager(manager);
+        Tomcat.addServlet(ctx, "load", new LoadTestServlet(payload, this::recordSessionPhase));
+        ctx.addServletMappingDecoded("/*", "load");
+
+        tomcat.start();
+        for (Valve valve : ctx.getPipeline().getValves()) {
+            if (valve instanceof AuthenticatorBase) {
+                // would otherwise load the session ahead of the servlet, outside of the timed LOAD phase
+                ((AuthenticatorBase) valve).setCache(false);
+            }
+        }
+        return tomcat;
+    }
+
+    private void applyProperties(Object target, String prefix) {
+        for (Map.Entry<String, String> e : args.entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                final String name = e.getKey().substring(prefix.length());
+                if (!IntrospectionUtils.setProperty(target, name, e.getValue())) {
+                    throw new IllegalArgumentException("Unknown property [" + name + "] for " + target.getClass().getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the time a {@link SessionPhase} of a request took, while measuring
+     * 
+     * @param phase
+     * @param nanos
+     */
+    void recordSessionPhase(SessionPhase phase, long nanos) {
+        if (measuring) {
+            sessionPhases.get(phase).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        }
+    }
+
+    private void report(PrintStream out, RedisSessionManager manager, long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9d;
+        long totalCount = 0;
+        out.println();
+        out.println("Session phases (server side):");
+        out.println(String.format("%-8s %10s %12s %10s %10s %10s %10s",
+            "phase", "count", "ops/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)"));
+        for (Map.Entry<SessionPhase, LatencyHistogram> e : sessionPhases.entrySet()) {
+            final LatencyHistogram h = e.getValue();
+            out.println(String.format("%-8s %10d %12.1f %10.3f %10.3f %10.3f %10.3f",
+                e.getKey().name().toLowerCase(), h.count(), h.count() / seconds,
+                millis(h.percentile(50)), millis(h.percentile(99)), millis(h.percentile(99.9)), millis(h.max())));
+        }
+        out.println();
+        out.println("Requests (client side):");
+        out.println(String.format("%-8s %10s %8s %8s %12s %10s %10s %10s %10s",
+            "request", "requests", "misses", "errors", "req/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)"));
+        for (Map.Entry<Phase, PhaseStats> e : stats.entrySet()) {
+            final PhaseStats s = e.getValue();
+            final LatencyHistogram h = s.latency;
+            totalCount += h.count();
+            out.println(String.format("%-8s %10d %8d %8d %12.1f %10.3f %10.3f %10.3f %10.3f",
+                e.getKey().name().toLowerCase(), h.count(), s.misses.get(), s.errors.get(), h.count() / seconds,
+                millis(h.percentile(50)), millis(h.percentile(99)), millis(h.percentile(99.9)), millis(h.max())));
+        }
+        out.println(String.format("%-8s %10d %8s %8s %12.1f", "total", totalCount, "", "", totalCount / seconds));
+
+        if (manager instanceof InMemorySessionManager) {
+            final InMemorySessionClient c = InMemorySessionManager.class.cast(manager).getClient();
+            final long requests = Math.max(1, totalCount);
+            out.println();
+            out.println("Store operations (including warmup; per measured request):");
+            out.println(String.format("  loads=%d (%.2f) saves=%d (%.2f) reserves=%d (%.2f) expires=%d (%.2f) exists=%d (%.2f) deletes=%d",
+                c.getLoads(), c.getLoads() / (double) requests,
+                c.getSaves(), c.getSaves() / (double) requests,
+                c.getReserves(), c.getReserves() / (double) requests,
+                c.getExpires(), c.getExpires() / (double) requests,
+                c.getExistsChecks(), c.getExistsChecks() / (double) requests,
+                c.getDeletes()));
+            out.println(String.format("  bytesRead=%d bytesWritten=%d liveSessions=%d", c.getBytesRead(), c.getBytesWritten(), c.size()));
+        }
+        out.println();
+        out.println(String.format("Manager: sessionLoads=%d coalescedLoads=%d", manager.getSessionLoadCount(), manager.getCoalescedSessionLoadCount()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000d;
+    }
+
+    static Map<Phase, Integer> parseMix(String mix) {
+        final Map<Phase, Integer> weights = new EnumMap<>(Phase.class);
+        for (String part : mix.split(",")) {
+            final String[] kv = part.trim().split(":");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry [" + part + "]; expected phase:weight");
+            }
+            final int weight = Integer.parseInt(kv[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Invalid mix entry [" + part + "]; weights must not be negative");
+            }
+            weights.put(Phase.valueOf(kv[0].trim().toUpperCase()), weight);
+        }
+        if (weights.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("Mix must have a positive total weight: " + mix);
+        }
+        return weights;
+    }
+
+    static Map<String, String> parseArgs(String[] argv) {
+        final Map<String, String> parsed = new LinkedHashMap<>();
+        for (String arg : argv) {
+            final int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 3) {
+                throw new IllegalArgumentException("Invalid argument [" + arg + "]; expected --name=value");
+            }
+            parsed.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return parsed;
+    }
+
+    private Phase nextPhase() {
+        final int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int r = ThreadLocalRandom.current().nextInt(total);
+        for (Map.Entry<Phase, Integer> e : mix.entrySet()) {
+            r -= e.getValue();
+            if (r < 0) {
+                return e.getKey();
+            }
+        }
+        throw new IllegalStateException("Unreachable");
+    }
+
+    /**
+     * A single simulated user agent holding at most one session
+     */
+    private class Client implements Runnable {
+        private final String baseUrl;
+        private String sessionId;
+
+        Client(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                Phase phase = sessionId == null ? Phase.CREATE : nextPhase();
+                if (phase == Phase.CREATE) {
+                    sessionId = null;
+                }
+                final PhaseStats s = stats.get(phase);
+                final long start = System.nanoTime();
+                try {
+                    final int status = request(phase);
+                    final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                    if (measuring) {
+                        if (status == HttpURLConnection.HTTP_OK) {
+                            s.latency.record(micros);
+                        } else if (status == HttpURLConnection.HTTP_GONE) {
+                            s.misses.incrementAndGet();
+                        } else {
+                            s.errors.incrementAndGet();
+                        }
+                    }
+                    if (status != HttpURLConnection.HTTP_OK) {
+                        sessionId = null;
+                    }
+                } catch (IOException e) {
+                    if (measuring) {
+                        s.errors.incrementAndGet();
+                    }
+                    sessionId = null;
+                }
+            }
+        }
+
+        private int request(Phase phase) throws IOException {
+            final HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + phase.path).openConnection();
+            if (sessionId != null) {
+                conn.setRequestProperty("Cookie", SESSION_COOKIE + sessionId);
+            }
+            final int status = conn.getResponseCode();
+            if (phase == Phase.CREATE) {
+                final String cookie = conn.getHeaderField("Set-Cookie");
+                if (cookie != null && cookie.startsWith(SESSION_COOKIE)) {
+                    final int end = cookie.indexOf(';');
+                    sessionId = cookie.substring(SESSION_COOKIE.length(), end < 0 ? cookie.length() : end);
+                }
+            }
+            // drain the body so the connection can be reused
+            try (InputStream in = status < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream()) {
+                if (in != null) {
+                    final byte[] buf = new byte[1024];
+                    while (in.read(buf) >= 0) {
+                        // discard
+                    }
+                }
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Times {@link SessionPhase#SAVE}: the work done after the servlet completed, which is mostly the save (or touch)
+     * of the session by the valve of the manager
+     */
+    private class SaveTimingValve extends ValveBase {
+        SaveTimingValve() {
+            super(true);
+        }
+
+        @Override
+        public void invoke(Request request, Response response) throws IOException, ServletException {
+            getNext().invoke(request, response);
+            final Object completed = request.getAttribute(LoadTestServlet.COMPLETED_ATTR);
+            if (completed instanceof Long) {
+                recordSessionPhase(SessionPhase.SAVE, System.nanoTime() - (Long) completed);
+            }
+        }
+    }
+
+    private static class PhaseStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+}
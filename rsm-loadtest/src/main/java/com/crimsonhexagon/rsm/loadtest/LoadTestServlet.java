@@ -0,0 +1,130 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.loadtest;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.function.ObjLongConsumer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Servlet driven by {@link LoadTestHarness}. The last path segment selects the {@link Phase}:
+ * <ul>
+ * <li><code>/create</code> creates a new session and stores the payload attribute</li>
+ * <li><code>/read</code> reads the payload attribute from an existing session without modifying it</li>
+ * <li><code>/mutate</code> replaces the payload attribute of an existing session</li>
+ * </ul>
+ * Requests for <code>/read</code> or <code>/mutate</code> without a valid session respond with 410 so the client
+ * knows to create a new one. The time spent creating or loading the session is reported as its {@link SessionPhase};
+ * the time the servlet completed with a session is left in the {@value #COMPLETED_ATTR} attribute to time the save
+ * after it.
+ */
+class LoadTestServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    static final String PAYLOAD_ATTR = "payload";
+    static final String COUNTER_ATTR = "counter";
+    // request attribute holding the System#nanoTime() the servlet completed at
+    static final String COMPLETED_ATTR = "com.crimsonhexagon.rsm.loadtest.COMPLETED";
+
+    private final int payloadSize;
+    private final transient ObjLongConsumer<SessionPhase> phaseRecorder;
+
+    /**
+     * @param payloadSize
+     * @param phaseRecorder receives the nanoseconds each {@link SessionPhase} took
+     */
+    LoadTestServlet(int payloadSize, ObjLongConsumer<SessionPhase> phaseRecorder) {
+        this.payloadSize = payloadSize;
+        this.phaseRecorder = phaseRecorder;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final Phase phase = Phase.fromPath(req.getRequestURI());
+        if (phase == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final HttpSession session;
+        switch (phase) {
+            case CREATE:
+                session = getSession(req, true);
+                session.setAttribute(PAYLOAD_ATTR, payload());
+                session.setAttribute(COUNTER_ATTR, 0);
+                break;
+            case READ:
+                session = getSession(req, false);
+                if (session != null) {
+                    session.getAttribute(PAYLOAD_ATTR);
+                }
+                break;
+            case MUTATE:
+                session = getSession(req, false);
+                if (session != null) {
+                    Integer counter = (Integer) session.getAttribute(COUNTER_ATTR);
+                    session.setAttribute(COUNTER_ATTR, counter == null ? 1 : counter + 1);
+                    session.setAttribute(PAYLOAD_ATTR, payload());
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unhandled phase " + phase);
+        }
+        if (session == null) {
+            resp.sendError(HttpServletResponse.SC_GONE);
+            return;
+        }
+        resp.setContentType("text/plain");
+        try (PrintWriter w = resp.getWriter()) {
+            w.print(session.getId());
+        }
+        req.setAttribute(COMPLETED_ATTR, System.nanoTime());
+    }
+
+    /**
+     * Get the session of the request, timed as {@link SessionPhase#CREATE} if a new session is created and as
+     * {@link SessionPhase#LOAD} otherwise
+     * 
+     * @param req
+     * @param create
+     * @return
+     */
+    private HttpSession getSession(HttpServletRequest req, boolean create) {
+        final long start = System.nanoTime();
+        final HttpSession session = req.getSession(create);
+        final long elapsed = System.nanoTime() - start;
+        if (session != null && session.isNew()) {
+            phaseRecorder.accept(SessionPhase.CREATE, elapsed);
+        } else if (req.getRequestedSessionId() != null) {
+            phaseRecorder.accept(SessionPhase.LOAD, elapsed);
+        }
+        return session;
+    }
+
+    private char[] payload() {
+        char[] payload = new char[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            payload[i] = (char) ('a' + (i % 26));
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,42 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package com.crimsonhexagon.rsm.loadtest;
+
+/**
+ * Kinds of requests issued by the {@link LoadTestHarness}
+ */
+enum Phase {
+    CREATE("/create"),
+    READ("/read"),
+    MUTATE("/mutate");
+
+    final String path;
+
+    Phase(String path) {
+        this.path = path;
+    }
+
+    static Phase fromPath(String uri) {
+        for (Phase p : values()) {
+            if (uri.endsWith(p.path)) {
+                return p;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,35 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.crimsonhexagon.rsm.loadtest;
+
+/**
+ * Phases of the session handling of a request, timed on the server by the {@link LoadTestHarness}
+ */
+enum SessionPhase {
+    /**
+     * Creating a new session, including writing it to redis unless its persistence is deferred
+     */
+    CREATE,
+    /**
+     * Finding the existing session of the request, i.e. loading it from redis
+     */
+    LOAD,
+    /**
+     * Saving the session, or extending its expiration, after the request
+     */
+    SAVE
+}
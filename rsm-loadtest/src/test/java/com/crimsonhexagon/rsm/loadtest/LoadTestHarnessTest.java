@@ -0,0 +1,87 @@
+/*-
+ *  Copyright 2015 Crimson Hexagon
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.crimsonhexagon.rsm.loadtest;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+public class LoadTestHarnessTest {
+
+    @Test
+    public void testParseArgs() {
+        Map<String, String> args = LoadTestHarness.parseArgs(new String[] { "--clients=32", "--mix=read:8,mutate:2", "--redis=" });
+        Assert.assertEquals(Arrays.asList("clients", "mix", "redis"), Arrays.asList(args.keySet().toArray()));
+        Assert.assertEquals("32", args.get("clients"));
+        Assert.assertEquals("read:8,mutate:2", args.get("mix"));
+        Assert.assertEquals("", args.get("redis"));
+    }
+
+    @Test
+    public void testParseArgsValueWithEquals() {
+        Map<String, String> args = LoadTestHarness.parseArgs(new String[] { "--redis=redis://:pw=1@localhost" });
+        Assert.assertEquals("redis://:pw=1@localhost", args.get("redis"));
+    }
+
+    @Test
+    public void testParseArgsLastWins() {
+        Map<String, String> args = LoadTestHarness.parseArgs(new String[] { "--clients=5", "--clients=10" });
+        Assert.assertEquals("10", args.get("clients"));
+    }
+
+    @Test
+    public void testParseArgsInvalid() {
+        for (String arg : new String[] { "clients=5", "-clients=5", "--clients", "--=5", "" }) {
+            try {
+                LoadTestHarness.parseArgs(new String[] { arg });
+                Assert.fail("accepted [" + arg + "]");
+            } catch (IllegalArgumentException expected) {
+                Assert.assertTrue(expected.getMessage().contains("--name=value"));
+            }
+        }
+    }
+
+    @Test
+    public void testParseMix() {
+        Map<Phase, Integer> mix = LoadTestHarness.parseMix(" read:8, Mutate : 2,create:0");
+        Assert.assertEquals(Arrays.asList(Phase.CREATE, Phase.READ, Phase.MUTATE), Arrays.asList(mix.keySet().toArray()));
+        Assert.assertEquals(Integer.valueOf(8), mix.get(Phase.READ));
+        Assert.assertEquals(Integer.valueOf(2), mix.get(Phase.MUTATE));
+        Assert.assertEquals(Integer.valueOf(0), mix.get(Phase.CREATE));
+    }
+
+    @Test
+    public void testParseMixLastWins() {
+        Map<Phase, Integer> mix = LoadTestHarness.parseMix("read:1,read:3");
+        Assert.assertEquals(1, mix.size());
+        Assert.assertEquals(Integer.valueOf(3), mix.get(Phase.READ));
+    }
+
+    @Test
+    public void testParseMixInvalid() {
+        for (String mix : new String[] { "read", "read:1:2", "read:x", "browse:1", "read:0,mutate:0", "read:-1,mutate:2", "" }) {
+            try {
+                LoadTestHarness.parseMix(mix);
+                Assert.fail("accepted [" + mix + "]");
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.crimsonhexagon.rsm.redisson;
 
 import com.crimsonhexagon.rsm.RedisSessionClient;
 import com.crimsonhexagon.rsm.RedisSessionManager;
+import com.crimsonhexagon.rsm.SharedResources;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
@@ -25,6 +26,8 @@ import io.netty.channel.epoll.Epoll;
 import org.apache.catalina.util.CustomObjectInputStream;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
 import org.redisson.client.handler.State;
 import org.redisson.client.protocol.Decoder;
 import org.redisson.codec.SerializationCodec;
@@ -35,7 +38,9 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 
 /**
- * Base class for Redisson-backed session manager
+ * Base class for Redisson-backed session manager<br>
+ * Redisson opens its minimum idle connections when the client is created, on start; {@link #setBackgroundWarmup(boolean)}
+ * therefore only warms the codec in the background
  *
  * @author Steve Ungerer
  */
@@ -56,12 +61,41 @@ public abstract class BaseRedissonSessionManager extends RedisSessionManager {
     protected int retryAttempts = DEFAULT_RETRY_ATTEMPTS;
     protected int retryInterval = DEFAULT_RETRY_INTERVAL;
 
+    // Redisson instances shared by the managers with equal configuration, see RedisSessionManager#setSharedClient
+    private static final SharedResources<RedissonClient> SHARED_CLIENTS = new SharedResources<>(RedissonClient::shutdown);
+
+    private String sharedClientKey;
+
     @Override
     protected final RedisSessionClient buildClient() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
-        Config config = new Config()
-            .setCodec(new ContextClassloaderSerializationCodec(getContainerClassLoader()))
-            .setTransportMode(isEpollSupported() ? TransportMode.EPOLL : TransportMode.NIO);
-        return new RedissonSessionClient(configure(config));
+        final ContextClassloaderSerializationCodec codec = new ContextClassloaderSerializationCodec(getContainerClassLoader());
+        final Config config = configure(new Config()
+            .setCodec(codec)
+            .setTransportMode(isEpollSupported() ? TransportMode.EPOLL : TransportMode.NIO));
+        if (!isSharedClient()) {
+            return new RedissonSessionClient(config);
+        }
+        // sessions are read with the codec of each manager; the shared client must not hold on to a webapp classloader
+        config.setCodec(new ContextClassloaderSerializationCodec(null));
+        // the whole configuration, including timeouts and read mode: managers only share a client that behaves alike
+        final String key;
+        try {
+            key = config.toJSON();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to describe the redisson configuration", e);
+        }
+        final RedissonClient redissonClient = SHARED_CLIENTS.acquire(key, () -> Redisson.create(config));
+        this.sharedClientKey = key;
+        log.info("Sharing the redisson client with " + (SHARED_CLIENTS.references(key) - 1) + " other managers");
+        return new RedissonSessionClient(redissonClient, codec);
+    }
+
+    @Override
+    protected void releaseClient() {
+        if (sharedClientKey != null) {
+            SHARED_CLIENTS.release(sharedClientKey);
+            sharedClientKey = null;
+        }
     }
 
     /**
@@ -31,12 +31,15 @@ public class ElasticacheSessionManager extends BaseRedissonSessionManager {
     public static final String DEFAULT_LOAD_BALANCER_CLASS = RoundRobinLoadBalancer.class.getName();
     public static final int DEFAULT_MASTER_CONN_POOL_SIZE = 100;
     public static final int DEFAULT_SLAVE_CONN_POOL_SIZE = 100;
+    public static final int DEFAULT_CONN_MIN_IDLE_SIZE = 32;
     public static final int DEFAULT_NODE_POLL_INTERVAL = 1_000;
 
     private String nodes;
     private String loadBalancerClass = DEFAULT_LOAD_BALANCER_CLASS;
     private int masterConnectionPoolSize = DEFAULT_MASTER_CONN_POOL_SIZE;
     private int slaveConnectionPoolSize = DEFAULT_SLAVE_CONN_POOL_SIZE;
+    private int masterConnectionMinimumIdleSize = DEFAULT_CONN_MIN_IDLE_SIZE;
+    private int slaveConnectionMinimumIdleSize = DEFAULT_CONN_MIN_IDLE_SIZE;
     private int nodePollInterval = DEFAULT_NODE_POLL_INTERVAL;
 
     @Override
@@ -59,6 +62,8 @@ public class ElasticacheSessionManager extends BaseRedissonSessionManager {
             .setDatabase(database)
             .setMasterConnectionPoolSize(masterConnectionPoolSize)
             .setSlaveConnectionPoolSize(slaveConnectionPoolSize)
+            .setMasterConnectionMinimumIdleSize(masterConnectionMinimumIdleSize)
+            .setSlaveConnectionMinimumIdleSize(slaveConnectionMinimumIdleSize)
             .setPassword(password)
             .setTimeout(timeout)
             .setReadMode(ReadMode.MASTER_SLAVE)
@@ -111,4 +116,32 @@ public class ElasticacheSessionManager extends BaseRedissonSessionManager {
     public void setNodePollInterval(int nodePollInterval) {
         this.nodePollInterval = nodePollInterval;
     }
+
+    public int getMasterConnectionMinimumIdleSize() {
+        return masterConnectionMinimumIdleSize;
+    }
+
+    /**
+     * Set the number of master connections kept open while idle<br>
+     * Defaults to {@value #DEFAULT_CONN_MIN_IDLE_SIZE}
+     * 
+     * @param masterConnectionMinimumIdleSize
+     */
+    public void setMasterConnectionMinimumIdleSize(int masterConnectionMinimumIdleSize) {
+        this.masterConnectionMinimumIdleSize = masterConnectionMinimumIdleSize;
+    }
+
+    public int getSlaveConnectionMinimumIdleSize() {
+        return slaveConnectionMinimumIdleSize;
+    }
+
+    /**
+     * Set the number of connections per replica kept open while idle<br>
+     * Defaults to {@value #DEFAULT_CONN_MIN_IDLE_SIZE}
+     * 
+     * @param slaveConnectionMinimumIdleSize
+     */
+    public void setSlaveConnectionMinimumIdleSize(int slaveConnectionMinimumIdleSize) {
+        this.slaveConnectionMinimumIdleSize = slaveConnectionMinimumIdleSize;
+    }
 }
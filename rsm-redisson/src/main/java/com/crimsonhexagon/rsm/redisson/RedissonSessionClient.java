@@ -16,18 +16,51 @@
 
 package com.crimsonhexagon.rsm.redisson;
 
+import com.crimsonhexagon.rsm.RedisDeadline;
+import com.crimsonhexagon.rsm.RedisScript;
 import com.crimsonhexagon.rsm.RedisSession;
 import com.crimsonhexagon.rsm.RedisSessionClient;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.redisson.Redisson;
+import org.redisson.api.BatchOptions;
+import org.redisson.api.RBatch;
+import org.redisson.api.RBucket;
+import org.redisson.api.RFuture;
+import org.redisson.api.RHyperLogLog;
+import org.redisson.api.RPatternTopic;
+import org.redisson.api.RScript;
+import org.redisson.api.RSet;
+import org.redisson.api.RTopic;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.RedisException;
+import org.redisson.client.RedisTimeoutException;
+import org.redisson.client.codec.ByteArrayCodec;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.StringCodec;
 import org.redisson.config.Config;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Redisson-backed {@link RedisSessionClient}
@@ -38,14 +71,59 @@ public class RedissonSessionClient implements RedisSessionClient {
     protected final Log log = LogFactory.getLog(getClass());
 
     private final RedissonClient redissonClient;
+    private final Codec codec;
+    private final boolean ownsClient;
+    // removed on shutdown when the client is shared with other managers
+    private final List<Runnable> listenerRemovals = new ArrayList<>();
 
     public RedissonSessionClient(Config config) {
         this.redissonClient = Redisson.create(config);
+        this.codec = config.getCodec();
+        this.ownsClient = true;
+    }
+
+    /**
+     * @param redissonClient client shared with other managers; not shut down by {@link #shutdown()}
+     * @param codec codec for the sessions of this manager
+     */
+    public RedissonSessionClient(RedissonClient redissonClient, Codec codec) {
+        this.redissonClient = redissonClient;
+        this.codec = codec;
+        this.ownsClient = false;
+    }
+
+    /**
+     * Perform an operation, waiting for its response no longer than until the {@link RedisDeadline} of the current
+     * thread
+     * 
+     * @param sync performs the operation in absence of a deadline; may be <code>null</code> if there is one
+     * @param async starts the operation
+     * @return
+     */
+    private <T> T await(Supplier<T> sync, Supplier<RFuture<T>> async) {
+        final RedisDeadline deadline = RedisDeadline.current();
+        if (deadline == null) {
+            return sync.get();
+        }
+        final RFuture<T> future = async.get();
+        if (!future.awaitUninterruptibly(deadline.remaining(TimeUnit.MILLISECONDS))) {
+            throw new RedisTimeoutException("Redis time budget of the request exhausted");
+        }
+        if (!future.isSuccess()) {
+            final Throwable cause = future.cause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+        return future.getNow();
     }
 
     @Override
     public void save(String key, RedisSession session) {
-        redissonClient.getBucket(key).set(session);
+        final RBucket<Object> bucket = redissonClient.getBucket(key, codec);
+        if (RedisDeadline.current() == null) {
+            bucket.set(session);
+        } else {
+            await(null, () -> bucket.setAsync(session));
+        }
         if (log.isTraceEnabled()) {
             try {
                 int size = getEncodedSize(session);
@@ -56,9 +134,37 @@ public class RedissonSessionClient implements RedisSessionClient {
         }
     }
 
+    @Override
+    public boolean reserve(String key, RedisSession session, long ttl, TimeUnit timeUnit) {
+        if (ttl > 0) {
+            return await(() -> redissonClient.getBucket(key, codec).trySet(session, ttl, timeUnit),
+                () -> redissonClient.getBucket(key, codec).trySetAsync(session, ttl, timeUnit));
+        }
+        return await(() -> redissonClient.getBucket(key, codec).trySet(session), () -> redissonClient.getBucket(key, codec).trySetAsync(session));
+    }
+
+    @Override
+    public void save(String key, RedisSession session, byte[] encoded) {
+        final RBucket<byte[]> bucket = redissonClient.getBucket(key, ByteArrayCodec.INSTANCE);
+        if (RedisDeadline.current() == null) {
+            bucket.set(encoded);
+        } else {
+            await(null, () -> bucket.setAsync(encoded));
+        }
+    }
+
+    @Override
+    public boolean reserve(String key, RedisSession session, byte[] encoded, long ttl, TimeUnit timeUnit) {
+        final RBucket<byte[]> bucket = redissonClient.getBucket(key, ByteArrayCodec.INSTANCE);
+        if (ttl > 0) {
+            return await(() -> bucket.trySet(encoded, ttl, timeUnit), () -> bucket.trySetAsync(encoded, ttl, timeUnit));
+        }
+        return await(() -> bucket.trySet(encoded), () -> bucket.trySetAsync(encoded));
+    }
+
     @Override
     public RedisSession load(String key) {
-        Object obj = redissonClient.getBucket(key).get();
+        Object obj = await(() -> redissonClient.getBucket(key, codec).get(), () -> redissonClient.getBucket(key, codec).getAsync());
         if (obj != null) {
             if (RedisSession.class.isAssignableFrom(obj.getClass())) {
                 return RedisSession.class.cast(obj);
@@ -70,9 +176,119 @@ public class RedissonSessionClient implements RedisSessionClient {
         return null;
     }
 
+    @Override
+    public byte[] loadEncoded(String key) {
+        return await(() -> redissonClient.<byte[]>getBucket(key, ByteArrayCodec.INSTANCE).get(),
+            () -> redissonClient.<byte[]>getBucket(key, ByteArrayCodec.INSTANCE).getAsync());
+    }
+
+    @Override
+    public List<byte[]> loadEncoded(List<String> keys) {
+        final Map<String, byte[]> values = redissonClient.getBuckets(ByteArrayCodec.INSTANCE).get(keys.toArray(new String[0]));
+        return keys.stream().map(values::get).collect(Collectors.toList());
+    }
+
+    @Override
+    public CompletableFuture<byte[]> loadEncodedAsync(String key, boolean alternate) {
+        // with ReadMode.SLAVE or MASTER_SLAVE redisson balances reads between nodes
+        return redissonClient.<byte[]>getBucket(key, ByteArrayCodec.INSTANCE).getAsync().toCompletableFuture();
+    }
+
+    @Override
+    public byte[] encode(Object obj) {
+        ByteBuf buf = null;
+        try {
+            buf = codec.getValueEncoder().encode(obj);
+            return ByteBufUtil.getBytes(buf);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e); // redisson style
+        } finally {
+            if (buf != null) {
+                buf.release();
+            }
+        }
+    }
+
+    @Override
+    public Object decode(byte[] encoded) {
+        final ByteBuf buf = Unpooled.wrappedBuffer(encoded);
+        try {
+            return codec.getValueDecoder().decode(buf, null);
+        } catch (IOException e) {
+            log.error("Failed to decode value", e);
+            return null;
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Override
+    public Stream<List<String>> scanKeys(String pattern, int count) {
+        // redisson scans lazily per key; regroup into batches of (at most) count keys
+        final Iterator<String> keys = redissonClient.getKeys().getKeysByPattern(pattern, count).iterator();
+        final Iterator<List<String>> batches = new Iterator<List<String>>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public List<String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final List<String> batch = new ArrayList<>(count);
+                while (batch.size() < count && keys.hasNext()) {
+                    batch.add(keys.next());
+                }
+                return batch;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
     @Override
     public void delete(String key) {
-        redissonClient.getBucket(key).delete();
+        await(() -> redissonClient.getBucket(key).delete(), () -> redissonClient.getBucket(key).deleteAsync());
+    }
+
+    @Override
+    public void delete(Collection<String> keys) {
+        if (!keys.isEmpty()) {
+            redissonClient.getKeys().delete(keys.toArray(new String[0]));
+        }
+    }
+
+    @Override
+    public boolean rename(String oldKey, String newKey) {
+        try {
+            return await(() -> redissonClient.getBucket(oldKey).renamenx(newKey), () -> redissonClient.getBucket(oldKey).renamenxAsync(newKey));
+        } catch (RedisException e) {
+            if (e.getMessage() != null && e.getMessage().contains("no such key")) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public long evalScript(RedisScript script, List<String> keys, List<byte[]> args) {
+        final RScript rScript = redissonClient.getScript(ByteArrayCodec.INSTANCE);
+        final List<Object> scriptKeys = new ArrayList<>(keys);
+        final Object[] values = args.toArray();
+        // routed by the first key in cluster mode
+        final String routingKey = keys.isEmpty() ? null : keys.get(0);
+        try {
+            return await(() -> rScript.evalSha(routingKey, RScript.Mode.READ_WRITE, script.getSha1(), RScript.ReturnType.INTEGER, scriptKeys, values),
+                () -> rScript.evalShaAsync(routingKey, RScript.Mode.READ_WRITE, script.getSha1(), RScript.ReturnType.INTEGER, scriptKeys, values));
+        } catch (RedisException e) {
+            if (e.getMessage() == null || !e.getMessage().contains("NOSCRIPT")) {
+                throw e;
+            }
+            log.debug("Loading " + script);
+            rScript.scriptLoad(script.getSource());
+            return rScript.evalSha(routingKey, RScript.Mode.READ_WRITE, script.getSha1(), RScript.ReturnType.INTEGER, scriptKeys, values);
+        }
     }
 
     @Override
@@ -82,14 +298,112 @@ public class RedissonSessionClient implements RedisSessionClient {
 
     @Override
     public boolean exists(String key) {
-        return redissonClient.getBucket(key).isExists();
+        return await(() -> redissonClient.getBucket(key).isExists(), () -> redissonClient.getBucket(key).isExistsAsync());
+    }
+
+    @Override
+    public void countUnique(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        final RHyperLogLog<String> log = redissonClient.getHyperLogLog(key, StringCodec.INSTANCE);
+        log.addAsync(member);
+        log.expireAsync(expirationTime, timeUnit);
+    }
+
+    @Override
+    public long uniqueCount(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        final Iterator<String> it = keys.iterator();
+        final RHyperLogLog<String> first = redissonClient.getHyperLogLog(it.next(), StringCodec.INSTANCE);
+        final String[] others = new String[keys.size() - 1];
+        for (int i = 0; it.hasNext(); i++) {
+            others[i] = it.next();
+        }
+        return others.length == 0 ? first.count() : first.countWith(others);
+    }
+
+    @Override
+    public void addToSet(String key, String member, long expirationTime, TimeUnit timeUnit) {
+        final RSet<String> set = redissonClient.getSet(key, StringCodec.INSTANCE);
+        set.add(member);
+        if (expirationTime > 0) {
+            set.expire(expirationTime, timeUnit);
+        }
+    }
+
+    @Override
+    public void removeFromSet(String key, Collection<String> members) {
+        if (!members.isEmpty()) {
+            redissonClient.<String>getSet(key, StringCodec.INSTANCE).removeAll(members);
+        }
+    }
+
+    @Override
+    public Set<String> getSetMembers(String key) {
+        return redissonClient.<String>getSet(key, StringCodec.INSTANCE).readAll();
+    }
+
+    @Override
+    public void mark(String key, long ttl, TimeUnit timeUnit) {
+        redissonClient.<String>getBucket(key, StringCodec.INSTANCE).setAsync("", ttl, timeUnit);
+    }
+
+    @Override
+    public boolean markIfAbsent(String key, long ttl, TimeUnit timeUnit) {
+        return redissonClient.<String>getBucket(key, StringCodec.INSTANCE).trySet("", ttl, timeUnit);
+    }
+
+    @Override
+    public List<Boolean> markIfAbsent(List<String> keys, long ttl, TimeUnit timeUnit) {
+        final RBatch batch = redissonClient.createBatch(BatchOptions.defaults());
+        for (String key : keys) {
+            batch.<String>getBucket(key, StringCodec.INSTANCE).trySetAsync("", ttl, timeUnit);
+        }
+        return batch.execute().getResponses().stream().map(Boolean.TRUE::equals).collect(Collectors.toList());
+    }
+
+    @Override
+    public void subscribeExpirations(Consumer<String> listener) {
+        // resubscribed by redisson on reconnect
+        final RPatternTopic topic = redissonClient.getPatternTopic("__keyevent@*__:expired", StringCodec.INSTANCE);
+        final int listenerId = topic.addListener(String.class, (pattern, channel, key) -> listener.accept(key));
+        synchronized (listenerRemovals) {
+            listenerRemovals.add(() -> topic.removeListener(listenerId));
+        }
+    }
+
+    @Override
+    public void publish(String channel, String message) {
+        redissonClient.getTopic(channel, StringCodec.INSTANCE).publishAsync(message);
+    }
+
+    @Override
+    public void subscribe(String channel, Consumer<String> listener) {
+        // resubscribed by redisson on reconnect
+        final RTopic topic = redissonClient.getTopic(channel, StringCodec.INSTANCE);
+        final int listenerId = topic.addListener(String.class, (ch, message) -> listener.accept(message));
+        synchronized (listenerRemovals) {
+            listenerRemovals.add(() -> topic.removeListener(listenerId));
+        }
+    }
+
+    @Override
+    public void ping() {
+        if (!redissonClient.getNodesGroup().pingAll()) {
+            throw new RedisException("Redis did not answer the ping");
+        }
+    }
+
+    @Override
+    public boolean supports(Capability capability) {
+        return true;
     }
 
     @Override
     public int getEncodedSize(Object obj) {
         ByteBuf buf = null;
         try {
-            buf = redissonClient.getConfig().getCodec().getValueEncoder().encode(obj);
+            buf = codec.getValueEncoder().encode(obj);
             return buf.readableBytes();
         } catch (IOException e) {
             throw new IllegalArgumentException(e); // redisson style
@@ -102,6 +416,13 @@ public class RedissonSessionClient implements RedisSessionClient {
 
     @Override
     public void shutdown() {
-        redissonClient.shutdown();
+        if (ownsClient) {
+            redissonClient.shutdown();
+            return;
+        }
+        synchronized (listenerRemovals) {
+            listenerRemovals.forEach(Runnable::run);
+            listenerRemovals.clear();
+        }
     }
 }
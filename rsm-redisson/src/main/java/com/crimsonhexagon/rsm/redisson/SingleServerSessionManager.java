@@ -26,9 +26,11 @@ import org.redisson.config.Config;
 public class SingleServerSessionManager extends BaseRedissonSessionManager {
     public static final String DEFAULT_ENDPOINT = "redis://localhost:6379";
     public static final int DEFAULT_CONN_POOL_SIZE = 100;
+    public static final int DEFAULT_CONN_MIN_IDLE_SIZE = 32;
 
     private String endpoint = DEFAULT_ENDPOINT;
     private int connectionPoolSize = DEFAULT_CONN_POOL_SIZE;
+    private int connectionMinimumIdleSize = DEFAULT_CONN_MIN_IDLE_SIZE;
 
     @Override
     protected Config configure(Config config) {
@@ -36,6 +38,7 @@ public class SingleServerSessionManager extends BaseRedissonSessionManager {
             .setAddress(getEndpoint())
             .setDatabase(database)
             .setConnectionPoolSize(connectionPoolSize)
+            .setConnectionMinimumIdleSize(connectionMinimumIdleSize)
             .setPassword(password)
             .setTimeout(timeout)
             .setPingTimeout(pingTimeout)
@@ -65,4 +68,18 @@ public class SingleServerSessionManager extends BaseRedissonSessionManager {
     public void setConnectionPoolSize(int connectionPoolSize) {
         this.connectionPoolSize = connectionPoolSize;
     }
+
+    public int getConnectionMinimumIdleSize() {
+        return connectionMinimumIdleSize;
+    }
+
+    /**
+     * Set the number of connections kept open while idle<br>
+     * Defaults to {@value #DEFAULT_CONN_MIN_IDLE_SIZE}
+     * 
+     * @param connectionMinimumIdleSize
+     */
+    public void setConnectionMinimumIdleSize(int connectionMinimumIdleSize) {
+        this.connectionMinimumIdleSize = connectionMinimumIdleSize;
+    }
 }